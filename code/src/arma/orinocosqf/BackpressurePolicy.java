@@ -0,0 +1,23 @@
+package arma.orinocosqf;
+
+/**
+ * What a {@link ForkJoinStatementProcessingScheduler} does with a statement
+ * batch while its queue is full, i.e. while the lexer produces batches faster
+ * than the workers process them. The lexer, the preprocessor and the
+ * {@link StatementCollectionTokenProcessor} run on the thread that schedules
+ * the batches, so all of them are throttled by the policy.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public enum BackpressurePolicy {
+	/** The scheduling thread waits until a worker has taken a batch */
+	Block,
+	/**
+	 * The batch is written to a temporary file and queued again when the workers
+	 * catch up (at the latest when the scheduler is finished)
+	 */
+	Spill,
+	/** The scheduling thread processes the batch itself, with its own processor */
+	RunInline
+}
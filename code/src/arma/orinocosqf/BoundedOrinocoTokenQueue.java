@@ -0,0 +1,322 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link OrinocoTokenQueue} for a single producer and many consumers, backed
+ * by a bounded, lock-free ring of token batches.<br>
+ * <br>
+ * The producer submits tokens via the {@link OrinocoTokenProcessor} methods.
+ * They are written into a batch that only the producer sees, and
+ * {@link #publish()} makes the batch visible to the consumers as a whole.
+ * Consumers take whole batches via {@link #poll(OrinocoTokenProcessor)}, so a
+ * batch is never split between consumers. Each batch is a
+ * {@link OrinocoTokenBuffer} (parallel primitive arrays, no {@link OrinocoToken}
+ * objects); the batches of the ring are allocated up front and reused.<br>
+ * <br>
+ * Each slot of the ring has a sequence number: the producer may write the slot
+ * at position <code>p</code> when its sequence is <code>p</code> and publishes
+ * it by setting it to <code>p + 1</code>. A consumer claims the batch by moving
+ * the shared consumer position from <code>p</code> to <code>p + 1</code> (a
+ * CAS) and releases the slot by setting its sequence to
+ * <code>p + capacity</code>. Publishing swaps the filled batch with the empty
+ * one in the slot, so neither publishing nor
+ * {@link #drainTo(OrinocoTokenQueue)} copies tokens.<br>
+ * <br>
+ * All methods but {@link #poll(OrinocoTokenProcessor)} and {@link #isEmpty()}
+ * must be invoked by the producer thread only. {@link #publish()} blocks while
+ * all slots hold published batches; {@link #tryPublish()} doesn't. The time
+ * the producer was blocked is measured (see {@link #getBlockedNanos()}).
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class BoundedOrinocoTokenQueue extends OrinocoTokenQueue {
+	/** The default number of batches the ring holds */
+	public static final int DEFAULT_CAPACITY = 64;
+	/** The default initial number of tokens of a batch (batches grow if needed) */
+	public static final int DEFAULT_BATCH_CAPACITY = 256;
+
+	private static final int SPINS = 128;
+	private static final int YIELDS = 128;
+	private static final long PARK_NANOS = 20_000;
+
+	private final int mask;
+	private final OrinocoTokenBuffer[] batches;
+	private final AtomicLongArray sequences;
+	private final AtomicLong consumerPosition = new AtomicLong();
+	/** The position the next batch is published to (only accessed by the producer) */
+	private long producerPosition;
+	/** The batch the producer writes to */
+	private OrinocoTokenBuffer current;
+	private volatile boolean ended;
+	/** The time the producer waited for a free slot, in nanoseconds */
+	private volatile long blockedNanos;
+
+	public BoundedOrinocoTokenQueue() {
+		this(DEFAULT_CAPACITY, DEFAULT_BATCH_CAPACITY);
+	}
+
+	/**
+	 * @param capacity the number of batches the ring holds (rounded up to a power
+	 *        of two, at least 2)
+	 * @param batchCapacity the initial number of tokens of a batch
+	 */
+	public BoundedOrinocoTokenQueue(int capacity, int batchCapacity) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("capacity=" + capacity);
+		}
+		// with a single slot, a published batch would look like a free slot to the producer
+		int size = Math.max(2, Integer.highestOneBit(capacity));
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.batches = new OrinocoTokenBuffer[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			batches[i] = new OrinocoTokenBuffer(batchCapacity);
+			sequences.set(i, i);
+		}
+		this.current = new OrinocoTokenBuffer(batchCapacity);
+	}
+
+	/** @return the number of batches the ring holds */
+	public int getCapacity() {
+		return batches.length;
+	}
+
+	/** @return the number of tokens that were submitted but not published yet */
+	public int getUnpublishedCount() {
+		return current.size();
+	}
+
+	/**
+	 * Makes the submitted tokens visible to the consumers as one batch. Blocks
+	 * while the ring is full. Does nothing if no tokens were submitted.
+	 */
+	public void publish() {
+		if (current.size() > 0) {
+			//noinspection ConstantConditions
+			current = publish(current, true);
+		}
+	}
+
+	/**
+	 * Like {@link #publish()}, but doesn't block
+	 *
+	 * @return false if the ring is full (the tokens stay unpublished)
+	 */
+	public boolean tryPublish() {
+		if (current.size() == 0) {
+			return true;
+		}
+		OrinocoTokenBuffer spare = publish(current, false);
+		if (spare == null) {
+			return false;
+		}
+		current = spare;
+		return true;
+	}
+
+	/**
+	 * @return true if the next batch can be published without blocking (only
+	 *         meaningful to the producer)
+	 */
+	public boolean hasFreeSlot() {
+		return sequences.get(slot(producerPosition)) == producerPosition;
+	}
+
+	/** @return the total time the producer was blocked on a full ring, in nanoseconds */
+	public long getBlockedNanos() {
+		return blockedNanos;
+	}
+
+	/**
+	 * @return true if all tokens were submitted ({@link #end()} was invoked) and
+	 *         taken out of the queue
+	 */
+	public boolean isFinished() {
+		return ended && isEmpty();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		long position = consumerPosition.get();
+		return sequences.get(slot(position)) != position + 1;
+	}
+
+	@Override
+	public boolean poll(@NotNull OrinocoTokenProcessor processor) {
+		long position = claim();
+		if (position < 0) {
+			return false;
+		}
+		int slot = slot(position);
+		OrinocoTokenBuffer batch = batches[slot];
+		try {
+			batch.replay(0, batch.size(), processor);
+		} finally {
+			release(position, batch);
+		}
+		return true;
+	}
+
+	/**
+	 * Moves all published batches and the unpublished tokens to the other queue,
+	 * each as one batch. If the other queue is a {@link BoundedOrinocoTokenQueue},
+	 * the batches are swapped with the empty batches of its ring, otherwise the
+	 * tokens are submitted to it. The invoking thread must be the producer of both
+	 * queues; it blocks while the other queue is full.
+	 */
+	@Override
+	public void drainTo(@NotNull OrinocoTokenQueue other) {
+		if (other == this) {
+			throw new IllegalArgumentException("a queue can't be drained to itself");
+		}
+		long position;
+		while ((position = claim()) >= 0) {
+			int slot = slot(position);
+			batches[slot] = moveTo(batches[slot], other);
+			release(position, batches[slot]);
+		}
+		if (current.size() > 0) {
+			current = moveTo(current, other);
+		}
+	}
+
+	/** @return the batch that replaces the moved one */
+	@NotNull
+	private static OrinocoTokenBuffer moveTo(@NotNull OrinocoTokenBuffer batch, @NotNull OrinocoTokenQueue other) {
+		if (other instanceof BoundedOrinocoTokenQueue) {
+			//noinspection ConstantConditions
+			return ((BoundedOrinocoTokenQueue) other).publish(batch, true);
+		}
+		batch.replay(0, batch.size(), other);
+		batch.clear();
+		return batch;
+	}
+
+	/**
+	 * Puts the batch into the slot at the producer position
+	 *
+	 * @return the empty batch that was in the slot, or null if the ring is full
+	 *         and <code>wait</code> is false
+	 */
+	@Nullable
+	private OrinocoTokenBuffer publish(@NotNull OrinocoTokenBuffer batch, boolean wait) {
+		long position = producerPosition;
+		int slot = slot(position);
+		if (sequences.get(slot) != position) {
+			if (!wait) {
+				return null;
+			}
+			long start = System.nanoTime();
+			int waits = 0;
+			while (sequences.get(slot) != position) {
+				waits = backOff(waits);
+			}
+			//noinspection NonAtomicOperationOnVolatileField only the producer writes
+			blockedNanos += System.nanoTime() - start;
+		}
+		OrinocoTokenBuffer spare = batches[slot];
+		batches[slot] = batch;
+		sequences.set(slot, position + 1);
+		producerPosition = position + 1;
+		return spare;
+	}
+
+	/** @return the claimed position or -1 if no batch is published */
+	private long claim() {
+		while (true) {
+			long position = consumerPosition.get();
+			long sequence = sequences.get(slot(position));
+			if (sequence < position + 1) {
+				return -1;
+			}
+			if (sequence == position + 1 && consumerPosition.compareAndSet(position, position + 1)) {
+				return position;
+			}
+			// another consumer claimed the batch first
+		}
+	}
+
+	/** Empties the batch in the slot of the claimed position and hands the slot back to the producer */
+	private void release(long position, @NotNull OrinocoTokenBuffer batch) {
+		batch.clear();
+		sequences.set(slot(position), position + batches.length);
+	}
+
+	private int slot(long position) {
+		return (int) position & mask;
+	}
+
+	/**
+	 * Waits a little: spins first, then yields, then parks
+	 *
+	 * @param waits the number of previous waits for the same condition
+	 * @return the number of waits including this one
+	 */
+	static int backOff(int waits) {
+		if (waits >= SPINS + YIELDS) {
+			LockSupport.parkNanos(PARK_NANOS);
+		} else if (waits >= SPINS) {
+			Thread.yield();
+		}
+		return waits + 1;
+	}
+
+	@Override
+	public void begin() {
+		ended = false;
+	}
+
+	@Override
+	public void acceptCommand(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		current.acceptCommand(id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptLocalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		current.acceptLocalVariable(id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptGlobalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		current.acceptGlobalVariable(id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset, int originalOffset,
+							  int originalLength) {
+		current.acceptLiteral(type, token, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull char[] bufReadOnly, int offset, int length,
+							  int preprocessedOffset, int originalOffset, int originalLength) {
+		current.acceptLiteral(type, bufReadOnly, offset, length, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void preProcessorTokenSkipped(@NotNull String token, int offset) {
+		current.preProcessorTokenSkipped(token, offset);
+	}
+
+	@Override
+	public void preProcessorCommandSkipped(@NotNull String command, int offset) {
+		current.preProcessorCommandSkipped(command, offset);
+	}
+
+	/** Publishes the submitted tokens (blocking while the ring is full) */
+	@Override
+	public void end() {
+		publish();
+		ended = true;
+	}
+}
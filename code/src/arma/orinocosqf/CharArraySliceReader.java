@@ -0,0 +1,111 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An {@link OrinocoReader} over a slice of a caller-supplied char[]. The array
+ * isn't copied: {@link OrinocoLexer} lexes directly in it (see
+ * {@link #getBackingArray()}). Reading it like any other {@link java.io.Reader}
+ * is supported as well.
+ *
+ * @author K
+ * @since 10/18/2026
+ * @see OrinocoReader#fromCharArray(char[], int, int)
+ */
+public class CharArraySliceReader extends OrinocoReader {
+	private final char[] buf;
+	private final int offset;
+	private final int end;
+	private int cursor;
+	private int mark;
+
+	/**
+	 * @param buf the array that holds the text
+	 * @param offset the index of the first char of the text
+	 * @param length the length of the text
+	 * @throws IndexOutOfBoundsException if the slice isn't inside the array
+	 */
+	public CharArraySliceReader(@NotNull char[] buf, int offset, int length) {
+		if (offset < 0 || length < 0 || length > buf.length - offset) {
+			throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length + ", array length=" + buf.length);
+		}
+		this.buf = buf;
+		this.offset = offset;
+		this.end = offset + length;
+		this.cursor = offset;
+		this.mark = offset;
+	}
+
+	@NotNull
+	@Override
+	public char[] getBackingArray() {
+		return buf;
+	}
+
+	@Override
+	public int getBackingArrayOffset() {
+		return offset;
+	}
+
+	@Override
+	public int getBackingArrayLength() {
+		return end - offset;
+	}
+
+	@Override
+	public int read(@NotNull char[] cbuf, int off, int len) {
+		if (off < 0 || len < 0 || len > cbuf.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		int count = Math.min(len, end - cursor);
+		if (count <= 0) {
+			return -1;
+		}
+		System.arraycopy(buf, cursor, cbuf, off, count);
+		cursor += count;
+		return count;
+	}
+
+	@Override
+	public int read() {
+		return cursor < end ? buf[cursor++] : -1;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("skip value is negative");
+		}
+		int skipped = (int) Math.min(n, end - cursor);
+		cursor += skipped;
+		return skipped;
+	}
+
+	@Override
+	public boolean ready() {
+		return true;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public void mark(int readAheadLimit) {
+		mark = cursor;
+	}
+
+	@Override
+	public void reset() {
+		cursor = mark;
+	}
+
+	@Override
+	public void close() {
+		// do nothing
+	}
+}
@@ -5,33 +5,123 @@ import org.jetbrains.annotations.NotNull;
 import java.io.ByteArrayInputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.CharBuffer;
 
 /**
  * An implementation of a {@link Reader} that works on a {@link CharSequence} as
  * an input. This prevents the need to use a {@link ByteArrayInputStream}
- * alongside with an {@link InputStreamReader}.
+ * alongside with an {@link InputStreamReader}.<br>
+ * <br>
+ * {@link #read(char[], int, int)} copies in bulk if the {@link CharSequence} is a
+ * {@link String}, {@link StringBuilder}, {@link StringBuffer} or
+ * {@link CharBuffer}. Any other {@link CharSequence} is copied via
+ * {@link CharSequence#charAt(int)}. The reader doesn't copy the sequence, so it
+ * must not be modified while it is read.
  *
  * @author K
  * @since 02/20/2019
  */
 public class CharSequenceReader extends Reader {
 	private final CharSequence cs;
+	/** A private view of {@link #cs} if it is a {@link CharBuffer}, null otherwise */
+	private final CharBuffer charBufferView;
+	/** The index in {@link #charBufferView} that corresponds to index 0 in {@link #cs} */
+	private final int charBufferStart;
 	private int cursor = 0;
+	private int mark = 0;
 
 	public CharSequenceReader(@NotNull CharSequence cs) {
 		this.cs = cs;
+		if (cs instanceof CharBuffer) {
+			this.charBufferView = ((CharBuffer) cs).duplicate();
+			this.charBufferStart = charBufferView.position();
+		} else {
+			this.charBufferView = null;
+			this.charBufferStart = 0;
+		}
 	}
 
 	@Override
 	public int read(@NotNull char[] cbuf, int off, int len) {
-		int count = 0;
-		for (int i = off; i < len && cursor < cs.length(); i++) {
-			cbuf[i] = cs.charAt(cursor++);
-			count++;
+		if (off < 0 || len < 0 || len > cbuf.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		int count = Math.min(len, cs.length() - cursor);
+		if (count <= 0) {
+			return -1;
 		}
+
+		final int end = cursor + count;
+		if (cs instanceof String) {
+			((String) cs).getChars(cursor, end, cbuf, off);
+		} else if (cs instanceof StringBuilder) {
+			((StringBuilder) cs).getChars(cursor, end, cbuf, off);
+		} else if (cs instanceof StringBuffer) {
+			((StringBuffer) cs).getChars(cursor, end, cbuf, off);
+		} else if (charBufferView != null) {
+			if (charBufferView.hasArray()) {
+				System.arraycopy(charBufferView.array(), charBufferView.arrayOffset() + charBufferStart + cursor, cbuf, off, count);
+			} else {
+				charBufferView.position(charBufferStart + cursor);
+				charBufferView.get(cbuf, off, count);
+			}
+		} else {
+			for (int i = 0; i < count; i++) {
+				cbuf[off + i] = cs.charAt(cursor + i);
+			}
+		}
+		cursor = end;
 		return count;
 	}
 
+	@Override
+	public int read() {
+		return cursor < cs.length() ? cs.charAt(cursor++) : -1;
+	}
+
+	/**
+	 * Skips up to <code>n</code> chars. Unlike {@link Reader#skip(long)} this
+	 * doesn't read the skipped chars.
+	 */
+	@Override
+	public long skip(long n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("skip value is negative");
+		}
+		int skipped = (int) Math.min(n, cs.length() - cursor);
+		cursor += skipped;
+		return skipped;
+	}
+
+	/** @return true, since reading from a {@link CharSequence} never blocks */
+	@Override
+	public boolean ready() {
+		return true;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	/**
+	 * Marks the current position. The whole sequence is always available, so
+	 * <code>readAheadLimit</code> is ignored.
+	 */
+	@Override
+	public void mark(int readAheadLimit) {
+		mark = cursor;
+	}
+
+	/** Resets to the last mark or to the beginning if {@link #mark(int)} wasn't invoked */
+	@Override
+	public void reset() {
+		cursor = mark;
+	}
+
 	@Override
 	public void close() {
 		// do nothing
@@ -0,0 +1,133 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * All known {@link Command}s, indexed by their {@link Command#id()} (which is
+ * their index in this database) and by their case-insensitive name.<br>
+ * <br>
+ * A database is either built from the command definitions or loaded from a
+ * snapshot that was written by {@link CommandDatabaseSnapshot} (see
+ * {@link #load(Path, long, Supplier)}).
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class CommandDatabase {
+	private final Command[] commands;
+	private final CommandLookupTable lookupTable;
+
+	/**
+	 * @param commands all commands, ordered by id
+	 * @throws IllegalArgumentException if a command's id isn't its index or two
+	 *         names only differ in case
+	 */
+	public CommandDatabase(@NotNull List<? extends Command> commands) {
+		this.commands = commands.toArray(new Command[0]);
+		List<String> names = new ArrayList<>(this.commands.length);
+		for (int i = 0; i < this.commands.length; i++) {
+			if (this.commands[i].id() != i) {
+				throw new IllegalArgumentException("command " + this.commands[i].getName() + " has id " + this.commands[i].id()
+						+ " but is at index " + i);
+			}
+			names.add(this.commands[i].getName());
+		}
+		this.lookupTable = new CommandLookupTable(names);
+	}
+
+	/**
+	 * Loads the database from the given snapshot. If the snapshot doesn't exist,
+	 * can't be read, was written by another format version or was written for
+	 * definitions with another hash, the database is built from
+	 * <code>definitions</code> instead and a new snapshot is written (if that
+	 * fails, the database is still returned).
+	 *
+	 * @param snapshot the snapshot file
+	 * @param sourceHash the hash of the source of the definitions (see
+	 *        {@link CommandDatabaseSnapshot#sourceHash(List)})
+	 * @param definitions supplies the commands (ordered by id) if the snapshot
+	 *        can't be used
+	 * @return the database
+	 */
+	@NotNull
+	public static CommandDatabase load(@NotNull Path snapshot, long sourceHash,
+									   @NotNull Supplier<? extends List<? extends Command>> definitions) {
+		try {
+			return CommandDatabaseSnapshot.read(snapshot, sourceHash);
+		} catch (IOException ignore) {
+			// rebuild below
+		}
+		CommandDatabase database = new CommandDatabase(definitions.get());
+		try {
+			CommandDatabaseSnapshot.write(database, sourceHash, snapshot);
+		} catch (IOException ignore) {
+			// the snapshot is only a cache
+		}
+		return database;
+	}
+
+	/** @return the number of commands */
+	public int size() {
+		return commands.length;
+	}
+
+	/**
+	 * @return the command with the given id
+	 * @throws IndexOutOfBoundsException if there is no such command
+	 */
+	@NotNull
+	public Command getCommand(int id) {
+		return commands[id];
+	}
+
+	/**
+	 * @param buf the buffer that contains the name
+	 * @param offset the offset of the name in the buffer
+	 * @param length the length of the name
+	 * @return the command with the given name (case-insensitive) or null if there
+	 *         is none
+	 */
+	@Nullable
+	public Command getCommand(@NotNull char[] buf, int offset, int length) {
+		int id = lookupTable.getId(buf, offset, length);
+		return id < 0 ? null : commands[id];
+	}
+
+	/** @return the command with the given name (case-insensitive) or null if there is none */
+	@Nullable
+	public Command getCommand(@NotNull String name) {
+		char[] chars = name.toCharArray();
+		return getCommand(chars, 0, chars.length);
+	}
+
+	/** @return the table that maps names to ids, e.g. for {@link SimpleOrinocoLexerContext} */
+	@NotNull
+	public CommandLookupTable getLookupTable() {
+		return lookupTable;
+	}
+
+	/** @return an unmodifiable list of all commands, ordered by id */
+	@NotNull
+	public List<Command> getCommands() {
+		return Collections.unmodifiableList(new AbstractList<Command>() {
+			@Override
+			public Command get(int index) {
+				return commands[index];
+			}
+
+			@Override
+			public int size() {
+				return commands.length;
+			}
+		});
+	}
+}
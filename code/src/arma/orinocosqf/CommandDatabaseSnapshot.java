@@ -0,0 +1,466 @@
+package arma.orinocosqf;
+
+import arma.orinocosqf.type.CodeType;
+import arma.orinocosqf.type.ExpandedValueType;
+import arma.orinocosqf.type.PolymorphicWrapperValueType;
+import arma.orinocosqf.type.SingletonArrayExpandedValueType;
+import arma.orinocosqf.type.ValueType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes a {@link CommandDatabase} in a compact binary format, so the
+ * command definitions don't have to be parsed at every start.<br>
+ * <br>
+ * Layout (big endian):
+ * <pre>
+ * header:   int magic, short version, short reserved, int total length, int command count,
+ *           int type count, int offset of the type table, int offset of the syntax section,
+ *           long hash of the command definitions
+ * commands: per command: short name length, chars of name, int precedence,
+ *           byte arity flags, int offset of its syntaxes in the syntax section
+ * types:    int[type count] offsets of the type records, followed by the records.
+ *           Every record is a tag byte and the tag's data. Types only refer to
+ *           types with a lower index.
+ * syntaxes: per command: short syntax count, per syntax: int left, int right and
+ *           int return type index (-1 if there is no argument)
+ * </pre>
+ * A snapshot is read with a single mapped read of the file. Only the command
+ * records are decoded when the snapshot is read; the syntaxes (and the types they
+ * use) of a command are decoded from the mapped file when
+ * {@link Command#getSyntaxList()} is first invoked, so memory and startup time
+ * grow with the commands that are actually type checked. Snapshots of another
+ * format version or of other command definitions (see {@link #sourceHash(List)})
+ * are rejected, so {@link CommandDatabase#load(Path, long, java.util.function.Supplier)}
+ * rebuilds them.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class CommandDatabaseSnapshot {
+	/** "OSCD" */
+	static final int MAGIC = 0x4F534344;
+	/** Increase on every change of the layout */
+	static final short VERSION = 3;
+	static final int HEADER_SIZE = 36;
+
+	private static final byte TYPE_BASE = 0;
+	private static final byte TYPE_CODE = 1;
+	private static final byte TYPE_SINGLETON_ARRAY = 2;
+	private static final byte TYPE_EXPANDED = 3;
+	private static final byte TYPE_POLYMORPHIC_WRAPPER = 4;
+
+	private CommandDatabaseSnapshot() {
+	}
+
+	/**
+	 * Hashes the files the command definitions are parsed from, in the given
+	 * order. A snapshot stores the hash, so it is only used for the same
+	 * definitions.
+	 *
+	 * @param files the definition files
+	 * @return the 64 bit FNV-1a hash of the contents of the files
+	 * @throws IOException if a file can't be read
+	 */
+	public static long sourceHash(@NotNull List<Path> files) throws IOException {
+		long hash = 0xcbf29ce484222325L;
+		for (Path file : files) {
+			for (byte b : Files.readAllBytes(file)) {
+				hash ^= b & 0xFF;
+				hash *= 0x100000001b3L;
+			}
+			// separates the files, so moving bytes between them changes the hash
+			hash ^= 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file and moves it to <code>file</code>, so
+	 * concurrent readers never see a partially written snapshot.
+	 *
+	 * @param database the database to write
+	 * @param sourceHash the hash of the definitions the database was built from
+	 *        (see {@link #sourceHash(List)})
+	 * @param file the snapshot file
+	 * @throws IOException if the file can't be written
+	 * @throws IllegalArgumentException if a command uses a {@link ValueType} that
+	 *         can't be stored
+	 */
+	public static void write(@NotNull CommandDatabase database, long sourceHash, @NotNull Path file) throws IOException {
+		byte[] bytes = toBytes(database, sourceHash);
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temp, bytes);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * @param file the snapshot file
+	 * @param sourceHash the hash of the current definitions (see
+	 *        {@link #sourceHash(List)})
+	 * @return the database stored in the snapshot
+	 * @throws IOException if the file can't be read, is no snapshot, was written by
+	 *         another format version or for other definitions, or is corrupt
+	 */
+	@NotNull
+	public static CommandDatabase read(@NotNull Path file, long sourceHash) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		try {
+			return read(buffer, sourceHash);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("corrupt command database snapshot " + file, e);
+		}
+	}
+
+	@NotNull
+	static byte[] toBytes(@NotNull CommandDatabase database, long sourceHash) throws IOException {
+		TypePool types = new TypePool();
+		ByteArrayOutputStream commandBytes = new ByteArrayOutputStream();
+		DataOutputStream commands = new DataOutputStream(commandBytes);
+		ByteArrayOutputStream syntaxBytes = new ByteArrayOutputStream();
+		DataOutputStream syntaxes = new DataOutputStream(syntaxBytes);
+		for (int id = 0; id < database.size(); id++) {
+			Command command = database.getCommand(id);
+			List<CommandSyntax> syntaxList = command.getSyntaxList();
+			writeString(commands, command.getName());
+			commands.writeInt(command.getPrecedence());
+			commands.writeByte(command instanceof CommandHeader ? ((CommandHeader) command).getArity()
+					: CommandHeader.getArity(syntaxList));
+			commands.writeInt(syntaxes.size());
+
+			syntaxes.writeShort(syntaxList.size());
+			for (CommandSyntax syntax : syntaxList) {
+				syntaxes.writeInt(types.indexOf(syntax.getLeftArgumentType()));
+				syntaxes.writeInt(types.indexOf(syntax.getRightArgumentType()));
+				syntaxes.writeInt(types.indexOf(syntax.getReturnType()));
+			}
+		}
+
+		int typeTableOffset = HEADER_SIZE + commands.size();
+		int typeRecordsOffset = typeTableOffset + 4 * types.records.size();
+		ByteArrayOutputStream typeBytes = new ByteArrayOutputStream();
+		DataOutputStream typeOut = new DataOutputStream(typeBytes);
+		int recordOffset = typeRecordsOffset;
+		for (byte[] record : types.records) {
+			typeOut.writeInt(recordOffset);
+			recordOffset += record.length;
+		}
+		for (byte[] record : types.records) {
+			typeOut.write(record);
+		}
+		int syntaxOffset = typeTableOffset + typeOut.size();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(syntaxOffset + syntaxes.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(0);
+		out.writeInt(syntaxOffset + syntaxes.size());
+		out.writeInt(database.size());
+		out.writeInt(types.records.size());
+		out.writeInt(typeTableOffset);
+		out.writeInt(syntaxOffset);
+		out.writeLong(sourceHash);
+		commandBytes.writeTo(out);
+		typeBytes.writeTo(out);
+		syntaxBytes.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	@NotNull
+	static CommandDatabase read(@NotNull ByteBuffer buffer, long sourceHash) throws IOException {
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("not a command database snapshot");
+		}
+		short version = buffer.getShort(4);
+		if (version != VERSION) {
+			throw new IOException("unsupported command database snapshot version " + version + " (expected " + VERSION + ")");
+		}
+		int length = buffer.getInt(8);
+		int commandCount = buffer.getInt(12);
+		int typeCount = buffer.getInt(16);
+		int typeTableOffset = buffer.getInt(20);
+		int syntaxOffset = buffer.getInt(24);
+		// the syntaxes are decoded lazily, so a truncated file has to be detected now
+		if (length != buffer.limit() || commandCount < 0 || typeCount < 0 || typeTableOffset < HEADER_SIZE
+				|| syntaxOffset < typeTableOffset || syntaxOffset > length || typeCount > (syntaxOffset - typeTableOffset) / 4
+				|| commandCount > typeTableOffset - HEADER_SIZE) {
+			throw new IOException("corrupt command database snapshot header");
+		}
+		if (buffer.getLong(28) != sourceHash) {
+			throw new IOException("command database snapshot of other command definitions");
+		}
+
+		TypeReader types = new TypeReader(buffer, typeTableOffset, typeCount);
+		List<Command> commands = new ArrayList<>(commandCount);
+		ByteBuffer in = buffer.duplicate();
+		in.position(HEADER_SIZE);
+		for (int id = 0; id < commandCount; id++) {
+			String name = readString(in);
+			int precedence = in.getInt();
+			int arity = in.get();
+			int syntaxPosition = syntaxOffset + in.getInt();
+			if (syntaxPosition < syntaxOffset || syntaxPosition + 2 > buffer.limit()) {
+				throw new IOException("invalid syntax offset of command " + name);
+			}
+			commands.add(new SnapshotCommand(name, id, precedence, arity, types, syntaxPosition));
+		}
+		return new CommandDatabase(commands);
+	}
+
+	private static void writeString(@NotNull DataOutputStream out, @NotNull String s) throws IOException {
+		out.writeShort(s.length());
+		out.writeChars(s);
+	}
+
+	@NotNull
+	private static String readString(@NotNull ByteBuffer in) {
+		char[] chars = new char[in.getShort() & 0xFFFF];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = in.getChar();
+		}
+		return new String(chars);
+	}
+
+	/** A command whose syntaxes are decoded from the snapshot on first use */
+	static class SnapshotCommand extends CommandHeader {
+		private final TypeReader types;
+		private final int syntaxPosition;
+		private volatile List<CommandSyntax> syntaxList;
+
+		SnapshotCommand(@NotNull String name, int id, int precedence, int arity, @NotNull TypeReader types, int syntaxPosition) {
+			super(name, id, precedence, arity);
+			this.types = types;
+			this.syntaxPosition = syntaxPosition;
+		}
+
+		/**
+		 * @throws java.io.UncheckedIOException if the syntaxes in the snapshot are
+		 *         corrupt
+		 */
+		@NotNull
+		@Override
+		public List<CommandSyntax> getSyntaxList() {
+			List<CommandSyntax> syntaxList = this.syntaxList;
+			if (syntaxList == null) {
+				synchronized (types) {
+					syntaxList = this.syntaxList;
+					if (syntaxList == null) {
+						syntaxList = decodeSyntaxList();
+						this.syntaxList = syntaxList;
+					}
+				}
+			}
+			return syntaxList;
+		}
+
+		/** @return true if the syntaxes were decoded already */
+		boolean isSyntaxListDecoded() {
+			return syntaxList != null;
+		}
+
+		@NotNull
+		private List<CommandSyntax> decodeSyntaxList() {
+			ByteBuffer buffer = types.buffer;
+			try {
+				int syntaxCount = buffer.getShort(syntaxPosition);
+				List<CommandSyntax> syntaxList = new ArrayList<>(syntaxCount);
+				for (int i = 0; i < syntaxCount; i++) {
+					int position = syntaxPosition + 2 + 12 * i;
+					syntaxList.add(new SimpleCommandSyntax(types.get(buffer.getInt(position)), types.get(buffer.getInt(position + 4)),
+							types.getNotNull(buffer.getInt(position + 8))));
+				}
+				return Collections.unmodifiableList(syntaxList);
+			} catch (IOException e) {
+				throw new UncheckedIOException("corrupt syntaxes of command " + getName(), e);
+			} catch (IndexOutOfBoundsException | IllegalArgumentException | BufferUnderflowException e) {
+				throw new UncheckedIOException("corrupt syntaxes of command " + getName(), new IOException(e));
+			}
+		}
+	}
+
+	/** Assigns indices to types; every type is written after the types it refers to */
+	private static class TypePool {
+		final Map<ValueType, Integer> indices = new IdentityHashMap<>();
+		final List<byte[]> records = new ArrayList<>();
+
+		int indexOf(@Nullable ValueType type) throws IOException {
+			if (type == null) {
+				return -1;
+			}
+			Integer index = indices.get(type);
+			if (index != null) {
+				return index;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			if (type instanceof ValueType.BaseType) {
+				out.writeByte(TYPE_BASE);
+				writeString(out, type.getType());
+			} else if (type instanceof CodeType) {
+				int returnType = indexOf(((CodeType) type).getReturnType());
+				out.writeByte(TYPE_CODE);
+				out.writeInt(returnType);
+			} else if (type instanceof SingletonArrayExpandedValueType) {
+				int element = indexOf(((SingletonArrayExpandedValueType) type).getValueTypes().get(0));
+				out.writeByte(TYPE_SINGLETON_ARRAY);
+				out.writeInt(element);
+			} else if (type instanceof ExpandedValueType) {
+				ExpandedValueType expanded = (ExpandedValueType) type;
+				int[] elements = indicesOf(expanded.getValueTypes());
+				out.writeByte(TYPE_EXPANDED);
+				out.writeBoolean(expanded.isUnbounded());
+				out.writeInt(expanded.getNumOptionalValues());
+				writeIndices(out, elements);
+			} else if (type instanceof PolymorphicWrapperValueType) {
+				PolymorphicWrapperValueType wrapper = (PolymorphicWrapperValueType) type;
+				int wrapped = indexOf(wrapper.getWrappedValueType());
+				int[] polymorphicTypes = indicesOf(wrapper.getPolymorphicTypes());
+				out.writeByte(TYPE_POLYMORPHIC_WRAPPER);
+				out.writeInt(wrapped);
+				writeIndices(out, polymorphicTypes);
+			} else {
+				throw new IllegalArgumentException("can't store type " + type.getDebugName());
+			}
+			index = records.size();
+			records.add(bytes.toByteArray());
+			indices.put(type, index);
+			return index;
+		}
+
+		@NotNull
+		private int[] indicesOf(@NotNull List<ValueType> types) throws IOException {
+			int[] result = new int[types.size()];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = indexOf(types.get(i));
+			}
+			return result;
+		}
+
+		private static void writeIndices(@NotNull DataOutputStream out, @NotNull int[] indices) throws IOException {
+			out.writeInt(indices.length);
+			for (int index : indices) {
+				out.writeInt(index);
+			}
+		}
+	}
+
+	/** Decodes types on first use and shares the instances. Must be used while holding its lock. */
+	private static class TypeReader {
+		private final ByteBuffer buffer;
+		private final int tableOffset;
+		private final ValueType[] types;
+
+		TypeReader(@NotNull ByteBuffer buffer, int tableOffset, int count) {
+			this.buffer = buffer;
+			this.tableOffset = tableOffset;
+			this.types = new ValueType[count];
+		}
+
+		@Nullable
+		ValueType get(int index) throws IOException {
+			return index == -1 ? null : getNotNull(index);
+		}
+
+		@NotNull
+		ValueType getNotNull(int index) throws IOException {
+			ValueType type = types[index];
+			if (type == null) {
+				type = decode(index);
+				types[index] = type;
+			}
+			return type;
+		}
+
+		@NotNull
+		private ValueType decode(int index) throws IOException {
+			ByteBuffer in = buffer.duplicate();
+			in.position(buffer.getInt(tableOffset + 4 * index));
+			byte tag = in.get();
+			switch (tag) {
+				case TYPE_BASE: {
+					String name = readString(in);
+					ValueType type = ValueType.BaseType.valueOf(name);
+					if (type == null) {
+						throw new IOException("unknown base type " + name);
+					}
+					return type;
+				}
+				case TYPE_CODE: {
+					return new CodeType(getReferenced(in.getInt(), index));
+				}
+				case TYPE_SINGLETON_ARRAY: {
+					return new SingletonArrayExpandedValueType(getReferenced(in.getInt(), index));
+				}
+				case TYPE_EXPANDED: {
+					boolean unbounded = in.get() != 0;
+					int optional = in.getInt();
+					int count = in.getInt();
+					if (count < 0 || count > in.remaining() / 4) {
+						throw new IOException("invalid element count " + count + " of type " + index);
+					}
+					ValueType[] elements = new ValueType[count];
+					for (int i = 0; i < elements.length; i++) {
+						elements[i] = getReferenced(in.getInt(), index);
+					}
+					ExpandedValueType type = new ExpandedValueType(unbounded, elements);
+					type.setNumOptionalValues(optional);
+					return type;
+				}
+				case TYPE_POLYMORPHIC_WRAPPER: {
+					PolymorphicWrapperValueType type = new PolymorphicWrapperValueType(getReferenced(in.getInt(), index));
+					int count = in.getInt();
+					if (count < 0 || count > in.remaining() / 4) {
+						throw new IOException("invalid polymorphic type count " + count + " of type " + index);
+					}
+					for (int i = count; i > 0; i--) {
+						type.getPolymorphicTypes().add(getReferenced(in.getInt(), index));
+					}
+					return type;
+				}
+				default: {
+					throw new IOException("unknown type tag " + tag);
+				}
+			}
+		}
+
+		/** Types only refer to types with a lower index, which also rules out cycles in corrupt snapshots */
+		@NotNull
+		private ValueType getReferenced(int referenced, int referencing) throws IOException {
+			if (referenced < 0 || referenced >= referencing) {
+				throw new IOException("invalid type reference " + referenced + " in type " + referencing);
+			}
+			return getNotNull(referenced);
+		}
+	}
+}
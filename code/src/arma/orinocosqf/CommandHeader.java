@@ -0,0 +1,113 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * The compact part of a {@link Command} that is needed to lex and parse: name,
+ * id, precedence and which arities (nular, unary, binary) the command supports.
+ * All syntax flags are answered from the arity flags, so subclasses are free to
+ * create the {@link #getSyntaxList() syntax list} only when it is first needed.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public abstract class CommandHeader implements Command {
+	/** Arity flag: the command has a syntax without arguments */
+	public static final int ARITY_NULAR = 0x1;
+	/** Arity flag: the command has a syntax with only a right argument */
+	public static final int ARITY_UNARY = 0x2;
+	/** Arity flag: the command has a syntax with a left and a right argument */
+	public static final int ARITY_BINARY = 0x4;
+
+	private final String name;
+	private final int id;
+	private final int precedence;
+	private final int arity;
+
+	/**
+	 * @param name the camelCase name
+	 * @param id the id (see {@link CommandDatabase})
+	 * @param precedence the precedence (higher means higher precedence)
+	 * @param arity the {@link #ARITY_NULAR}, {@link #ARITY_UNARY} and
+	 *        {@link #ARITY_BINARY} flags of the command's syntaxes
+	 */
+	protected CommandHeader(@NotNull String name, int id, int precedence, int arity) {
+		this.name = name;
+		this.id = id;
+		this.precedence = precedence;
+		this.arity = arity;
+	}
+
+	/** @return the {@link #ARITY_NULAR}, {@link #ARITY_UNARY} and {@link #ARITY_BINARY} flags of the given syntaxes */
+	public static int getArity(@NotNull List<? extends CommandSyntax> syntaxList) {
+		int arity = 0;
+		for (CommandSyntax syntax : syntaxList) {
+			if (syntax.getLeftArgumentType() != null) {
+				arity |= ARITY_BINARY;
+			} else if (syntax.getRightArgumentType() != null) {
+				arity |= ARITY_UNARY;
+			} else {
+				arity |= ARITY_NULAR;
+			}
+		}
+		return arity;
+	}
+
+	/** @return the {@link #ARITY_NULAR}, {@link #ARITY_UNARY} and {@link #ARITY_BINARY} flags */
+	public int getArity() {
+		return arity;
+	}
+
+	@NotNull
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int id() {
+		return id;
+	}
+
+	@Override
+	public boolean isStrictlyNular() {
+		return arity == ARITY_NULAR;
+	}
+
+	@Override
+	public boolean canBeNular() {
+		return (arity & ARITY_NULAR) != 0;
+	}
+
+	@Override
+	public boolean isStrictlyBinary() {
+		return arity == ARITY_BINARY;
+	}
+
+	@Override
+	public boolean canBeBinary() {
+		return (arity & ARITY_BINARY) != 0;
+	}
+
+	@Override
+	public boolean isStrictlyUnary() {
+		return arity == ARITY_UNARY;
+	}
+
+	@Override
+	public boolean canBeUnary() {
+		return (arity & ARITY_UNARY) != 0;
+	}
+
+	@Override
+	public int getPrecedence() {
+		return precedence;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,205 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An immutable, case-insensitive table of command names that is built once at
+ * startup and resolves a char span to a command id without allocating. The ids
+ * are the indices of the names in the collection given to the constructor and
+ * are meant to be the ids returned by {@link Command#id()}.<br>
+ * <br>
+ * The table is a minimal perfect hash (hash and displace): the names are
+ * distributed into buckets by a hash of the lower-cased name, and every bucket
+ * is assigned a displacement that moves all of its names into distinct slots of
+ * a table with exactly one slot per name. A lookup therefore hashes the span
+ * once, reads one displacement and compares the span with the single name in
+ * the resulting slot. Spans that are shorter or longer than every name are
+ * rejected before hashing.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class CommandLookupTable {
+	private static final int MAX_SEEDS = 16;
+	private static final int MAX_DISPLACEMENT = 1 << 20;
+
+	private final String[] names;
+	/** All lower-cased names, concatenated in id order */
+	private final char[] keyChars;
+	/** Start of the name of each id in {@link #keyChars}, with an extra entry for the end of the last name */
+	private final int[] keyOffsets;
+	private final int[] displacements;
+	private final int[] slotIds;
+	private final int seed;
+	private final int minLength;
+	private final int maxLength;
+
+	/**
+	 * @param commandNames the names of all commands. Ids are assigned in the
+	 *        iteration order of this collection.
+	 * @throws IllegalArgumentException if two names only differ in case
+	 */
+	public CommandLookupTable(@NotNull Collection<String> commandNames) {
+		int count = commandNames.size();
+		names = commandNames.toArray(new String[0]);
+		keyOffsets = new int[count + 1];
+		int min = Integer.MAX_VALUE;
+		int max = 0;
+		int totalLength = 0;
+		for (int i = 0; i < count; i++) {
+			keyOffsets[i] = totalLength;
+			totalLength += names[i].length();
+			min = Math.min(min, names[i].length());
+			max = Math.max(max, names[i].length());
+		}
+		keyOffsets[count] = totalLength;
+		keyChars = new char[totalLength];
+		Set<String> distinct = new HashSet<>();
+		for (int i = 0; i < count; i++) {
+			for (int j = 0; j < names[i].length(); j++) {
+				keyChars[keyOffsets[i] + j] = IdentifierInterner.toLowerCase(names[i].charAt(j));
+			}
+			if (!distinct.add(new String(keyChars, keyOffsets[i], names[i].length()))) {
+				throw new IllegalArgumentException("duplicate command name " + names[i]);
+			}
+		}
+		minLength = count == 0 ? 1 : min;
+		maxLength = max;
+
+		displacements = new int[Math.max(1, count / 2)];
+		slotIds = new int[count];
+		int seed = 0;
+		while (!build(seed)) {
+			if (++seed == MAX_SEEDS) {
+				throw new IllegalStateException("couldn't build a perfect hash for " + count + " command names");
+			}
+		}
+		this.seed = seed;
+	}
+
+	/**
+	 * @param buf the buffer that contains the word
+	 * @param offset the offset of the word in the buffer
+	 * @param length the length of the word
+	 * @return the id of the command the word matches (case-insensitive), or -1 if
+	 *         the word is no command
+	 */
+	public int getId(@NotNull char[] buf, int offset, int length) {
+		if (length < minLength || length > maxLength) {
+			return -1;
+		}
+		int h = hash(buf, offset, length, seed);
+		int id = slotIds[slot(h, displacements[bucket(h)])];
+		int keyOffset = keyOffsets[id];
+		if (keyOffsets[id + 1] - keyOffset != length) {
+			return -1;
+		}
+		for (int i = 0; i < length; i++) {
+			if (keyChars[keyOffset + i] != IdentifierInterner.toLowerCase(buf[offset + i])) {
+				return -1;
+			}
+		}
+		return id;
+	}
+
+	/** @return the name of the command with the given id as it was passed to the constructor */
+	@NotNull
+	public String getName(int id) {
+		return names[id];
+	}
+
+	/** @return the number of commands */
+	public int size() {
+		return names.length;
+	}
+
+	/** @return true if a displacement was found for every bucket with the given seed */
+	private boolean build(int seed) {
+		int count = names.length;
+		int[] hashes = new int[count];
+		List<List<Integer>> buckets = new ArrayList<>(displacements.length);
+		for (int i = 0; i < displacements.length; i++) {
+			buckets.add(new ArrayList<>(2));
+		}
+		for (int id = 0; id < count; id++) {
+			hashes[id] = hash(keyChars, keyOffsets[id], keyOffsets[id + 1] - keyOffsets[id], seed);
+			buckets.get(bucket(hashes[id])).add(id);
+		}
+
+		// place the biggest buckets first while there are still many free slots
+		Integer[] order = new Integer[displacements.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+
+		boolean[] occupied = new boolean[count];
+		int[] slots = new int[0];
+		for (int bucket : order) {
+			List<Integer> ids = buckets.get(bucket);
+			if (ids.isEmpty()) {
+				break;
+			}
+			if (slots.length < ids.size()) {
+				slots = new int[ids.size()];
+			}
+			int displacement = 0;
+			while (!tryPlace(ids, hashes, displacement, occupied, slots)) {
+				if (++displacement == MAX_DISPLACEMENT) {
+					return false;
+				}
+			}
+			displacements[bucket] = displacement;
+			for (int i = 0; i < ids.size(); i++) {
+				slotIds[slots[i]] = ids.get(i);
+			}
+		}
+		return true;
+	}
+
+	/** Marks the slots as occupied and returns true if all ids of the bucket land in distinct free slots */
+	private boolean tryPlace(@NotNull List<Integer> ids, @NotNull int[] hashes, int displacement, @NotNull boolean[] occupied,
+							 @NotNull int[] slots) {
+		for (int i = 0; i < ids.size(); i++) {
+			int slot = slot(hashes[ids.get(i)], displacement);
+			if (occupied[slot]) {
+				for (int j = 0; j < i; j++) {
+					occupied[slots[j]] = false;
+				}
+				return false;
+			}
+			occupied[slot] = true;
+			slots[i] = slot;
+		}
+		return true;
+	}
+
+	private int bucket(int h) {
+		return (h >>> 1) % displacements.length;
+	}
+
+	private int slot(int h, int displacement) {
+		int x = h ^ (displacement * 0x9E3779B9);
+		x ^= x >>> 16;
+		x *= 0x85EBCA6B;
+		x ^= x >>> 13;
+		x *= 0xC2B2AE35;
+		x ^= x >>> 16;
+		return (x >>> 1) % slotIds.length;
+	}
+
+	private static int hash(@NotNull char[] buf, int offset, int length, int seed) {
+		int h = 0x811C9DC5 ^ (seed * 0x9E3779B9);
+		for (int i = 0; i < length; i++) {
+			h = (h ^ IdentifierInterner.toLowerCase(buf[offset + i])) * 0x01000193;
+		}
+		return h;
+	}
+}
@@ -1,9 +1,26 @@
 package arma.orinocosqf;
 
+import arma.orinocosqf.type.ValueType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
 /**
+ * One way a {@link Command} can be invoked: nular (no arguments), unary (right
+ * argument only) or binary (left and right argument).
+ *
  * @author K
  * @since 02/21/2019
  */
 public interface CommandSyntax {
-	//todo
+	/** @return the type of the left argument, or null if this syntax has no left argument */
+	@Nullable
+	ValueType getLeftArgumentType();
+
+	/** @return the type of the right argument, or null if this syntax has no right argument */
+	@Nullable
+	ValueType getRightArgumentType();
+
+	/** @return the type of the value the command returns with this syntax */
+	@NotNull
+	ValueType getReturnType();
 }
@@ -0,0 +1,301 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * A {@link StatementProcessingScheduler} that processes the statement batches
+ * on the workers of a {@link ForkJoinPool}.<br>
+ * <br>
+ * {@link #scheduleQueue(OrinocoTokenQueue)} drains the queue into a
+ * {@link BoundedOrinocoTokenQueue} that all workers consume (blocking while it
+ * is full, which throttles the scheduling thread) and submits a task that
+ * processes batches until the queue is empty and the drain is done. The tasks
+ * go to the deque of the scheduling worker (or the submission queue of the
+ * pool), so idle workers steal them and take batches from the queue in
+ * parallel. A batch holds whole
+ * statements (see {@link StatementCollectionTokenProcessor}), so each statement
+ * is processed by one worker.<br>
+ * <br>
+ * Each worker thread gets its own {@link StatementProcessor}, created by the
+ * given supplier on the worker on its first batch and begun right away, so
+ * processors don't need to be thread-safe. {@link #finish()} waits for all
+ * batches, then ends the processors on the invoking thread, which must not be a
+ * worker of the pool. If processing a batch fails, the rest of the batch is
+ * dropped and the first failure is rethrown by {@link #finish()}.<br>
+ * <br>
+ * The queue is bounded: while it is full, the scheduling thread (and so the
+ * lexer that feeds it) is throttled as the {@link BackpressurePolicy} says.
+ * The default is to block; batches may also be spilled to a temporary file or
+ * processed on the scheduling thread. The time spent blocked and the number of
+ * spilled and inline batches are measured.<br>
+ * <br>
+ * {@link #scheduleQueue(OrinocoTokenQueue)} may be invoked by several threads;
+ * they are serialized, as the queue has a single producer.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class ForkJoinStatementProcessingScheduler implements StatementProcessingScheduler {
+	private final ForkJoinPool pool;
+	private final Supplier<StatementProcessor> processorSupplier;
+	private final BoundedOrinocoTokenQueue queue;
+	private final Map<Thread, StatementProcessor> processors = new ConcurrentHashMap<>();
+	/** The number of tasks that were submitted and haven't completed */
+	private final AtomicInteger pendingTasks = new AtomicInteger();
+	private final Object completion = new Object();
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+	/** The batches that didn't fit into the queue ({@link BackpressurePolicy#Spill}) */
+	private final TokenSpillQueue spill = new TokenSpillQueue();
+	/** True while a queue is drained into {@link #queue} */
+	private volatile boolean draining;
+	private volatile boolean finished;
+	private BackpressurePolicy policy = BackpressurePolicy.Block;
+	private volatile long inlineBatchCount;
+
+	/**
+	 * Creates a scheduler whose queue holds 4 batches per worker
+	 *
+	 * @param pool the pool the batches are processed in
+	 * @param processors creates the processor of a worker
+	 */
+	public ForkJoinStatementProcessingScheduler(@NotNull ForkJoinPool pool, @NotNull Supplier<StatementProcessor> processors) {
+		this(pool, processors, 4 * pool.getParallelism());
+	}
+
+	/**
+	 * @param pool the pool the batches are processed in
+	 * @param processors creates the processor of a worker
+	 * @param capacity the number of batches that may be scheduled and not yet
+	 *        taken by a worker (see {@link BoundedOrinocoTokenQueue})
+	 */
+	public ForkJoinStatementProcessingScheduler(@NotNull ForkJoinPool pool, @NotNull Supplier<StatementProcessor> processors,
+												int capacity) {
+		this.pool = pool;
+		this.processorSupplier = processors;
+		this.queue = new BoundedOrinocoTokenQueue(capacity, StatementCollectionTokenProcessor.DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Sets what {@link #scheduleQueue(OrinocoTokenQueue)} does while the queue is
+	 * full (by default {@link BackpressurePolicy#Block})
+	 */
+	public synchronized void setBackpressurePolicy(@NotNull BackpressurePolicy policy) {
+		this.policy = policy;
+	}
+
+	@NotNull
+	public synchronized BackpressurePolicy getBackpressurePolicy() {
+		return policy;
+	}
+
+	@Override
+	public synchronized void scheduleQueue(@NotNull OrinocoTokenQueue queue) {
+		if (finished) {
+			throw new IllegalStateException("finished");
+		}
+		switch (policy) {
+			case Spill: {
+				refill(false);
+				if (!spill.isEmpty() || !this.queue.hasFreeSlot()) {
+					// spilled batches stay ahead of newer ones
+					queue.drainTo(spill);
+					spill.endBatch();
+					return;
+				}
+				break;
+			}
+			case RunInline: {
+				if (!this.queue.hasFreeSlot()) {
+					//noinspection NonAtomicOperationOnVolatileField the method is synchronized
+					inlineBatchCount++;
+					try {
+						queue.drainTo(new ProcessingTokenQueue(processor()));
+					} catch (Throwable t) {
+						fail(t);
+					}
+					return;
+				}
+				break;
+			}
+			default: {
+				break;
+			}
+		}
+		// the task is submitted first, as the drain blocks while the queue is full
+		draining = true;
+		submitTask();
+		try {
+			queue.drainTo(this.queue);
+		} finally {
+			draining = false;
+		}
+	}
+
+	/**
+	 * Moves spilled batches back into the queue
+	 *
+	 * @param wait true to move all of them (blocking while the queue is full),
+	 *        false to move them only while the queue has free slots
+	 */
+	private void refill(boolean wait) {
+		if (spill.isEmpty() || !wait && !queue.hasFreeSlot()) {
+			return;
+		}
+		draining = true;
+		submitTask();
+		try {
+			while (!spill.isEmpty() && (wait || queue.hasFreeSlot())) {
+				spill.poll(queue);
+				queue.publish();
+			}
+		} finally {
+			draining = false;
+		}
+	}
+
+	private void submitTask() {
+		pendingTasks.incrementAndGet();
+		BatchTask task = new BatchTask();
+		if (ForkJoinTask.getPool() == pool) {
+			task.fork();
+		} else {
+			pool.execute(task);
+		}
+	}
+
+	/** @return the total time the scheduling thread was blocked on the full queue, in nanoseconds */
+	public long getBlockedNanos() {
+		return queue.getBlockedNanos();
+	}
+
+	/** @return the number of batches that were written to the spill file ({@link BackpressurePolicy#Spill}) */
+	public long getSpilledBatchCount() {
+		return spill.getSpilledBatchCount();
+	}
+
+	/** @return the number of batches the scheduling thread processed itself ({@link BackpressurePolicy#RunInline}) */
+	public long getInlineBatchCount() {
+		return inlineBatchCount;
+	}
+
+	/**
+	 * @throws IllegalStateException if invoked by a worker of the pool
+	 * @throws RuntimeException the first failure of processing a batch
+	 */
+	@Override
+	public void finish() {
+		if (ForkJoinTask.getPool() == pool) {
+			throw new IllegalStateException("finish() would block a worker of the pool");
+		}
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			try {
+				refill(true);
+			} finally {
+				spill.close();
+			}
+		}
+		boolean interrupted = false;
+		synchronized (completion) {
+			while (pendingTasks.get() > 0) {
+				try {
+					completion.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		for (StatementProcessor processor : processors.values()) {
+			processor.end();
+		}
+		Throwable t = failure.get();
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else if (t != null) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	/** @return the processors of the workers that processed batches */
+	@NotNull
+	public List<StatementProcessor> getProcessors() {
+		return new ArrayList<>(processors.values());
+	}
+
+	@NotNull
+	private StatementProcessor processor() {
+		Thread thread = Thread.currentThread();
+		StatementProcessor processor = processors.get(thread);
+		if (processor == null) {
+			processor = processorSupplier.get();
+			processor.begin();
+			processors.put(thread, processor);
+		}
+		return processor;
+	}
+
+	private void fail(@NotNull Throwable t) {
+		if (!failure.compareAndSet(null, t)) {
+			failure.get().addSuppressed(t);
+		}
+	}
+
+	/** Processes batches until the queue is empty and no more batches are being drained into it */
+	private final class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+			try {
+				StatementProcessor processor = processor();
+				int waits = 0;
+				while (true) {
+					if (poll(processor)) {
+						waits = 0;
+					} else if (draining) {
+						waits = BoundedOrinocoTokenQueue.backOff(waits);
+					} else if (!poll(processor)) {
+						break;
+					}
+				}
+			} catch (Throwable t) {
+				fail(t);
+			} finally {
+				if (pendingTasks.decrementAndGet() == 0) {
+					synchronized (completion) {
+						completion.notifyAll();
+					}
+				}
+			}
+		}
+
+		/** Processes a batch. A failure is recorded and the batch is dropped, so the scheduler can't get stuck on a full queue. */
+		private boolean poll(@NotNull StatementProcessor processor) {
+			try {
+				return queue.poll(processor);
+			} catch (Throwable t) {
+				fail(t);
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,230 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A thread-safe, case-insensitive table that maps identifiers given as char
+ * spans to dense int ids (0, 1, 2, ...) and back.<br>
+ * <br>
+ * The table is split into segments by hash. Each segment is a chained hash table
+ * of immutable entries that is only modified while holding the segment's lock,
+ * so threads that add different identifiers rarely contend. Lookups never lock
+ * and never allocate: {@link #lookup(char[], int, int)} and hits of
+ * {@link #intern(char[], int, int)} only read the current table of a segment.
+ * Only the first occurrence of an identifier creates objects.<br>
+ * <br>
+ * The canonical name of an identifier is the spelling it was first interned
+ * with.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class IdentifierInterner {
+	private static final int SEGMENT_COUNT = 16;
+	private static final int SEGMENT_SHIFT = 28;
+	private static final int CHUNK_BITS = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	private final Segment[] segments = new Segment[SEGMENT_COUNT];
+	private final AtomicInteger nextId = new AtomicInteger();
+	/** Entries by id, in chunks of {@link #CHUNK_SIZE} */
+	private volatile Object[] chunks = new Object[16];
+	private final Object chunksLock = new Object();
+
+	public IdentifierInterner() {
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	/**
+	 * @param buf the buffer that contains the identifier
+	 * @param offset the offset of the identifier in the buffer
+	 * @param length the length of the identifier
+	 * @return the id of the identifier (case-insensitive) or -1 if it wasn't
+	 *         interned yet
+	 */
+	public int lookup(@NotNull char[] buf, int offset, int length) {
+		int hash = hash(buf, offset, length);
+		Entry e = find(segments[hash >>> SEGMENT_SHIFT].table, hash, buf, offset, length);
+		return e == null ? -1 : e.id;
+	}
+
+	/**
+	 * Gets the id of the given identifier (case-insensitive), assigning the next
+	 * free id if it wasn't interned yet.
+	 *
+	 * @param buf the buffer that contains the identifier. It is not referenced
+	 *        after this method returns.
+	 * @param offset the offset of the identifier in the buffer
+	 * @param length the length of the identifier
+	 * @return the id of the identifier
+	 */
+	public int intern(@NotNull char[] buf, int offset, int length) {
+		int hash = hash(buf, offset, length);
+		Segment segment = segments[hash >>> SEGMENT_SHIFT];
+		Entry e = find(segment.table, hash, buf, offset, length);
+		if (e != null) {
+			return e.id;
+		}
+		synchronized (segment) {
+			AtomicReferenceArray<Entry> table = segment.table;
+			e = find(table, hash, buf, offset, length);
+			if (e != null) {
+				return e.id;
+			}
+			int id = nextId.getAndIncrement();
+			char[] key = new char[length];
+			for (int i = 0; i < length; i++) {
+				key[i] = toLowerCase(buf[offset + i]);
+			}
+			int index = hash & (table.length() - 1);
+			e = new Entry(key, new String(buf, offset, length), hash, id, table.get(index));
+			// the entry has to be reachable by id before its id can be seen by anyone
+			register(e);
+			table.set(index, e);
+			if (++segment.size > table.length() - (table.length() >>> 2)) {
+				segment.rehash();
+			}
+			return id;
+		}
+	}
+
+	/** @see #intern(char[], int, int) */
+	public int intern(@NotNull String identifier) {
+		char[] chars = identifier.toCharArray();
+		return intern(chars, 0, chars.length);
+	}
+
+	/**
+	 * @param id an id returned by this interner
+	 * @return the canonical name of the identifier with the given id
+	 * @throws IndexOutOfBoundsException if the id wasn't assigned by this interner
+	 */
+	@NotNull
+	public String getName(int id) {
+		if (id < 0 || id >= nextId.get()) {
+			throw new IndexOutOfBoundsException("id=" + id + ", size=" + size());
+		}
+		Object[] chunks = this.chunks;
+		Entry e = null;
+		if ((id >>> CHUNK_BITS) < chunks.length && chunks[id >>> CHUNK_BITS] != null) {
+			e = chunk(chunks, id >>> CHUNK_BITS).get(id & (CHUNK_SIZE - 1));
+		}
+		if (e == null) {
+			// the id is being assigned right now by another thread
+			throw new IndexOutOfBoundsException("id=" + id + " is not yet published");
+		}
+		return e.name;
+	}
+
+	/** @return the number of interned identifiers (which is also the next id) */
+	public int size() {
+		return nextId.get();
+	}
+
+	private void register(@NotNull Entry e) {
+		int chunkIndex = e.id >>> CHUNK_BITS;
+		Object[] chunks = this.chunks;
+		if (chunkIndex >= chunks.length || chunks[chunkIndex] == null) {
+			synchronized (chunksLock) {
+				chunks = this.chunks;
+				if (chunkIndex >= chunks.length) {
+					Object[] grown = new Object[Math.max(chunkIndex + 1, chunks.length * 2)];
+					System.arraycopy(chunks, 0, grown, 0, chunks.length);
+					chunks = grown;
+				} else if (chunks[chunkIndex] == null) {
+					chunks = chunks.clone();
+				}
+				if (chunks[chunkIndex] == null) {
+					chunks[chunkIndex] = new AtomicReferenceArray<Entry>(CHUNK_SIZE);
+				}
+				this.chunks = chunks;
+			}
+		}
+		chunk(chunks, chunkIndex).set(e.id & (CHUNK_SIZE - 1), e);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static AtomicReferenceArray<Entry> chunk(@NotNull Object[] chunks, int index) {
+		return (AtomicReferenceArray<Entry>) chunks[index];
+	}
+
+	private static Entry find(@NotNull AtomicReferenceArray<Entry> table, int hash, @NotNull char[] buf, int offset, int length) {
+		for (Entry e = table.get(hash & (table.length() - 1)); e != null; e = e.next) {
+			if (e.hash == hash && matches(e.key, buf, offset, length)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	private static boolean matches(@NotNull char[] lowerCaseKey, @NotNull char[] buf, int offset, int length) {
+		if (lowerCaseKey.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (lowerCaseKey[i] != toLowerCase(buf[offset + i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(@NotNull char[] buf, int offset, int length) {
+		int h = 0;
+		for (int i = 0; i < length; i++) {
+			h = 31 * h + toLowerCase(buf[offset + i]);
+		}
+		// spread the bits so that the top bits (segment) and the bottom bits (bucket) both vary
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	static char toLowerCase(char c) {
+		if (c >= 'A' && c <= 'Z') {
+			return (char) (c + ('a' - 'A'));
+		}
+		return c < 128 ? c : Character.toLowerCase(c);
+	}
+
+	private static class Entry {
+		final char[] key;
+		final String name;
+		final int hash;
+		final int id;
+		final Entry next;
+
+		Entry(@NotNull char[] key, @NotNull String name, int hash, int id, Entry next) {
+			this.key = key;
+			this.name = name;
+			this.hash = hash;
+			this.id = id;
+			this.next = next;
+		}
+	}
+
+	private static class Segment {
+		/** Replaced (never modified in place) on rehash so readers always see a consistent table */
+		volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<>(16);
+		/** Guarded by this segment's lock */
+		int size;
+
+		/** Must be invoked while holding this segment's lock */
+		void rehash() {
+			AtomicReferenceArray<Entry> oldTable = table;
+			AtomicReferenceArray<Entry> newTable = new AtomicReferenceArray<>(oldTable.length() * 2);
+			int mask = newTable.length() - 1;
+			for (int i = 0; i < oldTable.length(); i++) {
+				for (Entry e = oldTable.get(i); e != null; e = e.next) {
+					int index = e.hash & mask;
+					newTable.set(index, new Entry(e.key, e.name, e.hash, e.id, newTable.get(index)));
+				}
+			}
+			table = newTable;
+		}
+	}
+}
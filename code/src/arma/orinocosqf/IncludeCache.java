@@ -0,0 +1,261 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of preprocessed included files that is meant to be shared by all
+ * {@link OrinocoPreProcessor}s of a workspace (see
+ * {@link OrinocoPreProcessor#setIncludes(IncludeResolver, IncludeCache)}), so
+ * that headers which are included by thousands of files are lexed and
+ * preprocessed only once.<br>
+ * <br>
+ * Entries are keyed by the canonical path and a hash of the file's content, so
+ * a changed file is never served from the cache. A result whose nested
+ * includes have changed is dropped by the preprocessor (see
+ * {@link #invalidate(IncludedFile)}). Each entry holds the
+ * preprocessed tokens of the file and the changes it made to the macro table.
+ * Since the result of an include depends on the macros that are defined at the
+ * point of inclusion, a result is only used if the macros it depends on are the
+ * same. An entry therefore keeps up to {@link #MAX_VARIANTS} results (e.g. the
+ * full and the empty result of a header with an include guard that is
+ * included twice), and a miss adds another one.<br>
+ * <br>
+ * The least recently used entries are evicted when the estimated size of all
+ * entries exceeds the memory budget. This class is thread-safe. While a thread
+ * preprocesses a file it missed, other threads that miss the same file wait for
+ * its result rather than preprocessing the file as well, unless they are
+ * preprocessing an included file themselves (which rules out deadlocks).
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class IncludeCache {
+	/** The memory budget of {@link #IncludeCache()} */
+	public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+	/** The maximum number of results of an entry; the least recently used one is replaced */
+	public static final int MAX_VARIANTS = 8;
+
+	private final long memoryBudget;
+	/** In access order: the least recently used entry is first. The results of an entry are ordered by use as well, latest first. */
+	private final LinkedHashMap<Key, List<IncludedFile>> entries = new LinkedHashMap<>(16, 0.75f, true);
+	/** The entries that are being preprocessed after a miss, mapped to the thread that preprocesses them */
+	private final Map<Key, Thread> loading = new HashMap<>();
+	private int variantCount;
+	private long retainedSize;
+	private long hitCount;
+	private long missCount;
+
+	public IncludeCache() {
+		this(DEFAULT_MEMORY_BUDGET);
+	}
+
+	/**
+	 * @param memoryBudget the maximum estimated heap memory of all entries, in
+	 *        bytes
+	 */
+	public IncludeCache(long memoryBudget) {
+		if (memoryBudget < 0) {
+			throw new IllegalArgumentException("memoryBudget=" + memoryBudget);
+		}
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Looks up a result of the file. On a miss, the invoking thread is expected to
+	 * preprocess the file, {@link #put(IncludedFile)} the result and then
+	 * {@link #release(Path, long)} the file, so that other threads waiting for the
+	 * file go on.
+	 *
+	 * @return the cached result if the content is the same and it is valid for
+	 *         the given macros and context (see
+	 *         {@link IncludedFile#isValidFor(MacroTable, OrinocoLexerContext)}),
+	 *         else null
+	 */
+	@Nullable
+	synchronized IncludedFile get(@NotNull Path canonicalPath, long contentHash, @NotNull MacroTable macros,
+								  @NotNull OrinocoLexerContext context) {
+		Key key = new Key(canonicalPath, contentHash);
+		Thread current = Thread.currentThread();
+		while (true) {
+			List<IncludedFile> variants = entries.get(key);
+			if (variants != null) {
+				for (int i = 0; i < variants.size(); i++) {
+					IncludedFile file = variants.get(i);
+					if (file.isValidFor(macros, context)) {
+						variants.remove(i);
+						variants.add(0, file);
+						hitCount++;
+						return file;
+					}
+				}
+			}
+			Thread owner = loading.get(key);
+			if (owner == null || owner == current || loading.containsValue(current)) {
+				if (owner == null) {
+					loading.put(key, current);
+				}
+				missCount++;
+				return null;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				missCount++;
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Adds the result of the file (replacing a result with the same dependencies
+	 * or the least recently used result of the file if it has
+	 * {@link #MAX_VARIANTS} results) and evicts entries that exceed the budget
+	 */
+	synchronized void put(@NotNull IncludedFile file) {
+		if (file.getRetainedSize() > memoryBudget) {
+			return;
+		}
+		List<IncludedFile> variants = entries.computeIfAbsent(new Key(file.getPath(), file.getContentHash()), k -> new ArrayList<>(1));
+		for (int i = 0; i < variants.size(); i++) {
+			if (variants.get(i).hasSameDependencies(file)) {
+				removeVariant(variants, i);
+				break;
+			}
+		}
+		if (variants.size() == MAX_VARIANTS) {
+			removeVariant(variants, variants.size() - 1);
+		}
+		variants.add(0, file);
+		variantCount++;
+		retainedSize += file.getRetainedSize();
+		Iterator<List<IncludedFile>> it = entries.values().iterator();
+		while (retainedSize > memoryBudget && it.hasNext()) {
+			for (IncludedFile evicted : it.next()) {
+				retainedSize -= evicted.getRetainedSize();
+				variantCount--;
+			}
+			it.remove();
+		}
+	}
+
+	private void removeVariant(@NotNull List<IncludedFile> variants, int index) {
+		retainedSize -= variants.remove(index).getRetainedSize();
+		variantCount--;
+	}
+
+	/**
+	 * Removes a result that {@link #get(Path, long, MacroTable, OrinocoLexerContext)}
+	 * returned and that turned out to be stale (as a file it included has
+	 * changed). The hit is taken back; the next lookup of the file is expected.
+	 */
+	synchronized void invalidate(@NotNull IncludedFile file) {
+		List<IncludedFile> variants = entries.get(new Key(file.getPath(), file.getContentHash()));
+		if (variants == null) {
+			return;
+		}
+		for (int i = 0; i < variants.size(); i++) {
+			if (variants.get(i) == file) {
+				removeVariant(variants, i);
+				hitCount--;
+				break;
+			}
+		}
+		if (variants.isEmpty()) {
+			entries.remove(new Key(file.getPath(), file.getContentHash()));
+		}
+	}
+
+	/** Wakes up the threads that wait for the file if the invoking thread preprocessed it after a miss */
+	synchronized void release(@NotNull Path canonicalPath, long contentHash) {
+		Key key = new Key(canonicalPath, contentHash);
+		if (loading.get(key) == Thread.currentThread()) {
+			loading.remove(key);
+			notifyAll();
+		}
+	}
+
+	/** @return the number of cached results (a file may have several) */
+	public synchronized int size() {
+		return variantCount;
+	}
+
+	/** @return the estimated heap memory of all entries, in bytes */
+	public synchronized long getRetainedSize() {
+		return retainedSize;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/** @return the number of includes that were served from the cache */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/** @return the number of includes that had to be preprocessed */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/** Removes all entries */
+	public synchronized void clear() {
+		entries.clear();
+		variantCount = 0;
+		retainedSize = 0;
+	}
+
+	/** @return the content of the file, decoded as UTF-8 */
+	@NotNull
+	static CharBuffer readContent(@NotNull Path file) throws IOException {
+		return StandardCharsets.UTF_8.decode(ByteBuffer.wrap(Files.readAllBytes(file)));
+	}
+
+	/** @return the 64 bit FNV-1a hash of the chars */
+	static long contentHash(@NotNull char[] buf, int offset, int length) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = offset; i < offset + length; i++) {
+			h = (h ^ buf[i]) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private static final class Key {
+		private final Path path;
+		private final long contentHash;
+
+		Key(@NotNull Path path, long contentHash) {
+			this.path = path;
+			this.contentHash = contentHash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return contentHash == other.contentHash && path.equals(other.path);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * path.hashCode() + Long.hashCode(contentHash);
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+/**
+ * The <code>#include</code> dependencies of the files of a workspace, and a
+ * parallel preprocessing of the workspace that is scheduled along them.<br>
+ * <br>
+ * {@link #discover(Collection, IncludeResolver, ForkJoinPool)} finds the
+ * include edges without preprocessing: each file is scanned for lines that
+ * start with <code>#include</code>, the paths are resolved and the included
+ * files are scanned in turn. Includes in inactive conditional regions are
+ * edges as well, so the graph may contain more edges than a preprocessor would
+ * follow.<br>
+ * <br>
+ * {@link #preProcess(ForkJoinPool, IncludeCache, OrinocoLexerContext, Function)}
+ * first preprocesses the headers (the files that are included by other files)
+ * into the shared {@link IncludeCache}, layer by layer in topological order, so
+ * a header is preprocessed after the headers it includes and the headers of a
+ * layer are preprocessed in parallel. Then all other files are preprocessed in
+ * parallel and mostly hit the cache instead of preprocessing the same header on
+ * several threads at once. Headers are preprocessed without any macros defined;
+ * the cache only reuses a result where the macros it depends on are the same
+ * (see {@link IncludeCache}), so this never changes the result of a file.
+ * Include cycles are put into the last layer.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public final class IncludeGraph {
+	private static final char[] INCLUDE = PreProcessorCommand.Include.getName().toCharArray();
+
+	private final IncludeResolver resolver;
+	/** The canonical paths of the files, by index */
+	private final Path[] files;
+	private final Map<Path, Integer> indices;
+	/** The indices of the files each file includes */
+	private final int[][] includes;
+	/** The indices of the files that include each file */
+	private final int[][] includedBy;
+	/** True for the files that were passed to {@link #discover(Collection, IncludeResolver, ForkJoinPool)} */
+	private final boolean[] given;
+	/** The indices of the files in topological order, grouped into layers whose files don't depend on each other */
+	private final int[][] layers;
+
+	private IncludeGraph(@NotNull IncludeResolver resolver, @NotNull List<Path> files, @NotNull List<int[]> includes, int givenCount) {
+		this.resolver = resolver;
+		this.files = files.toArray(new Path[0]);
+		this.indices = new HashMap<>();
+		for (int i = 0; i < this.files.length; i++) {
+			indices.put(this.files[i], i);
+		}
+		this.includes = includes.toArray(new int[0][]);
+		this.given = new boolean[this.files.length];
+		Arrays.fill(given, 0, givenCount, true);
+
+		int[] includedByCounts = new int[this.files.length];
+		for (int[] edges : this.includes) {
+			for (int included : edges) {
+				includedByCounts[included]++;
+			}
+		}
+		this.includedBy = new int[this.files.length][];
+		for (int i = 0; i < includedBy.length; i++) {
+			includedBy[i] = new int[includedByCounts[i]];
+			includedByCounts[i] = 0;
+		}
+		for (int i = 0; i < this.includes.length; i++) {
+			for (int included : this.includes[i]) {
+				includedBy[included][includedByCounts[included]++] = i;
+			}
+		}
+		this.layers = computeLayers();
+	}
+
+	/**
+	 * Scans the files and (transitively) the files they include for
+	 * <code>#include</code> commands. The files are scanned in parallel.
+	 *
+	 * @param files the files of the workspace
+	 * @param resolver resolves the include paths. Includes that can't be resolved
+	 *        are ignored.
+	 * @param pool the pool the files are scanned in
+	 * @return the graph
+	 * @throws IOException if a file can't be read
+	 */
+	@NotNull
+	public static IncludeGraph discover(@NotNull Collection<Path> files, @NotNull IncludeResolver resolver, @NotNull ForkJoinPool pool)
+			throws IOException {
+		Map<Path, Integer> indices = new HashMap<>();
+		List<Path> paths = new ArrayList<>();
+		for (Path file : files) {
+			Path canonical = file.toRealPath();
+			if (!indices.containsKey(canonical)) {
+				indices.put(canonical, paths.size());
+				paths.add(canonical);
+			}
+		}
+		int givenCount = paths.size();
+		List<int[]> includes = new ArrayList<>();
+
+		// breadth first: each round scans the files that were found by the previous one
+		int roundStart = 0;
+		while (roundStart < paths.size()) {
+			List<Callable<Set<Path>>> scans = new ArrayList<>();
+			for (Path file : paths.subList(roundStart, paths.size())) {
+				scans.add(() -> scanIncludes(file, resolver));
+			}
+			roundStart = paths.size();
+			for (Set<Path> included : runAll(pool, scans)) {
+				int[] edges = new int[included.size()];
+				int count = 0;
+				for (Path path : included) {
+					Integer index = indices.get(path);
+					if (index == null) {
+						index = paths.size();
+						indices.put(path, index);
+						paths.add(path);
+					}
+					edges[count++] = index;
+				}
+				includes.add(edges);
+			}
+		}
+		return new IncludeGraph(resolver, paths, includes, givenCount);
+	}
+
+	/** @return the canonical paths of the files the file includes (in order, without duplicates) */
+	@NotNull
+	static Set<Path> scanIncludes(@NotNull Path file, @NotNull IncludeResolver resolver) throws IOException {
+		CharBuffer content = IncludeCache.readContent(file);
+		char[] buf = content.array();
+		int end = content.arrayOffset() + content.limit();
+		Set<Path> included = new LinkedHashSet<>();
+		for (int i = content.arrayOffset() + content.position(); i < end; i++) {
+			if (buf[i] != '#') {
+				continue;
+			}
+			int lineStart = i;
+			while (lineStart > content.arrayOffset() && (buf[lineStart - 1] == ' ' || buf[lineStart - 1] == '\t')) {
+				lineStart--;
+			}
+			if (lineStart > content.arrayOffset() && buf[lineStart - 1] != '\n' || !isInclude(buf, i + 1, end)) {
+				continue;
+			}
+			int lineEnd = i + 1 + INCLUDE.length;
+			while (lineEnd < end && buf[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			String path = OrinocoPreProcessor.parseIncludePath(buf, i + 1 + INCLUDE.length, lineEnd);
+			Path resolved = path == null ? null : resolver.resolve(path, file);
+			if (resolved != null) {
+				included.add(resolved.toRealPath());
+			}
+			i = lineEnd;
+		}
+		return included;
+	}
+
+	private static boolean isInclude(@NotNull char[] buf, int start, int end) {
+		if (end - start < INCLUDE.length) {
+			return false;
+		}
+		for (int i = 0; i < INCLUDE.length; i++) {
+			if (buf[start + i] != INCLUDE[i]) {
+				return false;
+			}
+		}
+		int next = start + INCLUDE.length;
+		return next == end || !PreProcessorMacro.isIdentifierStart(buf[next]) && !Character.isDigit(buf[next]);
+	}
+
+	/** @return the number of files */
+	public int size() {
+		return files.length;
+	}
+
+	/** @return the canonical path of the file */
+	@NotNull
+	public Path getFile(int file) {
+		return files[file];
+	}
+
+	/** @return the index of the file with the canonical path or -1 if it isn't part of the graph */
+	public int indexOf(@NotNull Path canonicalPath) {
+		Integer index = indices.get(canonicalPath);
+		return index == null ? -1 : index;
+	}
+
+	/** @return the indices of the files the file includes */
+	@NotNull
+	public int[] getIncludes(int file) {
+		return includes[file].clone();
+	}
+
+	/** @return the indices of the files that include the file */
+	@NotNull
+	public int[] getIncludedBy(int file) {
+		return includedBy[file].clone();
+	}
+
+	/** @return true if the file is included by another file */
+	public boolean isHeader(int file) {
+		return includedBy[file].length > 0;
+	}
+
+	/**
+	 * @return the files in topological order (every file after the files it
+	 *         includes), grouped into layers of files that don't include each
+	 *         other. Files of include cycles are in the last layer.
+	 */
+	@NotNull
+	public List<List<Path>> getLayers() {
+		List<List<Path>> result = new ArrayList<>(layers.length);
+		for (int[] layer : layers) {
+			List<Path> paths = new ArrayList<>(layer.length);
+			for (int file : layer) {
+				paths.add(files[file]);
+			}
+			result.add(Collections.unmodifiableList(paths));
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Preprocesses the workspace: first the headers layer by layer into the cache,
+	 * then all files that aren't included by another file, in parallel.
+	 *
+	 * @param pool the pool the files are preprocessed in
+	 * @param cache the cache the headers are kept in
+	 * @param context the context of all lexers (it is shared by the threads)
+	 * @param processors creates the processor that receives the preprocessed
+	 *        tokens of a file. It is invoked on the thread that preprocesses the
+	 *        file.
+	 * @throws IOException if a file can't be read. The other files are
+	 *         preprocessed nonetheless; the exceptions of further files are
+	 *         suppressed by the thrown one.
+	 */
+	public void preProcess(@NotNull ForkJoinPool pool, @NotNull IncludeCache cache, @NotNull OrinocoLexerContext context,
+						   @NotNull Function<Path, OrinocoTokenProcessor> processors) throws IOException {
+		for (int[] layer : layers) {
+			List<Callable<Void>> headers = new ArrayList<>();
+			for (int file : layer) {
+				if (isHeader(file)) {
+					headers.add(() -> {
+						OrinocoPreProcessor preProcessor = new OrinocoPreProcessor(new OrinocoTokenBuffer());
+						preProcessor.setIncludes(resolver, cache);
+						preProcessor.preProcessHeader(files[file], context);
+						return null;
+					});
+				}
+			}
+			runAll(pool, headers);
+		}
+
+		List<Callable<Void>> sources = new ArrayList<>();
+		for (int file = 0; file < files.length; file++) {
+			if (given[file] && !isHeader(file)) {
+				Path path = files[file];
+				sources.add(() -> {
+					CharBuffer content = IncludeCache.readContent(path);
+					OrinocoPreProcessor preProcessor = new OrinocoPreProcessor(processors.apply(path));
+					preProcessor.setIncludes(resolver, cache);
+					preProcessor.setFile(path);
+					new OrinocoLexer(OrinocoReader.fromCharBuffer(content), preProcessor, context).start();
+					return null;
+				});
+			}
+		}
+		runAll(pool, sources);
+	}
+
+	/** Kahn's algorithm, a layer at a time */
+	@NotNull
+	private int[][] computeLayers() {
+		int[] pending = new int[files.length];
+		List<int[]> result = new ArrayList<>();
+		int[] layer = new int[files.length];
+		int layerSize = 0;
+		for (int i = 0; i < files.length; i++) {
+			pending[i] = includes[i].length;
+			if (pending[i] == 0) {
+				layer[layerSize++] = i;
+			}
+		}
+		int done = 0;
+		while (layerSize > 0) {
+			int[] current = Arrays.copyOf(layer, layerSize);
+			result.add(current);
+			done += layerSize;
+			layerSize = 0;
+			for (int file : current) {
+				for (int dependent : includedBy[file]) {
+					if (--pending[dependent] == 0) {
+						layer[layerSize++] = dependent;
+					}
+				}
+			}
+		}
+		if (done < files.length) {
+			// cycles
+			int[] rest = new int[files.length - done];
+			int count = 0;
+			for (int i = 0; i < files.length; i++) {
+				if (pending[i] > 0) {
+					rest[count++] = i;
+				}
+			}
+			result.add(rest);
+		}
+		return result.toArray(new int[0][]);
+	}
+
+	/**
+	 * Runs the tasks in the pool and waits for all of them
+	 *
+	 * @return the results in the order of the tasks
+	 * @throws IOException the first {@link IOException} (or
+	 *         {@link UncheckedIOException}) of a task, with the exceptions of later
+	 *         tasks suppressed
+	 */
+	@NotNull
+	private static <T> List<T> runAll(@NotNull ForkJoinPool pool, @NotNull List<Callable<T>> tasks) throws IOException {
+		List<ForkJoinTask<T>> submitted = new ArrayList<>(tasks.size());
+		for (Callable<T> task : tasks) {
+			submitted.add(pool.submit(task));
+		}
+		List<T> results = new ArrayList<>(tasks.size());
+		Throwable failure = null;
+		for (ForkJoinTask<T> task : submitted) {
+			try {
+				results.add(task.get());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+				if (failure == null) {
+					failure = cause;
+				} else {
+					failure.addSuppressed(cause);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted", e);
+			}
+		}
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new IOException(failure);
+		}
+		return results;
+	}
+}
@@ -0,0 +1,65 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the file that is referenced by an <code>#include</code> command.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public interface IncludeResolver {
+	/**
+	 * @param includePath the path as written in the command (without the quotes
+	 *        or angle brackets)
+	 * @param includingFile the file that contains the command or null if it isn't
+	 *        known
+	 * @return the file or null if it can't be found
+	 */
+	@Nullable
+	Path resolve(@NotNull String includePath, @Nullable Path includingFile);
+
+	/**
+	 * Creates a resolver for paths like Arma's virtual file system. A path that
+	 * starts with a (back)slash is resolved against each of the roots, any other
+	 * path against the directory of the including file first and then against the
+	 * roots. Backslashes are treated as separators.
+	 *
+	 * @param roots the directories that correspond to the root of the virtual
+	 *        file system (e.g. the directory that contains <code>x\cba</code>)
+	 * @return the resolver
+	 */
+	@NotNull
+	static IncludeResolver fromRoots(@NotNull List<Path> roots) {
+		List<Path> rootsCopy = new ArrayList<>(roots);
+		return (includePath, includingFile) -> {
+			String relative = includePath.replace('\\', '/');
+			boolean absolute = relative.startsWith("/");
+			while (relative.startsWith("/")) {
+				relative = relative.substring(1);
+			}
+			if (relative.isEmpty()) {
+				return null;
+			}
+			if (!absolute && includingFile != null && includingFile.getParent() != null) {
+				Path candidate = includingFile.getParent().resolve(relative);
+				if (Files.isRegularFile(candidate)) {
+					return candidate;
+				}
+			}
+			for (Path root : rootsCopy) {
+				Path candidate = root.resolve(relative);
+				if (Files.isRegularFile(candidate)) {
+					return candidate;
+				}
+			}
+			return null;
+		};
+	}
+}
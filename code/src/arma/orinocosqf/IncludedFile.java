@@ -0,0 +1,221 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The result of preprocessing an included file, as kept by
+ * {@link IncludeCache}: the preprocessed tokens, the changes the file made to
+ * the {@link MacroTable} (the delta), the macros the result depends on, the
+ * files it included in turn and its {@link PreProcessorSourceMap}.<br>
+ * <br>
+ * The result of an include depends on the macros that were defined when it was
+ * included, so every macro name the file looked up (and didn't define itself
+ * before) is recorded together with the macro it resolved to. The result can
+ * be reused wherever these names resolve to equal macros. The content hashes
+ * of the files it included are recorded as well, so a result whose nested
+ * includes have changed since can be told apart (see
+ * {@link #hasUnchangedIncludes()}). Instances are immutable and may be shared
+ * between threads.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+final class IncludedFile {
+	private final Path path;
+	private final long contentHash;
+	private final OrinocoLexerContext context;
+	private final OrinocoTokenBuffer tokens;
+	private final PreProcessorSourceMap sourceMap;
+	private final String[] dependencyNames;
+	/** The macro each dependency resolved to (null if it wasn't defined) */
+	private final PreProcessorMacro[] dependencyMacros;
+	/** The names the file defined or undefined, in order */
+	private final String[] changedNames;
+	/** The macro that was defined for each changed name (null if it was undefined) */
+	private final PreProcessorMacro[] changedMacros;
+	/** The canonical paths of the files this file included (directly or indirectly) */
+	private final Path[] includedPaths;
+	private final long[] includedHashes;
+	private final long retainedSize;
+
+	private IncludedFile(@NotNull Path path, long contentHash, @NotNull OrinocoLexerContext context, @NotNull OrinocoTokenBuffer tokens,
+						 @NotNull PreProcessorSourceMap sourceMap, @NotNull Recorder recorder) {
+		this.path = path;
+		this.contentHash = contentHash;
+		this.context = context;
+		this.tokens = tokens;
+		this.sourceMap = sourceMap;
+		this.dependencyNames = recorder.dependencies.keySet().toArray(new String[0]);
+		this.dependencyMacros = recorder.dependencies.values().toArray(new PreProcessorMacro[0]);
+		this.changedNames = recorder.changedNames.toArray(new String[0]);
+		this.changedMacros = recorder.changedMacros.toArray(new PreProcessorMacro[0]);
+		this.includedPaths = recorder.includes.keySet().toArray(new Path[0]);
+		this.includedHashes = new long[includedPaths.length];
+		for (int i = 0; i < includedPaths.length; i++) {
+			includedHashes[i] = recorder.includes.get(includedPaths[i]);
+		}
+
+		long size = tokens.getRetainedSize() + sourceMap.getRetainedSize() + 64;
+		for (String name : dependencyNames) {
+			size += 48 + 2L * name.length();
+		}
+		for (int i = 0; i < changedNames.length; i++) {
+			size += 48 + 2L * changedNames[i].length();
+			if (changedMacros[i] != null) {
+				size += 64 + 2L * changedMacros[i].getText().length;
+			}
+		}
+		this.retainedSize = size + 64L * includedPaths.length;
+	}
+
+	/** @return the canonical path of the file */
+	@NotNull
+	Path getPath() {
+		return path;
+	}
+
+	long getContentHash() {
+		return contentHash;
+	}
+
+	/** @return the preprocessed tokens. Their original span is in the included file. */
+	@NotNull
+	OrinocoTokenBuffer getTokens() {
+		return tokens;
+	}
+
+	/** @return the source map of the file. Its preprocessed offsets are relative to the start of the file. */
+	@NotNull
+	PreProcessorSourceMap getSourceMap() {
+		return sourceMap;
+	}
+
+	/** @return an estimate of the heap memory this result retains, in bytes */
+	long getRetainedSize() {
+		return retainedSize;
+	}
+
+	/**
+	 * @return true if the file would be preprocessed to the same result in the
+	 *         given situation: the ids are assigned by the same context and all
+	 *         macros the file depends on are the same
+	 */
+	boolean isValidFor(@NotNull MacroTable macros, @NotNull OrinocoLexerContext context) {
+		if (context != this.context) {
+			return false;
+		}
+		for (int i = 0; i < dependencyNames.length; i++) {
+			if (!Objects.equals(macros.get(dependencyNames[i]), dependencyMacros[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the files this file included (directly or indirectly) and compares
+	 * their content hashes with the recorded ones.
+	 *
+	 * @return false if one of them has changed or can't be read
+	 */
+	boolean hasUnchangedIncludes() {
+		for (int i = 0; i < includedPaths.length; i++) {
+			CharBuffer content;
+			try {
+				content = IncludeCache.readContent(includedPaths[i]);
+			} catch (IOException e) {
+				return false;
+			}
+			if (IncludeCache.contentHash(content.array(), content.arrayOffset() + content.position(), content.remaining()) != includedHashes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** @return true if the other result was created by the same context and depends on the same macros */
+	boolean hasSameDependencies(@NotNull IncludedFile other) {
+		return context == other.context && Arrays.equals(dependencyNames, other.dependencyNames)
+				&& Arrays.equals(dependencyMacros, other.dependencyMacros);
+	}
+
+	/** Applies the #define and #undef commands of the file to the table */
+	void applyTo(@NotNull MacroTable macros) {
+		for (int i = 0; i < changedNames.length; i++) {
+			if (changedMacros[i] == null) {
+				macros.undefine(changedNames[i]);
+			} else {
+				macros.define(changedMacros[i]);
+			}
+		}
+	}
+
+	/** Puts this file and the files it included into the map of canonical paths to content hashes */
+	void addIncludesTo(@NotNull Map<Path, Long> includes) {
+		includes.put(path, contentHash);
+		for (int i = 0; i < includedPaths.length; i++) {
+			includes.put(includedPaths[i], includedHashes[i]);
+		}
+	}
+
+	/**
+	 * Records the macro lookups and changes of a file that is being preprocessed
+	 * in order to create its {@link IncludedFile}.
+	 */
+	static final class Recorder {
+		private final Set<String> changed = new HashSet<>();
+		private final Map<String, PreProcessorMacro> dependencies = new LinkedHashMap<>();
+		private final List<String> changedNames = new ArrayList<>();
+		private final List<PreProcessorMacro> changedMacros = new ArrayList<>();
+		private final Map<Path, Long> includes = new LinkedHashMap<>();
+
+		/** Records that the name was looked up and resolved to the given macro */
+		void lookedUp(@NotNull char[] buf, int offset, int length, @Nullable PreProcessorMacro macro) {
+			lookedUp(new String(buf, offset, length), macro);
+		}
+
+		/** @see #lookedUp(char[], int, int, PreProcessorMacro) */
+		void lookedUp(@NotNull String name, @Nullable PreProcessorMacro macro) {
+			if (!changed.contains(name) && !dependencies.containsKey(name)) {
+				dependencies.put(name, macro);
+			}
+		}
+
+		/** Records that the name was defined (or undefined if the macro is null) */
+		void changed(@NotNull String name, @Nullable PreProcessorMacro macro) {
+			changed.add(name);
+			changedNames.add(name);
+			changedMacros.add(macro);
+		}
+
+		/** Records the lookups and changes of a file that was included by the recorded file */
+		void merge(@NotNull IncludedFile included) {
+			for (int i = 0; i < included.dependencyNames.length; i++) {
+				lookedUp(included.dependencyNames[i], included.dependencyMacros[i]);
+			}
+			for (int i = 0; i < included.changedNames.length; i++) {
+				changed(included.changedNames[i], included.changedMacros[i]);
+			}
+			included.addIncludesTo(includes);
+		}
+
+		@NotNull
+		IncludedFile build(@NotNull Path path, long contentHash, @NotNull OrinocoLexerContext context, @NotNull OrinocoTokenBuffer tokens,
+						   @NotNull PreProcessorSourceMap sourceMap) {
+			return new IncludedFile(path, contentHash, context, tokens, sourceMap, this);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tells {@link OrinocoLexer} which words have to be submitted to
+ * {@link OrinocoLexerStream#preProcessToken(char[], int, int)} instead of being
+ * lexed as commands or variables.
+ *
+ * @author K
+ * @since 10/18/2026
+ * @see OrinocoLexer#setMacroSet(MacroSet)
+ */
+interface MacroSet {
+	/** The word is no macro (or must not be expanded here) */
+	int NO_MACRO = 0;
+	/** The word is a macro without parameters */
+	int OBJECT_LIKE = 1;
+	/** The word is a macro with parameters, which is only expanded if it is followed by an argument list */
+	int FUNCTION_LIKE = 2;
+
+	/**
+	 * Invoked for every identifier the lexer lexes (while preprocessing is
+	 * enabled), so this must not allocate.
+	 *
+	 * @return {@link #NO_MACRO}, {@link #OBJECT_LIKE} or {@link #FUNCTION_LIKE}
+	 */
+	int getMacroKind(@NotNull char[] bufReadOnly, int offset, int length);
+
+	/**
+	 * Invoked when the lexer has lexed the text of the innermost expansion, i.e.
+	 * the text that was submitted last via
+	 * {@link OrinocoLexer#acceptPreProcessedText(char[], int, int)} and hasn't been
+	 * finished yet. Expansions finish in the reverse order they were submitted.
+	 */
+	void expansionFinished();
+}
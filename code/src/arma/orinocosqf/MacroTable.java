@@ -0,0 +1,325 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.Consumer;
+
+/**
+ * The macros that are defined at a point of preprocessing, by (case-sensitive)
+ * name. Looking up a macro by a char span doesn't allocate, as
+ * {@link OrinocoLexer} looks up every identifier it lexes.<br>
+ * <br>
+ * The macros are stored in a persistent hash array mapped trie: every node has
+ * up to 32 children, selected by 5 bits of the name's hash. {@link #fork()}
+ * therefore only copies the root reference, and the original and the fork share
+ * all nodes. A shared node is copied when a table changes it (together with the
+ * nodes on the path to it); nodes that a table created since its last fork are
+ * changed in place, so preprocessing a header that defines thousands of macros
+ * doesn't copy a path per macro. This makes it cheap to preprocess many files in
+ * parallel from one table that holds the macros of common headers: each file
+ * gets its own fork.<br>
+ * <br>
+ * This class is not thread-safe, but forks of a table may be used by different
+ * threads, and {@link #fork()} may be invoked by several threads at once as long
+ * as the table isn't changed at the same time.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class MacroTable {
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	private Node root;
+	private int size;
+	/** Identifies the nodes that this table may change in place */
+	private Object owner = new Object();
+
+	public MacroTable() {
+		this.root = new Node(owner, 0, new Object[0], false);
+	}
+
+	private MacroTable(@NotNull Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/** @return the macro with the given name or null if there is none */
+	@Nullable
+	public PreProcessorMacro get(@NotNull char[] buf, int offset, int length) {
+		int hash = hash(buf, offset, length);
+		Node node = root;
+		for (int shift = 0; ; shift += BITS) {
+			if (node.collision) {
+				for (Object entry : node.entries) {
+					if (matches(((PreProcessorMacro) entry).getName(), buf, offset, length)) {
+						return (PreProcessorMacro) entry;
+					}
+				}
+				return null;
+			}
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((node.bitmap & bit) == 0) {
+				return null;
+			}
+			Object entry = node.entries[Integer.bitCount(node.bitmap & (bit - 1))];
+			if (entry instanceof Node) {
+				node = (Node) entry;
+				continue;
+			}
+			PreProcessorMacro macro = (PreProcessorMacro) entry;
+			return matches(macro.getName(), buf, offset, length) ? macro : null;
+		}
+	}
+
+	/** @return the macro with the given name or null if there is none */
+	@Nullable
+	public PreProcessorMacro get(@NotNull String name) {
+		int hash = hash(name);
+		Node node = root;
+		for (int shift = 0; ; shift += BITS) {
+			if (node.collision) {
+				for (Object entry : node.entries) {
+					if (((PreProcessorMacro) entry).getName().equals(name)) {
+						return (PreProcessorMacro) entry;
+					}
+				}
+				return null;
+			}
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((node.bitmap & bit) == 0) {
+				return null;
+			}
+			Object entry = node.entries[Integer.bitCount(node.bitmap & (bit - 1))];
+			if (entry instanceof Node) {
+				node = (Node) entry;
+				continue;
+			}
+			PreProcessorMacro macro = (PreProcessorMacro) entry;
+			return macro.getName().equals(name) ? macro : null;
+		}
+	}
+
+	/** Adds the macro, replacing a macro with the same name */
+	public void define(@NotNull PreProcessorMacro macro) {
+		root = put(root, macro, hash(macro.getName()), 0);
+	}
+
+	/**
+	 * Removes the macro with the given name
+	 *
+	 * @return true if there was such a macro
+	 */
+	public boolean undefine(@NotNull char[] buf, int offset, int length) {
+		PreProcessorMacro macro = get(buf, offset, length);
+		return macro != null && undefine(macro.getName());
+	}
+
+	/** @see #undefine(char[], int, int) */
+	public boolean undefine(@NotNull String name) {
+		if (get(name) == null) {
+			return false;
+		}
+		Node newRoot = remove(root, name, hash(name), 0);
+		root = newRoot == null ? new Node(owner, 0, new Object[0], false) : newRoot;
+		size--;
+		return true;
+	}
+
+	/** @return true if a macro with the given name is defined */
+	public boolean isDefined(@NotNull char[] buf, int offset, int length) {
+		return get(buf, offset, length) != null;
+	}
+
+	/** @return the number of macros */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Creates a table that can be changed independently of this table. Nothing is
+	 * copied: both tables share their nodes until they change them.
+	 *
+	 * @return the fork
+	 */
+	@NotNull
+	public MacroTable fork() {
+		// neither table may change the shared nodes in place anymore
+		owner = new Object();
+		return new MacroTable(root, size);
+	}
+
+	/** Invokes the consumer for every macro (in no particular order) */
+	public void forEach(@NotNull Consumer<PreProcessorMacro> consumer) {
+		forEach(root, consumer);
+	}
+
+	private static void forEach(@NotNull Node node, @NotNull Consumer<PreProcessorMacro> consumer) {
+		for (Object entry : node.entries) {
+			if (entry instanceof Node) {
+				forEach((Node) entry, consumer);
+			} else {
+				consumer.accept((PreProcessorMacro) entry);
+			}
+		}
+	}
+
+	/** @return the node with the macro added (the node itself if this table owns it) */
+	@NotNull
+	private Node put(@NotNull Node node, @NotNull PreProcessorMacro macro, int hash, int shift) {
+		String name = macro.getName();
+		if (node.collision) {
+			for (int i = 0; i < node.entries.length; i++) {
+				if (((PreProcessorMacro) node.entries[i]).getName().equals(name)) {
+					return node.withEntry(owner, i, macro);
+				}
+			}
+			size++;
+			return node.withInsertedEntry(owner, node.entries.length, 0, macro);
+		}
+		int bit = 1 << ((hash >>> shift) & MASK);
+		int index = Integer.bitCount(node.bitmap & (bit - 1));
+		if ((node.bitmap & bit) == 0) {
+			size++;
+			return node.withInsertedEntry(owner, index, bit, macro);
+		}
+		Object entry = node.entries[index];
+		if (entry instanceof Node) {
+			Node child = put((Node) entry, macro, hash, shift + BITS);
+			return child == entry ? node : node.withEntry(owner, index, child);
+		}
+		PreProcessorMacro existing = (PreProcessorMacro) entry;
+		if (existing.getName().equals(name)) {
+			return node.withEntry(owner, index, macro);
+		}
+		size++;
+		return node.withEntry(owner, index, split(existing, hash(existing.getName()), macro, hash, shift + BITS));
+	}
+
+	/** @return a node that holds both macros, whose hashes are equal in the bits below <code>shift</code> */
+	@NotNull
+	private Node split(@NotNull PreProcessorMacro a, int hashA, @NotNull PreProcessorMacro b, int hashB, int shift) {
+		if (shift >= Integer.SIZE) {
+			return new Node(owner, 0, new Object[]{a, b}, true);
+		}
+		int indexA = (hashA >>> shift) & MASK;
+		int indexB = (hashB >>> shift) & MASK;
+		if (indexA == indexB) {
+			return new Node(owner, 1 << indexA, new Object[]{split(a, hashA, b, hashB, shift + BITS)}, false);
+		}
+		return new Node(owner, (1 << indexA) | (1 << indexB), indexA < indexB ? new Object[]{a, b} : new Object[]{b, a}, false);
+	}
+
+	/** @return the node without the macro (which must exist) or null if the node is empty then */
+	@Nullable
+	private Node remove(@NotNull Node node, @NotNull String name, int hash, int shift) {
+		if (node.collision) {
+			for (int i = 0; i < node.entries.length; i++) {
+				if (((PreProcessorMacro) node.entries[i]).getName().equals(name)) {
+					return node.entries.length == 1 ? null : node.withoutEntry(owner, i, 0);
+				}
+			}
+			return node;
+		}
+		int bit = 1 << ((hash >>> shift) & MASK);
+		int index = Integer.bitCount(node.bitmap & (bit - 1));
+		Object entry = node.entries[index];
+		if (entry instanceof Node) {
+			Node child = remove((Node) entry, name, hash, shift + BITS);
+			if (child == entry) {
+				return node;
+			}
+			if (child != null) {
+				// a single macro doesn't need a node of its own
+				boolean singleMacro = child.entries.length == 1 && !(child.entries[0] instanceof Node);
+				return node.withEntry(owner, index, singleMacro ? child.entries[0] : child);
+			}
+		}
+		return node.entries.length == 1 ? null : node.withoutEntry(owner, index, bit);
+	}
+
+	private static boolean matches(@NotNull String name, @NotNull char[] buf, int offset, int length) {
+		if (name.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (name.charAt(i) != buf[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static int hash(@NotNull char[] buf, int offset, int length) {
+		int h = 0;
+		for (int i = 0; i < length; i++) {
+			h = 31 * h + buf[offset + i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	static int hash(@NotNull String name) {
+		// same as String.hashCode(), spread like hash(char[], int, int)
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * A trie node. The entries are macros or child nodes, one per set bit of the
+	 * bitmap in the order of the bits. A collision node holds macros whose hashes
+	 * are equal and has no bitmap.
+	 */
+	private static final class Node {
+		/** The table that may change this node in place */
+		private final Object owner;
+		private int bitmap;
+		private Object[] entries;
+		private final boolean collision;
+
+		Node(@NotNull Object owner, int bitmap, @NotNull Object[] entries, boolean collision) {
+			this.owner = owner;
+			this.bitmap = bitmap;
+			this.entries = entries;
+			this.collision = collision;
+		}
+
+		@NotNull
+		Node withEntry(@NotNull Object owner, int index, @NotNull Object entry) {
+			if (this.owner == owner) {
+				entries[index] = entry;
+				return this;
+			}
+			Object[] copy = entries.clone();
+			copy[index] = entry;
+			return new Node(owner, bitmap, copy, collision);
+		}
+
+		@NotNull
+		Node withInsertedEntry(@NotNull Object owner, int index, int bit, @NotNull Object entry) {
+			Object[] copy = new Object[entries.length + 1];
+			System.arraycopy(entries, 0, copy, 0, index);
+			copy[index] = entry;
+			System.arraycopy(entries, index, copy, index + 1, entries.length - index);
+			if (this.owner == owner) {
+				entries = copy;
+				bitmap |= bit;
+				return this;
+			}
+			return new Node(owner, bitmap | bit, copy, collision);
+		}
+
+		@NotNull
+		Node withoutEntry(@NotNull Object owner, int index, int bit) {
+			Object[] copy = new Object[entries.length - 1];
+			System.arraycopy(entries, 0, copy, 0, index);
+			System.arraycopy(entries, index + 1, copy, index, entries.length - index - 1);
+			if (this.owner == owner) {
+				entries = copy;
+				bitmap &= ~bit;
+				return this;
+			}
+			return new Node(owner, bitmap & ~bit, copy, collision);
+		}
+	}
+}
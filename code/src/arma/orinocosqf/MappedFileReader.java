@@ -0,0 +1,285 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An {@link OrinocoReader} that reads a file through a read-only memory map of
+ * the whole file. For US-ASCII, ISO-8859-1 and UTF-8 the bytes are decoded by
+ * hand straight into the char[] passed to {@link #read(char[], int, int)} (which
+ * for {@link OrinocoLexer} is its window), so there are no intermediate byte or
+ * char buffers. All other charsets are decoded with a {@link CharsetDecoder}
+ * that also writes directly into the given char[].<br>
+ * <br>
+ * Malformed input is replaced with U+FFFD. A leading UTF-8 byte order mark is
+ * skipped.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class MappedFileReader extends OrinocoReader {
+	private static final char REPLACEMENT = '\uFFFD';
+
+	private static final int MODE_ASCII = 0;
+	private static final int MODE_LATIN1 = 1;
+	private static final int MODE_UTF8 = 2;
+	private static final int MODE_DECODER = 3;
+
+	private ByteBuffer bytes;
+	private final int mode;
+	private final CharsetDecoder decoder;
+	/** The low surrogate of a code point whose high surrogate didn't fit into the last read */
+	private char pendingLowSurrogate;
+	private int markedPosition = -1;
+
+	/**
+	 * Maps the given file into memory.
+	 *
+	 * @param file the file to read
+	 * @param c the charset of the file
+	 * @throws IOException if the file can't be mapped or is larger than 2GB
+	 */
+	public MappedFileReader(@NotNull Path file, @NotNull Charset c) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("File is too large to be mapped: " + file);
+			}
+			this.bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+
+		if (c.equals(StandardCharsets.UTF_8)) {
+			mode = MODE_UTF8;
+			if (bytes.remaining() >= 3 && bytes.get(0) == (byte) 0xEF && bytes.get(1) == (byte) 0xBB && bytes.get(2) == (byte) 0xBF) {
+				bytes.position(3);
+			}
+		} else if (c.equals(StandardCharsets.US_ASCII)) {
+			mode = MODE_ASCII;
+		} else if (c.equals(StandardCharsets.ISO_8859_1)) {
+			mode = MODE_LATIN1;
+		} else {
+			mode = MODE_DECODER;
+		}
+		decoder = mode == MODE_DECODER ? c.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE) : null;
+	}
+
+	@Override
+	public int read(@NotNull char[] cbuf, int off, int len) throws IOException {
+		ensureOpen();
+		if (off < 0 || len < 0 || len > cbuf.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+
+		int written = 0;
+		if (pendingLowSurrogate != 0) {
+			cbuf[off] = pendingLowSurrogate;
+			pendingLowSurrogate = 0;
+			written = 1;
+		}
+		if (!bytes.hasRemaining()) {
+			return written == 0 ? -1 : written;
+		}
+		if (written == len) {
+			return written;
+		}
+
+		switch (mode) {
+			case MODE_ASCII:
+			case MODE_LATIN1: {
+				written += readSingleByte(cbuf, off + written, len - written);
+				break;
+			}
+			case MODE_UTF8: {
+				written += readUtf8(cbuf, off + written, len - written);
+				break;
+			}
+			default: {
+				written += readWithDecoder(cbuf, off + written, len - written);
+				break;
+			}
+		}
+		return written;
+	}
+
+	private int readSingleByte(@NotNull char[] cbuf, int off, int len) {
+		ByteBuffer bytes = this.bytes;
+		int pos = bytes.position();
+		int count = Math.min(len, bytes.limit() - pos);
+		boolean ascii = mode == MODE_ASCII;
+		for (int i = 0; i < count; i++) {
+			byte b = bytes.get(pos + i);
+			cbuf[off + i] = b >= 0 ? (char) b : ascii ? REPLACEMENT : (char) (b & 0xFF);
+		}
+		bytes.position(pos + count);
+		return count;
+	}
+
+	private int readUtf8(@NotNull char[] cbuf, int off, int len) {
+		ByteBuffer bytes = this.bytes;
+		int pos = bytes.position();
+		final int limit = bytes.limit();
+		int i = off;
+		final int end = off + len;
+
+		while (i < end && pos < limit) {
+			byte b = bytes.get(pos);
+			if (b >= 0) {
+				cbuf[i++] = (char) b;
+				pos++;
+				continue;
+			}
+
+			int b0 = b & 0xFF;
+			int sequenceLength;
+			int codePoint;
+			if ((b0 >> 5) == 0x6) {
+				sequenceLength = 2;
+				codePoint = b0 & 0x1F;
+			} else if ((b0 >> 4) == 0xE) {
+				sequenceLength = 3;
+				codePoint = b0 & 0x0F;
+			} else if ((b0 >> 3) == 0x1E) {
+				sequenceLength = 4;
+				codePoint = b0 & 0x07;
+			} else {
+				cbuf[i++] = REPLACEMENT;
+				pos++;
+				continue;
+			}
+
+			int consumed = 1;
+			while (consumed < sequenceLength && pos + consumed < limit) {
+				int next = bytes.get(pos + consumed);
+				if ((next & 0xC0) != 0x80) {
+					break;
+				}
+				codePoint = (codePoint << 6) | (next & 0x3F);
+				consumed++;
+			}
+			if (consumed < sequenceLength || isOverlongOrInvalid(codePoint, sequenceLength)) {
+				cbuf[i++] = REPLACEMENT;
+				pos += consumed;
+				continue;
+			}
+
+			if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+				cbuf[i++] = (char) codePoint;
+			} else {
+				cbuf[i++] = Character.highSurrogate(codePoint);
+				if (i < end) {
+					cbuf[i++] = Character.lowSurrogate(codePoint);
+				} else {
+					pendingLowSurrogate = Character.lowSurrogate(codePoint);
+				}
+			}
+			pos += consumed;
+		}
+
+		bytes.position(pos);
+		return i - off;
+	}
+
+	private static boolean isOverlongOrInvalid(int codePoint, int sequenceLength) {
+		switch (sequenceLength) {
+			case 2: {
+				return codePoint < 0x80;
+			}
+			case 3: {
+				return codePoint < 0x800 || Character.isSurrogate((char) codePoint);
+			}
+			default: {
+				return codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT || codePoint > Character.MAX_CODE_POINT;
+			}
+		}
+	}
+
+	private int readWithDecoder(@NotNull char[] cbuf, int off, int len) {
+		CharBuffer target = CharBuffer.wrap(cbuf, off, len);
+		CoderResult result = decoder.decode(bytes, target, true);
+		if (result.isUnderflow() && !bytes.hasRemaining()) {
+			decoder.flush(target);
+		}
+		if (target.position() == off && result.isOverflow()) {
+			// a surrogate pair doesn't fit into a single char
+			char[] pair = new char[2];
+			CharBuffer pairBuffer = CharBuffer.wrap(pair);
+			decoder.decode(bytes, pairBuffer, true);
+			cbuf[off] = pair[0];
+			pendingLowSurrogate = pair[1];
+			return 1;
+		}
+		return target.position() - off;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		ensureOpen();
+		if (n < 0) {
+			throw new IllegalArgumentException("skip value is negative");
+		}
+		if (mode == MODE_ASCII || mode == MODE_LATIN1) {
+			int skipped = (int) Math.min(n, bytes.remaining());
+			bytes.position(bytes.position() + skipped);
+			return skipped;
+		}
+		return super.skip(n);
+	}
+
+	@Override
+	public boolean ready() throws IOException {
+		ensureOpen();
+		return bytes.hasRemaining() || pendingLowSurrogate != 0;
+	}
+
+	/** Marking is supported for the charsets that are decoded by hand */
+	@Override
+	public boolean markSupported() {
+		return mode != MODE_DECODER;
+	}
+
+	@Override
+	public void mark(int readAheadLimit) throws IOException {
+		ensureOpen();
+		if (!markSupported() || pendingLowSurrogate != 0) {
+			throw new IOException("mark() not supported");
+		}
+		markedPosition = bytes.position();
+	}
+
+	@Override
+	public void reset() throws IOException {
+		ensureOpen();
+		if (markedPosition < 0) {
+			throw new IOException("Stream not marked");
+		}
+		bytes.position(markedPosition);
+		pendingLowSurrogate = 0;
+	}
+
+	@Override
+	public void close() {
+		// the mapping itself is released once the buffer is garbage collected
+		bytes = null;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (bytes == null) {
+			throw new IOException("Stream closed");
+		}
+	}
+}
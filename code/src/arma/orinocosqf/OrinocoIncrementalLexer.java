@@ -0,0 +1,327 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Keeps a document and its (unpreprocessed) tokens and re-lexes only the part
+ * of the document that is affected by an edit. This is intended for editors that
+ * need the tokens after every keystroke.<br>
+ * <br>
+ * An edit is re-lexed with {@link OrinocoLexer} from the nearest safe restart
+ * point before the edit (the beginning of the document or a whitespace token
+ * that contains a line break and ends before the edit) up to the first token boundary behind the edit at
+ * which an old token starts in the same lexer state. From there on the old
+ * tokens are kept and only their offsets are shifted. The tokens that were
+ * actually re-lexed are available via {@link #getDamageStart()} and
+ * {@link #getDamageEnd()}, and any range of tokens can be submitted to a
+ * {@link OrinocoTokenProcessor} with
+ * {@link OrinocoTokenBuffer#replay(int, int, OrinocoTokenProcessor)}.<br>
+ * <br>
+ * Preprocessing is skipped: preprocessor commands are kept as
+ * {@link OrinocoSQFTokenType#UnPreProcessed} tokens and, as no macros are
+ * expanded, preprocessed offsets are equal to original offsets.<br>
+ * <br>
+ * This class is not thread-safe.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class OrinocoIncrementalLexer {
+	/** Token flag: the lexer was at the start of a line when it began lexing the token */
+	private static final byte FLAG_LINE_START = 0x10;
+	/** Token flag: the token is whitespace that contains a line break */
+	private static final byte FLAG_NEWLINE = 0x20;
+
+	private final OrinocoLexerContext context;
+
+	private char[] text = new char[0];
+	private int textLength;
+
+	private final OrinocoTokenBuffer tokens = new OrinocoTokenBuffer();
+	/** Tokens of the current re-lex */
+	private final OrinocoTokenBuffer scratch = new OrinocoTokenBuffer();
+
+	private int damageStart;
+	private int damageEnd;
+	private int lastDelta;
+
+	/**
+	 * @param context the context that assigns the ids of commands and variables.
+	 *        It is used for all edits, so ids stay stable across edits.
+	 */
+	public OrinocoIncrementalLexer(@NotNull OrinocoLexerContext context) {
+		this.context = context;
+	}
+
+	/**
+	 * Replaces the whole document and lexes it completely.
+	 *
+	 * @param document the new document
+	 */
+	public void setText(@NotNull CharSequence document) {
+		textLength = document.length();
+		text = new char[Math.max(16, textLength + textLength / 4)];
+		for (int i = 0; i < textLength; i++) {
+			text[i] = document.charAt(i);
+		}
+		tokens.clear();
+		tokens.setSource(text, 0);
+		relex(0, 0, 0, 0);
+	}
+
+	/**
+	 * Applies the given edit to the document and re-lexes the damaged region.
+	 *
+	 * @param offset the offset of the edit in the document before the edit
+	 * @param removedLength the number of chars that were removed at
+	 *        <code>offset</code>
+	 * @param insertedText the text that was inserted at <code>offset</code>
+	 * @throws IndexOutOfBoundsException if the edit isn't inside the document
+	 */
+	public void edit(int offset, int removedLength, @NotNull CharSequence insertedText) {
+		if (offset < 0 || removedLength < 0 || removedLength > textLength - offset) {
+			throw new IndexOutOfBoundsException("offset=" + offset + ", removedLength=" + removedLength + ", length=" + textLength);
+		}
+		int insertedLength = insertedText.length();
+		int newLength = textLength - removedLength + insertedLength;
+		if (newLength > text.length) {
+			char[] newText = new char[newLength + newLength / 4];
+			System.arraycopy(text, 0, newText, 0, offset);
+			System.arraycopy(text, offset + removedLength, newText, offset + insertedLength, textLength - offset - removedLength);
+			text = newText;
+		} else {
+			System.arraycopy(text, offset + removedLength, text, offset + insertedLength, textLength - offset - removedLength);
+		}
+		for (int i = 0; i < insertedLength; i++) {
+			text[offset + i] = insertedText.charAt(i);
+		}
+		textLength = newLength;
+		tokens.setSource(text, 0);
+
+		relex(offset, removedLength, insertedLength, findRestartToken(offset));
+	}
+
+	/**
+	 * @return the index of the last token before <code>editOffset</code> the lexer
+	 *         can restart at without knowing the tokens before it
+	 */
+	private int findRestartToken(int editOffset) {
+		int i = tokens.indexAtOrBefore(editOffset - 1);
+		for (; i > 0; i--) {
+			// whitespace doesn't depend on the lexer state and resets it at the line
+			// break, unless the edit changes the whitespace itself
+			if ((tokens.flags[i] & FLAG_NEWLINE) != 0 && tokens.originalOffsets[i] + tokens.originalLengths[i] < editOffset) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	private void relex(int editOffset, int removedLength, int insertedLength, int restartToken) {
+		final int delta = insertedLength - removedLength;
+		final int restartOffset = restartToken < tokens.count ? tokens.originalOffsets[restartToken] : 0;
+		// the lexer begins at the start of a line; that is only wrong for the restart whitespace itself, which doesn't depend on
+		// it and ends the line. The recorder flags the tokens with the actual state.
+		final boolean restartAtLineStart = restartToken >= tokens.count || (tokens.flags[restartToken] & FLAG_LINE_START) != 0;
+
+		scratch.clear();
+		scratch.setSource(text, 0);
+		RecordingStream recorder = new RecordingStream(restartOffset, restartAtLineStart, editOffset + insertedLength, delta,
+				restartToken);
+		OrinocoLexer lexer = new OrinocoLexer(OrinocoReader.fromCharArray(text, restartOffset, textLength - restartOffset), recorder,
+				context);
+		lexer.start();
+
+		// splice: old tokens before the restart point + re-lexed tokens + shifted old tokens after convergence
+		int convergedToken = recorder.convergedToken;
+		int keptTail = tokens.count - convergedToken;
+		int newCount = restartToken + scratch.count + keptTail;
+		tokens.ensureCapacity(newCount);
+		tokens.move(convergedToken, restartToken + scratch.count, keptTail, delta);
+		tokens.copyFrom(scratch, restartToken);
+		tokens.count = newCount;
+
+		damageStart = restartToken;
+		damageEnd = restartToken + scratch.count;
+		lastDelta = delta;
+	}
+
+	/** @return the current document length */
+	public int getTextLength() {
+		return textLength;
+	}
+
+	/**
+	 * @return the tokens of the current document. The buffer is owned by this
+	 *         lexer and updated by every edit; it must not be modified.
+	 */
+	@NotNull
+	public OrinocoTokenBuffer getTokens() {
+		return tokens;
+	}
+
+	/** @return the index of the first token that was re-lexed by the last edit */
+	public int getDamageStart() {
+		return damageStart;
+	}
+
+	/**
+	 * @return the index after the last token that was re-lexed by the last edit.
+	 *         All tokens from this index on are the old tokens with their offsets
+	 *         shifted by {@link #getLastOffsetDelta()}.
+	 */
+	public int getDamageEnd() {
+		return damageEnd;
+	}
+
+	/** @return the number of chars the last edit inserted minus the number of chars it removed */
+	public int getLastOffsetDelta() {
+		return lastDelta;
+	}
+
+	/**
+	 * Records the re-lexed tokens into {@link #scratch} and stops the lexer once it
+	 * reaches an old token behind the edit in the same state
+	 */
+	private class RecordingStream implements OrinocoLexerStream {
+		private final int baseOffset;
+		/** Tokens ending at or after this offset (in the new document) are behind the edit */
+		private final int editEnd;
+		private final int delta;
+		private OrinocoLexer lexer;
+		private boolean atLineStart;
+		/** The next old token that may be a convergence point */
+		private int candidate;
+		/** The index of the first old token that is kept (set once the lexer converged) */
+		int convergedToken;
+
+		RecordingStream(int baseOffset, boolean atLineStart, int editEnd, int delta, int firstCandidate) {
+			this.baseOffset = baseOffset;
+			this.atLineStart = atLineStart;
+			this.editEnd = editEnd;
+			this.delta = delta;
+			this.candidate = firstCandidate;
+			this.convergedToken = tokens.count;
+		}
+
+		/** Updates the lexer state for the token that was just added to {@link #scratch} and checks for convergence */
+		private void recorded() {
+			int index = scratch.count - 1;
+			int offset = scratch.originalOffsets[index];
+			int length = scratch.originalLengths[index];
+			OrinocoSQFTokenType type = scratch.getTokenType(index);
+			int flags = atLineStart ? FLAG_LINE_START : 0;
+			if (type == OrinocoSQFTokenType.Whitespace) {
+				for (int i = offset; i < offset + length; i++) {
+					if (text[i] == '\n') {
+						flags |= FLAG_NEWLINE;
+						atLineStart = true;
+						break;
+					}
+				}
+			} else if (type != OrinocoSQFTokenType.Comment && type != OrinocoSQFTokenType.UnPreProcessed) {
+				atLineStart = false;
+			}
+			scratch.flags[index] |= flags;
+
+			int end = offset + length;
+			if (end < editEnd) {
+				return;
+			}
+			// look for an old token that starts where the next new token starts
+			int oldEnd = end - delta;
+			while (candidate < tokens.count && tokens.originalOffsets[candidate] < oldEnd) {
+				candidate++;
+			}
+			if (candidate < tokens.count && tokens.originalOffsets[candidate] == oldEnd
+					&& ((tokens.flags[candidate] & FLAG_LINE_START) != 0) == atLineStart) {
+				convergedToken = candidate;
+				lexer.stop();
+			}
+		}
+
+		@Override
+		public void setLexer(@NotNull OrinocoLexer lexer) {
+			this.lexer = lexer;
+		}
+
+		@Override
+		public boolean skipPreProcessing() {
+			return true;
+		}
+
+		@Override
+		public void acceptPreProcessorCommand(@NotNull PreProcessorCommand command, @NotNull char[] bufReadOnly, int offset, int bodyLength) {
+			// preprocessing is skipped
+		}
+
+		@Override
+		public void preProcessToken(@NotNull char[] bufReadOnly, int offset, int length) {
+			// preprocessing is skipped
+		}
+
+		@Override
+		public void acceptWhitespace(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength) {
+			scratch.acceptWhitespace(baseOffset + originalOffset, originalLength, baseOffset + preprocessedOffset, preprocessedLength);
+			recorded();
+		}
+
+		@Override
+		public void acceptComment(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength) {
+			scratch.acceptComment(baseOffset + originalOffset, originalLength, baseOffset + preprocessedOffset, preprocessedLength);
+			recorded();
+		}
+
+		@Override
+		public void begin() {
+		}
+
+		@Override
+		public void acceptCommand(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+			scratch.acceptCommand(id, baseOffset + preprocessedOffset, baseOffset + originalOffset, originalLength);
+			recorded();
+		}
+
+		@Override
+		public void acceptLocalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+			scratch.acceptLocalVariable(id, baseOffset + preprocessedOffset, baseOffset + originalOffset, originalLength);
+			recorded();
+		}
+
+		@Override
+		public void acceptGlobalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+			scratch.acceptGlobalVariable(id, baseOffset + preprocessedOffset, baseOffset + originalOffset, originalLength);
+			recorded();
+		}
+
+		@Override
+		public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset,
+								  int originalOffset, int originalLength) {
+			scratch.acceptLiteral(type, token, baseOffset + preprocessedOffset, baseOffset + originalOffset, originalLength);
+			recorded();
+		}
+
+		@Override
+		public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull char[] bufReadOnly, int offset, int length,
+								  int preprocessedOffset, int originalOffset, int originalLength) {
+			scratch.acceptLiteral(type, bufReadOnly, offset, length, baseOffset + preprocessedOffset, baseOffset + originalOffset,
+					originalLength);
+			recorded();
+		}
+
+		@Override
+		public void preProcessorTokenSkipped(@NotNull String token, int offset) {
+			// the lexer only reports this for macros, which aren't known here
+		}
+
+		@Override
+		public void preProcessorCommandSkipped(@NotNull String command, int offset) {
+			scratch.preProcessorCommandSkipped(command, baseOffset + offset);
+			recorded();
+		}
+
+		@Override
+		public void end() {
+		}
+	}
+}
@@ -1,6 +1,11 @@
 package arma.orinocosqf;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 /**
  * A lexer that tokenizes text (into "words" or "tokens") and submits each token
@@ -29,23 +34,225 @@ import org.jetbrains.annotations.NotNull;
  * // and then finally ";" is lexed from the first {@link #acceptPreProcessedText(String)}
  * </pre>
  *
+ * Preprocessed text doesn't re-enter the lexer recursively: the lexer saves its
+ * position on an explicit stack of expansion frames, lexes the preprocessed text
+ * in the same loop and returns to the saved position when the text is
+ * exhausted. Nested macros therefore don't grow the Java stack; the
+ * preprocessor limits how deep expansions may nest.
+ *
+ * The lexer pulls its input from the {@link OrinocoReader} into a single char[]
+ * window that is reused for the whole input. Whenever a token reaches the end of
+ * the window, the unfinished token is moved to the front of the window and the
+ * rest of the window is refilled from the reader (the window is only grown if a
+ * single token doesn't fit into it). Tokens are classified with a static
+ * character class table and are submitted as offset/length pairs, so lexing
+ * doesn't allocate anything per token as long as the {@link OrinocoLexerContext}
+ * and the {@link OrinocoLexerStream} don't. If the reader exposes its input as
+ * an array (see {@link OrinocoReader#getBackingArray()}), that array is lexed
+ * directly and no window is allocated at all.
+ *
+ * When a conditional region (<code>#ifdef</code>, <code>#ifndef</code>,
+ * <code>#else</code>) is inactive, the preprocessor makes the lexer skip it
+ * (see {@link #skipConditionalRegion()}): the lexer searches the raw chars for
+ * the next <code>#</code> at the start of a line, tracks the nesting of
+ * conditionals and resumes lexing at the <code>#else</code> or
+ * <code>#endif</code> that ends the region. String literals, comments and the
+ * lines of other preprocessor commands are stepped over as a whole, so a
+ * <code>#endif</code> in a multi-line string or comment doesn't end the region.
+ * The skipped text isn't tokenized and isn't part of the preprocessed input.
+ *
  * @author K
  * @since 02/20/2019
  */
-public abstract class OrinocoLexer {
+public class OrinocoLexer {
+	/** The initial size of the char[] window the input is read into */
+	private static final int INITIAL_WINDOW_SIZE = 16 * 1024;
+	/** States of {@link #skipLines()}: code, a string literal, a block comment, a line comment and a preprocessor command line */
+	private static final int SKIP_CODE = 0;
+	private static final int SKIP_STRING = 1;
+	private static final int SKIP_BLOCK_COMMENT = 2;
+	private static final int SKIP_LINE_COMMENT = 3;
+	private static final int SKIP_COMMAND = 4;
+	private static final int EOF = -1;
+
+	private static final byte CC_OTHER = 0;
+	private static final byte CC_WHITESPACE = 1;
+	private static final byte CC_IDENTIFIER = 2;
+	private static final byte CC_DIGIT = 3;
+	private static final byte CC_QUOTE = 4;
+	private static final byte CC_OPERATOR = 5;
+	private static final byte CC_SLASH = 6;
+	private static final byte CC_HASH = 7;
+	private static final byte CC_DOLLAR = 8;
+	private static final byte CC_DOT = 9;
+
+	/** The character class of each ASCII character */
+	private static final byte[] CHAR_CLASSES = new byte[128];
+	/** The preprocessor commands as char[] to allow matching them directly in the window */
+	private static final PreProcessorCommand[] PREPROCESSOR_COMMANDS = PreProcessorCommand.values();
+	private static final char[][] PREPROCESSOR_COMMAND_NAMES = new char[PREPROCESSOR_COMMANDS.length][];
+
+	static {
+		for (char c : " \t\r\n\f\u000B".toCharArray()) {
+			CHAR_CLASSES[c] = CC_WHITESPACE;
+		}
+		for (char c = 'a'; c <= 'z'; c++) {
+			CHAR_CLASSES[c] = CC_IDENTIFIER;
+			CHAR_CLASSES[c - 'a' + 'A'] = CC_IDENTIFIER;
+		}
+		CHAR_CLASSES['_'] = CC_IDENTIFIER;
+		for (char c = '0'; c <= '9'; c++) {
+			CHAR_CLASSES[c] = CC_DIGIT;
+		}
+		CHAR_CLASSES['"'] = CC_QUOTE;
+		CHAR_CLASSES['\''] = CC_QUOTE;
+		for (char c : "=!<>&|+-*%^:;,()[]{}".toCharArray()) {
+			CHAR_CLASSES[c] = CC_OPERATOR;
+		}
+		CHAR_CLASSES['/'] = CC_SLASH;
+		CHAR_CLASSES['#'] = CC_HASH;
+		CHAR_CLASSES['$'] = CC_DOLLAR;
+		CHAR_CLASSES['.'] = CC_DOT;
+
+		for (int i = 0; i < PREPROCESSOR_COMMANDS.length; i++) {
+			PREPROCESSOR_COMMAND_NAMES[i] = PREPROCESSOR_COMMANDS[i].getName().toCharArray();
+		}
+	}
+
 	private final OrinocoReader r;
 	private final OrinocoLexerStream lexerStream;
+	private final OrinocoLexerContext context;
+
+	/** The window the input is lexed in */
+	private char[] buf;
+	/** The index after the last valid char in {@link #buf} */
+	private int bufEnd;
+	/** The index of the start of the token that is currently lexed */
+	private int tokenStart;
+	/** The offset in the original input that corresponds to index 0 in {@link #buf} */
+	private int bufOriginalOffset;
+	private boolean readerExhausted;
+	/** True if {@link #buf} is the window the reader is read into (rather than the reader's array) */
+	private boolean windowed;
+	/** True if only whitespace has been lexed since the last line break */
+	private boolean atLineStart = true;
+	private boolean skipPreProcessing;
+	/** The offset in the preprocessed input of the next token */
+	private int preprocessedOffset;
+
+	/** True if preprocessed text is lexed (see {@link #acceptPreProcessedText(String)}) */
+	private boolean expanding;
+	/** Original offset of the outermost token that is being preprocessed */
+	private int expansionOriginalOffset;
+	/** Original length of the outermost token that is being preprocessed */
+	private int expansionOriginalLength;
+	/** Set by {@link #skipConditionalRegion()} */
+	private boolean skipRequested;
+	/** Set by {@link #stop()} */
+	private boolean stopRequested;
+
+	/** Preprocessed text that is lexed after the current token (see {@link #acceptPreProcessedText(char[], int, int)}) */
+	private char[] pendingText;
+	private int pendingOffset;
+	private int pendingLength;
+	/** The saved positions of the texts that contain the expansions that are being lexed, innermost last */
+	private char[][] frameBufs = new char[8][];
+	private int[] frameBufEnds = new int[8];
+	private int[] frameTokenStarts = new int[8];
+	private int[] frameBufOriginalOffsets = new int[8];
+	/** Bit 0: {@link #expanding}, bit 1: {@link #atLineStart} */
+	private byte[] frameFlags = new byte[8];
+	private int frameCount;
+	/**
+	 * The argument list of the function-like macro that is being preprocessed:
+	 * start and end (relative to {@link #tokenStart}) of each argument, untrimmed
+	 */
+	private int[] argumentStarts = new int[8];
+	private int[] argumentEnds = new int[8];
+	private int argumentCount;
+	/** The words that are preprocessed (null if there are no macros) */
+	private MacroSet macroSet;
 
 	public OrinocoLexer(@NotNull OrinocoReader r, @NotNull OrinocoLexerStream lexerStream) {
+		this(r, lexerStream, new SimpleOrinocoLexerContext());
+	}
+
+	public OrinocoLexer(@NotNull OrinocoReader r, @NotNull OrinocoLexerStream lexerStream, @NotNull OrinocoLexerContext context) {
 		this.r = r;
 		this.lexerStream = lexerStream;
+		this.context = context;
 		lexerStream.setLexer(this);
 	}
 
 	/**
 	 * Starts the lexing process.
+	 *
+	 * @throws UncheckedIOException if the {@link OrinocoReader} fails
 	 */
-	public abstract void start();
+	public void start() {
+		char[] backingArray = r.getBackingArray();
+		if (backingArray != null) {
+			// lex directly in the reader's array
+			buf = backingArray;
+			tokenStart = r.getBackingArrayOffset();
+			bufEnd = tokenStart + r.getBackingArrayLength();
+			bufOriginalOffset = -tokenStart;
+			readerExhausted = true;
+			windowed = false;
+		} else {
+			buf = new char[INITIAL_WINDOW_SIZE];
+			bufEnd = 0;
+			tokenStart = 0;
+			bufOriginalOffset = 0;
+			readerExhausted = false;
+			windowed = true;
+		}
+		atLineStart = true;
+		preprocessedOffset = 0;
+		expanding = false;
+		stopRequested = false;
+		skipRequested = false;
+		pendingText = null;
+		frameCount = 0;
+
+		skipPreProcessing = lexerStream.skipPreProcessing();
+		lexerStream.begin();
+		lex();
+		lexerStream.end();
+	}
+
+	/**
+	 * Makes the lexer stop after the token that is currently being submitted.
+	 * {@link OrinocoLexerStream#end()} is invoked nonetheless. This is intended to
+	 * be invoked from within a {@link OrinocoLexerStream} callback.
+	 */
+	void stop() {
+		stopRequested = true;
+	}
+
+	/**
+	 * Makes the lexer skip the text up to the <code>#else</code> or
+	 * <code>#endif</code> that ends the current conditional region (nested
+	 * conditionals are skipped as a whole), or up to the end of the input. This is
+	 * intended to be invoked from
+	 * {@link OrinocoLexerStream#acceptPreProcessorCommand(PreProcessorCommand, char[], int, int)}
+	 * or {@link OrinocoLexerStream#begin()}; skipping starts after the command.
+	 */
+	void skipConditionalRegion() {
+		skipRequested = true;
+	}
+
+	/**
+	 * Sets the macros of the preprocessor. Every identifier the lexer lexes is
+	 * looked up in the set, and macros are submitted to
+	 * {@link OrinocoLexerStream#preProcessToken(char[], int, int)} (together with
+	 * their argument list) instead of being lexed.
+	 *
+	 * @param macroSet the macros or null if nothing is preprocessed
+	 */
+	void setMacroSet(@Nullable MacroSet macroSet) {
+		this.macroSet = macroSet;
+	}
 
 	/**
 	 * Accepts partially or fully preprocessed text (see Example 1 in class level
@@ -53,5 +260,775 @@ public abstract class OrinocoLexer {
 	 *
 	 * @param text the preprocessed, untokenized text
 	 */
-	abstract void acceptPreProcessedText(@NotNull String text);
+	void acceptPreProcessedText(@NotNull String text) {
+		char[] chars = text.toCharArray();
+		acceptPreProcessedText(chars, 0, chars.length);
+	}
+
+	/**
+	 * Accepts partially or fully preprocessed text (see Example 1 in class level
+	 * doc) from the {@link OrinocoLexerStream}. This must be invoked from
+	 * {@link OrinocoLexerStream#preProcessToken(char[], int, int)}, at most once
+	 * per token. The text is lexed directly in the given array after the
+	 * preprocessed token; the array must not be modified until the text has been
+	 * lexed (see {@link MacroSet#expansionFinished()}).
+	 *
+	 * @param text the array that contains the preprocessed, untokenized text
+	 * @param offset the offset of the text in the array
+	 * @param length the length of the text
+	 * @throws IllegalStateException if text has already been submitted for the
+	 *         current token
+	 */
+	void acceptPreProcessedText(@NotNull char[] text, int offset, int length) {
+		if (pendingText != null) {
+			throw new IllegalStateException("preprocessed text has already been submitted for this token");
+		}
+		pendingText = text;
+		pendingOffset = offset;
+		pendingLength = length;
+	}
+
+	/** Saves the current position on the frame stack and continues with the pending preprocessed text */
+	private void enterExpansion() {
+		if (frameCount == frameBufs.length) {
+			int capacity = frameCount * 2;
+			frameBufs = Arrays.copyOf(frameBufs, capacity);
+			frameBufEnds = Arrays.copyOf(frameBufEnds, capacity);
+			frameTokenStarts = Arrays.copyOf(frameTokenStarts, capacity);
+			frameBufOriginalOffsets = Arrays.copyOf(frameBufOriginalOffsets, capacity);
+			frameFlags = Arrays.copyOf(frameFlags, capacity);
+		}
+		frameBufs[frameCount] = buf;
+		frameBufEnds[frameCount] = bufEnd;
+		frameTokenStarts[frameCount] = tokenStart;
+		frameBufOriginalOffsets[frameCount] = bufOriginalOffset;
+		frameFlags[frameCount] = (byte) ((expanding ? 1 : 0) | (atLineStart ? 2 : 0));
+		frameCount++;
+
+		expanding = true;
+		buf = pendingText;
+		tokenStart = pendingOffset;
+		bufEnd = pendingOffset + pendingLength;
+		pendingText = null;
+	}
+
+	/** Returns to the position that was saved when the innermost expansion was entered */
+	private void leaveExpansion() {
+		frameCount--;
+		buf = frameBufs[frameCount];
+		frameBufs[frameCount] = null;
+		bufEnd = frameBufEnds[frameCount];
+		tokenStart = frameTokenStarts[frameCount];
+		bufOriginalOffset = frameBufOriginalOffsets[frameCount];
+		expanding = (frameFlags[frameCount] & 1) != 0;
+		atLineStart = (frameFlags[frameCount] & 2) != 0;
+		if (macroSet != null) {
+			macroSet.expansionFinished();
+		}
+	}
+
+	/**
+	 * Accepts the preprocessed tokens of an included file from the
+	 * {@link OrinocoLexerStream}. The tokens are submitted to the stream as if they
+	 * were lexed in place of the preprocessor command at the current position, so
+	 * their original span is the span of the command.
+	 *
+	 * @param tokens the tokens. Their preprocessed offsets are relative to the
+	 *        start of the included file.
+	 * @param commandLength the length of the #include command
+	 */
+	void acceptIncludedTokens(@NotNull OrinocoTokenBuffer tokens, int commandLength) {
+		tokens.replay(0, tokens.size(), lexerStream, preprocessedOffset, originalOffset(), originalLength(commandLength));
+		preprocessedOffset += tokens.getPreprocessedLength();
+	}
+
+	/** @return the original offset of the token that is being lexed (see {@link OrinocoLexerStream}) */
+	int getTokenOriginalOffset() {
+		return originalOffset();
+	}
+
+	/** @return the original length of the token that is being lexed, given its length in the lexed text */
+	int getTokenOriginalLength(int length) {
+		return originalLength(length);
+	}
+
+	/**
+	 * @return the number of arguments of the function-like macro that is being
+	 *         preprocessed (1 for an empty argument list). Only valid within
+	 *         {@link OrinocoLexerStream#preProcessToken(char[], int, int)}.
+	 */
+	int getMacroArgumentCount() {
+		return argumentCount;
+	}
+
+	/**
+	 * @return the index of the first char of the argument in the array that was
+	 *         passed to {@link OrinocoLexerStream#preProcessToken(char[], int, int)}.
+	 *         The argument isn't trimmed.
+	 */
+	int getMacroArgumentStart(int argument) {
+		return tokenStart + argumentStarts[argument];
+	}
+
+	/** @return the index after the last char of the argument (see {@link #getMacroArgumentStart(int)}) */
+	int getMacroArgumentEnd(int argument) {
+		return tokenStart + argumentEnds[argument];
+	}
+
+	/**
+	 * @return true if the array that was passed to
+	 *         {@link OrinocoLexerStream#preProcessToken(char[], int, int)} isn't
+	 *         changed until the preprocessed text of the token has been lexed, so
+	 *         that text may be a span of the token itself. This is false while the
+	 *         lexer lexes the window it reads the input into.
+	 */
+	boolean isTokenTextStable() {
+		return expanding || !windowed;
+	}
+
+	/** @return the offset in the preprocessed input of the next token */
+	int getPreprocessedOffset() {
+		return preprocessedOffset;
+	}
+
+	/** @return the context that resolves the command and variable ids */
+	@NotNull
+	OrinocoLexerContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Submits the token of the given length at {@link #tokenStart} to the
+	 * {@link OrinocoLexerStream} for preprocessing. The preprocessed result
+	 * re-enters the lexer via {@link #acceptPreProcessedText(String)}.
+	 */
+	private void preProcessToken(int length) {
+		if (!expanding) {
+			expansionOriginalOffset = bufOriginalOffset + tokenStart;
+			expansionOriginalLength = length;
+		}
+		lexerStream.preProcessToken(buf, tokenStart, length);
+	}
+
+	/**
+	 * Lexes {@link #buf} (refilling it from the reader if necessary) until the end
+	 * of input. Preprocessed text is lexed in the same loop (see
+	 * {@link #enterExpansion()}).
+	 */
+	private void lex() {
+		while (!stopRequested) {
+			if (skipRequested && frameCount == 0) {
+				skipRequested = false;
+				skipLines();
+			}
+			int c = peek(0);
+			if (c == EOF) {
+				if (frameCount == 0) {
+					break;
+				}
+				leaveExpansion();
+				continue;
+			}
+			int length;
+			switch (charClass(c)) {
+				case CC_WHITESPACE: {
+					length = lexWhitespace();
+					break;
+				}
+				case CC_IDENTIFIER: {
+					length = lexIdentifier();
+					break;
+				}
+				case CC_DIGIT: {
+					length = lexNumber(scanNumber());
+					break;
+				}
+				case CC_QUOTE: {
+					length = lexString((char) c);
+					break;
+				}
+				case CC_SLASH: {
+					int next = peek(1);
+					if (next == '/' || next == '*') {
+						length = lexComment(next == '*');
+					} else {
+						length = lexWord(1);
+					}
+					break;
+				}
+				case CC_HASH: {
+					length = atLineStart && !expanding ? lexPreProcessorCommand() : 0;
+					if (length == 0) {
+						length = lexWord(1);
+					}
+					break;
+				}
+				case CC_DOLLAR: {
+					length = isHexDigit(peek(1)) ? lexNumber(scanHexDigits(1)) : lexWord(1);
+					break;
+				}
+				case CC_DOT: {
+					length = isDigit(peek(1)) ? lexNumber(scanNumber()) : lexWord(1);
+					break;
+				}
+				case CC_OPERATOR: {
+					length = lexWord(isOperatorPair((char) c, peek(1)) ? 2 : 1);
+					break;
+				}
+				default: {
+					length = lexWord(1);
+					break;
+				}
+			}
+			tokenStart += length;
+			if (pendingText != null) {
+				enterExpansion();
+			}
+		}
+		while (frameCount > 0) {
+			// stopped within an expansion
+			leaveExpansion();
+		}
+		pendingText = null;
+	}
+
+	/**
+	 * Gets the char at <code>tokenStart + i</code>, refilling the window if needed.
+	 * Note that refilling may move the current token to the beginning of the
+	 * window, so indices into {@link #buf} must always be computed relative to
+	 * {@link #tokenStart}.
+	 *
+	 * @param i the index relative to {@link #tokenStart}
+	 * @return the char or {@link #EOF}
+	 */
+	private int peek(int i) {
+		if (tokenStart + i >= bufEnd && !fill(i)) {
+			return EOF;
+		}
+		return buf[tokenStart + i];
+	}
+
+	/**
+	 * Reads more input into the window until <code>tokenStart + i</code> is a
+	 * valid index.
+	 *
+	 * @return false if the end of the input was reached before
+	 */
+	private boolean fill(int i) {
+		if (expanding) {
+			return false;
+		}
+		try {
+			while (tokenStart + i >= bufEnd) {
+				if (readerExhausted) {
+					return false;
+				}
+				if (tokenStart > 0) {
+					System.arraycopy(buf, tokenStart, buf, 0, bufEnd - tokenStart);
+					bufOriginalOffset += tokenStart;
+					bufEnd -= tokenStart;
+					tokenStart = 0;
+				}
+				if (bufEnd == buf.length) {
+					char[] newBuf = new char[buf.length * 2];
+					System.arraycopy(buf, 0, newBuf, 0, bufEnd);
+					buf = newBuf;
+				}
+				int read = r.read(buf, bufEnd, buf.length - bufEnd);
+				if (read < 0) {
+					readerExhausted = true;
+				} else {
+					bufEnd += read;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private int originalOffset() {
+		return expanding ? expansionOriginalOffset : bufOriginalOffset + tokenStart;
+	}
+
+	private int originalLength(int length) {
+		return expanding ? expansionOriginalLength : length;
+	}
+
+	private int lexWhitespace() {
+		int length = 0;
+		int c = peek(0);
+		do {
+			if (c == '\n') {
+				atLineStart = true;
+			}
+			length++;
+			c = peek(length);
+		} while (c != EOF && charClass(c) == CC_WHITESPACE);
+
+		lexerStream.acceptWhitespace(buf, tokenStart, length, originalOffset(), originalLength(length), preprocessedOffset);
+		preprocessedOffset += length;
+		return length;
+	}
+
+	private int lexComment(boolean multiLine) {
+		int length = 2;
+		int c;
+		if (multiLine) {
+			while ((c = peek(length)) != EOF) {
+				length++;
+				if (c == '*' && peek(length) == '/') {
+					length++;
+					break;
+				}
+			}
+		} else {
+			while ((c = peek(length)) != EOF && c != '\n') {
+				length++;
+			}
+		}
+
+		lexerStream.acceptComment(buf, tokenStart, length, originalOffset(), originalLength(length), preprocessedOffset);
+		preprocessedOffset += length;
+		return length;
+	}
+
+	/**
+	 * Submits a word (identifier, operator or unknown character) of the given
+	 * length as either command or variable
+	 */
+	private int lexWord(int length) {
+		atLineStart = false;
+		int commandId = context.getCommandId(buf, tokenStart, length);
+		if (commandId >= 0) {
+			lexerStream.acceptCommand(commandId, buf, tokenStart, length, preprocessedOffset, originalOffset(), originalLength(length));
+		} else {
+			int variableId = context.getVariableId(buf, tokenStart, length);
+			if (buf[tokenStart] == '_') {
+				lexerStream.acceptLocalVariable(variableId, buf, tokenStart, length, preprocessedOffset, originalOffset(),
+						originalLength(length));
+			} else {
+				lexerStream.acceptGlobalVariable(variableId, buf, tokenStart, length, preprocessedOffset, originalOffset(),
+						originalLength(length));
+			}
+		}
+		preprocessedOffset += length;
+		return length;
+	}
+
+	/** Lexes an identifier, which is either preprocessed (if it is a macro) or lexed as word */
+	private int lexIdentifier() {
+		int length = scanIdentifier(1);
+		if (macroSet == null || skipPreProcessing) {
+			return lexWord(length);
+		}
+		switch (macroSet.getMacroKind(buf, tokenStart, length)) {
+			case MacroSet.OBJECT_LIKE: {
+				argumentCount = 0;
+				break;
+			}
+			case MacroSet.FUNCTION_LIKE: {
+				if (peek(length) != '(') {
+					return lexWord(length);
+				}
+				length = scanMacroArguments(length);
+				break;
+			}
+			default: {
+				return lexWord(length);
+			}
+		}
+		atLineStart = false;
+		preProcessToken(length);
+		return length;
+	}
+
+	/**
+	 * Scans the argument list and records the span of each argument, so the
+	 * preprocessor doesn't have to scan the list again. Commas separate arguments
+	 * unless they are nested in parentheses or string literals.
+	 *
+	 * @param i the index (relative to {@link #tokenStart}) of the opening
+	 *        parenthesis of the argument list
+	 * @return the index after the closing parenthesis (or the end of the input if
+	 *         the list isn't closed). Parentheses in string literals are ignored.
+	 */
+	private int scanMacroArguments(int i) {
+		argumentCount = 0;
+		int argumentStart = i + 1;
+		int depth = 0;
+		int c;
+		while ((c = peek(i)) != EOF) {
+			i++;
+			if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				if (--depth == 0) {
+					addMacroArgument(argumentStart, i - 1);
+					return i;
+				}
+			} else if (c == ',' && depth == 1) {
+				addMacroArgument(argumentStart, i - 1);
+				argumentStart = i;
+			} else if (c == '"' || c == '\'') {
+				int quote = c;
+				while ((c = peek(i)) != EOF) {
+					i++;
+					if (c == quote) {
+						break;
+					}
+				}
+			}
+		}
+		addMacroArgument(argumentStart, i);
+		return i;
+	}
+
+	private void addMacroArgument(int start, int end) {
+		if (argumentCount == argumentStarts.length) {
+			argumentStarts = Arrays.copyOf(argumentStarts, argumentCount * 2);
+			argumentEnds = Arrays.copyOf(argumentEnds, argumentCount * 2);
+		}
+		argumentStarts[argumentCount] = start;
+		argumentEnds[argumentCount] = end;
+		argumentCount++;
+	}
+
+	private int lexNumber(int length) {
+		atLineStart = false;
+		lexerStream.acceptLiteral(OrinocoLexerSQFLiteralType.Number, buf, tokenStart, length, preprocessedOffset, originalOffset(),
+				originalLength(length));
+		preprocessedOffset += length;
+		return length;
+	}
+
+	private int lexString(char quote) {
+		atLineStart = false;
+		int length = 1;
+		int c;
+		while ((c = peek(length)) != EOF) {
+			length++;
+			if (c == quote) {
+				if (peek(length) != quote) {
+					break;
+				}
+				// the quote is escaped by doubling it
+				length++;
+			}
+		}
+
+		lexerStream.acceptLiteral(OrinocoLexerSQFLiteralType.String, buf, tokenStart, length, preprocessedOffset, originalOffset(),
+				originalLength(length));
+		preprocessedOffset += length;
+		return length;
+	}
+
+	/**
+	 * Lexes a line starting with # that is a {@link PreProcessorCommand}. The
+	 * command ends at the end of the line unless the line break is escaped with a
+	 * backslash. The line break itself is not part of the command.
+	 *
+	 * @return the length of the command or 0 if the text at {@link #tokenStart}
+	 *         isn't a preprocessor command
+	 */
+	private int lexPreProcessorCommand() {
+		PreProcessorCommand command = scanPreProcessorCommand(0);
+		if (command == null) {
+			return 0;
+		}
+
+		int length = command.getName().length() + 1;
+		int c;
+		boolean escaped = false;
+		while ((c = peek(length)) != EOF && (c != '\n' || escaped)) {
+			if (c == '\\') {
+				escaped = true;
+			} else if (c != '\r') {
+				escaped = false;
+			}
+			length++;
+		}
+
+		if (skipPreProcessing) {
+			lexerStream.preProcessorCommandSkipped(new String(buf, tokenStart, length), originalOffset());
+			preprocessedOffset += length;
+		} else {
+			lexerStream.acceptPreProcessorCommand(command, buf, tokenStart, length);
+		}
+		return length;
+	}
+
+	/**
+	 * @param hash the index (relative to {@link #tokenStart}) of a #
+	 * @return the command whose name follows the # or null if there is none
+	 */
+	@Nullable
+	private PreProcessorCommand scanPreProcessorCommand(int hash) {
+		int nameLength = scanIdentifier(hash + 1) - hash - 1;
+		for (int i = 0; i < PREPROCESSOR_COMMANDS.length; i++) {
+			char[] name = PREPROCESSOR_COMMAND_NAMES[i];
+			if (name.length != nameLength) {
+				continue;
+			}
+			int start = tokenStart + hash + 1;
+			int j = 0;
+			while (j < nameLength && buf[start + j] == name[j]) {
+				j++;
+			}
+			if (j == nameLength) {
+				return PREPROCESSOR_COMMANDS[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Skips the text from {@link #tokenStart} up to the line of the
+	 * <code>#else</code> or <code>#endif</code> that ends the current conditional
+	 * region, or up to the end of the input. The window is searched in place for
+	 * the next char that may change the state (<code>#</code>, quotes and
+	 * <code>/</code> in code, the closing quote in a string, <code>*</code> in a
+	 * block comment, the line break in a line comment or command line); the chars
+	 * in between aren't looked at. Only the line-leading # are checked for a
+	 * command. {@link #tokenStart} is kept at a line break (or the start of the
+	 * skipped text), so a refill never drops the start of the current line.
+	 */
+	private void skipLines() {
+		int nesting = 0;
+		int state = SKIP_CODE;
+		char quote = 0;
+		int i = 0;
+		while (true) {
+			int from = tokenStart + i;
+			int found;
+			switch (state) {
+				case SKIP_CODE: {
+					found = indexOfSkipStop(buf, from, bufEnd);
+					break;
+				}
+				case SKIP_STRING: {
+					found = indexOf(buf, quote, from, bufEnd);
+					break;
+				}
+				case SKIP_BLOCK_COMMENT: {
+					found = indexOf(buf, '*', from, bufEnd);
+					break;
+				}
+				default: {
+					found = indexOf(buf, '\n', from, bufEnd);
+					break;
+				}
+			}
+			if (found < 0) {
+				int lineBreak = lastIndexOf(buf, '\n', tokenStart, bufEnd);
+				if (lineBreak > tokenStart) {
+					tokenStart = lineBreak;
+				}
+				i = bufEnd - tokenStart;
+				if (peek(i) == EOF) {
+					tokenStart = bufEnd;
+					return;
+				}
+				continue;
+			}
+			// peek() may refill the window, so the index is kept relative to tokenStart
+			i = found - tokenStart + 1;
+			switch (state) {
+				case SKIP_STRING: {
+					if (peek(i) == quote) {
+						// the quote is escaped by doubling it
+						i++;
+					} else {
+						state = SKIP_CODE;
+					}
+					break;
+				}
+				case SKIP_BLOCK_COMMENT: {
+					if (peek(i) == '/') {
+						i++;
+						state = SKIP_CODE;
+					}
+					break;
+				}
+				case SKIP_LINE_COMMENT: {
+					state = SKIP_CODE;
+					break;
+				}
+				case SKIP_COMMAND: {
+					if (!isEscapedLineBreak(found)) {
+						state = SKIP_CODE;
+					}
+					break;
+				}
+				default: {
+					char c = buf[found];
+					if (c == '"' || c == '\'') {
+						quote = c;
+						state = SKIP_STRING;
+					} else if (c == '/') {
+						int next = peek(i);
+						if (next == '*') {
+							i++;
+							state = SKIP_BLOCK_COMMENT;
+						} else if (next == '/') {
+							i++;
+							state = SKIP_LINE_COMMENT;
+						}
+					} else {
+						int lineStart = found;
+						while (lineStart > tokenStart && (buf[lineStart - 1] == ' ' || buf[lineStart - 1] == '\t')) {
+							lineStart--;
+						}
+						if (lineStart > tokenStart && buf[lineStart - 1] != '\n') {
+							// not at the start of a line
+							break;
+						}
+						int lineStartIndex = lineStart - tokenStart;
+						PreProcessorCommand command = scanPreProcessorCommand(found - tokenStart);
+						if (command == null) {
+							break;
+						}
+						if (command == PreProcessorCommand.IfDef || command == PreProcessorCommand.IfNDef) {
+							nesting++;
+						} else if ((command == PreProcessorCommand.Else && nesting == 0) || (command == PreProcessorCommand.EndIf && nesting-- == 0)) {
+							// scanning the name may have refilled the window
+							tokenStart += lineStartIndex;
+							atLineStart = true;
+							return;
+						}
+						// the rest of the command's line isn't code
+						state = SKIP_COMMAND;
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/** @return the index of the first <code>#</code>, quote or <code>/</code> in the range or -1 if there is none */
+	private static int indexOfSkipStop(@NotNull char[] buf, int from, int to) {
+		for (int i = from; i < to; i++) {
+			char c = buf[i];
+			if (c == '#' || c == '"' || c == '\'' || c == '/') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOf(@NotNull char[] buf, char c, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buf[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int lastIndexOf(@NotNull char[] buf, char c, int from, int to) {
+		for (int i = to - 1; i >= from; i--) {
+			if (buf[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** @return true if the line break at the index of {@link #buf} continues a preprocessor command (see {@link #lexPreProcessorCommand()}) */
+	private boolean isEscapedLineBreak(int lineBreak) {
+		int i = lineBreak - 1;
+		while (i >= tokenStart && buf[i] == '\r') {
+			i--;
+		}
+		return i >= tokenStart && buf[i] == '\\';
+	}
+
+	/** @return the index (relative to {@link #tokenStart}) after the identifier that starts at <code>i</code> */
+	private int scanIdentifier(int i) {
+		int c;
+		while ((c = peek(i)) != EOF && (charClass(c) == CC_IDENTIFIER || charClass(c) == CC_DIGIT)) {
+			i++;
+		}
+		return i;
+	}
+
+	/** @return the index (relative to {@link #tokenStart}) after the hex digits that start at <code>i</code> */
+	private int scanHexDigits(int i) {
+		while (isHexDigit(peek(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/** @return the length of the decimal or hexadecimal (0x) number at {@link #tokenStart} */
+	private int scanNumber() {
+		int c = peek(1);
+		if (peek(0) == '0' && (c == 'x' || c == 'X') && isHexDigit(peek(2))) {
+			return scanHexDigits(2);
+		}
+		int length = 0;
+		while (isDigit(peek(length))) {
+			length++;
+		}
+		if (peek(length) == '.' && isDigit(peek(length + 1))) {
+			length++;
+			while (isDigit(peek(length))) {
+				length++;
+			}
+		}
+		c = peek(length);
+		if (c == 'e' || c == 'E') {
+			int exponentLength = length + 1;
+			c = peek(exponentLength);
+			if (c == '+' || c == '-') {
+				exponentLength++;
+			}
+			if (isDigit(peek(exponentLength))) {
+				length = exponentLength;
+				while (isDigit(peek(length))) {
+					length++;
+				}
+			}
+		}
+		return length;
+	}
+
+	private static byte charClass(int c) {
+		if (c < 128) {
+			return CHAR_CLASSES[c];
+		}
+		if (Character.isLetter(c)) {
+			return CC_IDENTIFIER;
+		}
+		return Character.isWhitespace(c) ? CC_WHITESPACE : CC_OTHER;
+	}
+
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isHexDigit(int c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+	/** @return true if the two chars form one of the operators <code>== != <= >= >> && ||</code> */
+	private static boolean isOperatorPair(char first, int second) {
+		switch (first) {
+			case '=':
+			case '!':
+			case '<': {
+				return second == '=';
+			}
+			case '>': {
+				return second == '=' || second == '>';
+			}
+			case '&':
+			case '|': {
+				return second == first;
+			}
+			default: {
+				return false;
+			}
+		}
+	}
 }
@@ -0,0 +1,52 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Resolves the words lexed by {@link OrinocoLexer} into the ids that are
+ * submitted to {@link OrinocoTokenProcessor#acceptCommand(int, int, int, int)},
+ * {@link OrinocoTokenProcessor#acceptLocalVariable(int, int, int, int)} and
+ * {@link OrinocoTokenProcessor#acceptGlobalVariable(int, int, int, int)}.<br>
+ * <br>
+ * Both methods are invoked for every single word the lexer encounters and
+ * receive the lexer's internal buffer. Implementations must therefore not keep a
+ * reference to the buffer and should not allocate anything when looking up a
+ * word that is already known.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public interface OrinocoLexerContext {
+	/**
+	 * @param bufReadOnly the read-only char[] buffer that contains the word
+	 * @param offset the offset where the word begins in the char[] buffer
+	 * @param length length of the word in the buffer
+	 * @return the id of the command the word matches (case-insensitive), or -1 if
+	 *         the word is not a command
+	 */
+	int getCommandId(@NotNull char[] bufReadOnly, int offset, int length);
+
+	/**
+	 * Gets the id for the given variable name. If the variable wasn't encountered
+	 * before, a new id is assigned to it. Variable names are case-insensitive.
+	 *
+	 * @param bufReadOnly the read-only char[] buffer that contains the variable
+	 * @param offset the offset where the variable begins in the char[] buffer
+	 * @param length length of the variable in the buffer
+	 * @return the id of the variable
+	 */
+	int getVariableId(@NotNull char[] bufReadOnly, int offset, int length);
+
+	/** @return the name of the command with the given id, or null if the context can't resolve ids back to names */
+	@Nullable
+	default String getCommandName(int id) {
+		return null;
+	}
+
+	/** @return the name of the variable with the given id, or null if the context can't resolve ids back to names */
+	@Nullable
+	default String getVariableName(int id) {
+		return null;
+	}
+}
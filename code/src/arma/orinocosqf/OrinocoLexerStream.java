@@ -71,6 +71,23 @@ public interface OrinocoLexerStream extends OrinocoTokenProcessor {
 	 */
 	void acceptWhitespace(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength);
 
+	/**
+	 * Notifies the stream that whitespace was lexed, together with its text. This
+	 * is the method {@link OrinocoLexer} invokes. By default it delegates to
+	 * {@link #acceptWhitespace(int, int, int, int)}; streams that need the text
+	 * (e.g. to write the preprocessed input) override it.
+	 *
+	 * @param bufReadOnly the read-only char[] buffer that contains the whitespace
+	 * @param offset the offset where the whitespace begins in the char[] buffer
+	 * @param length length of the whitespace in the buffer (and in the
+	 *        preprocessed input)
+	 * @see #acceptWhitespace(int, int, int, int)
+	 */
+	default void acceptWhitespace(@NotNull char[] bufReadOnly, int offset, int length, int originalOffset, int originalLength,
+								  int preprocessedOffset) {
+		acceptWhitespace(originalOffset, originalLength, preprocessedOffset, length);
+	}
+
 	/**
 	 * Used to notify the stream that a comment (either single- or multiline) has
 	 * been lexed
@@ -91,4 +108,61 @@ public interface OrinocoLexerStream extends OrinocoTokenProcessor {
 	 *        preprocessor is instructed to keep comments.
 	 */
 	void acceptComment(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength);
+
+	/**
+	 * Notifies the stream that a comment was lexed, together with its text. This
+	 * is the method {@link OrinocoLexer} invokes. By default it delegates to
+	 * {@link #acceptComment(int, int, int, int)}.
+	 *
+	 * @param bufReadOnly the read-only char[] buffer that contains the comment
+	 * @param offset the offset where the comment begins in the char[] buffer
+	 * @param length length of the comment in the buffer (and in the preprocessed
+	 *        input)
+	 * @see #acceptComment(int, int, int, int)
+	 */
+	default void acceptComment(@NotNull char[] bufReadOnly, int offset, int length, int originalOffset, int originalLength,
+							   int preprocessedOffset) {
+		acceptComment(originalOffset, originalLength, preprocessedOffset, length);
+	}
+
+	/**
+	 * Notifies the stream that a command was lexed, together with its text as it
+	 * was written (the id is the same for all spellings of the command). This is
+	 * the method {@link OrinocoLexer} invokes. By default it delegates to
+	 * {@link #acceptCommand(int, int, int, int)}.
+	 *
+	 * @param bufReadOnly the read-only char[] buffer that contains the command
+	 * @param offset the offset where the command begins in the char[] buffer
+	 * @param length length of the command in the buffer (and in the preprocessed
+	 *        input)
+	 * @see #acceptCommand(int, int, int, int)
+	 */
+	default void acceptCommand(int id, @NotNull char[] bufReadOnly, int offset, int length, int preprocessedOffset, int originalOffset,
+							   int originalLength) {
+		acceptCommand(id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	/**
+	 * Notifies the stream that a local variable was lexed, together with its text
+	 * as it was written. By default it delegates to
+	 * {@link #acceptLocalVariable(int, int, int, int)}.
+	 *
+	 * @see #acceptCommand(int, char[], int, int, int, int, int)
+	 */
+	default void acceptLocalVariable(int id, @NotNull char[] bufReadOnly, int offset, int length, int preprocessedOffset,
+									 int originalOffset, int originalLength) {
+		acceptLocalVariable(id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	/**
+	 * Notifies the stream that a global variable was lexed, together with its
+	 * text as it was written. By default it delegates to
+	 * {@link #acceptGlobalVariable(int, int, int, int)}.
+	 *
+	 * @see #acceptCommand(int, char[], int, int, int, int, int)
+	 */
+	default void acceptGlobalVariable(int id, @NotNull char[] bufReadOnly, int offset, int length, int preprocessedOffset,
+									  int originalOffset, int originalLength) {
+		acceptGlobalVariable(id, preprocessedOffset, originalOffset, originalLength);
+	}
 }
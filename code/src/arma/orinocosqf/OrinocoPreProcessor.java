@@ -1,23 +1,255 @@
 package arma.orinocosqf;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
- * A {@link OrinocoLexerStream} implementation that fully preprocesses tokens.
+ * A {@link OrinocoLexerStream} implementation that fully preprocesses tokens
+ * and submits the preprocessed tokens to a {@link OrinocoTokenProcessor}.
+ * Whitespace and comments are only submitted if that processor is an
+ * {@link OrinocoLexerStream} as well.<br>
+ * <br>
+ * Supported are <code>#define</code> (with and without parameters,
+ * <code>#PARAM</code> and <code>##</code>), <code>#undef</code>,
+ * <code>#ifdef</code>, <code>#ifndef</code>, <code>#else</code> and
+ * <code>#endif</code>. Macro bodies are compiled into templates when they are
+ * defined (see {@link PreProcessorMacro}), so an expansion just copies the
+ * template's text pieces and the arguments into an output buffer that is reused
+ * for all expansions. The expanded text is handed back to the lexer without
+ * creating a {@link String}; the lexer lexes it and submits nested macros
+ * again.<br>
+ * <br>
+ * Arguments are spans of the lexed text that the lexer records while it scans
+ * the argument list. Like Arma does it, an argument is macro-expanded before
+ * it is substituted, also for <code>#PARAM</code> and <code>##</code> (so
+ * <code>QUOTE(FNC(a))</code> stringifies the expansion of <code>FNC(a)</code>).
+ * An argument is only expanded when its parameter slot is used, and only once
+ * per invocation. An argument without macros isn't copied for that; a macro
+ * whose body is just a parameter (e.g. <code>#define ARR_1(A) A</code>) then
+ * hands the argument span to the lexer directly if the lexed text is stable
+ * (see {@link OrinocoLexer#isTokenTextStable()}). Arguments are expanded
+ * outside of the expansion of the invoked macro, so <code>F(F(1))</code>
+ * expands both invocations; a macro is not expanded again inside its own
+ * expansion.<br>
+ * <br>
+ * The lexer keeps nested expansions on an explicit stack, and so does this
+ * preprocessor for the expansion of arguments (see {@link #runWork(int)}).
+ * This preprocessor limits how deep they may nest and how much text a single
+ * invocation may expand to (see {@link #setExpansionLimits(int, int)}), so
+ * untrusted input can neither overflow the stack nor exhaust the memory.
+ * Exceeding a limit is reported to the {@link PreProcessorProblemListener}.<br>
+ * <br>
+ * Inactive conditional regions aren't lexed at all: when a region becomes
+ * inactive, the lexer is told to skip to the <code>#else</code> or
+ * <code>#endif</code> that ends it (see
+ * {@link OrinocoLexer#skipConditionalRegion()}).<br>
+ * <br>
+ * <code>#include</code> is resolved if an {@link IncludeResolver} is set (see
+ * {@link #setIncludes(IncludeResolver, IncludeCache)}). Included files are
+ * read as UTF-8 and preprocessed with the same macro table; their tokens are
+ * submitted with the original span of the <code>#include</code> command. The
+ * results are kept in the given {@link IncludeCache}.<br>
+ * <br>
+ * If a {@link PreProcessorSourceMap} is set, the copied text, the expansions
+ * and the includes are recorded in it, so preprocessed offsets can be mapped
+ * back to the original input and to the macro invocations that produced them.<br>
+ * <br>
+ * This class is not thread-safe.
  *
  * @author K
  * @since 02/20/2019
  */
-public class OrinocoPreProcessor implements OrinocoLexerStream {
+public class OrinocoPreProcessor implements OrinocoLexerStream, MacroSet {
+	/** Condition state flag: the enclosing region is active */
+	private static final int CONDITION_PARENT_ACTIVE = 0x1;
+	/** Condition state flag: the current branch (the #ifdef or the #else branch) is active */
+	private static final int CONDITION_BRANCH_ACTIVE = 0x2;
+	/** Condition state flag: #else has been seen */
+	private static final int CONDITION_ELSE_SEEN = 0x4;
+	/** Includes that are nested deeper are ignored (e.g. a file that includes itself) */
+	private static final int MAX_INCLUDE_DEPTH = 32;
+	/** The default maximum number of nested expansions */
+	public static final int DEFAULT_MAX_EXPANSION_DEPTH = 256;
+	/** The default maximum number of chars an invocation (including nested invocations) may expand to */
+	public static final int DEFAULT_MAX_EXPANSION_LENGTH = 1 << 20;
+	/** The argument hasn't been expanded yet */
+	private static final int ARGUMENT_UNEXPANDED = -1;
+	/** The argument contains no macro invocation, so its expansion is the argument itself */
+	private static final int ARGUMENT_UNCHANGED = -2;
+
+	private final OrinocoTokenProcessor processor;
+	/** {@link #processor} if it accepts whitespace and comments, else null */
+	private final OrinocoLexerStream processorStream;
 	private OrinocoLexer lexer;
+	private MacroTable macros;
+
+	/** The states of the enclosing conditionals (innermost last) */
+	private int[] conditions = new int[8];
+	private int conditionDepth;
+	/** True if the current region isn't disabled by a conditional */
+	private boolean active = true;
+
+	/** The macros that are being expanded (innermost last) */
+	private PreProcessorMacro[] expanding = new PreProcessorMacro[8];
+	/** The start of each expansion in {@link #output} */
+	private int[] expansionStarts = new int[8];
+	private int expandingDepth;
+	private int maxExpansionDepth = DEFAULT_MAX_EXPANSION_DEPTH;
+	private int maxExpansionLength = DEFAULT_MAX_EXPANSION_LENGTH;
+	/**
+	 * 4 ints per argument of the invocations being expanded (innermost last): the
+	 * start and end of the trimmed argument, then the start of the expanded
+	 * argument in {@link #output} (or {@link #ARGUMENT_UNEXPANDED} or
+	 * {@link #ARGUMENT_UNCHANGED}) and its length
+	 */
+	private int[] arguments = new int[32];
+	private int argumentTop;
+	/** The pending steps of expanding arguments (innermost last, see {@link #runWork(int)}) */
+	private WorkItem[] work = new WorkItem[8];
+	private int workDepth;
+	/** The result of {@link #expand(PreProcessorMacro, char[], int, int)} */
+	private int templateStart;
+	/** The length of the invocation the lexer is lexing (for reporting problems) */
+	private int invocationLength;
+	/** The number of chars the current outermost invocation has expanded to so far */
+	private int expandedLength;
+	/** True if a limit was exceeded: the rest of the current outermost invocation isn't expanded */
+	private boolean expansionAborted;
+	private PreProcessorProblemListener problemListener;
+	private PreProcessorSourceMap sourceMap;
+	/** True if the next token at top level starts a new text interval of {@link #sourceMap} */
+	private boolean sourceMapResync;
+
+	/** The expanded text of all expansions in progress, innermost last */
+	private char[] output = new char[1024];
+	private int outputSize;
+
+	private IncludeResolver includeResolver;
+	private IncludeCache includeCache;
+	/** The file that is preprocessed (null if unknown) */
+	private Path file;
+	/** The number of files that include the preprocessed file */
+	private int includeDepth;
+	/** Records the lookups and changes if an included file is preprocessed, else null */
+	private IncludedFile.Recorder recorder;
+	/** The canonical paths of all included files, mapped to the hash of their content */
+	private final Map<Path, Long> includedFiles = new LinkedHashMap<>();
+
+	/**
+	 * @param processor the processor the preprocessed tokens are submitted to
+	 */
+	public OrinocoPreProcessor(@NotNull OrinocoTokenProcessor processor) {
+		this(processor, new MacroTable());
+	}
 
-	public OrinocoPreProcessor() {
+	/**
+	 * @param processor the processor the preprocessed tokens are submitted to
+	 * @param macros the macros that are defined before the input starts. The
+	 *        table is modified by the input's #define and #undef commands, so
+	 *        files that are preprocessed in parallel should each get a
+	 *        {@link MacroTable#fork()} of the common table.
+	 */
+	public OrinocoPreProcessor(@NotNull OrinocoTokenProcessor processor, @NotNull MacroTable macros) {
+		this.processor = processor;
+		this.processorStream = processor instanceof OrinocoLexerStream ? (OrinocoLexerStream) processor : null;
+		this.macros = macros;
+	}
+
+	/**
+	 * @param maxDepth the maximum number of nested expansions
+	 * @param maxLength the maximum number of chars a macro invocation in the input
+	 *        may expand to, including the nested expansions
+	 */
+	public void setExpansionLimits(int maxDepth, int maxLength) {
+		if (maxDepth < 1 || maxLength < 0) {
+			throw new IllegalArgumentException("maxDepth=" + maxDepth + ", maxLength=" + maxLength);
+		}
+		this.maxExpansionDepth = maxDepth;
+		this.maxExpansionLength = maxLength;
+	}
+
+	/** @param listener receives the problems (null to ignore them) */
+	public void setProblemListener(@Nullable PreProcessorProblemListener listener) {
+		this.problemListener = listener;
+	}
+
+	/**
+	 * @param sourceMap the map the preprocessed input is recorded in (null to not
+	 *        record it). It is cleared when preprocessing begins.
+	 */
+	public void setSourceMap(@Nullable PreProcessorSourceMap sourceMap) {
+		this.sourceMap = sourceMap;
+	}
 
+	/** @return the macros defined at the current point of preprocessing */
+	@NotNull
+	public MacroTable getMacroTable() {
+		return macros;
+	}
+
+	/**
+	 * Enables <code>#include</code>.
+	 *
+	 * @param resolver finds the included files
+	 * @param cache the cache of preprocessed included files (usually shared by all
+	 *        files of a workspace)
+	 */
+	public void setIncludes(@NotNull IncludeResolver resolver, @NotNull IncludeCache cache) {
+		this.includeResolver = resolver;
+		this.includeCache = cache;
+	}
+
+	/**
+	 * @param file the file that is preprocessed, which relative includes are
+	 *        resolved against (see {@link IncludeResolver})
+	 */
+	public void setFile(@Nullable Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the canonical paths of all files that have been included (directly
+	 *         or indirectly), mapped to the hash of their content at that time
+	 */
+	@NotNull
+	public Map<Path, Long> getIncludedFiles() {
+		return Collections.unmodifiableMap(includedFiles);
+	}
+
+	/** @return the states of the enclosing conditionals (innermost last, see the CONDITION_ flags) */
+	@NotNull
+	int[] getConditions() {
+		int[] copy = new int[conditionDepth];
+		System.arraycopy(conditions, 0, copy, 0, conditionDepth);
+		return copy;
+	}
+
+	/**
+	 * Replaces the state of this preprocessor with a state that was stored by
+	 * {@link PreProcessorSnapshot}
+	 */
+	void restore(@NotNull MacroTable macros, @NotNull int[] conditions, @NotNull Map<Path, Long> includedFiles) {
+		this.macros = macros;
+		this.conditions = new int[Math.max(8, conditions.length)];
+		System.arraycopy(conditions, 0, this.conditions, 0, conditions.length);
+		this.conditionDepth = conditions.length;
+		updateActive();
+		this.includedFiles.clear();
+		this.includedFiles.putAll(includedFiles);
 	}
 
 	@Override
 	public void setLexer(@NotNull OrinocoLexer lexer) {
 		this.lexer = lexer;
+		lexer.setMacroSet(this);
 	}
 
 	@Override
@@ -25,64 +257,954 @@ public class OrinocoPreProcessor implements OrinocoLexerStream {
 		return false;
 	}
 
+	@Override
+	public int getMacroKind(@NotNull char[] bufReadOnly, int offset, int length) {
+		if (!active) {
+			return NO_MACRO;
+		}
+		PreProcessorMacro macro = lookUp(bufReadOnly, offset, length);
+		if (macro == null) {
+			return NO_MACRO;
+		}
+		return macro.hasParameters() ? FUNCTION_LIKE : OBJECT_LIKE;
+	}
+
 	@Override
 	public void acceptPreProcessorCommand(@NotNull PreProcessorCommand command, @NotNull char[] bufReadOnly, int offset, int bodyLength) {
+		// the command isn't part of the preprocessed input
+		sourceMapResync = sourceMap != null;
+		int end = offset + bodyLength;
+		int bodyStart = offset + 1 + command.getName().length();
+		switch (command) {
+			case IfDef:
+			case IfNDef: {
+				int nameStart = skipBlanks(bufReadOnly, bodyStart, end);
+				int nameEnd = PreProcessorMacro.scanIdentifier(bufReadOnly, nameStart, end);
+				PreProcessorMacro macro = macros.get(bufReadOnly, nameStart, nameEnd - nameStart);
+				if (recorder != null && active) {
+					recorder.lookedUp(bufReadOnly, nameStart, nameEnd - nameStart, macro);
+				}
+				boolean defined = macro != null;
+				pushCondition(defined == (command == PreProcessorCommand.IfDef));
+				skipIfInactive();
+				break;
+			}
+			case Else: {
+				if (conditionDepth > 0 && (conditions[conditionDepth - 1] & CONDITION_ELSE_SEEN) == 0) {
+					conditions[conditionDepth - 1] = (conditions[conditionDepth - 1] ^ CONDITION_BRANCH_ACTIVE) | CONDITION_ELSE_SEEN;
+					updateActive();
+				}
+				skipIfInactive();
+				break;
+			}
+			case EndIf: {
+				if (conditionDepth > 0) {
+					conditionDepth--;
+					updateActive();
+				}
+				skipIfInactive();
+				break;
+			}
+			case Define: {
+				if (active) {
+					PreProcessorMacro macro = PreProcessorMacro.compile(bufReadOnly, bodyStart, end - bodyStart);
+					if (macro != null) {
+						macros.define(macro);
+						if (recorder != null) {
+							recorder.changed(macro.getName(), macro);
+						}
+					}
+				}
+				break;
+			}
+			case Undef: {
+				if (active) {
+					int nameStart = skipBlanks(bufReadOnly, bodyStart, end);
+					int nameEnd = PreProcessorMacro.scanIdentifier(bufReadOnly, nameStart, end);
+					if (macros.undefine(bufReadOnly, nameStart, nameEnd - nameStart) && recorder != null) {
+						recorder.changed(new String(bufReadOnly, nameStart, nameEnd - nameStart), null);
+					}
+				}
+				break;
+			}
+			case Include: {
+				if (active && includeResolver != null) {
+					if (includeDepth < MAX_INCLUDE_DEPTH) {
+						include(bufReadOnly, bodyStart, end, bodyLength);
+					} else {
+						report(PreProcessorProblem.IncludeTooDeep, "includes are nested more than " + MAX_INCLUDE_DEPTH + " levels deep",
+								bodyLength);
+					}
+				}
+				break;
+			}
+		}
+	}
 
+	/**
+	 * Includes the file named by the #include command: its tokens are submitted
+	 * via the lexer and its macros are added to the macro table
+	 *
+	 * @param start the index after the command name
+	 * @param end the end of the command
+	 * @param commandLength the length of the whole command
+	 */
+	private void include(@NotNull char[] buf, int start, int end, int commandLength) {
+		String includePath = parseIncludePath(buf, start, end);
+		if (includePath == null) {
+			return;
+		}
+		Path resolved = includeResolver.resolve(includePath, file);
+		if (resolved == null) {
+			report(PreProcessorProblem.IncludeNotFound, "included file " + includePath + " not found", commandLength);
+			return;
+		}
+		IncludedFile included;
+		try {
+			included = preProcessIncluded(resolved, lexer.getContext());
+		} catch (IOException e) {
+			report(PreProcessorProblem.IncludeFailed, "included file " + resolved + " can't be read: " + e, commandLength);
+			return;
+		}
+		if (recorder != null) {
+			recorder.merge(included);
+		}
+		included.addIncludesTo(includedFiles);
+		int preprocessedStart = lexer.getPreprocessedOffset();
+		// the replayed tokens are part of the include interval
+		sourceMapResync = false;
+		lexer.acceptIncludedTokens(included.getTokens(), commandLength);
+		if (sourceMap != null) {
+			sourceMap.include(preprocessedStart, lexer.getPreprocessedOffset(), lexer.getTokenOriginalOffset(),
+					lexer.getTokenOriginalLength(commandLength), included.getPath(), included.getSourceMap());
+			sourceMapResync = true;
+		}
+	}
+
+	/**
+	 * @param start the index after the name of an #include command
+	 * @param end the end of the command
+	 * @return the path between the quotes or angle brackets, or null if the
+	 *         command has no path
+	 */
+	@Nullable
+	static String parseIncludePath(@NotNull char[] buf, int start, int end) {
+		int i = skipBlanks(buf, start, end);
+		if (i >= end || (buf[i] != '"' && buf[i] != '<')) {
+			return null;
+		}
+		char close = buf[i] == '"' ? '"' : '>';
+		int pathEnd = i + 1;
+		while (pathEnd < end && buf[pathEnd] != close) {
+			pathEnd++;
+		}
+		return new String(buf, i + 1, pathEnd - i - 1);
+	}
+
+	/**
+	 * Preprocesses the file as if it was included at the current point (e.g. at
+	 * the start of a file), so that its result is put into the
+	 * {@link IncludeCache}. Its changes are applied to the macro table, its tokens
+	 * aren't submitted.
+	 *
+	 * @throws IllegalStateException if no {@link IncludeCache} is set
+	 */
+	void preProcessHeader(@NotNull Path path, @NotNull OrinocoLexerContext context) throws IOException {
+		if (includeCache == null) {
+			throw new IllegalStateException("no include cache");
+		}
+		IncludedFile included = preProcessIncluded(path, context);
+		included.addIncludesTo(includedFiles);
+	}
+
+	/**
+	 * @return the preprocessed file from the cache (its changes are applied to the
+	 *         macro table) or the result of preprocessing it
+	 */
+	@NotNull
+	private IncludedFile preProcessIncluded(@NotNull Path path, @NotNull OrinocoLexerContext context) throws IOException {
+		Path canonicalPath = path.toRealPath();
+		CharBuffer chars = IncludeCache.readContent(canonicalPath);
+		char[] content = chars.array();
+		int offset = chars.arrayOffset() + chars.position();
+		int length = chars.remaining();
+		long contentHash = IncludeCache.contentHash(content, offset, length);
+
+		IncludedFile cached = includeCache.get(canonicalPath, contentHash, macros, context);
+		// the nested includes are checked outside the cache's lock, as they are read
+		while (cached != null && !cached.hasUnchangedIncludes()) {
+			includeCache.invalidate(cached);
+			cached = includeCache.get(canonicalPath, contentHash, macros, context);
+		}
+		if (cached != null) {
+			cached.applyTo(macros);
+			return cached;
+		}
+
+		try {
+			// the macros are changed directly, the recorder keeps the changes for the cache
+			OrinocoTokenBuffer tokens = new OrinocoTokenBuffer();
+			OrinocoPreProcessor nested = new OrinocoPreProcessor(tokens, macros);
+			nested.setIncludes(includeResolver, includeCache);
+			nested.setExpansionLimits(maxExpansionDepth, maxExpansionLength);
+			nested.setProblemListener(problemListener);
+			nested.file = canonicalPath;
+			nested.includeDepth = includeDepth + 1;
+			nested.recorder = new IncludedFile.Recorder();
+			PreProcessorSourceMap includedSourceMap = new PreProcessorSourceMap();
+			nested.setSourceMap(includedSourceMap);
+			new OrinocoLexer(OrinocoReader.fromCharArray(content, offset, length), nested, context).start();
+			tokens.trimToSize();
+			includedSourceMap.trimToSize();
+
+			IncludedFile included = nested.recorder.build(canonicalPath, contentHash, context, tokens, includedSourceMap);
+			includeCache.put(included);
+			return included;
+		} finally {
+			// wakes up the threads that wait for this file
+			includeCache.release(canonicalPath, contentHash);
+		}
 	}
 
 	@Override
 	public void preProcessToken(@NotNull char[] bufReadOnly, int offset, int length) {
+		if (expandingDepth == 0) {
+			expandedLength = 0;
+			expansionAborted = false;
+			// the invocation isn't part of the preprocessed input
+			sourceMapResync = sourceMap != null;
+		}
+		if (!active || expansionAborted) {
+			return;
+		}
+		int end = offset + length;
+		int nameEnd = PreProcessorMacro.scanIdentifier(bufReadOnly, offset, end);
+		PreProcessorMacro macro = macros.get(bufReadOnly, offset, nameEnd - offset);
+		if (macro == null) {
+			return;
+		}
+		invocationLength = length;
+		int argumentBase = argumentTop;
+		if (macro.hasParameters() && nameEnd < end && bufReadOnly[nameEnd] == '(') {
+			for (int argument = 0; argument < lexer.getMacroArgumentCount(); argument++) {
+				pushArgument(bufReadOnly, lexer.getMacroArgumentStart(argument), lexer.getMacroArgumentEnd(argument));
+			}
+		}
+		int argumentCount = argumentCount(argumentBase);
 
+		if (expandingDepth >= maxExpansionDepth) {
+			argumentTop = argumentBase;
+			tooDeep(macro);
+			return;
+		}
+		int start = outputSize;
+		char[] expansion;
+		int expansionOffset;
+		int expansionLength;
+		if (macro.getPieceCount() == 1 && macro.getPieceKind(0) == PreProcessorMacro.PIECE_PARAMETER && lexer.isTokenTextStable()) {
+			// the expansion is the (expanded) argument itself
+			int argument = macro.getPieceValue(0);
+			expansion = bufReadOnly;
+			expansionOffset = offset;
+			expansionLength = 0;
+			if (argument < argumentCount) {
+				int a = expandArgument(bufReadOnly, argumentBase, argument);
+				if (arguments[a + 2] == ARGUMENT_UNCHANGED) {
+					expansionOffset = arguments[a];
+					expansionLength = arguments[a + 1] - arguments[a];
+				} else {
+					expansion = output;
+					expansionOffset = arguments[a + 2];
+					expansionLength = arguments[a + 3];
+				}
+			}
+		} else {
+			expansionOffset = expand(macro, bufReadOnly, argumentBase, argumentCount);
+			expansion = output;
+			expansionLength = outputSize - expansionOffset;
+		}
+		argumentTop = argumentBase;
+		if (expansionAborted) {
+			outputSize = start;
+			return;
+		}
+		expandedLength += expansionLength;
+		if (expandedLength > maxExpansionLength) {
+			outputSize = start;
+			tooLong(macro);
+			return;
+		}
+		pushExpanding(macro, start);
+		if (sourceMap != null) {
+			sourceMap.beginExpansion(lexer.getPreprocessedOffset(), lexer.getTokenOriginalOffset(), lexer.getTokenOriginalLength(length), macro);
+		}
+		lexer.acceptPreProcessedText(expansion, expansionOffset, expansionLength);
+	}
+
+	@Override
+	public void expansionFinished() {
+		expandingDepth--;
+		outputSize = expansionStarts[expandingDepth];
+		expanding[expandingDepth] = null;
+		if (sourceMap != null) {
+			sourceMap.endExpansion(lexer.getPreprocessedOffset());
+		}
+	}
+
+	/**
+	 * Reports the problem at the token or command the lexer is currently lexing
+	 *
+	 * @param length the length of the token or command in the lexed text
+	 */
+	private void report(@NotNull PreProcessorProblem problem, @NotNull String message, int length) {
+		if (problemListener != null) {
+			problemListener.problem(problem, file == null ? message : file + ": " + message, lexer.getTokenOriginalOffset(),
+					lexer.getTokenOriginalLength(length));
+		}
+	}
+
+	private void tooDeep(@NotNull PreProcessorMacro macro) {
+		expansionAborted = true;
+		report(PreProcessorProblem.ExpansionTooDeep, "expansion of " + macro.getName() + " is nested more than " + maxExpansionDepth
+				+ " levels deep", invocationLength);
+	}
+
+	private void tooLong(@NotNull PreProcessorMacro macro) {
+		expansionAborted = true;
+		report(PreProcessorProblem.ExpansionTooLong, "expansion of " + macro.getName() + " exceeds " + maxExpansionLength + " chars",
+				invocationLength);
+	}
+
+	/**
+	 * Appends the expansion of the macro to {@link #output} (slot-filling copy of
+	 * the template). The arguments of the used slots are expanded first, each only
+	 * once, and stored in front of the expansion. The expansion isn't expanded
+	 * again; that's left to the lexer.
+	 *
+	 * @param argumentBuf the buffer the arguments refer to
+	 * @param argumentBase the index of the first argument in {@link #arguments}
+	 * @return the start of the expansion in {@link #output}
+	 */
+	private int expand(@NotNull PreProcessorMacro macro, @NotNull char[] argumentBuf, int argumentBase, int argumentCount) {
+		int depth = workDepth;
+		WorkItem item = pushWork(true, argumentBuf);
+		item.macro = macro;
+		item.argumentBase = argumentBase;
+		item.argumentCount = argumentCount;
+		item.rescan = false;
+		runWork(depth);
+		return templateStart;
+	}
+
+	/**
+	 * Expands the argument unless it was expanded already. The expanded text is
+	 * appended to {@link #output}; if the argument contains no macro invocation,
+	 * it is marked as {@link #ARGUMENT_UNCHANGED} instead.
+	 *
+	 * @return the index of the argument in {@link #arguments}
+	 */
+	private int expandArgument(@NotNull char[] buf, int argumentBase, int argument) {
+		int a = argumentBase + 4 * argument;
+		if (arguments[a + 2] == ARGUMENT_UNEXPANDED) {
+			int depth = workDepth;
+			pushText(buf, arguments[a], arguments[a + 1], a);
+			runWork(depth);
+		}
+		return a;
+	}
+
+	/** Appends the expanded argument (see {@link #expandArgument(char[], int, int)}) */
+	private void appendArgument(@NotNull char[] buf, int a) {
+		if (arguments[a + 2] == ARGUMENT_UNCHANGED) {
+			append(buf, arguments[a], arguments[a + 1] - arguments[a]);
+		} else {
+			append(output, arguments[a + 2], arguments[a + 3]);
+		}
+	}
+
+	/**
+	 * Processes the work items above the given depth of the work stack. An
+	 * argument is expanded by scanning its text for invocations; an invocation
+	 * expands its used arguments, builds its template and has it scanned again
+	 * while the macro is marked as expanding, just like the lexer does it for the
+	 * invocations it lexes. Each of these steps pushes a work item instead of
+	 * invoking a method, so deeply nested expansions don't grow the Java stack.
+	 * If a limit is exceeded, the items are dropped.
+	 */
+	private void runWork(int depth) {
+		int expandingBase = expandingDepth;
+		while (workDepth > depth && !expansionAborted) {
+			WorkItem item = work[workDepth - 1];
+			if (item.invocation) {
+				stepInvocation(item);
+			} else {
+				scanText(item);
+			}
+		}
+		if (expansionAborted) {
+			while (workDepth > depth) {
+				popWork();
+			}
+			while (expandingDepth > expandingBase) {
+				expanding[--expandingDepth] = null;
+			}
+		}
+	}
+
+	/**
+	 * Scans the text of the item (an argument or the expansion of an invocation
+	 * in an argument) for macro invocations. Text up to an invocation is appended
+	 * to {@link #output} and the invocation is pushed; the scan goes on after it
+	 * when the invocation is done. Macros are recognized like the lexer
+	 * recognizes them (an invocation is followed by <code>(</code> right away,
+	 * string literals are skipped). The macros that are being expanded aren't
+	 * expanded again. If the text contains no invocation, nothing is appended.
+	 */
+	private void scanText(@NotNull WorkItem item) {
+		char[] buf = item.buf;
+		int end = item.end;
+		int i = item.position;
+		while (i < end) {
+			char c = buf[i];
+			if (c == '"' || c == '\'') {
+				i = PreProcessorMacro.skipString(buf, i, end);
+			} else if (PreProcessorMacro.isIdentifierStart(c)) {
+				int nameEnd = PreProcessorMacro.scanIdentifier(buf, i, end);
+				PreProcessorMacro macro = lookUp(buf, i, nameEnd - i);
+				if (macro == null || macro.hasParameters() && (nameEnd == end || buf[nameEnd] != '(')) {
+					i = nameEnd;
+					continue;
+				}
+				append(buf, item.literalStart, i - item.literalStart);
+				item.expanded = true;
+				pushInvocation(macro, buf, nameEnd, end);
+				return;
+			} else if ((c >= '0' && c <= '9') || c == '$') {
+				// a number, e.g. 0xFF or $FF
+				i++;
+				while (i < end && (PreProcessorMacro.isIdentifierStart(buf[i]) || (buf[i] >= '0' && buf[i] <= '9'))) {
+					i++;
+				}
+			} else {
+				i++;
+			}
+		}
+		boolean expanded = item.expanded;
+		int a = item.argument;
+		int start = item.outputStart;
+		if (expanded) {
+			append(buf, item.literalStart, end - item.literalStart);
+		}
+		popWork();
+		if (a >= 0) {
+			arguments[a + 2] = expanded ? start : ARGUMENT_UNCHANGED;
+			arguments[a + 3] = outputSize - start;
+		} else {
+			// the expansion of the invocation below
+			work[workDepth - 1].expanded = expanded;
+		}
+	}
+
+	/**
+	 * Pushes an invocation in an argument (or in the expansion of such an
+	 * invocation), including its arguments
+	 *
+	 * @param nameEnd the index after the macro name
+	 * @param end the end of the text that contains the invocation
+	 */
+	private void pushInvocation(@NotNull PreProcessorMacro macro, @NotNull char[] buf, int nameEnd, int end) {
+		int argumentBase = argumentTop;
+		int invocationEnd = nameEnd;
+		if (macro.hasParameters()) {
+			invocationEnd = scanArguments(buf, nameEnd, end);
+		}
+		int argumentCount = argumentCount(argumentBase);
+		if (expandingDepth >= maxExpansionDepth) {
+			argumentTop = argumentBase;
+			tooDeep(macro);
+			return;
+		}
+		WorkItem item = pushWork(true, buf);
+		item.macro = macro;
+		item.argumentBase = argumentBase;
+		item.argumentCount = argumentCount;
+		item.end = invocationEnd;
+		item.rescan = true;
+	}
+
+	/**
+	 * Advances the invocation: expands the next used argument, then builds the
+	 * template and pushes it to be expanded again, then appends the result to
+	 * {@link #output} in place of the template
+	 */
+	private void stepInvocation(@NotNull WorkItem item) {
+		PreProcessorMacro macro = item.macro;
+		if (item.position < 0) {
+			// the expansion has been scanned
+			expanding[--expandingDepth] = null;
+			int start = item.outputStart;
+			int resultStart = item.expanded ? item.bodyEnd : item.bodyStart;
+			int invocationEnd = item.end;
+			popWork();
+			int resultLength = outputSize - resultStart;
+			System.arraycopy(output, resultStart, output, start, resultLength);
+			outputSize = start + resultLength;
+			expandedLength += resultLength;
+			if (expandedLength > maxExpansionLength) {
+				tooLong(macro);
+				return;
+			}
+			// the text the invocation is in goes on after it
+			WorkItem text = work[workDepth - 1];
+			text.position = text.literalStart = invocationEnd;
+			return;
+		}
+		while (item.position < macro.getPieceCount()) {
+			int piece = item.position++;
+			int value = macro.getPieceValue(piece);
+			if (macro.getPieceKind(piece) != PreProcessorMacro.PIECE_TEXT && value < item.argumentCount) {
+				int a = item.argumentBase + 4 * value;
+				if (arguments[a + 2] == ARGUMENT_UNEXPANDED) {
+					pushText(item.buf, arguments[a], arguments[a + 1], a);
+					return;
+				}
+			}
+		}
+		int bodyStart = appendTemplate(macro, item.buf, item.argumentBase, item.argumentCount);
+		if (!item.rescan) {
+			popWork();
+			templateStart = bodyStart;
+			return;
+		}
+		argumentTop = item.argumentBase;
+		item.bodyStart = bodyStart;
+		item.bodyEnd = outputSize;
+		item.position = -1;
+		pushExpanding(macro, item.outputStart);
+		pushText(output, bodyStart, outputSize, -1);
+	}
+
+	/**
+	 * Appends the template of the macro with the expanded arguments to
+	 * {@link #output}
+	 *
+	 * @return the start of the expansion in {@link #output}
+	 */
+	private int appendTemplate(@NotNull PreProcessorMacro macro, @NotNull char[] argumentBuf, int argumentBase, int argumentCount) {
+		int start = outputSize;
+		char[] text = macro.getText();
+		for (int piece = 0; piece < macro.getPieceCount(); piece++) {
+			int value = macro.getPieceValue(piece);
+			switch (macro.getPieceKind(piece)) {
+				case PreProcessorMacro.PIECE_TEXT: {
+					append(text, value, macro.getPieceLength(piece));
+					break;
+				}
+				case PreProcessorMacro.PIECE_PARAMETER: {
+					if (value < argumentCount) {
+						appendArgument(argumentBuf, argumentBase + 4 * value);
+					}
+					break;
+				}
+				default: {
+					ensureOutputCapacity(1);
+					output[outputSize++] = '"';
+					if (value < argumentCount) {
+						appendArgument(argumentBuf, argumentBase + 4 * value);
+					}
+					ensureOutputCapacity(1);
+					output[outputSize++] = '"';
+					break;
+				}
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * Pushes a text to be scanned for invocations
+	 *
+	 * @param buf the buffer that contains the text. It may be an old
+	 *        {@link #output} array, as that isn't modified after it has been
+	 *        replaced.
+	 * @param argument the index in {@link #arguments} of the argument whose
+	 *        expansion this is, or -1 for the expansion of the invocation below
+	 */
+	private void pushText(@NotNull char[] buf, int start, int end, int argument) {
+		WorkItem item = pushWork(false, buf);
+		item.position = start;
+		item.literalStart = start;
+		item.end = end;
+		item.argument = argument;
+	}
+
+	@NotNull
+	private WorkItem pushWork(boolean invocation, @NotNull char[] buf) {
+		if (workDepth == work.length) {
+			work = Arrays.copyOf(work, workDepth * 2);
+		}
+		WorkItem item = work[workDepth];
+		if (item == null) {
+			item = work[workDepth] = new WorkItem();
+		}
+		workDepth++;
+		item.invocation = invocation;
+		item.buf = buf;
+		item.position = 0;
+		item.expanded = false;
+		item.outputStart = outputSize;
+		return item;
+	}
+
+	/** Pops the top work item; it is reused by the next push */
+	private void popWork() {
+		WorkItem item = work[--workDepth];
+		// old output arrays aren't retained
+		item.buf = null;
+		item.macro = null;
+	}
+
+	/**
+	 * Pushes the arguments of the argument list like {@link OrinocoLexer} splits
+	 * them: commas separate arguments unless they are nested in parentheses or
+	 * string literals.
+	 *
+	 * @param open the index of the opening parenthesis
+	 * @return the index after the closing parenthesis (or <code>end</code> if the
+	 *         list isn't closed)
+	 */
+	private int scanArguments(@NotNull char[] buf, int open, int end) {
+		int argumentStart = open + 1;
+		int depth = 0;
+		int i = open;
+		while (i < end) {
+			char c = buf[i++];
+			if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				if (--depth == 0) {
+					pushArgument(buf, argumentStart, i - 1);
+					return i;
+				}
+			} else if (c == ',' && depth == 1) {
+				pushArgument(buf, argumentStart, i - 1);
+				argumentStart = i;
+			} else if (c == '"' || c == '\'') {
+				while (i < end && buf[i++] != c) {
+					// skip the string
+				}
+			}
+		}
+		pushArgument(buf, argumentStart, end);
+		return end;
+	}
+
+	/** Pushes the span of an argument to {@link #arguments}, without leading and trailing whitespace */
+	private void pushArgument(@NotNull char[] buf, int start, int end) {
+		while (start < end && Character.isWhitespace(buf[start])) {
+			start++;
+		}
+		while (end > start && Character.isWhitespace(buf[end - 1])) {
+			end--;
+		}
+		if (argumentTop + 4 > arguments.length) {
+			arguments = grow(arguments);
+		}
+		arguments[argumentTop++] = start;
+		arguments[argumentTop++] = end;
+		arguments[argumentTop++] = ARGUMENT_UNEXPANDED;
+		arguments[argumentTop++] = 0;
+	}
+
+	/** @return the number of arguments pushed since <code>argumentBase</code>, where <code>MACRO()</code> has none */
+	private int argumentCount(int argumentBase) {
+		if (argumentTop - argumentBase == 4 && arguments[argumentBase] == arguments[argumentBase + 1]) {
+			argumentTop = argumentBase;
+		}
+		return (argumentTop - argumentBase) / 4;
+	}
+
+	/** @return the macro or null if there is none or it is being expanded */
+	@Nullable
+	private PreProcessorMacro lookUp(@NotNull char[] buf, int offset, int length) {
+		PreProcessorMacro macro = macros.get(buf, offset, length);
+		if (recorder != null) {
+			recorder.lookedUp(buf, offset, length, macro);
+		}
+		return macro == null || isExpanding(macro) ? null : macro;
+	}
+
+	private void append(@NotNull char[] buf, int offset, int length) {
+		ensureOutputCapacity(length);
+		System.arraycopy(buf, offset, output, outputSize, length);
+		outputSize += length;
+	}
+
+	private void ensureOutputCapacity(int additional) {
+		if (outputSize + additional > output.length) {
+			// the lexer may still be lexing the old array, so it must not be reused
+			char[] grown = new char[Math.max(outputSize + additional, output.length * 2)];
+			System.arraycopy(output, 0, grown, 0, outputSize);
+			output = grown;
+		}
+	}
+
+	/**
+	 * @return true if the macro is being expanded. The arguments of an invocation
+	 *         are expanded before the macro is marked, so only invocations that
+	 *         stem from its body (or from its expanded arguments) are blocked.
+	 */
+	private boolean isExpanding(@NotNull PreProcessorMacro macro) {
+		for (int i = 0; i < expandingDepth; i++) {
+			if (expanding[i] == macro) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void pushExpanding(@NotNull PreProcessorMacro macro, int outputStart) {
+		if (expandingDepth == expanding.length) {
+			PreProcessorMacro[] grown = new PreProcessorMacro[expanding.length * 2];
+			System.arraycopy(expanding, 0, grown, 0, expandingDepth);
+			expanding = grown;
+			expansionStarts = grow(expansionStarts);
+		}
+		expanding[expandingDepth] = macro;
+		expansionStarts[expandingDepth] = outputStart;
+		expandingDepth++;
+	}
+
+	private void pushCondition(boolean branchActive) {
+		if (conditionDepth == conditions.length) {
+			conditions = grow(conditions);
+		}
+		conditions[conditionDepth++] = (active ? CONDITION_PARENT_ACTIVE : 0) | (branchActive ? CONDITION_BRANCH_ACTIVE : 0);
+		updateActive();
+	}
+
+	private void updateActive() {
+		if (conditionDepth == 0) {
+			active = true;
+		} else {
+			int condition = conditions[conditionDepth - 1];
+			active = (condition & CONDITION_PARENT_ACTIVE) != 0 && (condition & CONDITION_BRANCH_ACTIVE) != 0;
+		}
+	}
+
+	/** Makes the lexer skip the rest of the conditional region if it is inactive */
+	private void skipIfInactive() {
+		if (!active) {
+			lexer.skipConditionalRegion();
+		}
+	}
+
+	private static int skipBlanks(@NotNull char[] buf, int i, int end) {
+		while (i < end && (buf[i] == ' ' || buf[i] == '\t')) {
+			i++;
+		}
+		return i;
+	}
+
+	@NotNull
+	private static int[] grow(@NotNull int[] a) {
+		int[] grown = new int[a.length * 2];
+		System.arraycopy(a, 0, grown, 0, a.length);
+		return grown;
 	}
 
 	@Override
 	public void acceptWhitespace(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength) {
+		if (active) {
+			mapText(preprocessedOffset, originalOffset);
+			if (processorStream != null) {
+				processorStream.acceptWhitespace(originalOffset, originalLength, preprocessedOffset, preprocessedLength);
+			}
+		}
+	}
 
+	@Override
+	public void acceptWhitespace(@NotNull char[] bufReadOnly, int offset, int length, int originalOffset, int originalLength,
+								 int preprocessedOffset) {
+		if (active) {
+			mapText(preprocessedOffset, originalOffset);
+			if (processorStream != null) {
+				processorStream.acceptWhitespace(bufReadOnly, offset, length, originalOffset, originalLength, preprocessedOffset);
+			}
+		}
 	}
 
 	@Override
 	public void acceptComment(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength) {
+		if (active) {
+			mapText(preprocessedOffset, originalOffset);
+			if (processorStream != null) {
+				processorStream.acceptComment(originalOffset, originalLength, preprocessedOffset, preprocessedLength);
+			}
+		}
+	}
 
+	@Override
+	public void acceptComment(@NotNull char[] bufReadOnly, int offset, int length, int originalOffset, int originalLength,
+							  int preprocessedOffset) {
+		if (active) {
+			mapText(preprocessedOffset, originalOffset);
+			if (processorStream != null) {
+				processorStream.acceptComment(bufReadOnly, offset, length, originalOffset, originalLength, preprocessedOffset);
+			}
+		}
 	}
 
 	@Override
 	public void begin() {
-
+		expandingDepth = 0;
+		outputSize = 0;
+		expansionAborted = false;
+		if (sourceMap != null) {
+			sourceMap.clear();
+			sourceMapResync = true;
+		}
+		processor.begin();
+		// e.g. restored inside an inactive region
+		skipIfInactive();
 	}
 
 	@Override
 	public void acceptCommand(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		if (active) {
+			mapText(preprocessedOffset, originalOffset);
+			processor.acceptCommand(id, preprocessedOffset, originalOffset, originalLength);
+		}
+	}
 
+	@Override
+	public void acceptCommand(int id, @NotNull char[] bufReadOnly, int offset, int length, int preprocessedOffset, int originalOffset,
+							  int originalLength) {
+		if (active) {
+			mapText(preprocessedOffset, originalOffset);
+			if (processorStream != null) {
+				processorStream.acceptCommand(id, bufReadOnly, offset, length, preprocessedOffset, originalOffset, originalLength);
+			} else {
+				processor.acceptCommand(id, preprocessedOffset, originalOffset, originalLength);
+			}
+		}
 	}
 
 	@Override
 	public void acceptLocalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		if (active) {
+			mapText(preprocessedOffset, originalOffset);
+			processor.acceptLocalVariable(id, preprocessedOffset, originalOffset, originalLength);
+		}
+	}
 
+	@Override
+	public void acceptLocalVariable(int id, @NotNull char[] bufReadOnly, int offset, int length, int preprocessedOffset,
+									int originalOffset, int originalLength) {
+		if (active) {
+			mapText(preprocessedOffset, originalOffset);
+			if (processorStream != null) {
+				processorStream.acceptLocalVariable(id, bufReadOnly, offset, length, preprocessedOffset, originalOffset, originalLength);
+			} else {
+				processor.acceptLocalVariable(id, preprocessedOffset, originalOffset, originalLength);
+			}
+		}
 	}
 
 	@Override
 	public void acceptGlobalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		if (active) {
+			mapText(preprocessedOffset, originalOffset);
+			processor.acceptGlobalVariable(id, preprocessedOffset, originalOffset, originalLength);
+		}
+	}
 
+	@Override
+	public void acceptGlobalVariable(int id, @NotNull char[] bufReadOnly, int offset, int length, int preprocessedOffset,
+									 int originalOffset, int originalLength) {
+		if (active) {
+			mapText(preprocessedOffset, originalOffset);
+			if (processorStream != null) {
+				processorStream.acceptGlobalVariable(id, bufReadOnly, offset, length, preprocessedOffset, originalOffset, originalLength);
+			} else {
+				processor.acceptGlobalVariable(id, preprocessedOffset, originalOffset, originalLength);
+			}
+		}
 	}
 
 	@Override
 	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset, int originalOffset,
 							  int originalLength) {
+		if (active) {
+			mapText(preprocessedOffset, originalOffset);
+			processor.acceptLiteral(type, token, preprocessedOffset, originalOffset, originalLength);
+		}
+	}
 
+	@Override
+	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull char[] bufReadOnly, int offset, int length,
+							  int preprocessedOffset, int originalOffset, int originalLength) {
+		if (active) {
+			mapText(preprocessedOffset, originalOffset);
+			processor.acceptLiteral(type, bufReadOnly, offset, length, preprocessedOffset, originalOffset, originalLength);
+		}
 	}
 
 	@Override
 	public void preProcessorTokenSkipped(@NotNull String token, int offset) {
+		processor.preProcessorTokenSkipped(token, offset);
+	}
 
+	/** Starts a text interval in the source map if the token follows text that isn't part of the preprocessed input */
+	private void mapText(int preprocessedOffset, int originalOffset) {
+		if (sourceMapResync && expandingDepth == 0) {
+			sourceMapResync = false;
+			sourceMap.text(preprocessedOffset, originalOffset);
+		}
 	}
 
 	@Override
 	public void preProcessorCommandSkipped(@NotNull String command, int offset) {
-
+		processor.preProcessorCommandSkipped(command, offset);
 	}
 
 	@Override
 	public void end() {
+		if (sourceMap != null) {
+			sourceMap.finish(lexer.getPreprocessedOffset());
+		}
+		processor.end();
+	}
 
+	/**
+	 * A pending step of expanding arguments: either a text that is scanned for
+	 * invocations or an invocation whose arguments and expansion are expanded
+	 */
+	private static final class WorkItem {
+		boolean invocation;
+		/** The text, or the buffer the invocation's arguments refer to */
+		char[] buf;
+		/**
+		 * Text: the index the scan goes on at. Invocation: the next piece whose
+		 * argument may need to be expanded, or -1 once the expansion is pushed.
+		 */
+		int position;
+		/** Text: the end of the text. Invocation: the index after the invocation. */
+		int end;
+		/** The start of the item's output in {@link #output} */
+		int outputStart;
+		/** Text: the start of the text that hasn't been appended yet */
+		int literalStart;
+		/** True if the text (or the expansion of the invocation) contains an invocation */
+		boolean expanded;
+		/** Text: the index in {@link #arguments} of the argument or -1 for the expansion of an invocation */
+		int argument;
+		PreProcessorMacro macro;
+		int argumentBase;
+		int argumentCount;
+		/** False for the invocation the lexer submitted: the lexer scans its expansion */
+		boolean rescan;
+		int bodyStart;
+		int bodyEnd;
 	}
 }
@@ -1,10 +1,12 @@
 package arma.orinocosqf;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
 
 /**
  * A facade class for a {@link Reader} interface.
@@ -25,6 +27,42 @@ public abstract class OrinocoReader extends Reader {
 		return new OrinocoReaderWrapper(new CharSequenceReader(cs));
 	}
 
+	/**
+	 * Creates a new {@link OrinocoReader} that exposes the given slice of an array
+	 * to {@link OrinocoLexer} as its buffer, so the text isn't copied. The buffer
+	 * offsets the lexer passes to its {@link OrinocoLexerStream} are indices into
+	 * <code>buf</code>, while all token offsets are relative to
+	 * <code>offset</code>. The array must not be modified while it is lexed.
+	 *
+	 * @param buf the array that holds the text
+	 * @param offset the index of the first char of the text
+	 * @param length the length of the text
+	 * @return The instantiated Reader
+	 * @see #getBackingArray()
+	 */
+	@NotNull
+	public static OrinocoReader fromCharArray(@NotNull char[] buf, int offset, int length) {
+		return new CharArraySliceReader(buf, offset, length);
+	}
+
+	/**
+	 * Creates a new {@link OrinocoReader} for the remaining chars of the given
+	 * {@link CharBuffer}. If the buffer is backed by an accessible array, the
+	 * array is used directly (see {@link #fromCharArray(char[], int, int)}).
+	 * Otherwise the chars are read via {@link CharSequenceReader}.
+	 *
+	 * @param cb The CharBuffer to build the Reader from. Its position isn't
+	 *        changed.
+	 * @return The instantiated Reader
+	 */
+	@NotNull
+	public static OrinocoReader fromCharBuffer(@NotNull CharBuffer cb) {
+		if (cb.hasArray()) {
+			return new CharArraySliceReader(cb.array(), cb.arrayOffset() + cb.position(), cb.remaining());
+		}
+		return fromCharSequence(cb);
+	}
+
 	/**
 	 * Creates a new {@link OrinocoReader} from the given {@link File}
 	 * (automatically opening an InputStream on it)
@@ -37,6 +75,21 @@ public abstract class OrinocoReader extends Reader {
 		return new OrinocoReaderWrapper(new InputStreamReader(new FileInputStream(f), c));
 	}
 
+	/**
+	 * Creates a new {@link OrinocoReader} that reads the given file through a
+	 * memory map. For ASCII, ISO-8859-1 and UTF-8 files the bytes are decoded
+	 * directly into the buffer passed to {@link #read(char[], int, int)}.
+	 *
+	 * @param file The file to build the Reader from
+	 * @param c the charset of the file
+	 * @return The instantiated Reader
+	 * @see MappedFileReader
+	 */
+	@NotNull
+	public static OrinocoReader fromMappedFile(@NotNull Path file, @NotNull Charset c) throws IOException {
+		return new MappedFileReader(file, c);
+	}
+
 	/**
 	 * Creates a new {@link OrinocoReader} from the given {@link InputStream}
 	 *
@@ -48,6 +101,31 @@ public abstract class OrinocoReader extends Reader {
 		return new OrinocoReaderWrapper(new InputStreamReader(in, c));
 	}
 
+	/**
+	 * If this reader's whole input is available in an array, {@link OrinocoLexer}
+	 * uses that array as its buffer instead of reading the input into its own
+	 * buffer. The array is never modified by the lexer.
+	 *
+	 * @return the array that holds the whole input, or null if the input has to
+	 *         be read via {@link #read(char[], int, int)}
+	 * @see #getBackingArrayOffset()
+	 * @see #getBackingArrayLength()
+	 */
+	@Nullable
+	public char[] getBackingArray() {
+		return null;
+	}
+
+	/** @return the index of the first char of the input in {@link #getBackingArray()} */
+	public int getBackingArrayOffset() {
+		return 0;
+	}
+
+	/** @return the length of the input in {@link #getBackingArray()} */
+	public int getBackingArrayLength() {
+		return 0;
+	}
+
 	public static class OrinocoReaderWrapper extends OrinocoReader {
 		private final Reader r;
 
@@ -1,7 +1,7 @@
 package arma.orinocosqf;
 
-import jdk.internal.jline.internal.Nullable;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * A token class that can either hold text or an id for things like
@@ -39,6 +39,13 @@ public class OrinocoToken {
 		this.id = id;
 	}
 
+	/**
+	 * Constructor for subclasses that don't keep their data in this class and
+	 * override all getters instead (e.g. {@link OrinocoTokenBuffer.Cursor})
+	 */
+	protected OrinocoToken() {
+	}
+
 	private OrinocoToken(OrinocoTokenType tokenType, int preprocessedOffset, int originalOffset, int originalLength) {
 		this.tokenType = tokenType;
 		this.preprocessedOffset = preprocessedOffset;
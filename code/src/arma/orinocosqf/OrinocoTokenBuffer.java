@@ -0,0 +1,606 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A compact, columnar store for tokens. Instead of one {@link OrinocoToken}
+ * object per token, every token property is kept in a parallel primitive array
+ * (type ordinal, id, preprocessed offset, original offset, original length and
+ * length). The text of text-based tokens is not kept as {@link String}: if the
+ * token was lexed directly from the source (see {@link #setSource(char[], int)})
+ * its text is a span in the source, otherwise it is appended to a shared char[]
+ * pool.<br>
+ * <br>
+ * Tokens can be read by index or iterated as {@link OrinocoToken}s. The iterator
+ * and {@link #cursor()} return a flyweight {@link Cursor} that is moved over the
+ * tokens rather than creating a token object for each of them.<br>
+ * <br>
+ * The buffer can be filled directly by {@link OrinocoLexer}: it implements
+ * {@link OrinocoTokenProcessor} and offers the additional
+ * {@link OrinocoLexerStream} methods {@link #acceptWhitespace(int, int, int, int)}
+ * and {@link #acceptComment(int, int, int, int)}. This class is not
+ * thread-safe.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class OrinocoTokenBuffer implements OrinocoTokenProcessor, Iterable<OrinocoToken> {
+	private static final OrinocoSQFTokenType[] TOKEN_TYPES = OrinocoSQFTokenType.values();
+	private static final OrinocoLexerSQFLiteralType[] LITERAL_TYPES = OrinocoLexerSQFLiteralType.values();
+
+	/** Flag: the text of the token is in the source at its original offset */
+	static final byte FLAG_TEXT_IN_SOURCE = 0x01;
+	/** Flag: the text of the token is in the pool, starting at the index stored as id */
+	static final byte FLAG_TEXT_IN_POOL = 0x02;
+	/** Mask of the flag bits that hold the {@link OrinocoLexerSQFLiteralType} ordinal */
+	private static final int LITERAL_TYPE_MASK = 0x0C;
+	private static final int LITERAL_TYPE_SHIFT = 2;
+	/** The flag bits that are free to be used by other classes of this package */
+	static final int FREE_FLAGS_MASK = 0xF0;
+
+	byte[] types;
+	byte[] flags;
+	/** The id for id-based tokens and the start in {@link #pool} for text-based tokens */
+	int[] ids;
+	int[] preprocessedOffsets;
+	int[] originalOffsets;
+	int[] originalLengths;
+	/** The length of the token in the preprocessed input */
+	int[] lengths;
+	int count;
+
+	private char[] source;
+	private int sourceOffset;
+	private char[] pool = new char[256];
+	private int poolSize;
+
+	public OrinocoTokenBuffer() {
+		this(256);
+	}
+
+	public OrinocoTokenBuffer(int initialCapacity) {
+		initialCapacity = Math.max(initialCapacity, 1);
+		types = new byte[initialCapacity];
+		flags = new byte[initialCapacity];
+		ids = new int[initialCapacity];
+		preprocessedOffsets = new int[initialCapacity];
+		originalOffsets = new int[initialCapacity];
+		originalLengths = new int[initialCapacity];
+		lengths = new int[initialCapacity];
+	}
+
+	/**
+	 * Sets the array the original input is stored in. Literals whose text is
+	 * submitted in this array at the position of their original offset are not
+	 * copied; their text is read from the source instead. The source must
+	 * therefore not be modified while this buffer is in use.
+	 *
+	 * @param source the array that holds the original input (or null to copy all
+	 *        token text into the pool)
+	 * @param sourceOffset the index in <code>source</code> that corresponds to
+	 *        original offset 0
+	 * @see OrinocoReader#fromCharArray(char[], int, int)
+	 */
+	public void setSource(@Nullable char[] source, int sourceOffset) {
+		this.source = source;
+		this.sourceOffset = sourceOffset;
+	}
+
+	/** @return the number of tokens in this buffer */
+	public int size() {
+		return count;
+	}
+
+	/** Removes all tokens (the capacity is kept) */
+	public void clear() {
+		count = 0;
+		poolSize = 0;
+	}
+
+	@NotNull
+	public OrinocoSQFTokenType getTokenType(int index) {
+		return TOKEN_TYPES[types[checkIndex(index)]];
+	}
+
+	/** @return the literal type, or null if the token is no {@link OrinocoSQFTokenType#Literal} */
+	@Nullable
+	public OrinocoLexerSQFLiteralType getLiteralType(int index) {
+		if (types[checkIndex(index)] != OrinocoSQFTokenType.Literal.ordinal()) {
+			return null;
+		}
+		return LITERAL_TYPES[(flags[index] & LITERAL_TYPE_MASK) >> LITERAL_TYPE_SHIFT];
+	}
+
+	/** @return -1 if the token is text based, or the id if id based */
+	public int getId(int index) {
+		return TOKEN_TYPES[types[checkIndex(index)]].isIdBased() ? ids[index] : -1;
+	}
+
+	public int getPreprocessedOffset(int index) {
+		return preprocessedOffsets[checkIndex(index)];
+	}
+
+	public int getOriginalOffset(int index) {
+		return originalOffsets[checkIndex(index)];
+	}
+
+	public int getOriginalLength(int index) {
+		return originalLengths[checkIndex(index)];
+	}
+
+	/** @return the length of the token in the preprocessed input */
+	public int getLength(int index) {
+		return lengths[checkIndex(index)];
+	}
+
+	/**
+	 * @return the array that holds the text of the token, or null if the token has
+	 *         no text (id-based tokens, whitespace and comments)
+	 * @see #getTextOffset(int)
+	 * @see #getLength(int)
+	 */
+	@Nullable
+	public char[] getTextArray(int index) {
+		byte f = flags[checkIndex(index)];
+		if ((f & FLAG_TEXT_IN_SOURCE) != 0) {
+			return source;
+		}
+		return (f & FLAG_TEXT_IN_POOL) != 0 ? pool : null;
+	}
+
+	/** @return the index of the token's text in {@link #getTextArray(int)} */
+	public int getTextOffset(int index) {
+		byte f = flags[checkIndex(index)];
+		if ((f & FLAG_TEXT_IN_SOURCE) != 0) {
+			return sourceOffset + originalOffsets[index];
+		}
+		return (f & FLAG_TEXT_IN_POOL) != 0 ? ids[index] : -1;
+	}
+
+	/**
+	 * Creates a {@link String} of the token's text. Prefer
+	 * {@link #getTextArray(int)} to avoid the allocation.
+	 *
+	 * @return the text or null if the token has no text
+	 */
+	@Nullable
+	public String getText(int index) {
+		char[] array = getTextArray(index);
+		return array == null ? null : new String(array, getTextOffset(index), lengths[index]);
+	}
+
+	/** @return a new {@link OrinocoToken} holding a copy of the given token */
+	@NotNull
+	public OrinocoToken toToken(int index) {
+		OrinocoSQFTokenType type = getTokenType(index);
+		if (type.isIdBased()) {
+			return new OrinocoToken(ids[index], type, preprocessedOffsets[index], originalOffsets[index], originalLengths[index]);
+		}
+		String text = getText(index);
+		return new OrinocoToken(text == null ? "" : text, type, preprocessedOffsets[index], originalOffsets[index],
+				originalLengths[index]);
+	}
+
+	/** @return a new flyweight that is positioned before the first token */
+	@NotNull
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Iterates the tokens via a single {@link Cursor}: every call to
+	 * {@link Iterator#next()} returns the same instance, moved to the next token.
+	 * Use {@link #toToken(int)} to keep a token.
+	 */
+	@NotNull
+	@Override
+	public Iterator<OrinocoToken> iterator() {
+		Cursor cursor = new Cursor();
+		return new Iterator<OrinocoToken>() {
+			@Override
+			public boolean hasNext() {
+				return cursor.index + 1 < count;
+			}
+
+			@Override
+			public OrinocoToken next() {
+				if (!cursor.next()) {
+					throw new NoSuchElementException();
+				}
+				return cursor;
+			}
+		};
+	}
+
+	/**
+	 * Submits the tokens in the given range to the given processor (without
+	 * invoking {@link OrinocoTokenProcessor#begin()} or
+	 * {@link OrinocoTokenProcessor#end()}). Literals are submitted via
+	 * {@link OrinocoTokenProcessor#acceptLiteral(OrinocoLexerLiteralType, char[], int, int, int, int, int)}.
+	 * Whitespace and comments are only submitted if the processor is a
+	 * {@link OrinocoLexerStream}.
+	 *
+	 * @param from index of the first token
+	 * @param to index after the last token
+	 * @param processor the processor to submit to
+	 */
+	public void replay(int from, int to, @NotNull OrinocoTokenProcessor processor) {
+		replay(from, to, processor, 0, -1, 0);
+	}
+
+	/**
+	 * Like {@link #replay(int, int, OrinocoTokenProcessor)}, but moves the tokens
+	 * to another position: <code>preprocessedOffsetDelta</code> is added to the
+	 * preprocessed offsets and, if <code>originalOffset</code> isn't negative, all
+	 * tokens are submitted with the given original span (like the tokens of a
+	 * macro expansion).
+	 */
+	void replay(int from, int to, @NotNull OrinocoTokenProcessor processor, int preprocessedOffsetDelta, int originalOffset,
+				int originalLength) {
+		if (from < 0 || to > count || from > to) {
+			throw new IndexOutOfBoundsException("from=" + from + ", to=" + to + ", count=" + count);
+		}
+		OrinocoLexerStream stream = processor instanceof OrinocoLexerStream ? (OrinocoLexerStream) processor : null;
+		boolean keepOriginalSpan = originalOffset < 0;
+		for (int i = from; i < to; i++) {
+			int preprocessedOffset = preprocessedOffsets[i] + preprocessedOffsetDelta;
+			if (keepOriginalSpan) {
+				originalOffset = originalOffsets[i];
+				originalLength = originalLengths[i];
+			}
+			switch (TOKEN_TYPES[types[i]]) {
+				case Command: {
+					processor.acceptCommand(ids[i], preprocessedOffset, originalOffset, originalLength);
+					break;
+				}
+				case LocalVariable: {
+					processor.acceptLocalVariable(ids[i], preprocessedOffset, originalOffset, originalLength);
+					break;
+				}
+				case GlobalVariable: {
+					processor.acceptGlobalVariable(ids[i], preprocessedOffset, originalOffset, originalLength);
+					break;
+				}
+				case Literal: {
+					//noinspection ConstantConditions
+					processor.acceptLiteral(getLiteralType(i), getTextArray(i), getTextOffset(i), lengths[i], preprocessedOffset,
+							originalOffset, originalLength);
+					break;
+				}
+				case Whitespace: {
+					if (stream != null) {
+						stream.acceptWhitespace(originalOffset, originalLength, preprocessedOffset, lengths[i]);
+					}
+					break;
+				}
+				case Comment: {
+					if (stream != null) {
+						stream.acceptComment(originalOffset, originalLength, preprocessedOffset, lengths[i]);
+					}
+					break;
+				}
+				default: {
+					processor.preProcessorCommandSkipped(getText(i), originalOffset);
+					break;
+				}
+			}
+		}
+	}
+
+	/** @return the number of chars of the preprocessed input the tokens cover */
+	int getPreprocessedLength() {
+		return count == 0 ? 0 : preprocessedOffsets[count - 1] + lengths[count - 1];
+	}
+
+	/** @return an estimate of the heap memory this buffer retains, in bytes */
+	long getRetainedSize() {
+		// 1 byte type, 1 byte flags and 5 ints per token, 2 bytes per pool char, plus the array headers
+		return types.length * 22L + pool.length * 2L + 8 * 16;
+	}
+
+	/** Shrinks the arrays to the tokens and text that are in use, e.g. before the buffer is cached */
+	void trimToSize() {
+		int capacity = Math.max(count, 1);
+		if (capacity < types.length) {
+			types = resize(types, capacity);
+			flags = resize(flags, capacity);
+			ids = resize(ids, capacity);
+			preprocessedOffsets = resize(preprocessedOffsets, capacity);
+			originalOffsets = resize(originalOffsets, capacity);
+			originalLengths = resize(originalLengths, capacity);
+			lengths = resize(lengths, capacity);
+		}
+		if (poolSize < pool.length) {
+			char[] trimmed = new char[Math.max(poolSize, 1)];
+			System.arraycopy(pool, 0, trimmed, 0, poolSize);
+			pool = trimmed;
+		}
+	}
+
+	@Override
+	public void begin() {
+	}
+
+	@Override
+	public void acceptCommand(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		add(OrinocoSQFTokenType.Command, 0, id, preprocessedOffset, originalOffset, originalLength, originalLength);
+	}
+
+	@Override
+	public void acceptLocalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		add(OrinocoSQFTokenType.LocalVariable, 0, id, preprocessedOffset, originalOffset, originalLength, originalLength);
+	}
+
+	@Override
+	public void acceptGlobalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		add(OrinocoSQFTokenType.GlobalVariable, 0, id, preprocessedOffset, originalOffset, originalLength, originalLength);
+	}
+
+	@Override
+	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset, int originalOffset,
+							  int originalLength) {
+		int poolStart = appendToPool(token);
+		add(OrinocoSQFTokenType.Literal, FLAG_TEXT_IN_POOL | literalTypeFlags(type), poolStart, preprocessedOffset, originalOffset,
+				originalLength, token.length());
+	}
+
+	@Override
+	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull char[] bufReadOnly, int offset, int length,
+							  int preprocessedOffset, int originalOffset, int originalLength) {
+		if (bufReadOnly == source && offset == sourceOffset + originalOffset && length == originalLength) {
+			add(OrinocoSQFTokenType.Literal, FLAG_TEXT_IN_SOURCE | literalTypeFlags(type), -1, preprocessedOffset, originalOffset,
+					originalLength, length);
+		} else {
+			int poolStart = appendToPool(bufReadOnly, offset, length);
+			add(OrinocoSQFTokenType.Literal, FLAG_TEXT_IN_POOL | literalTypeFlags(type), poolStart, preprocessedOffset, originalOffset,
+					originalLength, length);
+		}
+	}
+
+	/** @see OrinocoLexerStream#acceptWhitespace(int, int, int, int) */
+	public void acceptWhitespace(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength) {
+		add(OrinocoSQFTokenType.Whitespace, 0, -1, preprocessedOffset, originalOffset, originalLength, preprocessedLength);
+	}
+
+	/** @see OrinocoLexerStream#acceptComment(int, int, int, int) */
+	public void acceptComment(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength) {
+		add(OrinocoSQFTokenType.Comment, 0, -1, preprocessedOffset, originalOffset, originalLength, preprocessedLength);
+	}
+
+	/** Stores the token as {@link OrinocoSQFTokenType#UnPreProcessed} */
+	@Override
+	public void preProcessorTokenSkipped(@NotNull String token, int offset) {
+		add(OrinocoSQFTokenType.UnPreProcessed, FLAG_TEXT_IN_POOL, appendToPool(token), offset, offset, token.length(), token.length());
+	}
+
+	/** Stores the command as {@link OrinocoSQFTokenType#UnPreProcessed} */
+	@Override
+	public void preProcessorCommandSkipped(@NotNull String command, int offset) {
+		if (isInSource(command, offset)) {
+			add(OrinocoSQFTokenType.UnPreProcessed, FLAG_TEXT_IN_SOURCE, -1, offset, offset, command.length(), command.length());
+		} else {
+			add(OrinocoSQFTokenType.UnPreProcessed, FLAG_TEXT_IN_POOL, appendToPool(command), offset, offset, command.length(),
+					command.length());
+		}
+	}
+
+	@Override
+	public void end() {
+	}
+
+	/** @return true if the source contains the given text at the given original offset */
+	private boolean isInSource(@NotNull String text, int originalOffset) {
+		int start = sourceOffset + originalOffset;
+		if (source == null || originalOffset < 0 || start + text.length() > source.length) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (source[start + i] != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int literalTypeFlags(@NotNull OrinocoLexerLiteralType type) {
+		return ((OrinocoLexerSQFLiteralType) type).ordinal() << LITERAL_TYPE_SHIFT;
+	}
+
+	void add(@NotNull OrinocoSQFTokenType type, int flag, int id, int preprocessedOffset, int originalOffset, int originalLength,
+			 int length) {
+		ensureCapacity(count + 1);
+		types[count] = (byte) type.ordinal();
+		flags[count] = (byte) flag;
+		ids[count] = id;
+		preprocessedOffsets[count] = preprocessedOffset;
+		originalOffsets[count] = originalOffset;
+		originalLengths[count] = originalLength;
+		lengths[count] = length;
+		count++;
+	}
+
+	void ensureCapacity(int capacity) {
+		if (capacity <= types.length) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, types.length * 2);
+		types = resize(types, newCapacity);
+		flags = resize(flags, newCapacity);
+		ids = resize(ids, newCapacity);
+		preprocessedOffsets = resize(preprocessedOffsets, newCapacity);
+		originalOffsets = resize(originalOffsets, newCapacity);
+		originalLengths = resize(originalLengths, newCapacity);
+		lengths = resize(lengths, newCapacity);
+	}
+
+	/**
+	 * Moves <code>length</code> tokens from index <code>from</code> to index
+	 * <code>to</code> (the ranges may overlap) and adds <code>offsetDelta</code> to
+	 * their offsets. The capacity must be sufficient.
+	 */
+	void move(int from, int to, int length, int offsetDelta) {
+		System.arraycopy(types, from, types, to, length);
+		System.arraycopy(flags, from, flags, to, length);
+		System.arraycopy(ids, from, ids, to, length);
+		System.arraycopy(preprocessedOffsets, from, preprocessedOffsets, to, length);
+		System.arraycopy(originalOffsets, from, originalOffsets, to, length);
+		System.arraycopy(originalLengths, from, originalLengths, to, length);
+		System.arraycopy(lengths, from, lengths, to, length);
+		if (offsetDelta != 0) {
+			for (int i = to; i < to + length; i++) {
+				preprocessedOffsets[i] += offsetDelta;
+				originalOffsets[i] += offsetDelta;
+			}
+		}
+	}
+
+	/**
+	 * Copies all tokens of the other buffer to index <code>to</code>. The capacity
+	 * must be sufficient. Tokens with text in the other buffer's pool are not
+	 * supported.
+	 */
+	void copyFrom(@NotNull OrinocoTokenBuffer other, int to) {
+		System.arraycopy(other.types, 0, types, to, other.count);
+		System.arraycopy(other.flags, 0, flags, to, other.count);
+		System.arraycopy(other.ids, 0, ids, to, other.count);
+		System.arraycopy(other.preprocessedOffsets, 0, preprocessedOffsets, to, other.count);
+		System.arraycopy(other.originalOffsets, 0, originalOffsets, to, other.count);
+		System.arraycopy(other.originalLengths, 0, originalLengths, to, other.count);
+		System.arraycopy(other.lengths, 0, lengths, to, other.count);
+	}
+
+	/** @return the index of the last token whose original offset is &lt;= <code>originalOffset</code> (0 if there is none) */
+	int indexAtOrBefore(int originalOffset) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (originalOffsets[mid] <= originalOffset) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return Math.max(0, high);
+	}
+
+	private int appendToPool(@NotNull String s) {
+		ensurePoolCapacity(s.length());
+		s.getChars(0, s.length(), pool, poolSize);
+		int start = poolSize;
+		poolSize += s.length();
+		return start;
+	}
+
+	private int appendToPool(@NotNull char[] buf, int offset, int length) {
+		ensurePoolCapacity(length);
+		System.arraycopy(buf, offset, pool, poolSize, length);
+		int start = poolSize;
+		poolSize += length;
+		return start;
+	}
+
+	private void ensurePoolCapacity(int additional) {
+		if (poolSize + additional > pool.length) {
+			char[] newPool = new char[Math.max(poolSize + additional, pool.length * 2)];
+			System.arraycopy(pool, 0, newPool, 0, poolSize);
+			pool = newPool;
+		}
+	}
+
+	private int checkIndex(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("index=" + index + ", count=" + count);
+		}
+		return index;
+	}
+
+	private static byte[] resize(byte[] a, int capacity) {
+		byte[] resized = new byte[capacity];
+		System.arraycopy(a, 0, resized, 0, Math.min(a.length, capacity));
+		return resized;
+	}
+
+	private static int[] resize(int[] a, int capacity) {
+		int[] resized = new int[capacity];
+		System.arraycopy(a, 0, resized, 0, Math.min(a.length, capacity));
+		return resized;
+	}
+
+	/**
+	 * A flyweight {@link OrinocoToken} that reads the token at its current index
+	 * from the buffer. It becomes invalid as soon as the buffer is modified.
+	 */
+	public class Cursor extends OrinocoToken {
+		private int index = -1;
+
+		private Cursor() {
+		}
+
+		/**
+		 * Moves to the next token.
+		 *
+		 * @return false if there is no next token
+		 */
+		public boolean next() {
+			if (index + 1 >= count) {
+				return false;
+			}
+			index++;
+			return true;
+		}
+
+		/** Moves to the token at the given index */
+		public void moveTo(int index) {
+			this.index = checkIndex(index);
+		}
+
+		/** @return the index of the current token */
+		public int getIndex() {
+			return index;
+		}
+
+		/** @return a new {@link OrinocoToken} holding a copy of the current token */
+		@NotNull
+		public OrinocoToken copy() {
+			return toToken(index);
+		}
+
+		/** Creates a String of the token text. Prefer {@link OrinocoTokenBuffer#getTextArray(int)}. */
+		@Nullable
+		@Override
+		public String getText() {
+			return OrinocoTokenBuffer.this.getText(index);
+		}
+
+		@Override
+		public int getId() {
+			return OrinocoTokenBuffer.this.getId(index);
+		}
+
+		@NotNull
+		@Override
+		public OrinocoTokenType getTokenType() {
+			return OrinocoTokenBuffer.this.getTokenType(index);
+		}
+
+		@Override
+		public int getPreprocessedOffset() {
+			return OrinocoTokenBuffer.this.getPreprocessedOffset(index);
+		}
+
+		@Override
+		public int getOriginalOffset() {
+			return OrinocoTokenBuffer.this.getOriginalOffset(index);
+		}
+
+		@Override
+		public int getOriginalLength() {
+			return OrinocoTokenBuffer.this.getOriginalLength(index);
+		}
+	}
+}
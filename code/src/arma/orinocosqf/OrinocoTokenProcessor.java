@@ -90,6 +90,30 @@ public interface OrinocoTokenProcessor {
 	void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset, int originalOffset,
 					   int originalLength);
 
+	/**
+	 * Accepts literals without requiring the literal's text to be a
+	 * {@link String}. This is the method {@link OrinocoLexer} invokes. By default
+	 * it creates the String and delegates to
+	 * {@link #acceptLiteral(OrinocoLexerLiteralType, String, int, int, int)}.
+	 * Processors that don't need the text (or can work on the buffer directly)
+	 * should override this method so that lexing a literal doesn't allocate.
+	 *
+	 * @param type the type of the literal
+	 * @param bufReadOnly the read-only char[] buffer that contains the literal
+	 * @param offset the offset where the literal begins in the char[] buffer
+	 * @param length length of the literal in the buffer
+	 * @param preprocessedOffset the offset of the literal in the preprocessed input
+	 * @param originalOffset text offset of where the literal was located in the
+	 *        original, unpreprocessed input
+	 * @param originalLength the length of the token in the original input that this
+	 *        literal is part of
+	 * @see #acceptLiteral(OrinocoLexerLiteralType, String, int, int, int)
+	 */
+	default void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull char[] bufReadOnly, int offset, int length,
+							   int preprocessedOffset, int originalOffset, int originalLength) {
+		acceptLiteral(type, new String(bufReadOnly, offset, length), preprocessedOffset, originalOffset, originalLength);
+	}
+
 	/**
 	 * Invoked when a macro-token was encountered in the input. This method is only
 	 * invoked if preprocessing is disabled<br>
@@ -3,10 +3,15 @@ package arma.orinocosqf;
 import org.jetbrains.annotations.NotNull;
 
 /**
- * Holds a FIFO queue (a {@link OrinocoToken} array) that is thread-safe.
+ * Holds a FIFO queue (a {@link OrinocoToken} array) that is thread-safe.<br>
+ * <br>
+ * Tokens are submitted via the {@link OrinocoTokenProcessor} methods and taken
+ * out in batches via {@link #poll(OrinocoTokenProcessor)}. Implementations may
+ * make submitted tokens visible to consumers in batches only.
  *
  * @author K
  * @since 02/21/2019
+ * @see BoundedOrinocoTokenQueue
  */
 public abstract class OrinocoTokenQueue implements OrinocoTokenProcessor {
 	/**
@@ -15,4 +20,17 @@ public abstract class OrinocoTokenQueue implements OrinocoTokenProcessor {
 	 * other queue. This queue is then emptied.
 	 */
 	public abstract void drainTo(@NotNull OrinocoTokenQueue other);
+
+	/**
+	 * Takes the next batch of tokens out of the queue and submits them to the
+	 * processor (without invoking {@link OrinocoTokenProcessor#begin()} or
+	 * {@link OrinocoTokenProcessor#end()}). This operation doesn't block.
+	 *
+	 * @param processor the processor the tokens are submitted to
+	 * @return false if there was no batch to take
+	 */
+	public abstract boolean poll(@NotNull OrinocoTokenProcessor processor);
+
+	/** @return true if there is no batch to take (at the time of the invocation) */
+	public abstract boolean isEmpty();
 }
@@ -0,0 +1,404 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A {@link OrinocoLexerStream} that writes the preprocessed input as text (like
+ * <code>cpp -E</code>) to a {@link Writer} or a {@link WritableByteChannel}. It
+ * is meant to be the processor of an {@link OrinocoPreProcessor}:
+ *
+ * <pre>
+ * PreProcessedTextWriter out = new PreProcessedTextWriter(writer, context);
+ * new OrinocoLexer(reader, new OrinocoPreProcessor(out), context).start();
+ * </pre>
+ *
+ * The text is written through a fixed buffer of {@link #BUFFER_SIZE} chars, so
+ * the memory doesn't depend on the size of the output. Tokens and whitespace
+ * are written as they were lexed, so identifiers keep their case. Comments are
+ * replaced by a blank (their line breaks are kept). The tokens of included
+ * files are replayed from the {@link IncludeCache} without their text: their
+ * commands and variables are written with the names the
+ * {@link OrinocoLexerContext} resolves their ids to, and they are submitted
+ * without their whitespace, so a blank is written between them.<br>
+ * <br>
+ * With {@link #setLineMarkers(String, CharSequence)}, <code>#line</code>
+ * markers are written whenever the output line no longer matches the line of
+ * the original input (e.g. after an inactive region or a multi-line macro
+ * invocation). Tokens of expansions and included files belong to the line of
+ * the invocation or <code>#include</code> command.<br>
+ * <br>
+ * {@link #end()} flushes the buffer (and the {@link Writer}), but doesn't close
+ * the output. Errors of the output are rethrown as {@link UncheckedIOException}.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class PreProcessedTextWriter implements OrinocoLexerStream {
+	/** The size of the char buffer the text is written through */
+	public static final int BUFFER_SIZE = 8 * 1024;
+	/** Up to this many missing lines are written as line breaks rather than as a #line marker */
+	private static final int MAX_LINE_BREAKS_INSTEAD_OF_MARKER = 8;
+
+	private final OrinocoLexerContext context;
+	private final Writer writer;
+	private final WritableByteChannel channel;
+	private final CharsetEncoder encoder;
+	private final char[] chars = new char[BUFFER_SIZE];
+	private final CharBuffer charBuffer = CharBuffer.wrap(chars);
+	private final ByteBuffer bytes;
+	private int charCount;
+	/** The preprocessed offset after the text that was written last */
+	private int preprocessedEnd;
+
+	private String lineMarkerFile;
+	private CharSequence original;
+	/** The line (starting at 1) of the original input that the current output line belongs to */
+	private int line;
+	/** True if nothing but whitespace has been written to the current output line */
+	private boolean atLineStart;
+	/** True if nothing has been written to the current output line */
+	private boolean lineEmpty;
+	/** The position in {@link #original} whose line is {@link #originalLine} */
+	private int originalPosition;
+	private int originalLine;
+
+	/**
+	 * @param writer the writer the text is written to
+	 * @param context the context of the lexer, which must resolve ids to names
+	 *        (see {@link OrinocoLexerContext#getCommandName(int)})
+	 */
+	public PreProcessedTextWriter(@NotNull Writer writer, @NotNull OrinocoLexerContext context) {
+		this.writer = writer;
+		this.channel = null;
+		this.encoder = null;
+		this.bytes = null;
+		this.context = context;
+	}
+
+	/**
+	 * @param channel the channel the text is written to, encoded with the charset
+	 * @param context the context of the lexer, which must resolve ids to names
+	 *        (see {@link OrinocoLexerContext#getCommandName(int)})
+	 */
+	public PreProcessedTextWriter(@NotNull WritableByteChannel channel, @NotNull Charset charset, @NotNull OrinocoLexerContext context) {
+		this.writer = null;
+		this.channel = channel;
+		this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.bytes = ByteBuffer.allocate((int) (BUFFER_SIZE * encoder.maxBytesPerChar()));
+		this.context = context;
+	}
+
+	/**
+	 * Enables <code>#line</code> markers
+	 *
+	 * @param file the file name written in the markers
+	 * @param original the original input, which is needed to count its lines
+	 *        (null disables the markers)
+	 */
+	public void setLineMarkers(@NotNull String file, @Nullable CharSequence original) {
+		this.lineMarkerFile = original == null ? null : file;
+		this.original = original;
+	}
+
+	@Override
+	public void setLexer(@NotNull OrinocoLexer lexer) {
+	}
+
+	/**
+	 * @return true: the stream writes text that is preprocessed already. If it is
+	 *         attached to a lexer directly, the input is written unchanged.
+	 */
+	@Override
+	public boolean skipPreProcessing() {
+		return true;
+	}
+
+	@Override
+	public void begin() {
+		charCount = 0;
+		preprocessedEnd = 0;
+		line = 1;
+		atLineStart = true;
+		lineEmpty = true;
+		originalPosition = 0;
+		originalLine = 1;
+		if (encoder != null) {
+			encoder.reset();
+			bytes.clear();
+		}
+		if (lineMarkerFile != null) {
+			writeLineMarker(1);
+		}
+	}
+
+	@Override
+	public void acceptPreProcessorCommand(@NotNull PreProcessorCommand command, @NotNull char[] bufReadOnly, int offset, int bodyLength) {
+	}
+
+	@Override
+	public void preProcessToken(@NotNull char[] bufReadOnly, int offset, int length) {
+	}
+
+	@Override
+	public void acceptWhitespace(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength) {
+		// the text is unknown
+		write(' ');
+		preprocessedEnd = preprocessedOffset + preprocessedLength;
+	}
+
+	@Override
+	public void acceptWhitespace(@NotNull char[] bufReadOnly, int offset, int length, int originalOffset, int originalLength,
+								 int preprocessedOffset) {
+		for (int i = offset; i < offset + length; i++) {
+			char c = bufReadOnly[i];
+			if (c == '\n') {
+				lineBreak();
+			} else if (c != '\r') {
+				write(c);
+			}
+		}
+		preprocessedEnd = preprocessedOffset + length;
+	}
+
+	@Override
+	public void acceptComment(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength) {
+		write(' ');
+		preprocessedEnd = preprocessedOffset + preprocessedLength;
+	}
+
+	@Override
+	public void acceptComment(@NotNull char[] bufReadOnly, int offset, int length, int originalOffset, int originalLength,
+							  int preprocessedOffset) {
+		write(' ');
+		for (int i = offset; i < offset + length; i++) {
+			if (bufReadOnly[i] == '\n') {
+				lineBreak();
+			}
+		}
+		preprocessedEnd = preprocessedOffset + length;
+	}
+
+	@Override
+	public void acceptCommand(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		String name = context.getCommandName(id);
+		if (name == null) {
+			throw new IllegalStateException("the context can't resolve the name of command " + id);
+		}
+		writeToken(name, preprocessedOffset, originalOffset);
+	}
+
+	@Override
+	public void acceptCommand(int id, @NotNull char[] bufReadOnly, int offset, int length, int preprocessedOffset, int originalOffset,
+							  int originalLength) {
+		writeToken(bufReadOnly, offset, length, preprocessedOffset, originalOffset);
+	}
+
+	@Override
+	public void acceptLocalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		acceptGlobalVariable(id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptLocalVariable(int id, @NotNull char[] bufReadOnly, int offset, int length, int preprocessedOffset,
+									int originalOffset, int originalLength) {
+		writeToken(bufReadOnly, offset, length, preprocessedOffset, originalOffset);
+	}
+
+	@Override
+	public void acceptGlobalVariable(int id, @NotNull char[] bufReadOnly, int offset, int length, int preprocessedOffset,
+									 int originalOffset, int originalLength) {
+		writeToken(bufReadOnly, offset, length, preprocessedOffset, originalOffset);
+	}
+
+	@Override
+	public void acceptGlobalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		String name = context.getVariableName(id);
+		if (name == null) {
+			throw new IllegalStateException("the context can't resolve the name of variable " + id);
+		}
+		writeToken(name, preprocessedOffset, originalOffset);
+	}
+
+	@Override
+	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset, int originalOffset,
+							  int originalLength) {
+		writeToken(token, preprocessedOffset, originalOffset);
+	}
+
+	@Override
+	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull char[] bufReadOnly, int offset, int length,
+							  int preprocessedOffset, int originalOffset, int originalLength) {
+		writeToken(bufReadOnly, offset, length, preprocessedOffset, originalOffset);
+	}
+
+	@Override
+	public void preProcessorTokenSkipped(@NotNull String token, int offset) {
+		writeToken(token, offset, offset);
+	}
+
+	@Override
+	public void preProcessorCommandSkipped(@NotNull String command, int offset) {
+		writeToken(command, offset, offset);
+	}
+
+	@Override
+	public void end() {
+		flushChars();
+		try {
+			if (writer != null) {
+				writer.flush();
+			} else {
+				charBuffer.clear().limit(charCount);
+				encode(true);
+				charCount = 0;
+				encoder.flush(bytes);
+				writeBytes();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeToken(@NotNull String text, int preprocessedOffset, int originalOffset) {
+		beginToken(preprocessedOffset, originalOffset);
+		for (int i = 0; i < text.length(); i++) {
+			write(text.charAt(i));
+		}
+		preprocessedEnd = preprocessedOffset + text.length();
+	}
+
+	private void writeToken(@NotNull char[] buf, int offset, int length, int preprocessedOffset, int originalOffset) {
+		beginToken(preprocessedOffset, originalOffset);
+		write(buf, offset, length);
+		preprocessedEnd = preprocessedOffset + length;
+	}
+
+	/** Separates the token from the previous one if their whitespace wasn't submitted and writes a #line marker if needed */
+	private void beginToken(int preprocessedOffset, int originalOffset) {
+		if (preprocessedOffset > preprocessedEnd && preprocessedEnd > 0) {
+			write(' ');
+		}
+		if (lineMarkerFile != null && atLineStart) {
+			int originalLine = originalLine(originalOffset);
+			if (originalLine > line && originalLine - line <= MAX_LINE_BREAKS_INSTEAD_OF_MARKER) {
+				while (line < originalLine) {
+					lineBreak();
+				}
+			} else if (originalLine != line) {
+				if (!lineEmpty) {
+					lineBreak();
+				}
+				writeLineMarker(originalLine);
+			}
+		}
+		atLineStart = false;
+	}
+
+	/** Writes the marker on its own line, so the next line is the given line */
+	private void writeLineMarker(int originalLine) {
+		String marker = "#line " + originalLine + " \"" + lineMarkerFile + "\"";
+		for (int i = 0; i < marker.length(); i++) {
+			write(marker.charAt(i));
+		}
+		write('\n');
+		line = originalLine;
+		atLineStart = true;
+	}
+
+	/** @return the line (starting at 1) of the offset in the original input */
+	private int originalLine(int offset) {
+		offset = Math.max(0, Math.min(offset, original.length()));
+		while (originalPosition < offset) {
+			if (original.charAt(originalPosition++) == '\n') {
+				originalLine++;
+			}
+		}
+		while (originalPosition > offset) {
+			if (original.charAt(--originalPosition) == '\n') {
+				originalLine--;
+			}
+		}
+		return originalLine;
+	}
+
+	private void lineBreak() {
+		write('\n');
+		line++;
+		atLineStart = true;
+	}
+
+	private void write(char c) {
+		if (charCount == chars.length) {
+			flushChars();
+		}
+		chars[charCount++] = c;
+		lineEmpty = c == '\n';
+	}
+
+	private void write(@NotNull char[] buf, int offset, int length) {
+		while (length > 0) {
+			if (charCount == chars.length) {
+				flushChars();
+			}
+			int n = Math.min(length, chars.length - charCount);
+			System.arraycopy(buf, offset, chars, charCount, n);
+			charCount += n;
+			lineEmpty = false;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void flushChars() {
+		try {
+			if (writer != null) {
+				writer.write(chars, 0, charCount);
+			} else {
+				charBuffer.clear().limit(charCount);
+				encode(false);
+				// an unfinished surrogate pair stays in the buffer
+				charBuffer.compact();
+				charCount = charBuffer.position();
+				return;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		charCount = 0;
+	}
+
+	private void encode(boolean endOfInput) throws IOException {
+		while (true) {
+			CoderResult result = encoder.encode(charBuffer, bytes, endOfInput);
+			if (result.isOverflow()) {
+				writeBytes();
+			} else {
+				if (result.isError()) {
+					result.throwException();
+				}
+				writeBytes();
+				return;
+			}
+		}
+	}
+
+	private void writeBytes() throws IOException {
+		bytes.flip();
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		bytes.clear();
+	}
+}
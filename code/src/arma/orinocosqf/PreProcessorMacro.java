@@ -0,0 +1,352 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable macro created by <code>#define</code>. The body is compiled into
+ * a template when the macro is defined: a list of pieces that are either a span
+ * of literal text, a parameter slot or a stringified (<code>#PARAM</code>)
+ * parameter slot. <code>##</code> is resolved at that time as well (it simply
+ * joins the neighbouring pieces). Expanding the macro therefore only copies the
+ * literal spans and the arguments into the output.<br>
+ * <br>
+ * Macro names and parameter names are case-sensitive. Parameters are not
+ * replaced inside string literals of the body.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class PreProcessorMacro {
+	static final int PIECE_TEXT = 0;
+	static final int PIECE_PARAMETER = 1;
+	static final int PIECE_STRINGIFIED_PARAMETER = 2;
+
+	private final String name;
+	private final String[] parameters;
+	/** The literal text of the body, referenced by the text pieces */
+	private final char[] text;
+	/** 3 ints per piece: kind, then start and length of text or the parameter index and 0 */
+	private final int[] pieces;
+
+	private PreProcessorMacro(@NotNull String name, @Nullable String[] parameters, @NotNull char[] text, @NotNull int[] pieces) {
+		this.name = name;
+		this.parameters = parameters;
+		this.text = text;
+		this.pieces = pieces;
+	}
+
+	/**
+	 * Compiles the macro from the text of a <code>#define</code> after the
+	 * keyword, e.g. <code>MACRO(A,B) A + B</code>.
+	 *
+	 * @param buf the buffer that contains the definition
+	 * @param offset the offset of the definition (leading whitespace is skipped)
+	 * @param length the length of the definition. Line continuations (backslash
+	 *        followed by a line break) are removed.
+	 * @return the macro or null if the definition doesn't start with a macro name
+	 */
+	@Nullable
+	public static PreProcessorMacro compile(@NotNull char[] buf, int offset, int length) {
+		int end = offset + length;
+		int i = skipWhitespace(buf, offset, end);
+		int nameEnd = scanIdentifier(buf, i, end);
+		if (nameEnd == i) {
+			return null;
+		}
+		String name = new String(buf, i, nameEnd - i);
+		i = nameEnd;
+
+		String[] parameters = null;
+		if (i < end && buf[i] == '(') {
+			List<String> parameterList = new ArrayList<>();
+			i++;
+			while (i < end && buf[i] != ')') {
+				i = skipWhitespace(buf, i, end);
+				int parameterEnd = scanIdentifier(buf, i, end);
+				if (parameterEnd > i) {
+					parameterList.add(new String(buf, i, parameterEnd - i));
+				}
+				i = skipWhitespace(buf, parameterEnd, end);
+				if (i < end && buf[i] != ',' && buf[i] != ')') {
+					// malformed parameter list: skip the garbage
+					i++;
+				} else if (i < end && buf[i] == ',') {
+					i++;
+				}
+			}
+			if (i < end) {
+				i++;
+			}
+			parameters = parameterList.toArray(new String[0]);
+		}
+
+		return compileBody(name, parameters, buf, skipWhitespace(buf, i, end), end);
+	}
+
+	/**
+	 * Compiles an object-like macro with the given body (used for macros that are
+	 * predefined by the user rather than by <code>#define</code>)
+	 */
+	@NotNull
+	public static PreProcessorMacro define(@NotNull String name, @NotNull String body) {
+		char[] chars = body.toCharArray();
+		return compileBody(name, null, chars, 0, chars.length);
+	}
+
+	/**
+	 * Compiles a macro from its parts, e.g. as returned by {@link #getBody()}
+	 *
+	 * @param parameters the parameter names or null if the macro is object-like
+	 */
+	@NotNull
+	static PreProcessorMacro create(@NotNull String name, @Nullable String[] parameters, @NotNull String body) {
+		char[] chars = body.toCharArray();
+		return compileBody(name, parameters == null ? null : parameters.clone(), chars, 0, chars.length);
+	}
+
+	@NotNull
+	private static PreProcessorMacro compileBody(@NotNull String name, @Nullable String[] parameters, @NotNull char[] buf, int start,
+												 int end) {
+		// the body without line continuations and trailing whitespace
+		char[] text = new char[end - start];
+		int textLength = 0;
+		for (int i = start; i < end; i++) {
+			if (buf[i] == '\\' && isLineContinuation(buf, i + 1, end)) {
+				i = buf[i + 1] == '\r' ? i + 2 : i + 1;
+				continue;
+			}
+			text[textLength++] = buf[i];
+		}
+		while (textLength > 0 && Character.isWhitespace(text[textLength - 1])) {
+			textLength--;
+		}
+
+		PieceList pieces = new PieceList();
+		int literalStart = 0;
+		int i = 0;
+		while (i < textLength) {
+			char c = text[i];
+			if (c == '"' || c == '\'') {
+				i = skipString(text, i, textLength);
+			} else if (isIdentifierStart(c)) {
+				int identifierEnd = scanIdentifier(text, i, textLength);
+				int parameter = indexOf(parameters, text, i, identifierEnd - i);
+				if (parameter >= 0) {
+					pieces.addText(literalStart, i - literalStart);
+					pieces.add(PIECE_PARAMETER, parameter, 0);
+					literalStart = identifierEnd;
+				}
+				i = identifierEnd;
+			} else if (c == '#' && i + 1 < textLength && text[i + 1] == '#') {
+				// concatenation: drop the operator and the whitespace around it
+				int left = i;
+				while (left > literalStart && isBlank(text[left - 1])) {
+					left--;
+				}
+				pieces.addText(literalStart, left - literalStart);
+				i += 2;
+				while (i < textLength && isBlank(text[i])) {
+					i++;
+				}
+				literalStart = i;
+			} else if (c == '#' && i + 1 < textLength && isIdentifierStart(text[i + 1])) {
+				int identifierEnd = scanIdentifier(text, i + 1, textLength);
+				int parameter = indexOf(parameters, text, i + 1, identifierEnd - i - 1);
+				if (parameter >= 0) {
+					pieces.addText(literalStart, i - literalStart);
+					pieces.add(PIECE_STRINGIFIED_PARAMETER, parameter, 0);
+					literalStart = identifierEnd;
+				}
+				i = identifierEnd;
+			} else {
+				i++;
+			}
+		}
+		pieces.addText(literalStart, textLength - literalStart);
+
+		char[] trimmed = new char[textLength];
+		System.arraycopy(text, 0, trimmed, 0, textLength);
+		return new PreProcessorMacro(name, parameters, trimmed, pieces.toArray());
+	}
+
+	@NotNull
+	public String getName() {
+		return name;
+	}
+
+	/** @return true if the macro is invoked with arguments (<code>MACRO(a,b)</code>) */
+	public boolean hasParameters() {
+		return parameters != null;
+	}
+
+	/** @return the number of parameters (0 if the macro is object-like) */
+	public int getParameterCount() {
+		return parameters == null ? 0 : parameters.length;
+	}
+
+	/** @return the name of the parameter with the given index */
+	@NotNull
+	public String getParameter(int index) {
+		if (parameters == null) {
+			throw new IndexOutOfBoundsException("macro " + name + " has no parameters");
+		}
+		return parameters[index];
+	}
+
+	/** @return the body of the macro (without line continuations) */
+	@NotNull
+	public String getBody() {
+		return new String(text);
+	}
+
+	/** @return the number of template pieces */
+	int getPieceCount() {
+		return pieces.length / 3;
+	}
+
+	int getPieceKind(int piece) {
+		return pieces[3 * piece];
+	}
+
+	/** @return the start of the text piece in {@link #getText()} or the parameter index */
+	int getPieceValue(int piece) {
+		return pieces[3 * piece + 1];
+	}
+
+	/** @return the length of the text piece */
+	int getPieceLength(int piece) {
+		return pieces[3 * piece + 2];
+	}
+
+	/** @return the literal text the text pieces refer to. Must not be modified. */
+	@NotNull
+	char[] getText() {
+		return text;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("#define ").append(name);
+		if (parameters != null) {
+			sb.append('(').append(String.join(",", parameters)).append(')');
+		}
+		return sb.append(' ').append(text).toString();
+	}
+
+	/** @return true if the given macro has the same name, parameters and body */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof PreProcessorMacro)) {
+			return false;
+		}
+		PreProcessorMacro other = (PreProcessorMacro) o;
+		return name.equals(other.name) && Arrays.equals(parameters, other.parameters) && Arrays.equals(text, other.text);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * name.hashCode() + Arrays.hashCode(parameters)) + Arrays.hashCode(text);
+	}
+
+	private static int indexOf(@Nullable String[] parameters, @NotNull char[] buf, int offset, int length) {
+		if (parameters == null) {
+			return -1;
+		}
+		for (int p = 0; p < parameters.length; p++) {
+			String parameter = parameters[p];
+			if (parameter.length() != length) {
+				continue;
+			}
+			int i = 0;
+			while (i < length && parameter.charAt(i) == buf[offset + i]) {
+				i++;
+			}
+			if (i == length) {
+				return p;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isLineContinuation(@NotNull char[] buf, int i, int end) {
+		return i < end && (buf[i] == '\n' || (buf[i] == '\r' && i + 1 < end && buf[i + 1] == '\n'));
+	}
+
+	/** @return the index after the string literal that starts at <code>i</code> */
+	static int skipString(@NotNull char[] buf, int i, int end) {
+		char quote = buf[i++];
+		while (i < end) {
+			if (buf[i++] == quote) {
+				if (i < end && buf[i] == quote) {
+					i++;
+				} else {
+					break;
+				}
+			}
+		}
+		return i;
+	}
+
+	private static int skipWhitespace(@NotNull char[] buf, int i, int end) {
+		while (i < end && isBlank(buf[i])) {
+			i++;
+		}
+		return i;
+	}
+
+	static int scanIdentifier(@NotNull char[] buf, int i, int end) {
+		if (i >= end || !isIdentifierStart(buf[i])) {
+			return i;
+		}
+		i++;
+		while (i < end && (isIdentifierStart(buf[i]) || (buf[i] >= '0' && buf[i] <= '9'))) {
+			i++;
+		}
+		return i;
+	}
+
+	static boolean isIdentifierStart(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || (c >= 128 && Character.isLetter(c));
+	}
+
+	private static boolean isBlank(char c) {
+		return c == ' ' || c == '\t';
+	}
+
+	private static class PieceList {
+		private int[] pieces = new int[12];
+		private int size;
+
+		void addText(int start, int length) {
+			if (length > 0) {
+				add(PIECE_TEXT, start, length);
+			}
+		}
+
+		void add(int kind, int value, int length) {
+			if (size + 3 > pieces.length) {
+				int[] grown = new int[pieces.length * 2];
+				System.arraycopy(pieces, 0, grown, 0, size);
+				pieces = grown;
+			}
+			pieces[size++] = kind;
+			pieces[size++] = value;
+			pieces[size++] = length;
+		}
+
+		@NotNull
+		int[] toArray() {
+			int[] result = new int[size];
+			System.arraycopy(pieces, 0, result, 0, size);
+			return result;
+		}
+	}
+}
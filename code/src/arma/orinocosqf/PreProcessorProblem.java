@@ -0,0 +1,25 @@
+package arma.orinocosqf;
+
+/**
+ * The problems {@link OrinocoPreProcessor} reports to its
+ * {@link PreProcessorProblemListener}. Preprocessing continues after each of
+ * them.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public enum PreProcessorProblem {
+	/** A macro wasn't expanded because the expansions are nested too deeply */
+	ExpansionTooDeep,
+	/**
+	 * A macro invocation expanded to too much text. The rest of the invocation's
+	 * expansions are dropped.
+	 */
+	ExpansionTooLong,
+	/** The file of an #include wasn't found */
+	IncludeNotFound,
+	/** The file of an #include couldn't be read */
+	IncludeFailed,
+	/** An #include wasn't processed because the includes are nested too deeply (e.g. a file includes itself) */
+	IncludeTooDeep
+}
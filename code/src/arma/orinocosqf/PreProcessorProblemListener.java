@@ -0,0 +1,22 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives the problems that {@link OrinocoPreProcessor} encounters.
+ *
+ * @author K
+ * @since 10/18/2026
+ * @see OrinocoPreProcessor#setProblemListener(PreProcessorProblemListener)
+ */
+public interface PreProcessorProblemListener {
+	/**
+	 * @param problem the kind of problem
+	 * @param message a description for the user
+	 * @param originalOffset the offset of the macro invocation or command in the
+	 *        original input of the file that contains it
+	 * @param originalLength the length of the macro invocation or command in the
+	 *        original input
+	 */
+	void problem(@NotNull PreProcessorProblem problem, @NotNull String message, int originalOffset, int originalLength);
+}
@@ -0,0 +1,223 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the state of an {@link OrinocoPreProcessor} (the defined
+ * macros, the enclosing conditionals and the included files) in a compact
+ * binary format. This works like precompiled headers: a set of headers is
+ * preprocessed once, the state is written, and later runs restore the state
+ * instead of preprocessing the headers again.<br>
+ * <br>
+ * Layout (big endian):
+ * <pre>
+ * header:       int magic, short version, short reserved, int total length,
+ *               int include count, int macro count, int condition count
+ * includes:     per included file: short path length, chars of the canonical path,
+ *               long content hash
+ * macros:       per macro: short name length, chars of name, short parameter count
+ *               (-1 if object-like), the parameters (short length, chars),
+ *               int body length, chars of body
+ * conditionals: int[condition count] states, innermost last
+ * </pre>
+ * A snapshot is read with a single mapped read of the file. It is only
+ * restored if every included file still has the same content hash, so a
+ * changed header makes {@link #restore(Path, OrinocoPreProcessor)} fail and the
+ * headers have to be preprocessed again.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class PreProcessorSnapshot {
+	/** "OSPP" */
+	static final int MAGIC = 0x4F535050;
+	/** Increase on every change of the layout */
+	static final short VERSION = 1;
+	static final int HEADER_SIZE = 24;
+
+	private PreProcessorSnapshot() {
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file and moves it to <code>file</code>, so
+	 * concurrent readers never see a partially written snapshot.
+	 *
+	 * @param preProcessor the preprocessor whose state is written
+	 * @param file the snapshot file
+	 * @throws IOException if the file can't be written
+	 */
+	public static void write(@NotNull OrinocoPreProcessor preProcessor, @NotNull Path file) throws IOException {
+		byte[] bytes = toBytes(preProcessor);
+		Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temp, bytes);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Replaces the state of the preprocessor with the state stored in the snapshot
+	 * (the preprocessor gets a new {@link MacroTable}). The preprocessor isn't
+	 * changed if this method fails.
+	 *
+	 * @param file the snapshot file
+	 * @param preProcessor the preprocessor to restore
+	 * @throws IOException if the file can't be read, is no snapshot, was written by
+	 *         another format version, is corrupt or an included file has changed
+	 *         (or can't be read)
+	 */
+	public static void restore(@NotNull Path file, @NotNull OrinocoPreProcessor preProcessor) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		try {
+			restore(buffer, preProcessor);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e) {
+			throw new IOException("corrupt preprocessor snapshot " + file, e);
+		}
+	}
+
+	@NotNull
+	static byte[] toBytes(@NotNull OrinocoPreProcessor preProcessor) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		Map<Path, Long> includes = preProcessor.getIncludedFiles();
+		List<PreProcessorMacro> macros = new ArrayList<>();
+		preProcessor.getMacroTable().forEach(macros::add);
+		int[] conditions = preProcessor.getConditions();
+
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(0);
+		out.writeInt(0); // total length, patched below
+		out.writeInt(includes.size());
+		out.writeInt(macros.size());
+		out.writeInt(conditions.length);
+		for (Map.Entry<Path, Long> include : includes.entrySet()) {
+			writeString(out, include.getKey().toString());
+			out.writeLong(include.getValue());
+		}
+		for (PreProcessorMacro macro : macros) {
+			writeString(out, macro.getName());
+			out.writeShort(macro.hasParameters() ? macro.getParameterCount() : -1);
+			for (int i = 0; i < macro.getParameterCount(); i++) {
+				writeString(out, macro.getParameter(i));
+			}
+			String body = macro.getBody();
+			out.writeInt(body.length());
+			out.writeChars(body);
+		}
+		for (int condition : conditions) {
+			out.writeInt(condition);
+		}
+		out.flush();
+
+		byte[] result = bytes.toByteArray();
+		ByteBuffer.wrap(result).putInt(8, result.length);
+		return result;
+	}
+
+	static void restore(@NotNull ByteBuffer buffer, @NotNull OrinocoPreProcessor preProcessor) throws IOException {
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("not a preprocessor snapshot");
+		}
+		short version = buffer.getShort(4);
+		if (version != VERSION) {
+			throw new IOException("unsupported preprocessor snapshot version " + version + " (expected " + VERSION + ")");
+		}
+		int length = buffer.getInt(8);
+		int includeCount = buffer.getInt(12);
+		int macroCount = buffer.getInt(16);
+		int conditionCount = buffer.getInt(20);
+		if (length != buffer.limit() || includeCount < 0 || macroCount < 0 || conditionCount < 0
+				|| conditionCount > (length - HEADER_SIZE) / 4) {
+			throw new IOException("corrupt preprocessor snapshot header");
+		}
+		buffer.position(HEADER_SIZE);
+
+		Map<Path, Long> includes = new LinkedHashMap<>();
+		for (int i = 0; i < includeCount; i++) {
+			Path path = Paths.get(readString(buffer));
+			long contentHash = buffer.getLong();
+			CharBuffer content;
+			try {
+				content = IncludeCache.readContent(path);
+			} catch (IOException e) {
+				throw new IOException("included file " + path + " can't be read", e);
+			}
+			if (IncludeCache.contentHash(content.array(), content.arrayOffset() + content.position(), content.remaining()) != contentHash) {
+				throw new IOException("included file " + path + " has changed");
+			}
+			includes.put(path, contentHash);
+		}
+
+		MacroTable macros = new MacroTable();
+		for (int i = 0; i < macroCount; i++) {
+			String name = readString(buffer);
+			int parameterCount = buffer.getShort();
+			String[] parameters = null;
+			if (parameterCount >= 0) {
+				parameters = new String[parameterCount];
+				for (int p = 0; p < parameterCount; p++) {
+					parameters[p] = readString(buffer);
+				}
+			}
+			int bodyLength = buffer.getInt();
+			if (bodyLength < 0 || bodyLength > buffer.remaining() / 2) {
+				throw new IOException("corrupt preprocessor snapshot: body of " + name + " exceeds the file");
+			}
+			char[] body = new char[bodyLength];
+			for (int c = 0; c < body.length; c++) {
+				body[c] = buffer.getChar();
+			}
+			macros.define(PreProcessorMacro.create(name, parameters, new String(body)));
+		}
+
+		int[] conditions = new int[conditionCount];
+		for (int i = 0; i < conditionCount; i++) {
+			conditions[i] = buffer.getInt();
+		}
+		if (buffer.hasRemaining()) {
+			throw new IOException("corrupt preprocessor snapshot: " + buffer.remaining() + " trailing bytes");
+		}
+		preProcessor.restore(macros, conditions, includes);
+	}
+
+	private static void writeString(@NotNull DataOutputStream out, @NotNull String s) throws IOException {
+		out.writeShort(s.length());
+		out.writeChars(s);
+	}
+
+	@NotNull
+	private static String readString(@NotNull ByteBuffer in) {
+		char[] chars = new char[in.getShort() & 0xFFFF];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = in.getChar();
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,292 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Maps offsets in the preprocessed input of a file back to the original input
+ * and to the macro invocations and includes that produced them. It is recorded
+ * by {@link OrinocoPreProcessor} (see
+ * {@link OrinocoPreProcessor#setSourceMap(PreProcessorSourceMap)}).<br>
+ * <br>
+ * The map is a list of intervals of the preprocessed input, each of one of
+ * these kinds:
+ * <ul>
+ * <li>{@link #KIND_TEXT}: text that was copied from the original input, so
+ * each preprocessed offset maps linearly to an original offset</li>
+ * <li>{@link #KIND_MACRO}: the expansion of a macro, which maps to the span of
+ * the invocation</li>
+ * <li>{@link #KIND_INCLUDE}: the content of an included file, which maps to
+ * the span of the <code>#include</code> command</li>
+ * </ul>
+ * Expansions within expansions and the intervals of included files are nested
+ * in the interval that contains them (see {@link #getParent(int)}); the
+ * original span of an interval is in the file given by {@link #getFile(int)}.
+ * The intervals are stored in parallel primitive arrays sorted by their start,
+ * so the map doesn't allocate per interval and {@link #find(int)} is a binary
+ * search followed by a walk up the (at most expansion depth long) parent chain.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public final class PreProcessorSourceMap {
+	/** Text that was copied from the original input */
+	public static final int KIND_TEXT = 0;
+	/** The expansion of a macro invocation */
+	public static final int KIND_MACRO = 1;
+	/** The content of an included file */
+	public static final int KIND_INCLUDE = 2;
+
+	/** The end of intervals that are still open */
+	private static final int OPEN = Integer.MAX_VALUE;
+
+	private int[] preprocessedStarts = new int[16];
+	private int[] preprocessedEnds = new int[16];
+	private int[] originalOffsets = new int[16];
+	private int[] originalLengths = new int[16];
+	/** The index of the enclosing interval (-1 if there is none) */
+	private int[] parents = new int[16];
+	/** The index of the file of the original span in {@link #fileTable} (-1 for the mapped file itself) */
+	private int[] files = new int[16];
+	private byte[] kinds = new byte[16];
+	/** The macro (KIND_MACRO) or the canonical path of the included file (KIND_INCLUDE) */
+	private Object[] refs = new Object[16];
+	private int size;
+
+	private Path[] fileTable = new Path[4];
+	private int fileCount;
+	/** The macro intervals that are still open, innermost last */
+	private int[] openExpansions = new int[8];
+	private int openExpansionCount;
+	/** The text interval that ends where the next top level interval starts (-1 if none) */
+	private int openText = -1;
+
+	/** @return the number of intervals */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the index of the innermost interval that contains the preprocessed
+	 *         offset or -1 if there is none
+	 */
+	public int find(int preprocessedOffset) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (preprocessedStarts[mid] <= preprocessedOffset) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		// high is the last interval that starts at or before the offset
+		int i = high;
+		while (i >= 0 && preprocessedEnds[i] <= preprocessedOffset) {
+			i = parents[i];
+		}
+		return i;
+	}
+
+	/**
+	 * @return the offset in the original input of the mapped file that produced
+	 *         the preprocessed offset: the offset of the copied char, or the
+	 *         start of the outermost macro invocation or #include command. If no
+	 *         interval contains the offset, the offset itself is returned.
+	 */
+	public int toOriginalOffset(int preprocessedOffset) {
+		int i = find(preprocessedOffset);
+		if (i < 0) {
+			return preprocessedOffset;
+		}
+		while (parents[i] >= 0) {
+			i = parents[i];
+		}
+		if (kinds[i] == KIND_TEXT) {
+			return originalOffsets[i] + preprocessedOffset - preprocessedStarts[i];
+		}
+		return originalOffsets[i];
+	}
+
+	/** @return {@link #KIND_TEXT}, {@link #KIND_MACRO} or {@link #KIND_INCLUDE} */
+	public int getKind(int interval) {
+		return kinds[interval];
+	}
+
+	public int getPreprocessedStart(int interval) {
+		return preprocessedStarts[interval];
+	}
+
+	/** @return the preprocessed offset after the interval ({@link Integer#MAX_VALUE} while it is recorded) */
+	public int getPreprocessedEnd(int interval) {
+		return preprocessedEnds[interval];
+	}
+
+	/** @return the offset of the original span in {@link #getFile(int)} */
+	public int getOriginalOffset(int interval) {
+		return originalOffsets[interval];
+	}
+
+	public int getOriginalLength(int interval) {
+		return originalLengths[interval];
+	}
+
+	/** @return the index of the interval that contains the interval or -1 if it is at top level */
+	public int getParent(int interval) {
+		return parents[interval];
+	}
+
+	/** @return the canonical path of the file that contains the original span, or null for the mapped file itself */
+	@Nullable
+	public Path getFile(int interval) {
+		return files[interval] < 0 ? null : fileTable[files[interval]];
+	}
+
+	/** @return the expanded macro of a {@link #KIND_MACRO} interval, else null */
+	@Nullable
+	public PreProcessorMacro getMacro(int interval) {
+		return kinds[interval] == KIND_MACRO ? (PreProcessorMacro) refs[interval] : null;
+	}
+
+	/** @return the canonical path of the included file of a {@link #KIND_INCLUDE} interval, else null */
+	@Nullable
+	public Path getIncludedFile(int interval) {
+		return kinds[interval] == KIND_INCLUDE ? (Path) refs[interval] : null;
+	}
+
+	/** Removes all intervals */
+	void clear() {
+		Arrays.fill(refs, 0, size, null);
+		Arrays.fill(fileTable, 0, fileCount, null);
+		size = 0;
+		fileCount = 0;
+		openExpansionCount = 0;
+		openText = -1;
+	}
+
+	/**
+	 * Starts a text interval at top level. It ends where the next top level
+	 * interval starts.
+	 */
+	void text(int preprocessedOffset, int originalOffset) {
+		if (openText >= 0 && originalOffsets[openText] - preprocessedStarts[openText] == originalOffset - preprocessedOffset) {
+			// the text continues
+			return;
+		}
+		openText = add(KIND_TEXT, preprocessedOffset, originalOffset, 0, -1, -1, null);
+	}
+
+	/** Starts the interval of an expansion, nested in the expansion that is being recorded (if any) */
+	void beginExpansion(int preprocessedOffset, int originalOffset, int originalLength, @NotNull PreProcessorMacro macro) {
+		int parent = openExpansionCount == 0 ? -1 : openExpansions[openExpansionCount - 1];
+		if (openExpansionCount == openExpansions.length) {
+			openExpansions = Arrays.copyOf(openExpansions, openExpansionCount * 2);
+		}
+		openExpansions[openExpansionCount++] = add(KIND_MACRO, preprocessedOffset, originalOffset, originalLength, parent, -1, macro);
+	}
+
+	/** Ends the interval of the innermost expansion */
+	void endExpansion(int preprocessedOffset) {
+		if (openExpansionCount > 0) {
+			preprocessedEnds[openExpansions[--openExpansionCount]] = preprocessedOffset;
+		}
+	}
+
+	/**
+	 * Adds the interval of an included file at top level
+	 *
+	 * @param included the map of the included file, whose intervals are added
+	 *        (shifted to the start of the interval) as children of the interval
+	 */
+	void include(int preprocessedStart, int preprocessedEnd, int originalOffset, int originalLength, @NotNull Path includedFile,
+				 @Nullable PreProcessorSourceMap included) {
+		int interval = add(KIND_INCLUDE, preprocessedStart, originalOffset, originalLength, -1, -1, includedFile);
+		preprocessedEnds[interval] = preprocessedEnd;
+		if (included == null) {
+			return;
+		}
+		int includedFileIndex = fileIndex(includedFile);
+		for (int i = 0; i < included.size; i++) {
+			int parent = included.parents[i] < 0 ? interval : interval + 1 + included.parents[i];
+			int file = included.files[i] < 0 ? includedFileIndex : fileIndex(included.fileTable[included.files[i]]);
+			int child = add(included.kinds[i], preprocessedStart + included.preprocessedStarts[i], included.originalOffsets[i],
+					included.originalLengths[i], parent, file, included.refs[i]);
+			int end = included.preprocessedEnds[i];
+			preprocessedEnds[child] = end == OPEN ? preprocessedEnd : Math.min(preprocessedStart + end, preprocessedEnd);
+		}
+	}
+
+	/** Ends the open intervals at the end of the preprocessed input */
+	void finish(int preprocessedOffset) {
+		while (openExpansionCount > 0) {
+			endExpansion(preprocessedOffset);
+		}
+		if (openText >= 0) {
+			preprocessedEnds[openText] = preprocessedOffset;
+			openText = -1;
+		}
+	}
+
+	/** Reduces the arrays to the number of intervals */
+	void trimToSize() {
+		resize(size);
+		fileTable = Arrays.copyOf(fileTable, fileCount);
+	}
+
+	/** @return an estimate of the heap memory this map retains, in bytes */
+	long getRetainedSize() {
+		return 64 + 33L * preprocessedStarts.length + 8L * fileTable.length;
+	}
+
+	private int add(int kind, int preprocessedStart, int originalOffset, int originalLength, int parent, int file, @Nullable Object ref) {
+		if (parent < 0 && openText >= 0) {
+			// a top level interval ends the text
+			preprocessedEnds[openText] = preprocessedStart;
+			if (openText == size - 1 && preprocessedStarts[openText] == preprocessedStart) {
+				// empty
+				size--;
+			}
+			openText = -1;
+		}
+		if (size == preprocessedStarts.length) {
+			resize(Math.max(16, size * 2));
+		}
+		preprocessedStarts[size] = preprocessedStart;
+		preprocessedEnds[size] = OPEN;
+		originalOffsets[size] = originalOffset;
+		originalLengths[size] = originalLength;
+		parents[size] = parent;
+		files[size] = file;
+		kinds[size] = (byte) kind;
+		refs[size] = ref;
+		return size++;
+	}
+
+	private int fileIndex(@NotNull Path file) {
+		for (int i = 0; i < fileCount; i++) {
+			if (fileTable[i].equals(file)) {
+				return i;
+			}
+		}
+		if (fileCount == fileTable.length) {
+			fileTable = Arrays.copyOf(fileTable, Math.max(4, fileCount * 2));
+		}
+		fileTable[fileCount] = file;
+		return fileCount++;
+	}
+
+	private void resize(int capacity) {
+		preprocessedStarts = Arrays.copyOf(preprocessedStarts, capacity);
+		preprocessedEnds = Arrays.copyOf(preprocessedEnds, capacity);
+		originalOffsets = Arrays.copyOf(originalOffsets, capacity);
+		originalLengths = Arrays.copyOf(originalLengths, capacity);
+		parents = Arrays.copyOf(parents, capacity);
+		files = Arrays.copyOf(files, capacity);
+		kinds = Arrays.copyOf(kinds, capacity);
+		refs = Arrays.copyOf(refs, capacity);
+	}
+}
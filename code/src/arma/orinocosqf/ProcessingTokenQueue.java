@@ -0,0 +1,78 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A {@link OrinocoTokenQueue} that submits the tokens to a processor as they
+ * arrive, so it is always empty. Draining a queue into it processes the
+ * queue's tokens on the draining thread.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+final class ProcessingTokenQueue extends OrinocoTokenQueue {
+	private final OrinocoTokenProcessor processor;
+
+	ProcessingTokenQueue(@NotNull OrinocoTokenProcessor processor) {
+		this.processor = processor;
+	}
+
+	@Override
+	public void drainTo(@NotNull OrinocoTokenQueue other) {
+	}
+
+	@Override
+	public boolean poll(@NotNull OrinocoTokenProcessor processor) {
+		return false;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return true;
+	}
+
+	@Override
+	public void begin() {
+	}
+
+	@Override
+	public void acceptCommand(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		processor.acceptCommand(id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptLocalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		processor.acceptLocalVariable(id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptGlobalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		processor.acceptGlobalVariable(id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset, int originalOffset,
+							  int originalLength) {
+		processor.acceptLiteral(type, token, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull char[] bufReadOnly, int offset, int length,
+							  int preprocessedOffset, int originalOffset, int originalLength) {
+		processor.acceptLiteral(type, bufReadOnly, offset, length, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void preProcessorTokenSkipped(@NotNull String token, int offset) {
+		processor.preProcessorTokenSkipped(token, offset);
+	}
+
+	@Override
+	public void preProcessorCommandSkipped(@NotNull String command, int offset) {
+		processor.preProcessorCommandSkipped(command, offset);
+	}
+
+	@Override
+	public void end() {
+	}
+}
@@ -0,0 +1,34 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable {@link Command} whose syntax list is given up front.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class SimpleCommand extends CommandHeader {
+	private final List<CommandSyntax> syntaxList;
+
+	/**
+	 * @param name the camelCase name
+	 * @param id the id (see {@link CommandDatabase})
+	 * @param precedence the precedence (higher means higher precedence)
+	 * @param syntaxList all syntaxes of the command
+	 */
+	public SimpleCommand(@NotNull String name, int id, int precedence, @NotNull List<? extends CommandSyntax> syntaxList) {
+		super(name, id, precedence, getArity(syntaxList));
+		this.syntaxList = Collections.unmodifiableList(new ArrayList<>(syntaxList));
+	}
+
+	@NotNull
+	@Override
+	public List<CommandSyntax> getSyntaxList() {
+		return syntaxList;
+	}
+}
@@ -0,0 +1,58 @@
+package arma.orinocosqf;
+
+import arma.orinocosqf.type.ValueType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An immutable {@link CommandSyntax}.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class SimpleCommandSyntax implements CommandSyntax {
+	private final ValueType leftArgumentType;
+	private final ValueType rightArgumentType;
+	private final ValueType returnType;
+
+	/**
+	 * @param leftArgumentType the type of the left argument or null if there is none
+	 * @param rightArgumentType the type of the right argument or null if there is
+	 *        none
+	 * @param returnType the type of the returned value
+	 * @throws IllegalArgumentException if there is a left but no right argument
+	 */
+	public SimpleCommandSyntax(@Nullable ValueType leftArgumentType, @Nullable ValueType rightArgumentType,
+							   @NotNull ValueType returnType) {
+		if (leftArgumentType != null && rightArgumentType == null) {
+			throw new IllegalArgumentException("a syntax with a left argument needs a right argument");
+		}
+		this.leftArgumentType = leftArgumentType;
+		this.rightArgumentType = rightArgumentType;
+		this.returnType = returnType;
+	}
+
+	@Nullable
+	@Override
+	public ValueType getLeftArgumentType() {
+		return leftArgumentType;
+	}
+
+	@Nullable
+	@Override
+	public ValueType getRightArgumentType() {
+		return rightArgumentType;
+	}
+
+	@NotNull
+	@Override
+	public ValueType getReturnType() {
+		return returnType;
+	}
+
+	@Override
+	public String toString() {
+		return (leftArgumentType == null ? "" : leftArgumentType.getDisplayName() + " ") + "CMD"
+				+ (rightArgumentType == null ? "" : " " + rightArgumentType.getDisplayName()) + " -> " + returnType.getDisplayName();
+	}
+}
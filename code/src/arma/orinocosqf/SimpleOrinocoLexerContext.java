@@ -0,0 +1,87 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An {@link OrinocoLexerContext} that knows a fixed set of commands and assigns
+ * variable ids in the order the variables are encountered. Both command and
+ * variable ids start at 0. Commands are resolved by a {@link CommandLookupTable}
+ * and variable ids are kept in an {@link IdentifierInterner}, so a context can be
+ * shared by lexers that run on different threads; all of them then get the same
+ * id for the same variable.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class SimpleOrinocoLexerContext implements OrinocoLexerContext {
+	/**
+	 * All (structural) operators of SQF. They are lexed as commands and are
+	 * therefore known to every context by default.
+	 */
+	public static final String[] OPERATORS = {"=", "==", "!=", "<", ">", "<=", ">=", ">>", "&&", "||", "!", "+", "-", "*", "/", "%",
+			"^", ":", ";", ",", "(", ")", "[", "]", "{", "}", "#"};
+
+	private final CommandLookupTable commands;
+	private final IdentifierInterner variables;
+
+	/** Creates a context that only knows {@link #OPERATORS} as commands */
+	public SimpleOrinocoLexerContext() {
+		this(Arrays.asList(OPERATORS));
+	}
+
+	/**
+	 * @param commandNames the names of all commands. Ids are assigned in the
+	 *        iteration order of this collection.
+	 */
+	public SimpleOrinocoLexerContext(@NotNull Collection<String> commandNames) {
+		this(commandNames, new IdentifierInterner());
+	}
+
+	/**
+	 * @param commandNames the names of all commands. Ids are assigned in the
+	 *        iteration order of this collection.
+	 * @param variables the interner that assigns the variable ids. It may be
+	 *        shared with other contexts.
+	 */
+	public SimpleOrinocoLexerContext(@NotNull Collection<String> commandNames, @NotNull IdentifierInterner variables) {
+		this(new CommandLookupTable(commandNames), variables);
+	}
+
+	/**
+	 * @param commands the table that resolves the command ids, e.g.
+	 *        {@link CommandDatabase#getLookupTable()}
+	 * @param variables the interner that assigns the variable ids. It may be
+	 *        shared with other contexts.
+	 */
+	public SimpleOrinocoLexerContext(@NotNull CommandLookupTable commands, @NotNull IdentifierInterner variables) {
+		this.commands = commands;
+		this.variables = variables;
+	}
+
+	@Override
+	public int getCommandId(@NotNull char[] bufReadOnly, int offset, int length) {
+		return commands.getId(bufReadOnly, offset, length);
+	}
+
+	@Override
+	public int getVariableId(@NotNull char[] bufReadOnly, int offset, int length) {
+		return variables.intern(bufReadOnly, offset, length);
+	}
+
+	/** @return the name of the command with the given id as it was passed to the constructor */
+	@Override
+	@NotNull
+	public String getCommandName(int id) {
+		return commands.getName(id);
+	}
+
+	/** @return the name of the variable with the given id as it was first encountered */
+	@Override
+	@NotNull
+	public String getVariableName(int id) {
+		return variables.getName(id);
+	}
+}
@@ -1,12 +1,176 @@
 package arma.orinocosqf;
 
+import org.jetbrains.annotations.NotNull;
+
 /**
  * A type of {@link OrinocoTokenProcessor} that collects whole statements and
  * then submits a filled {@link OrinocoTokenQueue} to a
- * {@link StatementProcessingScheduler}.
+ * {@link StatementProcessingScheduler}.<br>
+ * <br>
+ * A statement ends with a <code>;</code> or <code>,</code> that is not nested
+ * in brackets (<code>[]</code>, <code>{}</code> or <code>()</code>), so a code
+ * block is part of the statement it occurs in. The separator is the last token
+ * of its statement. Statements are collected in the queue until it holds at
+ * least the batch size of tokens; then the queue is scheduled. That way the
+ * scheduler deals with batches of small statements rather than with each of
+ * them. The queue is a {@link BoundedOrinocoTokenQueue} whose tokens are only
+ * published when it is drained, so a scheduled batch holds whole statements
+ * only. {@link #end()} schedules the remaining tokens (even if the last
+ * statement has no separator).<br>
+ * <br>
+ * The scheduler may throttle this processor (and the lexer that feeds it) by
+ * blocking in {@link StatementProcessingScheduler#scheduleQueue(OrinocoTokenQueue)}
+ * (see {@link BackpressurePolicy}). Unbalanced closing brackets are ignored.
+ * This class is not thread-safe.
  *
  * @author K
  * @since 02/21/2019
  */
-public abstract class StatementCollectionTokenProcessor implements OrinocoTokenProcessor {
+public class StatementCollectionTokenProcessor implements OrinocoTokenProcessor {
+	/** The default minimum number of tokens of a scheduled batch */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private final StatementProcessingScheduler scheduler;
+	private final int batchSize;
+	private final BoundedOrinocoTokenQueue queue;
+
+	private final int semicolonId;
+	private final int commaId;
+	private final int[] openingIds;
+	private final int[] closingIds;
+
+	/** The number of open brackets */
+	private int depth;
+	/** The number of tokens of the queue that belong to complete statements */
+	private int completeCount;
+	private int statementCount;
+	private int batchCount;
+
+	/**
+	 * @param context the context of the lexer, which resolves the ids of the
+	 *        separators and brackets
+	 * @param scheduler the scheduler the batches are submitted to
+	 */
+	public StatementCollectionTokenProcessor(@NotNull OrinocoLexerContext context, @NotNull StatementProcessingScheduler scheduler) {
+		this(context, scheduler, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param context the context of the lexer, which resolves the ids of the
+	 *        separators and brackets
+	 * @param scheduler the scheduler the batches are submitted to
+	 * @param batchSize the minimum number of tokens of a batch (1 schedules every
+	 *        statement on its own)
+	 */
+	public StatementCollectionTokenProcessor(@NotNull OrinocoLexerContext context, @NotNull StatementProcessingScheduler scheduler,
+											 int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize=" + batchSize);
+		}
+		this.scheduler = scheduler;
+		this.batchSize = batchSize;
+		this.queue = new BoundedOrinocoTokenQueue(1, batchSize);
+		this.semicolonId = commandId(context, ";");
+		this.commaId = commandId(context, ",");
+		this.openingIds = new int[]{commandId(context, "["), commandId(context, "{"), commandId(context, "(")};
+		this.closingIds = new int[]{commandId(context, "]"), commandId(context, "}"), commandId(context, ")")};
+	}
+
+	private static int commandId(@NotNull OrinocoLexerContext context, @NotNull String command) {
+		return context.getCommandId(command.toCharArray(), 0, command.length());
+	}
+
+	/** @return the number of statements collected since {@link #begin()} */
+	public int getStatementCount() {
+		return statementCount;
+	}
+
+	/** @return the number of batches scheduled since {@link #begin()} */
+	public int getBatchCount() {
+		return batchCount;
+	}
+
+	@Override
+	public void begin() {
+		depth = 0;
+		completeCount = 0;
+		statementCount = 0;
+		batchCount = 0;
+	}
+
+	@Override
+	public void acceptCommand(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		queue.acceptCommand(id, preprocessedOffset, originalOffset, originalLength);
+		if (id < 0) {
+			return;
+		}
+		if (depth == 0 && (id == semicolonId || id == commaId)) {
+			statementEnded();
+		} else if (contains(openingIds, id)) {
+			depth++;
+		} else if (depth > 0 && contains(closingIds, id)) {
+			depth--;
+		}
+	}
+
+	private static boolean contains(@NotNull int[] ids, int id) {
+		return ids[0] == id || ids[1] == id || ids[2] == id;
+	}
+
+	private void statementEnded() {
+		statementCount++;
+		completeCount = queue.getUnpublishedCount();
+		if (completeCount >= batchSize) {
+			schedule();
+		}
+	}
+
+	private void schedule() {
+		completeCount = 0;
+		batchCount++;
+		scheduler.scheduleQueue(queue);
+	}
+
+	@Override
+	public void acceptLocalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		queue.acceptLocalVariable(id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptGlobalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		queue.acceptGlobalVariable(id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset, int originalOffset,
+							  int originalLength) {
+		queue.acceptLiteral(type, token, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull char[] bufReadOnly, int offset, int length,
+							  int preprocessedOffset, int originalOffset, int originalLength) {
+		queue.acceptLiteral(type, bufReadOnly, offset, length, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void preProcessorTokenSkipped(@NotNull String token, int offset) {
+		queue.preProcessorTokenSkipped(token, offset);
+	}
+
+	@Override
+	public void preProcessorCommandSkipped(@NotNull String command, int offset) {
+		queue.preProcessorCommandSkipped(command, offset);
+	}
+
+	@Override
+	public void end() {
+		if (queue.getUnpublishedCount() > completeCount) {
+			// the last statement has no separator
+			statementCount++;
+		}
+		if (queue.getUnpublishedCount() > 0) {
+			schedule();
+		}
+	}
 }
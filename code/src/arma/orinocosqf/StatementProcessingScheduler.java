@@ -10,6 +10,8 @@ import org.jetbrains.annotations.NotNull;
  *
  * @author K
  * @since 02/20/2019
+ * @see SynchronousStatementProcessingScheduler
+ * @see ForkJoinStatementProcessingScheduler
  */
 public interface StatementProcessingScheduler {
 	/**
@@ -19,4 +21,14 @@ public interface StatementProcessingScheduler {
 	 * @param queue the queue to drain
 	 */
 	void scheduleQueue(@NotNull OrinocoTokenQueue queue);
+
+	/**
+	 * Waits until all scheduled queues have been processed and invokes
+	 * {@link StatementProcessor#end()} on the processors. No queue may be
+	 * scheduled afterwards. By default this does nothing, which suits schedulers
+	 * that process a queue before {@link #scheduleQueue(OrinocoTokenQueue)}
+	 * returns and don't own their processors.
+	 */
+	default void finish() {
+	}
 }
@@ -0,0 +1,54 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A {@link StatementProcessingScheduler} that processes each queue on the
+ * scheduling thread, before {@link #scheduleQueue(OrinocoTokenQueue)} returns,
+ * with a single {@link StatementProcessor}. It has the same contract as
+ * {@link ForkJoinStatementProcessingScheduler}: the processor is begun before
+ * the first batch and ended by {@link #finish()}. The worker queue the queues
+ * are drained to submits the tokens to the processor right away, so they are
+ * not copied.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class SynchronousStatementProcessingScheduler implements StatementProcessingScheduler {
+	private final StatementProcessor processor;
+	private final ProcessingTokenQueue worker;
+	private boolean begun;
+	private boolean finished;
+
+	public SynchronousStatementProcessingScheduler(@NotNull StatementProcessor processor) {
+		this.processor = processor;
+		this.worker = new ProcessingTokenQueue(processor);
+	}
+
+	@NotNull
+	public StatementProcessor getProcessor() {
+		return processor;
+	}
+
+	@Override
+	public void scheduleQueue(@NotNull OrinocoTokenQueue queue) {
+		if (finished) {
+			throw new IllegalStateException("finished");
+		}
+		if (!begun) {
+			begun = true;
+			processor.begin();
+		}
+		queue.drainTo(worker);
+	}
+
+	@Override
+	public void finish() {
+		if (!finished) {
+			finished = true;
+			if (begun) {
+				processor.end();
+			}
+		}
+	}
+}
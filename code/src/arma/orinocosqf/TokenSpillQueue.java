@@ -0,0 +1,281 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A FIFO queue of token batches in a temporary file, for batches that don't fit
+ * into memory (see {@link BackpressurePolicy#Spill}). The tokens submitted via
+ * the {@link OrinocoTokenProcessor} methods are appended to the file and
+ * {@link #endBatch()} ends a batch; {@link #poll(OrinocoTokenProcessor)} reads
+ * the oldest batch back. The file is created when the first token is spilled
+ * and deleted whenever all batches have been read, so it only grows during a
+ * burst. A batch must not be read while it is being written.<br>
+ * <br>
+ * The methods are synchronized. Errors of the file are rethrown as
+ * {@link UncheckedIOException}.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+final class TokenSpillQueue extends OrinocoTokenQueue implements AutoCloseable {
+	private static final byte COMMAND = 0;
+	private static final byte LOCAL_VARIABLE = 1;
+	private static final byte GLOBAL_VARIABLE = 2;
+	private static final byte LITERAL = 3;
+	private static final byte TOKEN_SKIPPED = 4;
+	private static final byte COMMAND_SKIPPED = 5;
+	private static final byte END_OF_BATCH = 6;
+
+	private static final OrinocoLexerSQFLiteralType[] LITERAL_TYPES = OrinocoLexerSQFLiteralType.values();
+
+	private Path file;
+	private DataOutputStream out;
+	private DataInputStream in;
+	/** The number of batches that were ended and not read yet */
+	private int batchCount;
+	private long spilledBatchCount;
+	private long spilledTokenCount;
+
+	/** @return the number of batches that were spilled in total */
+	synchronized long getSpilledBatchCount() {
+		return spilledBatchCount;
+	}
+
+	/** @return the number of tokens that were spilled in total */
+	synchronized long getSpilledTokenCount() {
+		return spilledTokenCount;
+	}
+
+	/** Ends the batch of the tokens that were submitted since the last batch ended */
+	synchronized void endBatch() {
+		try {
+			output().writeByte(END_OF_BATCH);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		batchCount++;
+		spilledBatchCount++;
+	}
+
+	@Override
+	public synchronized boolean isEmpty() {
+		return batchCount == 0;
+	}
+
+	/** Reads the oldest batch and submits its tokens to the processor */
+	@Override
+	public synchronized boolean poll(@NotNull OrinocoTokenProcessor processor) {
+		if (batchCount == 0) {
+			return false;
+		}
+		try {
+			// the batch may still be in the output buffer
+			out.flush();
+			if (in == null) {
+				in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+			}
+			readBatch(processor);
+			batchCount--;
+			if (batchCount == 0) {
+				close();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return true;
+	}
+
+	private void readBatch(@NotNull OrinocoTokenProcessor processor) throws IOException {
+		while (true) {
+			byte kind = in.readByte();
+			switch (kind) {
+				case COMMAND: {
+					processor.acceptCommand(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+					break;
+				}
+				case LOCAL_VARIABLE: {
+					processor.acceptLocalVariable(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+					break;
+				}
+				case GLOBAL_VARIABLE: {
+					processor.acceptGlobalVariable(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+					break;
+				}
+				case LITERAL: {
+					OrinocoLexerSQFLiteralType type = LITERAL_TYPES[in.readByte()];
+					int preprocessedOffset = in.readInt();
+					int originalOffset = in.readInt();
+					int originalLength = in.readInt();
+					char[] text = readChars();
+					processor.acceptLiteral(type, text, 0, text.length, preprocessedOffset, originalOffset, originalLength);
+					break;
+				}
+				case TOKEN_SKIPPED: {
+					String token = new String(readChars());
+					processor.preProcessorTokenSkipped(token, in.readInt());
+					break;
+				}
+				case COMMAND_SKIPPED: {
+					String command = new String(readChars());
+					processor.preProcessorCommandSkipped(command, in.readInt());
+					break;
+				}
+				case END_OF_BATCH: {
+					return;
+				}
+				default: {
+					throw new IOException("corrupt spill file " + file + ": record " + kind);
+				}
+			}
+		}
+	}
+
+	@NotNull
+	private char[] readChars() throws IOException {
+		char[] chars = new char[in.readInt()];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = in.readChar();
+		}
+		return chars;
+	}
+
+	/** Moves all batches to the other queue, publishing each if it is a {@link BoundedOrinocoTokenQueue} */
+	@Override
+	public synchronized void drainTo(@NotNull OrinocoTokenQueue other) {
+		while (poll(other)) {
+			if (other instanceof BoundedOrinocoTokenQueue) {
+				((BoundedOrinocoTokenQueue) other).publish();
+			}
+		}
+	}
+
+	/** Deletes the file (all batches that weren't read are lost) */
+	@Override
+	public synchronized void close() {
+		batchCount = 0;
+		try {
+			if (in != null) {
+				in.close();
+			}
+			if (out != null) {
+				out.close();
+			}
+			if (file != null) {
+				Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			in = null;
+			out = null;
+			file = null;
+		}
+	}
+
+	@NotNull
+	private DataOutputStream output() throws IOException {
+		if (out == null) {
+			file = Files.createTempFile("orinoco-spill", ".tokens");
+			out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+		}
+		return out;
+	}
+
+	private void writeId(byte kind, int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		try {
+			DataOutputStream out = output();
+			out.writeByte(kind);
+			out.writeInt(id);
+			out.writeInt(preprocessedOffset);
+			out.writeInt(originalOffset);
+			out.writeInt(originalLength);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		spilledTokenCount++;
+	}
+
+	private void writeChars(@NotNull DataOutputStream out, @NotNull char[] buf, int offset, int length) throws IOException {
+		out.writeInt(length);
+		for (int i = offset; i < offset + length; i++) {
+			out.writeChar(buf[i]);
+		}
+	}
+
+	private void writeSkipped(byte kind, @NotNull String text, int offset) {
+		try {
+			DataOutputStream out = output();
+			out.writeByte(kind);
+			writeChars(out, text.toCharArray(), 0, text.length());
+			out.writeInt(offset);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		spilledTokenCount++;
+	}
+
+	@Override
+	public void begin() {
+	}
+
+	@Override
+	public synchronized void acceptCommand(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		writeId(COMMAND, id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public synchronized void acceptLocalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		writeId(LOCAL_VARIABLE, id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public synchronized void acceptGlobalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		writeId(GLOBAL_VARIABLE, id, preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset, int originalOffset,
+							  int originalLength) {
+		acceptLiteral(type, token.toCharArray(), 0, token.length(), preprocessedOffset, originalOffset, originalLength);
+	}
+
+	@Override
+	public synchronized void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull char[] bufReadOnly, int offset, int length,
+										   int preprocessedOffset, int originalOffset, int originalLength) {
+		try {
+			DataOutputStream out = output();
+			out.writeByte(LITERAL);
+			out.writeByte(((OrinocoLexerSQFLiteralType) type).ordinal());
+			out.writeInt(preprocessedOffset);
+			out.writeInt(originalOffset);
+			out.writeInt(originalLength);
+			writeChars(out, bufReadOnly, offset, length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		spilledTokenCount++;
+	}
+
+	@Override
+	public synchronized void preProcessorTokenSkipped(@NotNull String token, int offset) {
+		writeSkipped(TOKEN_SKIPPED, token, offset);
+	}
+
+	@Override
+	public synchronized void preProcessorCommandSkipped(@NotNull String command, int offset) {
+		writeSkipped(COMMAND_SKIPPED, command, offset);
+	}
+
+	@Override
+	public void end() {
+	}
+}
@@ -0,0 +1,285 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lexes, preprocesses and processes the files of a workspace. Each file is
+ * handled on its own thread of an I/O executor: the file and its includes are
+ * read there (blocking), and the file is lexed and preprocessed there as well.
+ * The statements are collected by a {@link StatementCollectionTokenProcessor}
+ * and processed on a separate, bounded {@link ForkJoinPool} by a
+ * {@link ForkJoinStatementProcessingScheduler}, so a file that waits for
+ * storage doesn't keep a CPU worker idle and the CPU work of all files shares
+ * the same workers.<br>
+ * <br>
+ * At most <code>maxInFlightFiles</code> files are handled at the same time,
+ * and each file has a bounded queue of statement batches (see
+ * {@link #setBackpressure(BackpressurePolicy, int)}), which bounds the memory
+ * of file contents and token batches. The default I/O
+ * executor has one thread per in-flight file; any other executor can be passed
+ * instead (e.g. one that starts a thread per task).<br>
+ * <br>
+ * The processors of a file are created by a {@link Listener}, which is also
+ * notified when a file has been processed.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class WorkspaceDriver implements AutoCloseable {
+	/** The default maximum number of files that are handled at the same time */
+	public static final int DEFAULT_MAX_IN_FLIGHT_FILES = 64;
+
+	/** Creates the processors of a file and receives them when the file is done */
+	public interface Listener {
+		/**
+		 * Creates a processor for a worker of the CPU pool (invoked on that worker)
+		 *
+		 * @param file the canonical path of the file
+		 */
+		@NotNull
+		StatementProcessor createProcessor(@NotNull Path file);
+
+		/**
+		 * Invoked on the I/O thread of the file when all of its statements have been
+		 * processed and its processors have been ended
+		 *
+		 * @param file the canonical path of the file
+		 * @param processors the processors that were created for the file
+		 */
+		void fileProcessed(@NotNull Path file, @NotNull List<StatementProcessor> processors);
+	}
+
+	private final OrinocoLexerContext context;
+	private final ExecutorService ioExecutor;
+	private final boolean ownsIoExecutor;
+	private final ForkJoinPool cpuPool;
+	private final int maxInFlightFiles;
+	private IncludeResolver includeResolver;
+	private IncludeCache includeCache;
+	private int batchSize = StatementCollectionTokenProcessor.DEFAULT_BATCH_SIZE;
+	private BackpressurePolicy backpressurePolicy = BackpressurePolicy.Block;
+	private int queueCapacity;
+	private final AtomicLong blockedNanos = new AtomicLong();
+	private final AtomicLong spilledBatchCount = new AtomicLong();
+	private final AtomicLong inlineBatchCount = new AtomicLong();
+
+	/**
+	 * Creates a driver with its own I/O threads for
+	 * {@link #DEFAULT_MAX_IN_FLIGHT_FILES} files, which {@link #close()} stops.
+	 *
+	 * @param context the context of all lexers (it is shared by the threads)
+	 * @param cpuPool the pool the statements are processed in
+	 */
+	public WorkspaceDriver(@NotNull OrinocoLexerContext context, @NotNull ForkJoinPool cpuPool) {
+		this(context, cpuPool, DEFAULT_MAX_IN_FLIGHT_FILES);
+	}
+
+	/**
+	 * Creates a driver with its own I/O threads (one per in-flight file), which
+	 * {@link #close()} stops.
+	 *
+	 * @param context the context of all lexers (it is shared by the threads)
+	 * @param cpuPool the pool the statements are processed in
+	 * @param maxInFlightFiles the maximum number of files that are handled at the
+	 *        same time
+	 */
+	public WorkspaceDriver(@NotNull OrinocoLexerContext context, @NotNull ForkJoinPool cpuPool, int maxInFlightFiles) {
+		this(context, newIoExecutor(maxInFlightFiles), true, cpuPool, maxInFlightFiles);
+	}
+
+	/**
+	 * @param context the context of all lexers (it is shared by the threads)
+	 * @param ioExecutor the executor the files are read, lexed and preprocessed in.
+	 *        It is not shut down by {@link #close()}.
+	 * @param cpuPool the pool the statements are processed in
+	 * @param maxInFlightFiles the maximum number of files that are handled at the
+	 *        same time
+	 */
+	public WorkspaceDriver(@NotNull OrinocoLexerContext context, @NotNull ExecutorService ioExecutor, @NotNull ForkJoinPool cpuPool,
+						   int maxInFlightFiles) {
+		this(context, ioExecutor, false, cpuPool, maxInFlightFiles);
+	}
+
+	private WorkspaceDriver(@NotNull OrinocoLexerContext context, @NotNull ExecutorService ioExecutor, boolean ownsIoExecutor,
+							@NotNull ForkJoinPool cpuPool, int maxInFlightFiles) {
+		if (maxInFlightFiles < 1) {
+			throw new IllegalArgumentException("maxInFlightFiles=" + maxInFlightFiles);
+		}
+		this.context = context;
+		this.ioExecutor = ioExecutor;
+		this.ownsIoExecutor = ownsIoExecutor;
+		this.cpuPool = cpuPool;
+		this.maxInFlightFiles = maxInFlightFiles;
+		this.queueCapacity = 4 * cpuPool.getParallelism();
+	}
+
+	@NotNull
+	private static ExecutorService newIoExecutor(int threads) {
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(Math.max(threads, 1), r -> {
+			Thread thread = new Thread(r, "orinoco-io-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Enables <code>#include</code> for all files.
+	 *
+	 * @see OrinocoPreProcessor#setIncludes(IncludeResolver, IncludeCache)
+	 */
+	public void setIncludes(@NotNull IncludeResolver resolver, @NotNull IncludeCache cache) {
+		this.includeResolver = resolver;
+		this.includeCache = cache;
+	}
+
+	/** @see StatementCollectionTokenProcessor#StatementCollectionTokenProcessor(OrinocoLexerContext, StatementProcessingScheduler, int) */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize=" + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Bounds the statement batches of each file that wait for a CPU worker
+	 *
+	 * @param policy what the I/O thread of a file does while its batches don't fit
+	 * @param queueCapacity the number of batches per file that may wait (by
+	 *        default 4 per CPU worker)
+	 * @see ForkJoinStatementProcessingScheduler#setBackpressurePolicy(BackpressurePolicy)
+	 */
+	public void setBackpressure(@NotNull BackpressurePolicy policy, int queueCapacity) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("queueCapacity=" + queueCapacity);
+		}
+		this.backpressurePolicy = policy;
+		this.queueCapacity = queueCapacity;
+	}
+
+	/** @return the total time the I/O threads were blocked on full batch queues, in nanoseconds */
+	public long getBlockedNanos() {
+		return blockedNanos.get();
+	}
+
+	/** @return the total number of batches that were spilled to temporary files */
+	public long getSpilledBatchCount() {
+		return spilledBatchCount.get();
+	}
+
+	/** @return the total number of batches the I/O threads processed themselves */
+	public long getInlineBatchCount() {
+		return inlineBatchCount.get();
+	}
+
+	public int getMaxInFlightFiles() {
+		return maxInFlightFiles;
+	}
+
+	/**
+	 * Handles the files and waits until all of them are done. Files are submitted
+	 * to the I/O executor in the given order as in-flight slots become free.
+	 *
+	 * @param files the files
+	 * @param listener creates the processors and receives the results
+	 * @throws IOException if a file can't be read. The other files are handled
+	 *         nonetheless; the exceptions of further files are suppressed by the
+	 *         thrown one.
+	 */
+	public void run(@NotNull Collection<Path> files, @NotNull Listener listener) throws IOException {
+		Semaphore inFlight = new Semaphore(maxInFlightFiles);
+		List<Future<?>> futures = new ArrayList<>(files.size());
+		Throwable failure = null;
+		try {
+			for (Path file : files) {
+				inFlight.acquire();
+				try {
+					futures.add(ioExecutor.submit(() -> {
+						try {
+							processFile(file, listener);
+						} finally {
+							inFlight.release();
+						}
+						return null;
+					}));
+				} catch (RuntimeException e) {
+					inFlight.release();
+					throw e;
+				}
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+					if (failure == null) {
+						failure = cause;
+					} else {
+						failure.addSuppressed(cause);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		}
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new IOException(failure);
+		}
+	}
+
+	private void processFile(@NotNull Path file, @NotNull Listener listener) throws IOException {
+		Path canonicalPath = file.toRealPath();
+		CharBuffer content = IncludeCache.readContent(canonicalPath);
+		ForkJoinStatementProcessingScheduler scheduler = new ForkJoinStatementProcessingScheduler(cpuPool,
+				() -> listener.createProcessor(canonicalPath), queueCapacity);
+		scheduler.setBackpressurePolicy(backpressurePolicy);
+		OrinocoPreProcessor preProcessor = new OrinocoPreProcessor(new StatementCollectionTokenProcessor(context, scheduler, batchSize));
+		if (includeResolver != null) {
+			preProcessor.setIncludes(includeResolver, includeCache);
+		}
+		preProcessor.setFile(canonicalPath);
+		try {
+			new OrinocoLexer(OrinocoReader.fromCharBuffer(content), preProcessor, context).start();
+		} finally {
+			try {
+				scheduler.finish();
+			} finally {
+				blockedNanos.addAndGet(scheduler.getBlockedNanos());
+				spilledBatchCount.addAndGet(scheduler.getSpilledBatchCount());
+				inlineBatchCount.addAndGet(scheduler.getInlineBatchCount());
+			}
+		}
+		listener.fileProcessed(canonicalPath, scheduler.getProcessors());
+	}
+
+	/** Stops the I/O threads if the driver created them */
+	@Override
+	public void close() {
+		if (ownsIoExecutor) {
+			ioExecutor.shutdown();
+		}
+	}
+}
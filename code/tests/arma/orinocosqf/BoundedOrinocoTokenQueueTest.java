@@ -0,0 +1,117 @@
+package arma.orinocosqf;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class BoundedOrinocoTokenQueueTest {
+
+	@Test
+	public void batches() {
+		BoundedOrinocoTokenQueue queue = new BoundedOrinocoTokenQueue(2, 1);
+		assertEquals(2, queue.getCapacity());
+		queue.begin();
+		queue.acceptCommand(1, 0, 0, 1);
+		char[] text = "x\"ab\"".toCharArray();
+		queue.acceptLiteral(OrinocoLexerSQFLiteralType.String, text, 1, 4, 2, 2, 4);
+		assertEquals(2, queue.getUnpublishedCount());
+		// unpublished tokens are invisible
+		assertTrue(queue.isEmpty());
+		queue.publish();
+		queue.acceptGlobalVariable(3, 7, 7, 1);
+		queue.publish();
+		queue.acceptLocalVariable(4, 9, 9, 2);
+		assertFalse(queue.tryPublish());
+		assertEquals(1, queue.getUnpublishedCount());
+
+		OrinocoTokenBuffer out = new OrinocoTokenBuffer();
+		assertTrue(queue.poll(out));
+		assertEquals(2, out.size());
+		assertEquals(1, out.getId(0));
+		text[2] = '?';
+		assertEquals("\"ab\"", out.getText(1));
+		assertTrue(queue.tryPublish());
+		queue.end();
+		assertFalse(queue.isFinished());
+		assertTrue(queue.poll(out));
+		assertTrue(queue.poll(out));
+		assertFalse(queue.poll(out));
+		assertTrue(queue.isFinished());
+		assertEquals(4, out.size());
+		assertEquals(OrinocoSQFTokenType.LocalVariable, out.getTokenType(3));
+	}
+
+	@Test
+	public void drainTo() {
+		BoundedOrinocoTokenQueue queue = new BoundedOrinocoTokenQueue(4, 4);
+		BoundedOrinocoTokenQueue other = new BoundedOrinocoTokenQueue(4, 4);
+		queue.acceptCommand(1, 0, 0, 1);
+		queue.publish();
+		queue.acceptCommand(2, 1, 1, 1);
+		queue.drainTo(other);
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.getUnpublishedCount());
+
+		OrinocoTokenBuffer out = new OrinocoTokenBuffer();
+		assertTrue(other.poll(out));
+		assertTrue(other.poll(out));
+		assertFalse(other.poll(out));
+		assertEquals(2, out.size());
+		assertEquals(2, out.getId(1));
+
+		// the swapped batches are reused
+		for (int i = 0; i < 20; i++) {
+			queue.acceptCommand(i, i, i, 1);
+			queue.publish();
+			queue.drainTo(other);
+			assertTrue(other.poll(out));
+		}
+		assertEquals(22, out.size());
+		assertEquals(19, out.getId(21));
+	}
+
+	@Test(timeout = 60000)
+	public void concurrentConsumers() throws InterruptedException {
+		BoundedOrinocoTokenQueue queue = new BoundedOrinocoTokenQueue(4, 8);
+		int batches = 20000;
+		AtomicLong sum = new AtomicLong();
+		AtomicLong tokens = new AtomicLong();
+		List<Thread> consumers = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			Thread consumer = new Thread(() -> {
+				OrinocoTokenBuffer out = new OrinocoTokenBuffer();
+				while (!queue.isFinished()) {
+					if (queue.poll(out)) {
+						assertEquals(3, out.size());
+						// the batch is never split
+						assertEquals(out.getId(0), out.getId(2));
+						sum.addAndGet(out.getId(0) + out.getId(1) + out.getId(2));
+						tokens.addAndGet(out.size());
+						out.clear();
+					} else {
+						Thread.yield();
+					}
+				}
+			});
+			consumers.add(consumer);
+			consumer.start();
+		}
+		queue.begin();
+		for (int i = 0; i < batches; i++) {
+			queue.acceptCommand(i, 0, 0, 1);
+			queue.acceptGlobalVariable(i, 1, 1, 1);
+			queue.acceptCommand(i, 2, 2, 1);
+			queue.publish();
+		}
+		queue.end();
+		for (Thread consumer : consumers) {
+			consumer.join();
+		}
+		assertEquals(3L * batches, tokens.get());
+		assertEquals(3L * batches * (batches - 1) / 2, sum.get());
+	}
+}
@@ -0,0 +1,217 @@
+package arma.orinocosqf;
+
+import arma.orinocosqf.type.CodeType;
+import arma.orinocosqf.type.ExpandedValueType;
+import arma.orinocosqf.type.PolymorphicWrapperValueType;
+import arma.orinocosqf.type.SingletonArrayExpandedValueType;
+import arma.orinocosqf.type.ValueType;
+import arma.orinocosqf.type.ValueType.BaseType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CommandDatabaseSnapshotTest {
+	private static final long SOURCE_HASH = 0x1234_5678_9abc_def0L;
+
+	static List<Command> definitions() {
+		ExpandedValueType optionalArray = new ExpandedValueType(false, BaseType.OBJECT, BaseType.NUMBER, BaseType.STRING);
+		optionalArray.setNumOptionalValues(1);
+		PolymorphicWrapperValueType objectOrGroup = new PolymorphicWrapperValueType(BaseType.OBJECT);
+		objectOrGroup.getPolymorphicTypes().add(BaseType.GROUP);
+
+		List<Command> commands = new ArrayList<>();
+		commands.add(new SimpleCommand("+", 0, 8, Arrays.asList(
+				new SimpleCommandSyntax(BaseType.NUMBER, BaseType.NUMBER, BaseType.NUMBER),
+				new SimpleCommandSyntax(BaseType.ARRAY, BaseType.ARRAY, BaseType.ARRAY),
+				new SimpleCommandSyntax(null, BaseType.NUMBER, BaseType.NUMBER))));
+		commands.add(new SimpleCommand("player", 1, 10, Collections.singletonList(
+				new SimpleCommandSyntax(null, null, BaseType.OBJECT))));
+		commands.add(new SimpleCommand("setDamage", 2, 4, Collections.singletonList(
+				new SimpleCommandSyntax(objectOrGroup, BaseType.NUMBER, BaseType.NOTHING))));
+		commands.add(new SimpleCommand("call", 3, 9, Arrays.asList(
+				new SimpleCommandSyntax(null, new CodeType(BaseType.ANYTHING), BaseType.ANYTHING),
+				new SimpleCommandSyntax(BaseType.ANYTHING, new CodeType(BaseType.ANYTHING), BaseType.ANYTHING))));
+		commands.add(new SimpleCommand("createVehicle", 4, 4, Collections.singletonList(
+				new SimpleCommandSyntax(null, optionalArray, new SingletonArrayExpandedValueType(BaseType.OBJECT)))));
+		commands.add(new SimpleCommand("getPos", 5, 9, Collections.singletonList(
+				new SimpleCommandSyntax(null, BaseType.OBJECT, BaseType.POSITION))));
+		return commands;
+	}
+
+	@Test
+	public void writeAndRead() throws IOException {
+		Path file = Files.createTempFile("commands", ".bin");
+		try {
+			CommandDatabase expected = new CommandDatabase(definitions());
+			CommandDatabaseSnapshot.write(expected, SOURCE_HASH, file);
+			CommandDatabase actual = CommandDatabaseSnapshot.read(file, SOURCE_HASH);
+			assertSameDatabase(expected, actual);
+
+			Command plus = actual.getCommand("+");
+			assertNotNull(plus);
+			assertTrue(plus.canBeBinary());
+			assertTrue(plus.canBeUnary());
+			assertFalse(plus.isStrictlyBinary());
+			assertTrue(actual.getCommand("PLAYER").isStrictlyNular());
+
+			ValueType left = actual.getCommand("setdamage").getSyntaxList().get(0).getLeftArgumentType();
+			assertTrue(left instanceof PolymorphicWrapperValueType);
+			assertTrue(left.isHardEqual(BaseType.GROUP));
+			// base types are resolved to the shared instances
+			assertSame(BaseType.NOTHING, actual.getCommand("setDamage").getSyntaxList().get(0).getReturnType());
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void syntaxesAreDecodedOnDemand() throws IOException {
+		CommandDatabase database = CommandDatabaseSnapshot.read(
+				ByteBuffer.wrap(CommandDatabaseSnapshot.toBytes(new CommandDatabase(definitions()), SOURCE_HASH)), SOURCE_HASH);
+		CommandDatabaseSnapshot.SnapshotCommand call = (CommandDatabaseSnapshot.SnapshotCommand) database.getCommand("call");
+		assertNotNull(call);
+		assertTrue(call.canBeUnary());
+		assertTrue(call.canBeBinary());
+		assertEquals(9, call.getPrecedence());
+		assertFalse(call.isSyntaxListDecoded());
+
+		List<CommandSyntax> syntaxList = call.getSyntaxList();
+		assertTrue(call.isSyntaxListDecoded());
+		assertSame(syntaxList, call.getSyntaxList());
+		assertTrue(syntaxList.get(0).getRightArgumentType() instanceof CodeType);
+		for (int id = 0; id < database.size(); id++) {
+			if (id != call.id()) {
+				assertFalse(((CommandDatabaseSnapshot.SnapshotCommand) database.getCommand(id)).isSyntaxListDecoded());
+			}
+		}
+	}
+
+	@Test
+	public void rebuildsMissingAndOutdatedSnapshots() throws IOException {
+		Path dir = Files.createTempDirectory("commands");
+		Path file = dir.resolve("commands.bin");
+		AtomicInteger rebuilds = new AtomicInteger();
+		try {
+			CommandDatabase database = CommandDatabase.load(file, SOURCE_HASH, () -> {
+				rebuilds.incrementAndGet();
+				return definitions();
+			});
+			assertEquals(1, rebuilds.get());
+			assertTrue(Files.exists(file));
+			assertEquals(definitions().size(), database.size());
+
+			CommandDatabase.load(file, SOURCE_HASH, () -> {
+				rebuilds.incrementAndGet();
+				return definitions();
+			});
+			assertEquals(1, rebuilds.get());
+
+			// another format version
+			byte[] bytes = Files.readAllBytes(file);
+			bytes[5]++;
+			Files.write(file, bytes);
+			try {
+				CommandDatabaseSnapshot.read(file, SOURCE_HASH);
+				fail();
+			} catch (IOException expected) {
+			}
+			assertSameDatabase(new CommandDatabase(definitions()), CommandDatabase.load(file, SOURCE_HASH, () -> {
+				rebuilds.incrementAndGet();
+				return definitions();
+			}));
+			assertEquals(2, rebuilds.get());
+
+			// truncated in the lazily decoded syntax section
+			byte[] valid = Files.readAllBytes(file);
+			Files.write(file, Arrays.copyOf(valid, valid.length - 2));
+			CommandDatabase.load(file, SOURCE_HASH, () -> {
+				rebuilds.incrementAndGet();
+				return definitions();
+			});
+			assertEquals(3, rebuilds.get());
+
+			// other definitions
+			CommandDatabase.load(file, SOURCE_HASH + 1, () -> {
+				rebuilds.incrementAndGet();
+				return definitions();
+			});
+			assertEquals(4, rebuilds.get());
+			CommandDatabase.load(file, SOURCE_HASH + 1, () -> {
+				rebuilds.incrementAndGet();
+				return definitions();
+			});
+			assertEquals(4, rebuilds.get());
+		} finally {
+			Files.deleteIfExists(file);
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void sourceHashOfFiles() throws IOException {
+		Path a = Files.createTempFile("commands", ".txt");
+		Path b = Files.createTempFile("commands", ".txt");
+		try {
+			Files.write(a, "player".getBytes(StandardCharsets.UTF_8));
+			Files.write(b, "getPos".getBytes(StandardCharsets.UTF_8));
+			long hash = CommandDatabaseSnapshot.sourceHash(Arrays.asList(a, b));
+			assertEquals(hash, CommandDatabaseSnapshot.sourceHash(Arrays.asList(a, b)));
+			assertNotEquals(hash, CommandDatabaseSnapshot.sourceHash(Arrays.asList(b, a)));
+			Files.write(b, "getPosASL".getBytes(StandardCharsets.UTF_8));
+			assertNotEquals(hash, CommandDatabaseSnapshot.sourceHash(Arrays.asList(a, b)));
+		} finally {
+			Files.deleteIfExists(a);
+			Files.deleteIfExists(b);
+		}
+	}
+
+	@Test
+	public void corruptElementCount() throws IOException {
+		ExpandedValueType array = new ExpandedValueType(false, BaseType.NUMBER);
+		CommandDatabase expected = new CommandDatabase(Collections.singletonList(new SimpleCommand("f", 0, 4,
+				Collections.singletonList(new SimpleCommandSyntax(null, BaseType.NOTHING, array)))));
+		ByteBuffer buffer = ByteBuffer.wrap(CommandDatabaseSnapshot.toBytes(expected, SOURCE_HASH));
+		// the record of the array is the last type record, right before the syntax section:
+		// tag, unbounded, optional count, element count, element
+		int countPosition = buffer.getInt(24) - 8;
+		assertEquals(1, buffer.getInt(countPosition));
+		buffer.putInt(countPosition, -1);
+		Command f = CommandDatabaseSnapshot.read(buffer, SOURCE_HASH).getCommand("f");
+		try {
+			f.getSyntaxList();
+			fail();
+		} catch (UncheckedIOException expectedFailure) {
+		}
+	}
+
+	static void assertSameDatabase(CommandDatabase expected, CommandDatabase actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int id = 0; id < expected.size(); id++) {
+			Command e = expected.getCommand(id);
+			Command a = actual.getCommand(id);
+			assertEquals(e.getName(), a.getName());
+			assertEquals(id, a.id());
+			assertEquals(e.getPrecedence(), a.getPrecedence());
+			assertEquals(e.canBeNular(), a.canBeNular());
+			assertEquals(e.canBeUnary(), a.canBeUnary());
+			assertEquals(e.canBeBinary(), a.canBeBinary());
+			assertEquals(e.getSyntaxList().size(), a.getSyntaxList().size());
+			for (int i = 0; i < e.getSyntaxList().size(); i++) {
+				assertEquals(e.getSyntaxList().get(i).toString(), a.getSyntaxList().get(i).toString());
+				assertEquals(e.getSyntaxList().get(i).getReturnType().getType(), a.getSyntaxList().get(i).getReturnType().getType());
+			}
+		}
+	}
+}
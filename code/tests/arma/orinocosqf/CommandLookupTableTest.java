@@ -0,0 +1,64 @@
+package arma.orinocosqf;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CommandLookupTableTest {
+
+	@Test
+	public void operatorsAndNames() {
+		List<String> names = new ArrayList<>(Arrays.asList(SimpleOrinocoLexerContext.OPERATORS));
+		names.addAll(Arrays.asList("hint", "setDamage", "getPosATL", "allUnits", "private", "if", "then"));
+		CommandLookupTable table = new CommandLookupTable(names);
+
+		for (int i = 0; i < names.size(); i++) {
+			assertEquals(i, getId(table, names.get(i)));
+			assertEquals(i, getId(table, names.get(i).toUpperCase()));
+			assertEquals(names.get(i), table.getName(i));
+		}
+		assertEquals(-1, getId(table, "setDamag"));
+		assertEquals(-1, getId(table, "setDamages"));
+		assertEquals(-1, getId(table, "_hint"));
+		assertEquals(-1, getId(table, "aVeryLongWordThatIsNoCommand"));
+
+		char[] buf = "xxSETDAMAGExx".toCharArray();
+		assertEquals(names.indexOf("setDamage"), table.getId(buf, 2, 9));
+	}
+
+	@Test
+	public void commandListSized() {
+		// roughly the number of SQF commands
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < 2500; i++) {
+			names.add("command" + Integer.toString(i * 7919, 36));
+		}
+		CommandLookupTable table = new CommandLookupTable(names);
+		assertEquals(2500, table.size());
+		for (int i = 0; i < names.size(); i++) {
+			assertEquals(i, getId(table, names.get(i)));
+		}
+		for (int i = 0; i < 2500; i++) {
+			assertEquals(-1, getId(table, "variable" + i));
+		}
+	}
+
+	@Test
+	public void empty() {
+		assertEquals(-1, getId(new CommandLookupTable(Collections.emptyList()), "hint"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void duplicateIgnoringCase() {
+		new CommandLookupTable(Arrays.asList("hint", "HINT"));
+	}
+
+	private static int getId(CommandLookupTable table, String word) {
+		return table.getId(word.toCharArray(), 0, word.length());
+	}
+}
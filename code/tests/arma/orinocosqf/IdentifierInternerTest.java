@@ -0,0 +1,87 @@
+package arma.orinocosqf;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+
+public class IdentifierInternerTest {
+
+	@Test
+	public void caseInsensitiveDenseIds() {
+		IdentifierInterner interner = new IdentifierInterner();
+		char[] buf = "xx_myVar _MYVAR player".toCharArray();
+		assertEquals(-1, interner.lookup(buf, 2, 6));
+		assertEquals(0, interner.intern(buf, 2, 6));
+		assertEquals(0, interner.intern(buf, 9, 6));
+		assertEquals(1, interner.intern(buf, 16, 6));
+		assertEquals(0, interner.lookup("_myvar".toCharArray(), 0, 6));
+		assertEquals(2, interner.size());
+
+		// the first spelling is the canonical name
+		assertEquals("_myVar", interner.getName(0));
+		assertEquals("player", interner.getName(1));
+	}
+
+	@Test
+	public void manyIdentifiers() {
+		IdentifierInterner interner = new IdentifierInterner();
+		for (int i = 0; i < 5000; i++) {
+			assertEquals(i, interner.intern("var" + i));
+		}
+		for (int i = 0; i < 5000; i++) {
+			assertEquals(i, interner.intern("VAR" + i));
+			assertEquals("var" + i, interner.getName(i));
+		}
+	}
+
+	@Test
+	public void concurrentInterning() throws Exception {
+		IdentifierInterner interner = new IdentifierInterner();
+		int names = 20000;
+		int threads = 8;
+		AtomicIntegerArray ids = new AtomicIntegerArray(names);
+		for (int i = 0; i < names; i++) {
+			ids.set(i, -1);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				int thread = t;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < names; i++) {
+						// every thread walks the names in a different order and spelling
+						int n = (i * 7 + thread * 2503) % names;
+						String name = (thread % 2 == 0 ? "_Var" : "_vAR") + n;
+						int id = interner.intern(name);
+						if (!ids.compareAndSet(n, -1, id)) {
+							assertEquals(ids.get(n), id);
+						}
+						assertEquals(name.toLowerCase(), interner.getName(id).toLowerCase());
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(names, interner.size());
+		Set<Integer> distinct = new HashSet<>();
+		for (int i = 0; i < names; i++) {
+			distinct.add(ids.get(i));
+		}
+		assertEquals(names, distinct.size());
+	}
+}
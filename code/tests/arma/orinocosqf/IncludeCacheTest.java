@@ -0,0 +1,165 @@
+package arma.orinocosqf;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class IncludeCacheTest {
+	private Path dir;
+	private IncludeResolver resolver;
+	private SimpleOrinocoLexerContext context;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("includes");
+		resolver = IncludeResolver.fromRoots(Collections.singletonList(dir));
+		context = new SimpleOrinocoLexerContext();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	private void write(String name, String content) throws IOException {
+		Path file = dir.resolve(name);
+		Files.createDirectories(file.getParent());
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private OrinocoTokenBuffer preprocess(String text, IncludeCache cache) {
+		char[] source = text.toCharArray();
+		OrinocoTokenBuffer buffer = new OrinocoTokenBuffer();
+		buffer.setSource(source, 0);
+		OrinocoPreProcessor preProcessor = new OrinocoPreProcessor(buffer);
+		preProcessor.setIncludes(resolver, cache);
+		preProcessor.setFile(dir.resolve("main.sqf"));
+		new OrinocoLexer(OrinocoReader.fromCharArray(source, 0, source.length), preProcessor, context).start();
+		return buffer;
+	}
+
+	@Test
+	public void includedTokensAndMacros() throws IOException {
+		write("macros.hpp", "#define ONE 1\nONE;");
+		IncludeCache cache = new IncludeCache();
+		String text = "_a;\n#include \"macros.hpp\"\n_x = ONE;";
+		OrinocoTokenBuffer tokens = preprocess(text, cache);
+		assertEquals("_a ; 1 ; _x = 1 ;", OrinocoPreProcessorTest.render(tokens, context));
+
+		// the included tokens have the span of the #include command
+		int include = text.indexOf('#');
+		int one = 0;
+		while (tokens.getTokenType(one) != OrinocoSQFTokenType.Literal) {
+			one++;
+		}
+		assertEquals(include, tokens.getOriginalOffset(one));
+		assertEquals("#include \"macros.hpp\"".length(), tokens.getOriginalLength(one));
+		// the preprocessed offsets continue after the included tokens
+		int x = tokens.size() - 4;
+		assertEquals(OrinocoSQFTokenType.LocalVariable, tokens.getTokenType(x));
+		// the #define line of the header is removed, its line break is kept
+		assertEquals("_a;\n\n1;\n_x = ONE;".indexOf("_x"), tokens.getPreprocessedOffset(x));
+	}
+
+	@Test
+	public void headerIsPreprocessedOncePerCache() throws IOException {
+		write("x/cba/main/script_macros.hpp", "#define GVAR(V) [PREFIX, #V]\n");
+		write("x/cba/main/script_component.hpp", "#define PREFIX cba\n#include \"\\x\\cba\\main\\script_macros.hpp\"\n");
+		IncludeCache cache = new IncludeCache();
+		for (int i = 0; i < 3; i++) {
+			OrinocoTokenBuffer tokens = preprocess("#include \"\\x\\cba\\main\\script_component.hpp\"\nGVAR(a) = " + i, cache);
+			assertEquals("[ cba , \"a\" ] = " + i, OrinocoPreProcessorTest.render(tokens, context));
+		}
+		assertEquals(2, cache.size());
+		// script_component.hpp and (nested) script_macros.hpp are missed once, then only script_component.hpp is looked up
+		assertEquals(2, cache.getMissCount());
+		assertEquals(2, cache.getHitCount());
+	}
+
+	@Test
+	public void entryDependsOnMacrosAndContent() throws IOException {
+		write("debug.hpp", "#ifdef DEBUG\ndbg\n#endif\nrel");
+		IncludeCache cache = new IncludeCache();
+		assertEquals("rel", OrinocoPreProcessorTest.render(preprocess("#include \"debug.hpp\"", cache), context));
+		assertEquals("dbg rel", OrinocoPreProcessorTest.render(preprocess("#define DEBUG\n#include \"debug.hpp\"", cache), context));
+		assertEquals("dbg rel", OrinocoPreProcessorTest.render(preprocess("#define DEBUG\n#include \"debug.hpp\"", cache), context));
+		assertEquals(1, cache.getHitCount());
+
+		write("debug.hpp", "changed");
+		assertEquals("changed", OrinocoPreProcessorTest.render(preprocess("#define DEBUG\n#include \"debug.hpp\"", cache), context));
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void entryDependsOnNestedIncludes() throws IOException {
+		write("a.hpp", "#include \"b.hpp\"\n");
+		write("b.hpp", "old;");
+		IncludeCache cache = new IncludeCache();
+		assertEquals("old ;", OrinocoPreProcessorTest.render(preprocess("#include \"a.hpp\"", cache), context));
+		assertEquals("old ;", OrinocoPreProcessorTest.render(preprocess("#include \"a.hpp\"", cache), context));
+		assertEquals(1, cache.getHitCount());
+
+		write("b.hpp", "new;");
+		assertEquals("new ;", OrinocoPreProcessorTest.render(preprocess("#include \"a.hpp\"", cache), context));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(4, cache.getMissCount());
+		// the stale result of a.hpp was replaced, the one of the old b.hpp is kept
+		assertEquals(3, cache.size());
+		assertEquals("new ;", OrinocoPreProcessorTest.render(preprocess("#include \"a.hpp\"", cache), context));
+		assertEquals(2, cache.getHitCount());
+	}
+
+	@Test
+	public void guardedHeaderIncludedTwiceHasTwoResults() throws IOException {
+		write("g.hpp", "#ifndef G_HPP\n#define G_HPP\ng;\n#endif\n");
+		IncludeCache cache = new IncludeCache();
+		for (int i = 0; i < 5; i++) {
+			OrinocoTokenBuffer tokens = preprocess("#include \"g.hpp\"\n#include \"g.hpp\"\nf;", cache);
+			assertEquals("g ; f ;", OrinocoPreProcessorTest.render(tokens, context));
+		}
+		// the full result (G_HPP undefined) and the empty one (G_HPP defined)
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(8, cache.getHitCount());
+	}
+
+	@Test
+	public void leastRecentlyUsedEntriesAreEvicted() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			text.append("_v").append(i).append(" = ").append(i).append(";\n");
+		}
+		write("a.hpp", text.toString());
+		write("b.hpp", text.toString());
+		IncludeCache probe = new IncludeCache();
+		preprocess("#include \"a.hpp\"", probe);
+		long entrySize = probe.getRetainedSize();
+
+		IncludeCache cache = new IncludeCache(entrySize + entrySize / 2);
+		preprocess("#include \"a.hpp\"", cache);
+		preprocess("#include \"b.hpp\"", cache);
+		assertEquals(1, cache.size());
+		assertTrue(cache.getRetainedSize() <= cache.getMemoryBudget());
+		preprocess("#include \"b.hpp\"", cache);
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void recursiveIncludeTerminates() throws IOException {
+		write("self.hpp", "x;\n#include \"self.hpp\"\n");
+		OrinocoTokenBuffer tokens = preprocess("#include \"self.hpp\"", new IncludeCache());
+		assertTrue(tokens.size() > 0);
+	}
+}
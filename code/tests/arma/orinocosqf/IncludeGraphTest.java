@@ -0,0 +1,90 @@
+package arma.orinocosqf;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class IncludeGraphTest {
+
+	private static Path write(Path dir, String name, String text) throws IOException {
+		return Files.write(dir.resolve(name), text.getBytes(StandardCharsets.UTF_8)).toRealPath();
+	}
+
+	@Test
+	public void layersAndPreProcessing() throws IOException {
+		Path dir = Files.createTempDirectory("includegraph");
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			Path b = write(dir, "b.hpp", "#define B 2\n");
+			Path a = write(dir, "a.hpp", "#include \"b.hpp\"\n#define A B\n");
+			Path one = write(dir, "one.sqf", "#include \"a.hpp\"\n_one = A;");
+			Path two = write(dir, "two.sqf", "  #include \"a.hpp\"\n#include \"missing.hpp\"\n_two = A + 1; // #include \"b.hpp\"");
+			IncludeResolver resolver = IncludeResolver.fromRoots(Collections.singletonList(dir));
+
+			IncludeGraph graph = IncludeGraph.discover(Arrays.asList(one, two), resolver, pool);
+			assertEquals(4, graph.size());
+			assertEquals(one, graph.getFile(0));
+			int ia = graph.indexOf(a);
+			int ib = graph.indexOf(b);
+			assertArrayEquals(new int[]{ia}, graph.getIncludes(0));
+			assertArrayEquals(new int[]{ia}, graph.getIncludes(1));
+			assertArrayEquals(new int[]{ib}, graph.getIncludes(ia));
+			assertArrayEquals(new int[]{0, 1}, graph.getIncludedBy(ia));
+			assertTrue(graph.isHeader(ib));
+			assertFalse(graph.isHeader(0));
+			assertEquals(Arrays.asList(Collections.singletonList(b), Collections.singletonList(a), Arrays.asList(one, two)), graph.getLayers());
+
+			IncludeCache cache = new IncludeCache();
+			SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+			Map<Path, OrinocoTokenBuffer> buffers = new ConcurrentHashMap<>();
+			graph.preProcess(pool, cache, context, path -> buffers.computeIfAbsent(path, p -> new OrinocoTokenBuffer()));
+			assertEquals(2, buffers.size());
+			// _one = 2 ;
+			assertEquals(4, buffers.get(one).size());
+			// _two = 2 + 1 ;
+			assertEquals(6, buffers.get(two).size());
+			// each header was preprocessed once
+			assertEquals(2, cache.getMissCount());
+			assertEquals(2, cache.size());
+		} finally {
+			pool.shutdown();
+			for (String name : new String[]{"b.hpp", "a.hpp", "one.sqf", "two.sqf"}) {
+				Files.deleteIfExists(dir.resolve(name));
+			}
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void cycles() throws IOException {
+		Path dir = Files.createTempDirectory("includegraph");
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			Path x = write(dir, "x.hpp", "#include \"y.hpp\"\n");
+			Path y = write(dir, "y.hpp", "#include \"x.hpp\"\n");
+			Path main = write(dir, "main.sqf", "#include \"x.hpp\"\n");
+			IncludeGraph graph = IncludeGraph.discover(Collections.singletonList(main), IncludeResolver.fromRoots(Collections.singletonList(dir)), pool);
+			assertEquals(3, graph.size());
+			// main depends on the cycle, so everything ends up in the last layer
+			assertEquals(1, graph.getLayers().size());
+			assertEquals(3, graph.getLayers().get(0).size());
+			assertTrue(graph.getLayers().get(0).containsAll(Arrays.asList(x, y, main)));
+		} finally {
+			pool.shutdown();
+			for (String name : new String[]{"x.hpp", "y.hpp", "main.sqf"}) {
+				Files.deleteIfExists(dir.resolve(name));
+			}
+			Files.delete(dir);
+		}
+	}
+}
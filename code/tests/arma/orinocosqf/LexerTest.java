@@ -2,6 +2,7 @@ package arma.orinocosqf;
 
 import static org.junit.Assert.*;
 
+import java.nio.CharBuffer;
 import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.regex.Pattern;
@@ -239,25 +240,82 @@ public class LexerTest {
 		testStream.testEnded();
 	}
 
+	@Test
+	public void variables() {
+		createLexer("_local = global", "|<2,0>_local|<6,-1> |<1,0>=|<6,-1> |<3,1>global|").start();
+		testStream.testEnded();
+	}
 
-	OrinocoLexer createLexer(CharSequence input, String expectedTokenization) {
+	@Test
+	public void variablesAreCaseInsensitive() {
+		createLexer("abc ABC aBc", "|<3,0>abc|<6,-1> |<3,0>ABC|<6,-1> |<3,0>aBc|").start();
+		testStream.testEnded();
+	}
+
+	@Test
+	public void operators() {
+		createLexer("a==b>>c", "|<3,0>a|<1,1>==|<3,1>b|<1,7>>>|<3,2>c|").start();
+		testStream.testEnded();
+	}
+
+	@Test
+	public void numbers() {
+		createLexer("1 2.5 .5 1e10 1.5e-3 0xFF $AB",
+				"|<4,-1>1|<6,-1> |<4,-1>2.5|<6,-1> |<4,-1>.5|<6,-1> |<4,-1>1e10|<6,-1> |<4,-1>1.5e-3|<6,-1> |<4,-1>0xFF|<6,-1> |<4,-1>$AB|")
+				.start();
+		testStream.testEnded();
+	}
+
+	@Test
+	public void strings() {
+		createLexer("\"a \"\"b\"\" c\";'d ''e'''", "|<4,-1>\"a \"\"b\"\" c\"|<1,18>;|<4,-1>'d ''e'''|").start();
+		testStream.testEnded();
+	}
+
+	@Test
+	public void comments() {
+		createLexer("a//b\n/*c\n*/d", "|<3,0>a|<7,-1>//b|<6,-1>\n|<7,-1>/*c\n*/|<3,1>d|").start();
+		testStream.testEnded();
+	}
+
+	@Test
+	public void tokensSpanningWindowBoundaries() {
+		StringBuilder input = new StringBuilder();
+		StringBuilder expectedTokenization = new StringBuilder("|");
+		for (int i = 0; i < 5000; i++) {
+			String word = "word" + i;
+			input.append(word).append(' ');
+			expectedTokenization.append("<3,").append(i).append(">").append(word).append("|<6,-1> |");
+		}
+		createLexer(input, expectedTokenization.toString()).start();
+		testStream.testEnded();
+	}
+
+	@Test
+	public void charArraySlice() {
+		char[] editorBuffer = "xx_a = b;yy".toCharArray();
 		testStream.reset();
+		setExpectedTokensWithoutPreprocessing("|<2,0>_a|<6,-1> |<1,0>=|<6,-1> |<3,1>b|<1,18>;|");
+		new OrinocoLexer(OrinocoReader.fromCharArray(editorBuffer, 2, 7), testStream).start();
+		testStream.testEnded();
+	}
 
-		setExpectedTokensWithoutPreprocessing(expectedTokenization);
+	@Test
+	public void charBuffer() {
+		CharBuffer editorBuffer = CharBuffer.wrap("xx_a = b;yy".toCharArray(), 2, 7);
+		testStream.reset();
+		setExpectedTokensWithoutPreprocessing("|<2,0>_a|<6,-1> |<1,0>=|<6,-1> |<3,1>b|<1,18>;|");
+		new OrinocoLexer(OrinocoReader.fromCharBuffer(editorBuffer.slice()), testStream).start();
+		testStream.testEnded();
+	}
 
-		return new OrinocoLexer(OrinocoReader.fromCharSequence(input), testStream) {
 
-			@Override
-			public void start() {
-				// TODO Use actual implementation that will implement this method
-			}
+	OrinocoLexer createLexer(CharSequence input, String expectedTokenization) {
+		testStream.reset();
 
-			@Override
-			void acceptPreProcessedText(@NotNull String text) {
-				// TODO Auto-generated method stub
+		setExpectedTokensWithoutPreprocessing(expectedTokenization);
 
-			}
-		};
+		return new OrinocoLexer(OrinocoReader.fromCharSequence(input), testStream);
 	}
 
 	void setExpectedTokensWithoutPreprocessing(String expectedTokenization) {
@@ -307,13 +365,17 @@ public class LexerTest {
 					type = OrinocoSQFTokenType.Whitespace;
 					break;
 				case 7:
-					type = OrinocoSQFTokenType.Command;
+					type = OrinocoSQFTokenType.Comment;
 					break;
 				default:
 					throw new IllegalArgumentException("Unknown token type " + intType);
 			}
 
-			testStream.addExpectedToken(new OrinocoToken(id, type, offset, offset, length));
+			if (type.isIdBased()) {
+				testStream.addExpectedToken(new OrinocoToken(id, type, offset, offset, length));
+			} else {
+				testStream.addExpectedToken(new OrinocoToken(text, type, offset, offset, length));
+			}
 
 
 			offset += length;
@@ -0,0 +1,127 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmark that enforces the single-threaded (and therefore per core)
+ * throughput target of {@link OrinocoLexer}. As it measures wall-clock time, it
+ * only runs if the system property <code>orinoco.benchmarks</code> is
+ * <code>true</code> and is skipped otherwise. The target can be overridden with
+ * the system property <code>orinoco.lexer.minMBps</code>.
+ *
+ * @author K
+ * @since 10/18/2026
+ */
+public class LexerThroughputTest {
+	/** Minimum throughput in MB (of input text) per second on a single core */
+	private static final double MIN_MB_PER_SECOND = Double.parseDouble(System.getProperty("orinoco.lexer.minMBps", "30"));
+
+	private static final String SAMPLE = "/* header comment */\n"
+			+ "params [\"_unit\", [\"_radius\", 50, [0]]];\n"
+			+ "private _nearUnits = _unit nearEntities [[\"Man\", \"Car\"], _radius];\n"
+			+ "{\n"
+			+ "\tif (alive _x && {side _x != side _unit}) then { // only enemies\n"
+			+ "\t\t_x setDamage ((damage _x) + 0.25e0);\n"
+			+ "\t\tmyGlobalCounter = myGlobalCounter + 1;\n"
+			+ "\t};\n"
+			+ "} forEach _nearUnits;\n"
+			+ "hint format ['%1 units near %2', count _nearUnits, name _unit];\n";
+
+	@Test
+	public void throughput() {
+		assumeTrue("benchmarks are disabled (-Dorinoco.benchmarks=true enables them)", Boolean.getBoolean("orinoco.benchmarks"));
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 8 * 1024 * 1024) {
+			sb.append(SAMPLE);
+		}
+		String input = sb.toString();
+
+		// warm up
+		for (int i = 0; i < 5; i++) {
+			lex(input);
+		}
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			long start = System.nanoTime();
+			lex(input);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		double mbPerSecond = (input.length() / (1024.0 * 1024.0)) / (best / 1e9);
+		assertTrue(String.format("Lexer throughput of %.1f MB/s is below the target of %.1f MB/s", mbPerSecond, MIN_MB_PER_SECOND),
+				mbPerSecond >= MIN_MB_PER_SECOND);
+	}
+
+	private static void lex(@NotNull String input) {
+		new OrinocoLexer(OrinocoReader.fromCharSequence(input), new NoOpStream()).start();
+	}
+
+	private static class NoOpStream implements OrinocoLexerStream {
+		@Override
+		public void setLexer(@NotNull OrinocoLexer lexer) {
+		}
+
+		@Override
+		public boolean skipPreProcessing() {
+			return true;
+		}
+
+		@Override
+		public void acceptPreProcessorCommand(@NotNull PreProcessorCommand command, @NotNull char[] bufReadOnly, int offset, int bodyLength) {
+		}
+
+		@Override
+		public void preProcessToken(@NotNull char[] bufReadOnly, int offset, int length) {
+		}
+
+		@Override
+		public void acceptWhitespace(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength) {
+		}
+
+		@Override
+		public void acceptComment(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength) {
+		}
+
+		@Override
+		public void begin() {
+		}
+
+		@Override
+		public void acceptCommand(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		}
+
+		@Override
+		public void acceptLocalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		}
+
+		@Override
+		public void acceptGlobalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+		}
+
+		@Override
+		public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset,
+								  int originalOffset, int originalLength) {
+		}
+
+		@Override
+		public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull char[] bufReadOnly, int offset, int length,
+								  int preprocessedOffset, int originalOffset, int originalLength) {
+		}
+
+		@Override
+		public void preProcessorTokenSkipped(@NotNull String token, int offset) {
+		}
+
+		@Override
+		public void preProcessorCommandSkipped(@NotNull String command, int offset) {
+		}
+
+		@Override
+		public void end() {
+		}
+	}
+}
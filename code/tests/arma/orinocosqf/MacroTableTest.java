@@ -0,0 +1,116 @@
+package arma.orinocosqf;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class MacroTableTest {
+
+	@Test
+	public void defineAndUndefine() {
+		MacroTable table = new MacroTable();
+		table.define(PreProcessorMacro.define("ONE", "1"));
+		table.define(PreProcessorMacro.define("TWO", "2"));
+		table.define(PreProcessorMacro.define("ONE", "one"));
+		assertEquals(2, table.size());
+		assertEquals("one", table.get("ONE").getBody());
+		char[] buf = "x TWO y".toCharArray();
+		assertEquals("2", table.get(buf, 2, 3).getBody());
+		assertNull(table.get(buf, 2, 2));
+		assertNull(table.get("one"));
+
+		assertTrue(table.undefine(buf, 2, 3));
+		assertFalse(table.undefine("TWO"));
+		assertEquals(1, table.size());
+		assertNull(table.get("TWO"));
+	}
+
+	@Test
+	public void equalHashes() {
+		// "Aa" and "BB" have the same hash code, so all of these collide
+		String[] names = {"AaAa", "AaBB", "BBAa", "BBBB"};
+		MacroTable table = new MacroTable();
+		for (String name : names) {
+			table.define(PreProcessorMacro.define(name, name.toLowerCase()));
+		}
+		for (String name : names) {
+			char[] chars = name.toCharArray();
+			assertEquals(name.toLowerCase(), table.get(chars, 0, chars.length).getBody());
+		}
+		assertTrue(table.undefine("AaBB"));
+		assertTrue(table.undefine("BBBB"));
+		assertEquals(2, table.size());
+		assertNotNull(table.get("AaAa"));
+		assertNotNull(table.get("BBAa"));
+		assertNull(table.get("BBBB"));
+	}
+
+	@Test
+	public void forksAreIndependent() {
+		MacroTable base = new MacroTable();
+		for (int i = 0; i < 1000; i++) {
+			base.define(PreProcessorMacro.define("M" + i, Integer.toString(i)));
+		}
+		MacroTable a = base.fork();
+		MacroTable b = base.fork();
+		a.define(PreProcessorMacro.define("M1", "a"));
+		a.undefine("M2");
+		b.define(PreProcessorMacro.define("NEW", "b"));
+		base.undefine("M3");
+
+		assertEquals("1", base.get("M1").getBody());
+		assertNotNull(base.get("M2"));
+		assertNull(base.get("NEW"));
+		assertEquals(999, base.size());
+
+		assertEquals("a", a.get("M1").getBody());
+		assertNull(a.get("M2"));
+		assertNotNull(a.get("M3"));
+		assertEquals(999, a.size());
+
+		assertEquals("1", b.get("M1").getBody());
+		assertEquals("b", b.get("NEW").getBody());
+		assertEquals(1001, b.size());
+	}
+
+	@Test
+	public void randomOperations() {
+		Random random = new Random(7);
+		MacroTable table = new MacroTable();
+		Map<String, String> expected = new HashMap<>();
+		MacroTable fork = null;
+		Map<String, String> forkExpected = null;
+		for (int i = 0; i < 20000; i++) {
+			String name = "N" + random.nextInt(2000);
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(name) != null, table.undefine(name));
+			} else {
+				String body = Integer.toString(i);
+				table.define(PreProcessorMacro.define(name, body));
+				expected.put(name, body);
+			}
+			if (i == 10000) {
+				fork = table.fork();
+				forkExpected = new HashMap<>(expected);
+			}
+		}
+		assertMatches(expected, table);
+		assertMatches(forkExpected, fork);
+	}
+
+	private static void assertMatches(Map<String, String> expected, MacroTable table) {
+		assertEquals(expected.size(), table.size());
+		Set<String> names = new HashSet<>();
+		table.forEach(macro -> {
+			assertTrue(names.add(macro.getName()));
+			assertEquals(expected.get(macro.getName()), macro.getBody());
+		});
+		assertEquals(expected.keySet(), names);
+	}
+}
@@ -0,0 +1,74 @@
+package arma.orinocosqf;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OrinocoIncrementalLexerTest {
+	private static final String SCRIPT = "#define A 1\n"
+			+ "params [\"_unit\"];\n"
+			+ "/* block\ncomment */\n"
+			+ "if (alive _unit) then {\n"
+			+ "\t_unit setDamage 0.5; // comment\n"
+			+ "\thint 'it''s';\n"
+			+ "};\n";
+
+	private final SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+
+	@Test
+	public void insertInIdentifier() {
+		OrinocoIncrementalLexer lexer = new OrinocoIncrementalLexer(context);
+		lexer.setText(SCRIPT);
+		int offset = SCRIPT.indexOf("alive") + 2;
+		lexer.edit(offset, 0, "xx");
+		assertSameAsFullLex(lexer, SCRIPT.substring(0, offset) + "xx" + SCRIPT.substring(offset));
+
+		// only the tokens of the edited line are re-lexed
+		assertTrue(lexer.getDamageEnd() - lexer.getDamageStart() < 10);
+		assertEquals(2, lexer.getLastOffsetDelta());
+	}
+
+	/** Applies random edits and compares the tokens with those of a full lex after each of them */
+	@Test
+	public void randomEditsAreLexedAsTheWholeDocument() {
+		String[] pieces = {"a", "b1", "_c", " ", "\t", "\n", "\r\n", " \\\n", "1.5", "e", "\"", "'", "/", "*", "/*", "*/", "//", "#",
+				"#define X", "#include \"x\"", "#ifdef A\n", "#endif", ";", "=", "{", "}"};
+		for (long seed = 0; seed < 20; seed++) {
+			Random random = new Random(seed);
+			OrinocoIncrementalLexer lexer = new OrinocoIncrementalLexer(context);
+			StringBuilder text = new StringBuilder(seed == 0 ? SCRIPT : "");
+			lexer.setText(text);
+			for (int i = 0; i < 500; i++) {
+				int offset = random.nextInt(text.length() + 1);
+				int removed = random.nextInt(Math.min(4, text.length() - offset) + 1);
+				StringBuilder inserted = new StringBuilder();
+				for (int j = random.nextInt(4); j > 0; j--) {
+					inserted.append(pieces[random.nextInt(pieces.length)]);
+				}
+				text.replace(offset, offset + removed, inserted.toString());
+				lexer.edit(offset, removed, inserted);
+				assertSameAsFullLex(lexer, text);
+			}
+		}
+	}
+
+	private void assertSameAsFullLex(OrinocoIncrementalLexer lexer, CharSequence text) {
+		OrinocoIncrementalLexer expected = new OrinocoIncrementalLexer(context);
+		expected.setText(text);
+
+		assertEquals(text.length(), lexer.getTextLength());
+		OrinocoTokenBuffer expectedTokens = expected.getTokens();
+		OrinocoTokenBuffer tokens = lexer.getTokens();
+		assertEquals("token count of '" + text + "'", expectedTokens.size(), tokens.size());
+		for (int i = 0; i < expectedTokens.size(); i++) {
+			assertEquals(expectedTokens.getTokenType(i), tokens.getTokenType(i));
+			assertEquals(expectedTokens.getId(i), tokens.getId(i));
+			assertEquals(expectedTokens.getOriginalOffset(i), tokens.getOriginalOffset(i));
+			assertEquals(expectedTokens.getOriginalLength(i), tokens.getOriginalLength(i));
+			assertEquals(expectedTokens.getText(i), tokens.getText(i));
+		}
+	}
+}
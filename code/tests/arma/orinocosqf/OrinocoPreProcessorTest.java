@@ -2,11 +2,251 @@ package arma.orinocosqf;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
 public class OrinocoPreProcessorTest {
-	private OrinocoPreProcessor preProcessor = new OrinocoPreProcessor();
+
+	/** @return the preprocessed tokens of the text, separated by a blank */
+	static String preprocess(String text, MacroTable macros) {
+		char[] source = text.toCharArray();
+		SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+		OrinocoTokenBuffer buffer = new OrinocoTokenBuffer();
+		buffer.setSource(source, 0);
+		OrinocoPreProcessor preProcessor = new OrinocoPreProcessor(buffer, macros);
+		new OrinocoLexer(OrinocoReader.fromCharArray(source, 0, source.length), preProcessor, context).start();
+		return render(buffer, context);
+	}
+
+	/** @return the tokens (without whitespace and comments), separated by a blank */
+	static String render(OrinocoTokenBuffer buffer, SimpleOrinocoLexerContext context) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < buffer.size(); i++) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			switch (buffer.getTokenType(i)) {
+				case Command:
+					sb.append(context.getCommandName(buffer.getId(i)));
+					break;
+				case LocalVariable:
+				case GlobalVariable:
+					sb.append(context.getVariableName(buffer.getId(i)));
+					break;
+				default:
+					sb.append(buffer.getText(i));
+					break;
+			}
+		}
+		return sb.toString();
+	}
+
+	static String preprocess(String text) {
+		return preprocess(text, new MacroTable());
+	}
 
 	@Test
 	public void noPreProcessing() {
+		assertEquals("_a = 1 ;", preprocess("_a = 1;"));
+	}
+
+	@Test
+	public void objectLikeMacro() {
+		assertEquals("_a = 1 + 2 ; B", preprocess("#define A 1 + 2\n_a = A; B"));
+		assertEquals("_a = 3", preprocess("#define A \\\n 3\n_a = A"));
+
+		MacroTable predefined = new MacroTable();
+		predefined.define(PreProcessorMacro.define("DEBUG", "true"));
+		assertEquals("true", preprocess("DEBUG", predefined));
+	}
+
+	@Test
+	public void functionLikeMacro() {
+		assertEquals("_x = ( 1 + ( 2 , 3 ) ) ;", preprocess("#define ADD(A,B) (A + B)\n_x = ADD(1, (2,3));"));
+		// without arguments, a function-like macro is a plain identifier
+		assertEquals("ADD ;", preprocess("#define ADD(A,B) (A + B)\nADD;"));
+		assertEquals("[ ]", preprocess("#define EMPTY() []\nEMPTY()"));
+		// commas in strings don't separate arguments
+		assertEquals("[ \"a,b\" ]", preprocess("#define ARR(A) [A]\nARR(\"a,b\")"));
+	}
+
+	@Test
+	public void nestedMacros() {
+		assertEquals("_x = 2 * ( 1 + 1 )", preprocess("#define ONE 1\n#define TWO_OF(A) 2 * (A + A)\n_x = TWO_OF(ONE)"));
+		assertEquals("[ 1 , 1 ]", preprocess("#define ONE 1\n#define PAIR [ONE, ONE]\nPAIR"));
+	}
+
+	@Test
+	public void concatenationAndStringification() {
+		assertEquals("my_var = \"my\" ;", preprocess("#define VAR(A) A ## _var = #A\nVAR(my);"));
+		assertEquals("ab", preprocess("#define CAT(A,B) A##B\nCAT(a,b)"));
+		// parameters aren't replaced in string literals of the body
+		assertEquals("\"A\"", preprocess("#define S(A) \"A\"\nS(x)"));
+	}
+
+	@Test
+	public void argumentsArePassedThroughLayers() throws FileNotFoundException {
+		String macros = "#define ARR_1(A) A\n#define QUOTE(A) #A\n#define DOUBLES(A,B) A##_##B\n#define GVAR(V) DOUBLES(cba,V)\n"
+				+ "#define ONE 1\n";
+		String text = macros + "ARR_1( GVAR(x) ) = [QUOTE(GVAR(x)), ARR_1(ONE)]; ARR_1() ARR_1(,)";
+		assertEquals("cba_x = [ \"cba_x\" , 1 ] ;", preprocess(text));
+
+		// the lexer reads through its window, so the arguments are copied
+		SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+		OrinocoTokenBuffer buffer = new OrinocoTokenBuffer();
+		buffer.setSource(text.toCharArray(), 0);
+		OrinocoReader reader = OrinocoReader.fromStream(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+		new OrinocoLexer(reader, new OrinocoPreProcessor(buffer), context).start();
+		assertEquals("cba_x = [ \"cba_x\" , 1 ] ;", render(buffer, context));
+	}
+
+	@Test
+	public void argumentsAreExpandedBeforeSubstitution() {
+		String cba = "#define ADDON pre_comp\n#define DOUBLES(A,B) A##_##B\n#define GVAR(V) DOUBLES(ADDON,V)\n"
+				+ "#define QUOTE(A) #A\n#define FNC(A) fnc_##A\n";
+		assertEquals("pre_comp_foo", preprocess(cba + "GVAR(foo)"));
+		assertEquals("\"fnc_a\"", preprocess(cba + "QUOTE(FNC(a))"));
+		assertEquals("\"pre_comp_foo\"", preprocess(cba + "QUOTE(GVAR(foo))"));
+		assertEquals("\"1\"", preprocess("#define A 1\n#define Q(X) #X\nQ(A)"));
+		// a function-like macro without arguments is left for the rescan of the expansion
+		assertEquals("[ 1 ]", preprocess("#define F(X) [X]\n#define CALL(M) M(1)\nCALL(F)"));
+		// unused arguments aren't expanded, so their limits aren't exceeded
+		assertEquals(0, problems("#define A A A A A A A A\n#define FIRST(X,Y) X\nFIRST(1, A)", 64, 10).size());
+	}
+
+	@Test
+	public void recursiveMacroIsNotExpandedAgain() {
+		assertEquals("A + 1", preprocess("#define A A + 1\nA"));
+		assertEquals("A", preprocess("#define A B\n#define B A\nA"));
+		// invocations in the arguments aren't part of the macro's own expansion
+		assertEquals("[ [ 1 ] ]", preprocess("#define F(x) [x]\nF(F(1))"));
+		assertEquals("[ [ 1 , 2 ] , [ \"a\" , \"b\" ] ]", preprocess("#define ARR_2(A,B) [A,B]\n#define QUOTE(A) #A\n"
+				+ "ARR_2(ARR_2(1,2),ARR_2(QUOTE(a),QUOTE(b)))"));
+		assertEquals("[ F ( 1 ) ]", preprocess("#define F(x) [x(1)]\nF(F)"));
+	}
+
+	@Test
+	public void conditionals() {
+		assertEquals("1 3", preprocess("#define X\n#ifdef X\n1\n#else\n2\n#endif\n3"));
+		assertEquals("2 3", preprocess("#ifdef X\n1\n#else\n2\n#endif\n3"));
+		assertEquals("1", preprocess("#ifndef X\n1\n#endif"));
+		// nested conditionals in an inactive region stay inactive
+		assertEquals("4", preprocess("#ifdef X\n#ifndef Y\n1\n#else\n2\n#endif\n3\n#endif\n4"));
+		// #define in an inactive region is ignored
+		assertEquals("A", preprocess("#ifdef X\n#define A 1\n#endif\nA"));
+	}
+
+	@Test
+	public void inactiveRegionsAreSkipped() throws FileNotFoundException {
+		assertEquals("3", preprocess("#ifdef X\n1 # 2\n  #ifdef Y\n#else\n#endif\n  #else\n3\n#endif"));
+		assertEquals("1 4", preprocess("#ifndef X\n1\n#else\n#ifndef Y\n2\n#endif\n3\n#endif\n4"));
+		// unterminated
+		assertEquals("", preprocess("#ifdef X\n1"));
+
+		// strings, comments and command lines are stepped over
+		assertEquals("_b", preprocess("#ifdef NOPE\n_a = \"\n#endif\n\";\n#endif\n_b"));
+		assertEquals("_b", preprocess("#ifdef NOPE\n_a = 'it''s\n#endif\n';\n#endif\n_b"));
+		assertEquals("_b", preprocess("#ifdef NOPE\n_a = 1 / 2; /* **\n#endif\n**/\n#endif\n_b"));
+		assertEquals("_b", preprocess("#ifdef NOPE\n// don't\n#define A don't \\\n  #endif\n#endif\n_b"));
+		assertEquals("_b", preprocess("#ifdef NOPE\n_a = \"\"\"#endif\"\"\n#endif\";\n#endif\n_b"));
+		// an unterminated string runs to the end of the input, as it does when it is lexed
+		assertEquals("", preprocess("#ifdef NOPE\n_a = \"\n#endif\n#endif\n_a"));
+
+		// the region is larger than the lexer's window
+		StringBuilder text = new StringBuilder("_a;\n#ifdef X\n");
+		for (int i = 0; i < 5000; i++) {
+			text.append("_v").append(i).append(" = \"#endif\";\n");
+		}
+		text.append("\t#endif\n_b");
+		SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+		OrinocoTokenBuffer buffer = new OrinocoTokenBuffer();
+		OrinocoReader reader = OrinocoReader.fromStream(new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.UTF_8)),
+				StandardCharsets.UTF_8);
+		new OrinocoLexer(reader, new OrinocoPreProcessor(buffer), context).start();
+		assertEquals("_a ; _b", render(buffer, context));
+		assertEquals(text.indexOf("_b"), buffer.getOriginalOffset(2));
+		// the skipped text isn't part of the preprocessed input
+		assertEquals("_a;\n\t\n".length(), buffer.getPreprocessedOffset(2));
+
+		// a comment that spans several windows
+		text = new StringBuilder("#ifdef X\n/*\n");
+		for (int i = 0; i < 5000; i++) {
+			text.append("#endif '\n");
+		}
+		text.append("*/ \"\n#endif\n\"\n#endif\n_b");
+		buffer = new OrinocoTokenBuffer();
+		reader = OrinocoReader.fromStream(new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+		new OrinocoLexer(reader, new OrinocoPreProcessor(buffer), context).start();
+		assertEquals("_b", render(buffer, context));
+		assertEquals(text.indexOf("_b"), buffer.getOriginalOffset(0));
+	}
+
+	@Test
+	public void undefine() {
+		assertEquals("1 A", preprocess("#define A 1\nA\n#undef A\nA"));
+	}
+
+	/** @return the problems reported while preprocessing the text with the given limits */
+	private static List<PreProcessorProblem> problems(String text, int maxDepth, int maxLength) {
+		char[] source = text.toCharArray();
+		SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+		OrinocoTokenBuffer buffer = new OrinocoTokenBuffer();
+		buffer.setSource(source, 0);
+		OrinocoPreProcessor preProcessor = new OrinocoPreProcessor(buffer);
+		preProcessor.setExpansionLimits(maxDepth, maxLength);
+		List<PreProcessorProblem> problems = new ArrayList<>();
+		preProcessor.setProblemListener((problem, message, offset, length) -> problems.add(problem));
+		new OrinocoLexer(OrinocoReader.fromCharArray(source, 0, source.length), preProcessor, context).start();
+		return problems;
+	}
+
+	@Test
+	public void deepExpansionDoesNotOverflowTheStack() {
+		StringBuilder text = new StringBuilder("#define M0 x\n");
+		for (int i = 1; i < 5000; i++) {
+			text.append("#define M").append(i).append(" M").append(i - 1).append('\n');
+		}
+		assertEquals("x y", preprocess(text + "M200 y"));
+		// deeper than the default limit
+		assertEquals("y", preprocess(text + "M4999 y"));
+		assertEquals(0, problems(text + "M4999 y", 10000, 100000).size());
+		// arguments are expanded with the same limits
+		assertEquals("y", preprocess(text + "#define ID(X) X\nID(M4999) y"));
+		// chains in arguments and nested arguments don't grow the stack either
+		assertEquals(0, problems(text + "#define ID(X) X\nID(M4999) y", 10000, 100000).size());
+		assertEquals(0, problems(text + "#define Q(X) #X\n#define F(X,Y) [X,Y]\nQ(F(M4999, F(1, M4999)))", 10000, 100000).size());
+		StringBuilder nested = new StringBuilder("#define ID(X) X\n#define ONE 1\n");
+		for (int i = 0; i < 5000; i++) {
+			nested.append("ID(");
+		}
+		nested.append("ONE");
+		for (int i = 0; i < 5000; i++) {
+			nested.append(')');
+		}
+		assertEquals("1", preprocess(nested.toString()));
+	}
+
+	@Test
+	public void expansionLimits() {
+		StringBuilder text = new StringBuilder("#define A0 x x\n");
+		for (int i = 1; i <= 30; i++) {
+			text.append("#define A").append(i).append(" A").append(i - 1).append(" A").append(i - 1).append('\n');
+		}
+		text.append("A30 A30");
+		// reported once per invocation in the input
+		List<PreProcessorProblem> problems = problems(text.toString(), 64, 10000);
+		assertEquals(2, problems.size());
+		assertEquals(PreProcessorProblem.ExpansionTooLong, problems.get(0));
 
+		assertEquals(1, problems("#define A B\n#define B C\n#define C 1\nA 1", 2, 1000).size());
+		assertEquals(PreProcessorProblem.ExpansionTooDeep, problems("#define A B\n#define B C\n#define C 1\nA", 2, 1000).get(0));
+		assertEquals(0, problems("#define A B\n#define B C\n#define C 1\nA", 3, 1000).size());
+		assertEquals(PreProcessorProblem.ExpansionTooDeep, problems("#define A B\n#define B C\n#define C 1\n#define ID(X) [X]\nID(A)",
+				2, 1000).get(0));
 	}
-}
\ No newline at end of file
+}
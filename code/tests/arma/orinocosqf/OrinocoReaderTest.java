@@ -0,0 +1,137 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+public class OrinocoReaderTest {
+
+	@Test
+	public void charSequence_offsetReads() throws IOException {
+		String content = "private _a = [1, 2, 3];";
+		CharSequence[] sequences = {content, new StringBuilder(content), new StringBuffer(content), CharBuffer.wrap(content),
+				CharBuffer.wrap(content.toCharArray()), new Segment(content)};
+		for (CharSequence cs : sequences) {
+			for (int chunkSize : new int[]{1, 5, 4096}) {
+				assertEquals(cs.getClass().getName(), content, readAll(OrinocoReader.fromCharSequence(cs), chunkSize));
+			}
+		}
+	}
+
+	@Test
+	public void charSequence_slicedCharBuffer() throws IOException {
+		CharBuffer buffer = CharBuffer.wrap("xxhint 1;yy".toCharArray());
+		buffer.position(2).limit(9);
+		CharBuffer slice = buffer.slice();
+		assertEquals("hint 1;", readAll(OrinocoReader.fromCharSequence(slice), 3));
+		assertEquals("hint 1;", readAll(OrinocoReader.fromCharSequence(slice.asReadOnlyBuffer()), 3));
+	}
+
+	@Test
+	public void charSequence_markResetSkip() throws IOException {
+		CharSequenceReader r = new CharSequenceReader("abcdef");
+		assertEquals(2, r.skip(2));
+		r.mark(0);
+		assertEquals('c', r.read());
+		assertEquals('d', r.read());
+		r.reset();
+		assertEquals('c', r.read());
+		assertEquals(3, r.skip(10));
+		assertEquals(-1, r.read());
+		assertEquals(true, r.ready());
+	}
+
+	@Test
+	public void mappedFile_ascii() throws IOException {
+		assertMappedFileContent("hint \"hello\";", StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void mappedFile_utf8() throws IOException {
+		assertMappedFileContent("hint \"h\u00e9llo \u20ac \ud83d\ude00\";", StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void mappedFile_utf8ByteOrderMark() throws IOException {
+		Path file = Files.createTempFile("orinoco", ".sqf");
+		try {
+			Files.write(file, new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'a', 'b'});
+			assertEquals("ab", readAll(OrinocoReader.fromMappedFile(file, StandardCharsets.UTF_8), 16));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void mappedFile_utf8Malformed() throws IOException {
+		Path file = Files.createTempFile("orinoco", ".sqf");
+		try {
+			Files.write(file, new byte[]{'a', (byte) 0xC3, 'b', (byte) 0xFF});
+			assertEquals("a\ufffdb\ufffd", readAll(OrinocoReader.fromMappedFile(file, StandardCharsets.UTF_8), 16));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void mappedFile_otherCharset() throws IOException {
+		assertMappedFileContent("hint \"h\u00e9llo \ud83d\ude00\";", StandardCharsets.UTF_16LE);
+	}
+
+	private static void assertMappedFileContent(@NotNull String content, @NotNull Charset c) throws IOException {
+		Path file = Files.createTempFile("orinoco", ".sqf");
+		try {
+			Files.write(file, content.getBytes(c));
+			// a chunk size of 1 forces surrogate pairs to be split across reads
+			for (int chunkSize : new int[]{1, 3, 4096}) {
+				assertEquals(content, readAll(OrinocoReader.fromMappedFile(file, c), chunkSize));
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@NotNull
+	private static String readAll(@NotNull OrinocoReader r, int chunkSize) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		char[] buf = new char[chunkSize + 2];
+		int read;
+		while ((read = r.read(buf, 2, chunkSize)) >= 0) {
+			sb.append(buf, 2, read);
+		}
+		r.close();
+		return sb.toString();
+	}
+
+	/** A {@link CharSequence} that isn't one of the types {@link CharSequenceReader} copies in bulk */
+	private static class Segment implements CharSequence {
+		private final String s;
+
+		Segment(@NotNull String s) {
+			this.s = s;
+		}
+
+		@Override
+		public int length() {
+			return s.length();
+		}
+
+		@Override
+		public char charAt(int index) {
+			return s.charAt(index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return s.subSequence(start, end);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package arma.orinocosqf;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class OrinocoTokenBufferTest {
+
+	@Test
+	public void literalTextInSourceAndPool() {
+		char[] source = "hint \"a\";".toCharArray();
+		OrinocoTokenBuffer buffer = new OrinocoTokenBuffer(1);
+		buffer.setSource(source, 0);
+		buffer.acceptCommand(7, 0, 0, 4);
+		buffer.acceptWhitespace(4, 1, 4, 1);
+		buffer.acceptLiteral(OrinocoLexerSQFLiteralType.String, source, 5, 3, 5, 5, 3);
+		buffer.acceptLiteral(OrinocoLexerSQFLiteralType.Number, "12", 8, 8, 1);
+
+		assertEquals(4, buffer.size());
+		assertEquals(OrinocoSQFTokenType.Command, buffer.getTokenType(0));
+		assertEquals(7, buffer.getId(0));
+		assertNull(buffer.getTextArray(0));
+		assertEquals(-1, buffer.getId(2));
+
+		// span in the source isn't copied
+		assertSame(source, buffer.getTextArray(2));
+		assertEquals(5, buffer.getTextOffset(2));
+		assertEquals("\"a\"", buffer.getText(2));
+		assertEquals(OrinocoLexerSQFLiteralType.String, buffer.getLiteralType(2));
+
+		// text that isn't in the source is kept in the pool
+		assertNotSame(source, buffer.getTextArray(3));
+		assertEquals("12", buffer.getText(3));
+		assertEquals(OrinocoLexerSQFLiteralType.Number, buffer.getLiteralType(3));
+		assertEquals(2, buffer.getLength(3));
+		assertEquals(1, buffer.getOriginalLength(3));
+	}
+
+	@Test
+	public void cursorIteration() {
+		OrinocoTokenBuffer buffer = new OrinocoTokenBuffer();
+		buffer.acceptLocalVariable(3, 0, 0, 2);
+		buffer.acceptCommand(0, 3, 3, 1);
+		buffer.acceptLiteral(OrinocoLexerSQFLiteralType.Number, "1", 5, 5, 1);
+
+		Iterator<OrinocoToken> it = buffer.iterator();
+		OrinocoToken first = it.next();
+		assertEquals(OrinocoSQFTokenType.LocalVariable, first.getTokenType());
+		assertEquals(3, first.getId());
+		OrinocoToken second = it.next();
+		assertSame(first, second);
+		assertEquals(OrinocoSQFTokenType.Command, second.getTokenType());
+		assertEquals(3, second.getOriginalOffset());
+		OrinocoToken third = it.next();
+		assertEquals("1", third.getText());
+		assertFalse(it.hasNext());
+
+		OrinocoToken copy = buffer.toToken(2);
+		buffer.clear();
+		assertEquals("1", copy.getText());
+		assertEquals(5, copy.getPreprocessedOffset());
+	}
+
+	@Test
+	public void lexIntoBufferAndReplay() {
+		String text = "private _a = 'x'; // c\n#include \"f\"\nhint _a;";
+		char[] source = text.toCharArray();
+		OrinocoTokenBuffer buffer = new OrinocoTokenBuffer();
+		buffer.setSource(source, 0);
+		new OrinocoLexer(OrinocoReader.fromCharArray(source, 0, source.length), new BufferStream(buffer)).start();
+
+		OrinocoTokenBuffer replayed = new OrinocoTokenBuffer();
+		buffer.replay(0, buffer.size(), new BufferStream(replayed));
+		assertEquals(buffer.size(), replayed.size());
+		StringBuilder concatenated = new StringBuilder();
+		for (int i = 0; i < buffer.size(); i++) {
+			assertEquals(buffer.getTokenType(i), replayed.getTokenType(i));
+			assertEquals(buffer.getId(i), replayed.getId(i));
+			assertEquals(buffer.getText(i), replayed.getText(i));
+			concatenated.append(text, buffer.getOriginalOffset(i), buffer.getOriginalOffset(i) + buffer.getOriginalLength(i));
+		}
+		assertEquals(text, concatenated.toString());
+		assertEquals("'x'", buffer.getText(6));
+		assertSame(source, buffer.getTextArray(6));
+	}
+
+	private static class BufferStream implements OrinocoLexerStream {
+		private final OrinocoTokenBuffer buffer;
+
+		BufferStream(OrinocoTokenBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void setLexer(OrinocoLexer lexer) {
+		}
+
+		@Override
+		public boolean skipPreProcessing() {
+			return true;
+		}
+
+		@Override
+		public void acceptPreProcessorCommand(PreProcessorCommand command, char[] bufReadOnly, int offset, int bodyLength) {
+		}
+
+		@Override
+		public void preProcessToken(char[] bufReadOnly, int offset, int length) {
+		}
+
+		@Override
+		public void acceptWhitespace(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength) {
+			buffer.acceptWhitespace(originalOffset, originalLength, preprocessedOffset, preprocessedLength);
+		}
+
+		@Override
+		public void acceptComment(int originalOffset, int originalLength, int preprocessedOffset, int preprocessedLength) {
+			buffer.acceptComment(originalOffset, originalLength, preprocessedOffset, preprocessedLength);
+		}
+
+		@Override
+		public void begin() {
+		}
+
+		@Override
+		public void acceptCommand(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+			buffer.acceptCommand(id, preprocessedOffset, originalOffset, originalLength);
+		}
+
+		@Override
+		public void acceptLocalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+			buffer.acceptLocalVariable(id, preprocessedOffset, originalOffset, originalLength);
+		}
+
+		@Override
+		public void acceptGlobalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+			buffer.acceptGlobalVariable(id, preprocessedOffset, originalOffset, originalLength);
+		}
+
+		@Override
+		public void acceptLiteral(OrinocoLexerLiteralType type, String token, int preprocessedOffset, int originalOffset,
+								  int originalLength) {
+			buffer.acceptLiteral(type, token, preprocessedOffset, originalOffset, originalLength);
+		}
+
+		@Override
+		public void acceptLiteral(OrinocoLexerLiteralType type, char[] bufReadOnly, int offset, int length, int preprocessedOffset,
+								  int originalOffset, int originalLength) {
+			buffer.acceptLiteral(type, bufReadOnly, offset, length, preprocessedOffset, originalOffset, originalLength);
+		}
+
+		@Override
+		public void preProcessorTokenSkipped(String token, int offset) {
+			buffer.preProcessorTokenSkipped(token, offset);
+		}
+
+		@Override
+		public void preProcessorCommandSkipped(String command, int offset) {
+			buffer.preProcessorCommandSkipped(command, offset);
+		}
+
+		@Override
+		public void end() {
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package arma.orinocosqf;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class PreProcessedTextWriterTest {
+
+	private static String write(String text, boolean lineMarkers) {
+		SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+		StringWriter out = new StringWriter();
+		PreProcessedTextWriter writer = new PreProcessedTextWriter(out, context);
+		if (lineMarkers) {
+			writer.setLineMarkers("f.sqf", text);
+		}
+		new OrinocoLexer(OrinocoReader.fromCharSequence(text), new OrinocoPreProcessor(writer), context).start();
+		return out.toString();
+	}
+
+	@Test
+	public void preprocessedText() {
+		assertEquals("\n\n_a = [1,  2];  \n\n_b", write("#define ONE 1\n#define PAIR(A,B) [A,  B]\n_a = PAIR(ONE,2); // c\n#ifdef X\nfoo\n#endif\n_b", false));
+	}
+
+	@Test
+	public void identifiersKeepTheirCase() {
+		// both spellings have the same id
+		assertEquals("abc = 1; ABC = 2; Hint str _X; hint _x;", write("abc = 1; ABC = 2; Hint str _X; hint _x;", false));
+		assertEquals("\nAbC = [abc];", write("#define V(x) [x]\nAbC = V(abc);", false));
+	}
+
+	@Test
+	public void lineMarkers() {
+		assertEquals("#line 1 \"f.sqf\"\n_a;\n\n#line 14 \"f.sqf\"\n_b", write("_a;\n#ifdef X\n1\n2\n3\n4\n5\n6\n7\n8\n9\n10\n#endif\n_b", true));
+		// small gaps are filled with line breaks
+		assertEquals("#line 1 \"f.sqf\"\n_a;\n\n\n\n_b", write("_a;\n#ifdef X\n1\n#endif\n_b", true));
+	}
+
+	@Test
+	public void channel() {
+		String text = "#define S \"\u00e4\"\n_a = S;";
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+		PreProcessedTextWriter writer = new PreProcessedTextWriter(Channels.newChannel(bytes), StandardCharsets.UTF_8, context);
+		new OrinocoLexer(OrinocoReader.fromCharSequence(text), new OrinocoPreProcessor(writer), context).start();
+		assertEquals("\n_a = \"\u00e4\";", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void largeOutputIsStreamed() {
+		// 2^16 expansions of X
+		StringBuilder text = new StringBuilder("#define A0 X\n");
+		for (int i = 1; i <= 16; i++) {
+			text.append("#define A").append(i).append(" A").append(i - 1).append(" A").append(i - 1).append('\n');
+		}
+		text.append("A16");
+		long[] written = new long[1];
+		WritableByteChannel counting = new WritableByteChannel() {
+			@Override
+			public int write(ByteBuffer src) {
+				// each write is at most one buffer
+				assertTrue(src.remaining() <= PreProcessedTextWriter.BUFFER_SIZE);
+				int n = src.remaining();
+				src.position(src.limit());
+				written[0] += n;
+				return n;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+		PreProcessedTextWriter writer = new PreProcessedTextWriter(counting, StandardCharsets.US_ASCII, context);
+		new OrinocoLexer(OrinocoReader.fromCharSequence(text), new OrinocoPreProcessor(writer), context).start();
+		// 17 line breaks of the #define lines, "X" and " " per expansion but the last
+		assertEquals(17 + 2 * 65536 - 1, written[0]);
+	}
+}
@@ -0,0 +1,95 @@
+package arma.orinocosqf;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class PreProcessorSnapshotTest {
+	private Path dir;
+	private SimpleOrinocoLexerContext context;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("snapshot");
+		context = new SimpleOrinocoLexerContext();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	private String preprocess(OrinocoPreProcessor preProcessor, OrinocoTokenBuffer buffer, String text) {
+		char[] source = text.toCharArray();
+		buffer.clear();
+		buffer.setSource(source, 0);
+		new OrinocoLexer(OrinocoReader.fromCharArray(source, 0, source.length), preProcessor, context).start();
+		return OrinocoPreProcessorTest.render(buffer, context);
+	}
+
+	@Test
+	public void writeAndRestore() throws IOException {
+		Path header = dir.resolve("macros.hpp");
+		Files.write(header, "#define PREFIX cba\n#define GVAR(V) [PREFIX, #V]\n#define EMPTY\n".getBytes(StandardCharsets.UTF_8));
+		OrinocoTokenBuffer buffer = new OrinocoTokenBuffer();
+		OrinocoPreProcessor headers = new OrinocoPreProcessor(buffer);
+		headers.setIncludes(IncludeResolver.fromRoots(Collections.singletonList(dir)), new IncludeCache());
+		preprocess(headers, buffer, "#include \"macros.hpp\"\n#ifdef EMPTY");
+
+		Path snapshot = dir.resolve("headers.bin");
+		PreProcessorSnapshot.write(headers, snapshot);
+
+		OrinocoPreProcessor restored = new OrinocoPreProcessor(buffer);
+		PreProcessorSnapshot.restore(snapshot, restored);
+		assertEquals(3, restored.getMacroTable().size());
+		assertEquals(headers.getMacroTable().get("GVAR"), restored.getMacroTable().get("GVAR"));
+		assertEquals(Collections.singleton(header.toRealPath()), restored.getIncludedFiles().keySet());
+		// the restored preprocessor is still inside #ifdef EMPTY
+		assertEquals("[ cba , \"x\" ] 1", preprocess(restored, buffer, "GVAR(x)\n#else\n2\n#endif\n1"));
+	}
+
+	@Test
+	public void changedIncludeRejectsSnapshot() throws IOException {
+		Path header = dir.resolve("macros.hpp");
+		Files.write(header, "#define ONE 1\n".getBytes(StandardCharsets.UTF_8));
+		OrinocoTokenBuffer buffer = new OrinocoTokenBuffer();
+		OrinocoPreProcessor headers = new OrinocoPreProcessor(buffer);
+		headers.setIncludes(IncludeResolver.fromRoots(Collections.singletonList(dir)), new IncludeCache());
+		preprocess(headers, buffer, "#include \"macros.hpp\"");
+		Path snapshot = dir.resolve("headers.bin");
+		PreProcessorSnapshot.write(headers, snapshot);
+
+		Files.write(header, "#define ONE 2\n".getBytes(StandardCharsets.UTF_8));
+		OrinocoPreProcessor restored = new OrinocoPreProcessor(buffer);
+		try {
+			PreProcessorSnapshot.restore(snapshot, restored);
+			fail("changed include accepted");
+		} catch (IOException expected) {
+			assertEquals(0, restored.getMacroTable().size());
+		}
+
+		// truncated
+		Files.write(header, "#define ONE 1\n".getBytes(StandardCharsets.UTF_8));
+		byte[] bytes = Files.readAllBytes(snapshot);
+		Files.write(snapshot, Arrays.copyOf(bytes, bytes.length - 3));
+		try {
+			PreProcessorSnapshot.restore(snapshot, restored);
+			fail("truncated snapshot accepted");
+		} catch (IOException expected) {
+			assertEquals(0, restored.getMacroTable().size());
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package arma.orinocosqf;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class PreProcessorSourceMapTest {
+
+	private static OrinocoTokenBuffer preprocess(String text, OrinocoPreProcessor preProcessor, OrinocoTokenBuffer buffer) {
+		char[] source = text.toCharArray();
+		buffer.setSource(source, 0);
+		new OrinocoLexer(OrinocoReader.fromCharArray(source, 0, source.length), preProcessor, new SimpleOrinocoLexerContext()).start();
+		return buffer;
+	}
+
+	@Test
+	public void textAndExpansions() {
+		String text = "#define ONE 1\n#define TWO ONE + ONE\n_a = TWO;\n#ifdef X\n_x\n#endif\n_b";
+		OrinocoTokenBuffer buffer = new OrinocoTokenBuffer();
+		OrinocoPreProcessor preProcessor = new OrinocoPreProcessor(buffer);
+		PreProcessorSourceMap map = new PreProcessorSourceMap();
+		preProcessor.setSourceMap(map);
+		preprocess(text, preProcessor, buffer);
+		// _a = 1 + 1 ; _b
+		assertEquals(7, buffer.size());
+
+		int a = buffer.getPreprocessedOffset(0);
+		assertEquals(text.indexOf("_a"), map.toOriginalOffset(a));
+		assertEquals(PreProcessorSourceMap.KIND_TEXT, map.getKind(map.find(a)));
+		assertEquals(text.indexOf("= TWO"), map.toOriginalOffset(a + 3));
+
+		int one = buffer.getPreprocessedOffset(4);
+		int interval = map.find(one);
+		assertEquals(PreProcessorSourceMap.KIND_MACRO, map.getKind(interval));
+		assertEquals("ONE", map.getMacro(interval).getName());
+		int parent = map.getParent(interval);
+		assertEquals("TWO", map.getMacro(parent).getName());
+		assertEquals(-1, map.getParent(parent));
+		assertEquals(text.indexOf("TWO;"), map.getOriginalOffset(parent));
+		assertEquals(3, map.getOriginalLength(parent));
+		assertEquals(text.indexOf("TWO;"), map.toOriginalOffset(one));
+		// the " + " between the expansions of ONE is part of the expansion of TWO
+		assertEquals(parent, map.find(one - 2));
+		assertNull(map.getFile(interval));
+
+		int b = buffer.getPreprocessedOffset(6);
+		assertEquals(text.indexOf("_b"), map.toOriginalOffset(b));
+		assertEquals(text.indexOf("_b") + 1, map.toOriginalOffset(b + 1));
+	}
+
+	@Test
+	public void includes() throws IOException {
+		Path dir = Files.createTempDirectory("sourcemap");
+		Path header = dir.resolve("x.hpp");
+		try {
+			Files.write(header, "#define X 2\n_h = X;".getBytes(StandardCharsets.UTF_8));
+			String text = "_a;\n#include \"x.hpp\"\n_b";
+			OrinocoTokenBuffer buffer = new OrinocoTokenBuffer();
+			OrinocoPreProcessor preProcessor = new OrinocoPreProcessor(buffer);
+			preProcessor.setIncludes(IncludeResolver.fromRoots(Collections.singletonList(dir)), new IncludeCache());
+			PreProcessorSourceMap map = new PreProcessorSourceMap();
+			preProcessor.setSourceMap(map);
+			preprocess(text, preProcessor, buffer);
+			// _a ; _h = 2 ; _b
+			assertEquals(7, buffer.size());
+
+			int two = buffer.getPreprocessedOffset(4);
+			int interval = map.find(two);
+			assertEquals("X", map.getMacro(interval).getName());
+			assertEquals(header.toRealPath(), map.getFile(interval));
+			assertEquals("#define X 2\n_h = ".length(), map.getOriginalOffset(interval));
+			int include = map.getParent(interval);
+			assertEquals(PreProcessorSourceMap.KIND_INCLUDE, map.getKind(include));
+			assertEquals(header.toRealPath(), map.getIncludedFile(include));
+			assertNull(map.getFile(include));
+			assertEquals(text.indexOf('#'), map.toOriginalOffset(two));
+
+			int h = map.find(buffer.getPreprocessedOffset(2));
+			assertEquals(PreProcessorSourceMap.KIND_TEXT, map.getKind(h));
+			assertEquals(include, map.getParent(h));
+			assertEquals(text.indexOf("_b"), map.toOriginalOffset(buffer.getPreprocessedOffset(6)));
+		} finally {
+			Files.delete(header);
+			Files.delete(dir);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package arma.orinocosqf;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StatementCollectionTokenProcessorTest {
+
+	private static final String TEXT = "_a = [1, 2]; _b = {x; y}; f(1,2), _c";
+
+	private static List<OrinocoTokenBuffer> collect(int batchSize, StatementCollectionTokenProcessor[] collector) {
+		List<OrinocoTokenBuffer> batches = new ArrayList<>();
+		SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+		StatementProcessingScheduler scheduler = queue -> {
+			BoundedOrinocoTokenQueue worker = new BoundedOrinocoTokenQueue(2, 1);
+			queue.drainTo(worker);
+			OrinocoTokenBuffer batch = new OrinocoTokenBuffer();
+			assertTrue(worker.poll(batch));
+			assertTrue(worker.isEmpty());
+			batches.add(batch);
+		};
+		collector[0] = new StatementCollectionTokenProcessor(context, scheduler, batchSize);
+		new OrinocoLexer(OrinocoReader.fromCharSequence(TEXT), new OrinocoPreProcessor(collector[0]), context).start();
+		return batches;
+	}
+
+	@Test
+	public void statements() {
+		StatementCollectionTokenProcessor[] collector = new StatementCollectionTokenProcessor[1];
+		List<OrinocoTokenBuffer> batches = collect(1, collector);
+		assertEquals(4, collector[0].getStatementCount());
+		assertEquals(4, batches.size());
+		// _a = [ 1 , 2 ] ;
+		assertEquals(8, batches.get(0).size());
+		// _b = { x ; y } ;
+		assertEquals(8, batches.get(1).size());
+		// f ( 1 , 2 ) ,
+		assertEquals(7, batches.get(2).size());
+		assertEquals(1, batches.get(3).size());
+		assertEquals("2", batches.get(0).getText(5));
+	}
+
+	@Test
+	public void batching() {
+		StatementCollectionTokenProcessor[] collector = new StatementCollectionTokenProcessor[1];
+		List<OrinocoTokenBuffer> batches = collect(12, collector);
+		assertEquals(4, collector[0].getStatementCount());
+		assertEquals(2, collector[0].getBatchCount());
+		assertEquals(16, batches.get(0).size());
+		assertEquals(8, batches.get(1).size());
+
+		batches = collect(1000, collector);
+		assertEquals(1, batches.size());
+		assertEquals(24, batches.get(0).size());
+	}
+}
@@ -0,0 +1,231 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import static org.junit.Assert.*;
+
+public class StatementProcessingSchedulerTest {
+
+	/** Counts the tokens and the semicolons */
+	private static class CountingProcessor implements StatementProcessor {
+		private final int semicolonId;
+		private final Thread[] owner = new Thread[1];
+		int tokens;
+		int semicolons;
+		long idSum;
+		boolean begun;
+		boolean ended;
+
+		CountingProcessor(OrinocoLexerContext context) {
+			this.semicolonId = context.getCommandId(new char[]{';'}, 0, 1);
+		}
+
+		private void token() {
+			if (owner[0] == null) {
+				owner[0] = Thread.currentThread();
+			}
+			// a processor is only used by its worker
+			assertSame(owner[0], Thread.currentThread());
+			tokens++;
+		}
+
+		@Override
+		public void begin() {
+			begun = true;
+		}
+
+		@Override
+		public void acceptCommand(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+			token();
+			if (id == semicolonId) {
+				semicolons++;
+			}
+		}
+
+		@Override
+		public void acceptLocalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+			token();
+			idSum += id;
+		}
+
+		@Override
+		public void acceptGlobalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+			token();
+		}
+
+		@Override
+		public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset, int originalOffset,
+								  int originalLength) {
+			token();
+		}
+
+		@Override
+		public void preProcessorTokenSkipped(@NotNull String token, int offset) {
+		}
+
+		@Override
+		public void preProcessorCommandSkipped(@NotNull String command, int offset) {
+		}
+
+		@Override
+		public void end() {
+			ended = true;
+		}
+	}
+
+	private static String text(int statements) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < statements; i++) {
+			sb.append("_v").append(i % 100).append(" = [1, {_x; _y}];\n");
+		}
+		return sb.toString();
+	}
+
+	private static void lex(String text, OrinocoLexerContext context, StatementProcessingScheduler scheduler, int batchSize) {
+		new OrinocoLexer(OrinocoReader.fromCharSequence(text), new OrinocoPreProcessor(new StatementCollectionTokenProcessor(context,
+				scheduler, batchSize)), context).start();
+		scheduler.finish();
+	}
+
+	@Test
+	public void synchronous() {
+		SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+		CountingProcessor processor = new CountingProcessor(context);
+		SynchronousStatementProcessingScheduler scheduler = new SynchronousStatementProcessingScheduler(processor);
+		lex(text(100), context, scheduler, 16);
+		assertTrue(processor.begun);
+		assertTrue(processor.ended);
+		assertEquals(200, processor.semicolons);
+		assertEquals(100 * 12, processor.tokens);
+		try {
+			scheduler.scheduleQueue(new BoundedOrinocoTokenQueue());
+			fail();
+		} catch (IllegalStateException expected) {
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void forkJoin() {
+		int statements = 20000;
+		SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+		CountingProcessor expected = new CountingProcessor(context);
+		lex(text(statements), context, new SynchronousStatementProcessingScheduler(expected), 64);
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ForkJoinStatementProcessingScheduler scheduler = new ForkJoinStatementProcessingScheduler(pool,
+					() -> new CountingProcessor(context), 2);
+			lex(text(statements), context, scheduler, 64);
+			int tokens = 0;
+			int semicolons = 0;
+			long idSum = 0;
+			for (StatementProcessor p : scheduler.getProcessors()) {
+				CountingProcessor processor = (CountingProcessor) p;
+				assertTrue(processor.begun);
+				assertTrue(processor.ended);
+				tokens += processor.tokens;
+				semicolons += processor.semicolons;
+				idSum += processor.idSum;
+			}
+			assertEquals(2 * statements, semicolons);
+			assertEquals(expected.tokens, tokens);
+			assertEquals(expected.idSum, idSum);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void failures() {
+		SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			ForkJoinStatementProcessingScheduler scheduler = new ForkJoinStatementProcessingScheduler(pool, () -> new CountingProcessor(context) {
+				@Override
+				public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset,
+										  int originalOffset, int originalLength) {
+					throw new IllegalArgumentException("literal");
+				}
+			}, 1);
+			try {
+				lex(text(1000), context, scheduler, 16);
+				fail();
+			} catch (IllegalArgumentException e) {
+				assertEquals("literal", e.getMessage());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** Schedules 1000 statements while the workers are stalled, then lets them go */
+	private static ForkJoinStatementProcessingScheduler stalled(BackpressurePolicy policy, long stallMillis) throws InterruptedException {
+		SimpleOrinocoLexerContext context = new SimpleOrinocoLexerContext();
+		CountDownLatch stall = new CountDownLatch(1);
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			ForkJoinStatementProcessingScheduler scheduler = new ForkJoinStatementProcessingScheduler(pool, () -> new CountingProcessor(context) {
+				@Override
+				public void begin() {
+					super.begin();
+					if (Thread.currentThread() instanceof ForkJoinWorkerThread) {
+						try {
+							stall.await();
+						} catch (InterruptedException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				}
+			}, 2);
+			scheduler.setBackpressurePolicy(policy);
+			Thread release = new Thread(() -> {
+				try {
+					Thread.sleep(stallMillis);
+				} catch (InterruptedException ignored) {
+				}
+				stall.countDown();
+			});
+			release.start();
+			new OrinocoLexer(OrinocoReader.fromCharSequence(text(1000)), new OrinocoPreProcessor(new StatementCollectionTokenProcessor(context,
+					scheduler, 1)), context).start();
+			if (policy != BackpressurePolicy.Block) {
+				// the lexer wasn't held up by the stalled workers
+				assertEquals(1, stall.getCount());
+			}
+			stall.countDown();
+			scheduler.finish();
+			release.interrupt();
+			release.join();
+			int semicolons = 0;
+			for (StatementProcessor p : scheduler.getProcessors()) {
+				semicolons += ((CountingProcessor) p).semicolons;
+			}
+			assertEquals(2000, semicolons);
+			return scheduler;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void backpressure() throws InterruptedException {
+		ForkJoinStatementProcessingScheduler scheduler = stalled(BackpressurePolicy.Block, 200);
+		assertTrue(scheduler.getBlockedNanos() >= 100_000_000L);
+		assertEquals(0, scheduler.getSpilledBatchCount());
+
+		scheduler = stalled(BackpressurePolicy.Spill, 10000);
+		assertTrue(scheduler.getSpilledBatchCount() > 0);
+		assertEquals(0, scheduler.getInlineBatchCount());
+
+		scheduler = stalled(BackpressurePolicy.RunInline, 10000);
+		assertTrue(scheduler.getInlineBatchCount() > 0);
+		assertEquals(0, scheduler.getSpilledBatchCount());
+		// the scheduling thread had its own processor
+		assertTrue(scheduler.getProcessors().size() > 1);
+	}
+}
@@ -0,0 +1,150 @@
+package arma.orinocosqf;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WorkspaceDriverTest {
+
+	/** Counts the tokens of a file */
+	private static class CountingProcessor implements StatementProcessor {
+		int tokens;
+
+		@Override
+		public void begin() {
+		}
+
+		@Override
+		public void acceptCommand(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+			tokens++;
+		}
+
+		@Override
+		public void acceptLocalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+			tokens++;
+		}
+
+		@Override
+		public void acceptGlobalVariable(int id, int preprocessedOffset, int originalOffset, int originalLength) {
+			tokens++;
+		}
+
+		@Override
+		public void acceptLiteral(@NotNull OrinocoLexerLiteralType type, @NotNull String token, int preprocessedOffset, int originalOffset,
+								  int originalLength) {
+			tokens++;
+		}
+
+		@Override
+		public void preProcessorTokenSkipped(@NotNull String token, int offset) {
+		}
+
+		@Override
+		public void preProcessorCommandSkipped(@NotNull String command, int offset) {
+		}
+
+		@Override
+		public void end() {
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void workspace() throws IOException {
+		Path dir = Files.createTempDirectory("workspace");
+		List<Path> files = new ArrayList<>();
+		ForkJoinPool cpuPool = new ForkJoinPool(2);
+		try {
+			Files.write(dir.resolve("common.hpp"), "#define PAIR [1, 2]\n".getBytes(StandardCharsets.UTF_8));
+			for (int f = 0; f < 8; f++) {
+				StringBuilder text = new StringBuilder("#include \"common.hpp\"\n");
+				for (int i = 0; i <= f * 100; i++) {
+					// _a = [ 1 , 2 ] ;
+					text.append("_a = PAIR;\n");
+				}
+				files.add(Files.write(dir.resolve(f + ".sqf"), text.toString().getBytes(StandardCharsets.UTF_8)).toRealPath());
+			}
+			Map<Path, Integer> tokens = new ConcurrentHashMap<>();
+			IncludeCache cache = new IncludeCache();
+			try (WorkspaceDriver driver = new WorkspaceDriver(new SimpleOrinocoLexerContext(), cpuPool, 3)) {
+				driver.setIncludes(IncludeResolver.fromRoots(Collections.singletonList(dir)), cache);
+				driver.setBatchSize(16);
+				driver.run(files, new WorkspaceDriver.Listener() {
+					@NotNull
+					@Override
+					public StatementProcessor createProcessor(@NotNull Path file) {
+						return new CountingProcessor();
+					}
+
+					@Override
+					public void fileProcessed(@NotNull Path file, @NotNull List<StatementProcessor> processors) {
+						int sum = 0;
+						for (StatementProcessor processor : processors) {
+							sum += ((CountingProcessor) processor).tokens;
+						}
+						assertNull(tokens.put(file, sum));
+					}
+				});
+			}
+			assertEquals(8, tokens.size());
+			for (int f = 0; f < 8; f++) {
+				assertEquals(8 * (f * 100 + 1), (int) tokens.get(files.get(f)));
+			}
+			// the header was preprocessed once
+			assertEquals(1, cache.getMissCount());
+		} finally {
+			cpuPool.shutdown();
+			for (Path file : files) {
+				Files.delete(file);
+			}
+			Files.delete(dir.resolve("common.hpp"));
+			Files.delete(dir);
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void missingFile() throws IOException {
+		Path dir = Files.createTempDirectory("workspace");
+		Path file = Files.write(dir.resolve("a.sqf"), "_a = 1;".getBytes(StandardCharsets.UTF_8));
+		ForkJoinPool cpuPool = new ForkJoinPool(1);
+		AtomicInteger processed = new AtomicInteger();
+		try (WorkspaceDriver driver = new WorkspaceDriver(new SimpleOrinocoLexerContext(), cpuPool, 1)) {
+			List<Path> files = new ArrayList<>();
+			files.add(dir.resolve("missing.sqf"));
+			files.add(file);
+			driver.run(files, new WorkspaceDriver.Listener() {
+				@NotNull
+				@Override
+				public StatementProcessor createProcessor(@NotNull Path file) {
+					return new CountingProcessor();
+				}
+
+				@Override
+				public void fileProcessed(@NotNull Path file, @NotNull List<StatementProcessor> processors) {
+					processed.incrementAndGet();
+				}
+			});
+			fail();
+		} catch (NoSuchFileException expected) {
+			// the other file was processed nonetheless
+			assertEquals(1, processed.get());
+		} finally {
+			cpuPool.shutdown();
+			Files.delete(file);
+			Files.delete(dir);
+		}
+	}
+}